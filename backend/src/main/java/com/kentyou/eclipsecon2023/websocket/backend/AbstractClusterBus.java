@@ -0,0 +1,364 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base of the {@link ClusterBus} implementations: batching, de-duplication and encoding of the messages.
+ * <p>
+ * Published messages are kept until the next tick, then sent to the peers in as few batches as the transport allows.
+ * Within a tick, a message with the same target and key as a pending one replaces it at its position: a node
+ * updating a value many times per tick sends it once. Messages without a key are all sent, even identical ones, as
+ * the local sessions get each of them.
+ * <p>
+ * A batch holds the ID of the node that sent it, so that nodes ignore their own batches, e.g. on multicast
+ * transports.
+ */
+public abstract class AbstractClusterBus implements ClusterBus {
+
+	private static final Logger logger = LoggerFactory.getLogger(AbstractClusterBus.class);
+
+	/**
+	 * Default maximum number of messages kept between two ticks before sending them right away
+	 */
+	public static final int DEFAULT_MAX_BATCH_MESSAGES = 10000;
+
+	private static final byte VERSION = 1;
+
+	private static final byte FLAG_KEY = 0x1;
+	private static final byte FLAG_TEXT = 0x2;
+
+	private static final ClusterMessage.Target[] TARGETS = ClusterMessage.Target.values();
+
+	private final String nodeId;
+
+	private final byte[] encodedNodeId;
+
+	private final int maxBatchMessages;
+
+	/**
+	 * Messages published since the last tick, by batch key (a unique key for messages without a key). Also used as
+	 * lock to publish them.
+	 */
+	private final Map<Object, ClusterMessage> pending = new LinkedHashMap<>();
+
+	/**
+	 * Lock keeping the batches in order when they are sent from several threads
+	 */
+	private final Object sendLock = new Object();
+
+	private volatile Consumer<ClusterMessage> receiver;
+
+	private ScheduledExecutorService scheduler;
+
+	private final LongAdder published = new LongAdder();
+	private final LongAdder deduplicated = new LongAdder();
+	private final LongAdder batchesSent = new LongAdder();
+	private final LongAdder received = new LongAdder();
+
+	/**
+	 * @param nodeId           ID of this node
+	 * @param maxBatchMessages Maximum number of messages kept between two ticks
+	 */
+	protected AbstractClusterBus(final String nodeId, final int maxBatchMessages) {
+		this.nodeId = nodeId;
+		this.encodedNodeId = nodeId.getBytes(StandardCharsets.UTF_8);
+		this.maxBatchMessages = Math.max(1, maxBatchMessages);
+	}
+
+	@Override
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	@Override
+	public void setReceiver(final Consumer<ClusterMessage> receiver) {
+		this.receiver = receiver;
+	}
+
+	@Override
+	public void publish(final ClusterMessage message) {
+		published.increment();
+		final boolean full;
+		final Object batchKey = message.batchKey();
+		synchronized (pending) {
+			if (batchKey == null) {
+				pending.put(new Object(), message);
+			} else if (pending.put(batchKey, message) != null) {
+				deduplicated.increment();
+			}
+			full = pending.size() >= maxBatchMessages;
+		}
+
+		if (full) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends the pending messages every tick
+	 *
+	 * @param tickMillis Duration of a tick, in milliseconds
+	 */
+	protected synchronized void start(final long tickMillis) {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread thread = new Thread(r, "websocket-cluster-bus");
+				thread.setDaemon(true);
+				return thread;
+			});
+			scheduler.scheduleWithFixedDelay(this::flush, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops the ticks and sends the pending messages
+	 */
+	protected synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		flush();
+	}
+
+	/**
+	 * Sends the pending messages now
+	 */
+	public void flush() {
+		synchronized (sendLock) {
+			final List<ClusterMessage> messages;
+			synchronized (pending) {
+				if (pending.isEmpty()) {
+					return;
+				}
+				messages = new ArrayList<>(pending.values());
+				pending.clear();
+			}
+
+			try {
+				for (final ByteBuffer batch : encode(messages)) {
+					transmit(batch);
+					batchesSent.increment();
+				}
+			} catch (Exception e) {
+				// Also called from the scheduler, which would stop on an exception
+				logger.error("Error sending {} message(s) to the cluster", messages.size(), e);
+			}
+		}
+	}
+
+	/**
+	 * Sends a batch to the other nodes
+	 *
+	 * @param batch Encoded batch, at most {@link #getMaxBatchSize()} bytes
+	 * @throws IOException Error sending the batch
+	 */
+	protected abstract void transmit(ByteBuffer batch) throws IOException;
+
+	/**
+	 * Returns the maximum size of a batch, in bytes. Messages that don't fit in a batch on their own are dropped.
+	 */
+	protected int getMaxBatchSize() {
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Delivers the messages of a batch received from another node
+	 *
+	 * @param batch Encoded batch
+	 */
+	protected void receive(final ByteBuffer batch) {
+		final List<ClusterMessage> messages;
+		try {
+			messages = decode(batch);
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			logger.warn("Ignoring an invalid cluster batch: {}", e.toString());
+			return;
+		}
+
+		final Consumer<ClusterMessage> currentReceiver = receiver;
+		if (messages == null || currentReceiver == null) {
+			return;
+		}
+
+		for (final ClusterMessage message : messages) {
+			received.increment();
+			try {
+				currentReceiver.accept(message);
+			} catch (Exception e) {
+				logger.error("Error delivering cluster message {}", message, e);
+			}
+		}
+	}
+
+	/**
+	 * Encodes messages in as few batches as possible
+	 */
+	private List<ByteBuffer> encode(final List<ClusterMessage> messages) {
+		final int maxSize = getMaxBatchSize();
+		final int headerSize = 1 + 4 + encodedNodeId.length + 4;
+
+		final List<ByteBuffer> batches = new ArrayList<>();
+		final List<byte[]> encoded = new ArrayList<>(messages.size());
+		int size = headerSize;
+		for (final ClusterMessage message : messages) {
+			final byte[] bytes = encode(message);
+			if (headerSize + bytes.length > maxSize) {
+				logger.warn("Cluster message too large to be sent: {} bytes for {}", bytes.length, message);
+				continue;
+			}
+
+			if (size + bytes.length > maxSize) {
+				batches.add(batch(encoded, size));
+				encoded.clear();
+				size = headerSize;
+			}
+			encoded.add(bytes);
+			size += bytes.length;
+		}
+
+		if (!encoded.isEmpty()) {
+			batches.add(batch(encoded, size));
+		}
+		return batches;
+	}
+
+	private ByteBuffer batch(final List<byte[]> encoded, final int size) {
+		final ByteBuffer batch = ByteBuffer.allocate(size);
+		batch.put(VERSION);
+		batch.putInt(encodedNodeId.length).put(encodedNodeId);
+		batch.putInt(encoded.size());
+		for (final byte[] bytes : encoded) {
+			batch.put(bytes);
+		}
+		return batch.flip();
+	}
+
+	private static byte[] encode(final ClusterMessage message) {
+		final byte[] name = message.getName().getBytes(StandardCharsets.UTF_8);
+		final byte[] key = message.getKey() != null ? message.getKey().getBytes(StandardCharsets.UTF_8) : null;
+		final byte[] payload = message.isText() ? message.getText().getBytes(StandardCharsets.UTF_8)
+				: message.getData();
+
+		final ByteBuffer buffer = ByteBuffer
+				.allocate(2 + 4 + name.length + (key != null ? 4 + key.length : 0) + 4 + payload.length);
+		buffer.put((byte) message.getTarget().ordinal());
+		buffer.put((byte) ((key != null ? FLAG_KEY : 0) | (message.isText() ? FLAG_TEXT : 0)));
+		buffer.putInt(name.length).put(name);
+		if (key != null) {
+			buffer.putInt(key.length).put(key);
+		}
+		buffer.putInt(payload.length).put(payload);
+		return buffer.array();
+	}
+
+	/**
+	 * Decodes a batch
+	 *
+	 * @return The messages of the batch, or null if it was sent by this node
+	 * @throws BufferUnderflowException Truncated batch
+	 * @throws IllegalArgumentException Invalid batch
+	 */
+	private List<ClusterMessage> decode(final ByteBuffer batch) {
+		final byte version = batch.get();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported version " + version);
+		}
+
+		if (nodeId.equals(readString(batch))) {
+			return null;
+		}
+
+		final int count = batch.getInt();
+		if (count < 0) {
+			throw new IllegalArgumentException("Invalid message count " + count);
+		}
+
+		final List<ClusterMessage> messages = new ArrayList<>(Math.min(count, batch.remaining()));
+		for (int i = 0; i < count; i++) {
+			final int target = batch.get();
+			if (target < 0 || target >= TARGETS.length) {
+				throw new IllegalArgumentException("Invalid target " + target);
+			}
+
+			final byte flags = batch.get();
+			final String name = readString(batch);
+			final String key = (flags & FLAG_KEY) != 0 ? readString(batch) : null;
+			final byte[] payload = readBytes(batch);
+			if ((flags & FLAG_TEXT) != 0) {
+				messages.add(ClusterMessage.text(TARGETS[target], name, key,
+						new String(payload, StandardCharsets.UTF_8)));
+			} else {
+				messages.add(ClusterMessage.binary(TARGETS[target], name, key, payload));
+			}
+		}
+		return messages;
+	}
+
+	private static String readString(final ByteBuffer buffer) {
+		return new String(readBytes(buffer), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] readBytes(final ByteBuffer buffer) {
+		final int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining()) {
+			throw new IllegalArgumentException("Invalid length " + length);
+		}
+
+		final byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Number of messages published by this node
+	 */
+	public long getPublished() {
+		return published.sum();
+	}
+
+	/**
+	 * Number of published messages that replaced a pending one with the same key
+	 */
+	public long getDeduplicated() {
+		return deduplicated.sum();
+	}
+
+	public long getBatchesSent() {
+		return batchesSent.sum();
+	}
+
+	/**
+	 * Number of messages received from the other nodes
+	 */
+	public long getReceived() {
+		return received.sum();
+	}
+}
@@ -0,0 +1,193 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.Session;
+
+/**
+ * Session bookkeeping shared by the proxies of endpoint services: tracking of the open sessions, registry, state
+ * store, metrics, heartbeat, tuning, slow consumer policy, conflation and dispatch mode, as configured by the
+ * registrar in the endpoint user properties.
+ */
+abstract class AbstractProxyEndpoint extends Endpoint {
+
+	/**
+	 * Open sessions of the endpoint, closed by the registrar when the endpoint service goes away
+	 */
+	private Set<Session> sessions;
+
+	/**
+	 * Registry the session is registered to
+	 */
+	private WebSocketSessionRegistry registry;
+
+	/**
+	 * Metrics of the endpoint
+	 */
+	private EndpointMetrics metrics;
+
+	/**
+	 * Store of the session state
+	 */
+	private SessionStateStore stateStore;
+
+	/**
+	 * Heartbeat of the session (null if not watched)
+	 */
+	private HeartbeatWheel.Entry heartbeat;
+
+	/**
+	 * Session given to the handler when its messages are dispatched off the I/O thread (null otherwise)
+	 */
+	protected DispatchingSession dispatchingSession;
+
+	/**
+	 * Registers a new session
+	 *
+	 * @param session        Tyrus session
+	 * @param userProperties Endpoint configuration user properties
+	 * @return The session to give to the handler
+	 */
+	@SuppressWarnings("unchecked")
+	protected Session openSession(final Session session, final Map<String, Object> userProperties) {
+		final String path = (String) userProperties.get("osgi.ws.path");
+
+		sessions = (Set<Session>) userProperties.get("osgi.ws.sessions");
+		if (sessions != null) {
+			sessions.add(session);
+		}
+
+		// Make the session reachable by lookups and broadcasts, sharing frames through its writer
+		final TyrusHttpUpgradeHandler upgrading = TyrusHttpUpgradeHandler.getUpgrading();
+
+		// Buffers, queues and dispatch tuned for the endpoint when the session opens
+		final WebSocketTuning tuning = (WebSocketTuning) userProperties.get("osgi.ws.tuning");
+		final EndpointSettings settings = tuning != null ? tuning.getSettings(path) : null;
+		if (settings != null && settings.maxMessageSize > 0) {
+			// Set before the handler is opened, so that annotated limits take precedence
+			session.setMaxTextMessageBufferSize(settings.maxMessageSize);
+			session.setMaxBinaryMessageBufferSize(settings.maxMessageSize);
+		}
+
+		if (upgrading != null) {
+			if (settings != null) {
+				upgrading.applySettings(settings);
+			}
+			session.getUserProperties().put(WebSocketBroadcaster.WRITER_PROPERTY, upgrading.getWriter());
+
+			// Handle messages sent while the client doesn't keep up, as configured for the endpoint
+			upgrading.getWriter().setSlowConsumerPolicy(
+					(SlowConsumerPolicy) userProperties.get("osgi.ws.slow.consumer"), session);
+			upgrading.getWriter().setConflating(Boolean.TRUE.equals(userProperties.get("osgi.ws.conflate")));
+		}
+		stateStore = (SessionStateStore) userProperties.get("osgi.ws.state");
+		registry = (WebSocketSessionRegistry) userProperties.get("osgi.ws.registry");
+		if (registry != null) {
+			registry.register(session, path);
+		}
+
+		// Ping the session and close it if it stops answering, as configured for the endpoint
+		final HeartbeatOptions heartbeatOptions = (HeartbeatOptions) userProperties.get("osgi.ws.heartbeat");
+		if (upgrading != null && heartbeatOptions != null) {
+			heartbeat = upgrading.startHeartbeat(session, heartbeatOptions);
+		}
+
+		// Dispatch mode of the endpoint service, unless overridden by its tuning
+		final Executor endpointExecutor = (Executor) userProperties.get("osgi.ws.dispatch.executor");
+		final Executor dispatchExecutor = settings != null ? settings.getDispatchExecutor(endpointExecutor)
+				: endpointExecutor;
+
+		final WebSocketMetrics webSocketMetrics = (WebSocketMetrics) userProperties.get("osgi.ws.metrics");
+		if (webSocketMetrics != null) {
+			metrics = webSocketMetrics.getEndpoint(path);
+			session.getUserProperties().put(EndpointMetrics.SESSION_PROPERTY, metrics);
+			if (upgrading != null) {
+				// Dispatched handlers are timed by the dispatching session
+				upgrading.setEndpointMetrics(metrics, dispatchExecutor == null);
+			}
+		}
+
+		if (dispatchExecutor != null) {
+			final int maxPending = (settings != null ? settings : EndpointSettings.DEFAULT).dispatchMaxPending;
+			dispatchingSession = new DispatchingSession(session, dispatchExecutor, maxPending, this,
+					metrics != null ? metrics.getHandlerLatency() : null);
+			if (upgrading != null) {
+				// Stop reading the connection while the handlers lag behind
+				upgrading.setDispatchExecutor(dispatchingSession.getExecutor());
+			}
+			return dispatchingSession;
+		}
+		return session;
+	}
+
+	/**
+	 * Unregisters a closed session. Its state is kept until the handler has been notified, see
+	 * {@link #notifyClose(Session, Runnable)}.
+	 *
+	 * @param session     Tyrus session
+	 * @param closeReason Reason of the close
+	 */
+	protected void closeSession(final Session session, final CloseReason closeReason) {
+		if (sessions != null) {
+			sessions.remove(session);
+		}
+		if (registry != null) {
+			registry.unregister(session);
+		}
+		if (heartbeat != null) {
+			heartbeat.cancel();
+		}
+		if (metrics != null) {
+			if (closeReason != null) {
+				metrics.sessionClosed(closeReason.getCloseCode().getCode());
+			}
+
+			// Stop summing the outbound queue of the session in the endpoint metrics
+			final Object writer = session.getUserProperties().get(WebSocketBroadcaster.WRITER_PROPERTY);
+			if (writer instanceof TyrusServletWriter) {
+				((TyrusServletWriter) writer).setEndpointMetrics(null);
+			}
+		}
+	}
+
+	/**
+	 * Notifies the handler of the end of a session, after the messages already dispatched in dispatch mode, then frees
+	 * the session state: the handler can still read it in its {@code onClose}
+	 *
+	 * @param session Tyrus session
+	 * @param onClose Notification of the handler
+	 */
+	protected void notifyClose(final Session session, final Runnable onClose) {
+		final Runnable closeAndFree = () -> {
+			try {
+				onClose.run();
+			} finally {
+				if (stateStore != null) {
+					stateStore.remove(session);
+				}
+			}
+		};
+
+		if (dispatchingSession != null) {
+			dispatchingSession.execute(closeAndFree);
+		} else {
+			closeAndFree.run();
+		}
+	}
+}
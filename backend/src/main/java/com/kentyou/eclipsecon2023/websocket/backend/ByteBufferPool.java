@@ -0,0 +1,329 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * Shared pool of {@link ByteBuffer}s, organized in power-of-two size classes.
+ * <p>
+ * Heap buffers are used by the read path, as {@link jakarta.servlet.ServletInputStream} only reads into arrays, and
+ * to gather outbound frames, as {@link jakarta.servlet.ServletOutputStream} only writes arrays.
+ * Direct buffers are carved out of large off-heap slabs, so that many small buffers don't each cost a native
+ * allocation. Requests bigger than the largest size class are served by a plain allocation and are never pooled.
+ * <p>
+ * The occupancy and hit-rate counters are published over JMX by the {@link WebSocketMetrics}.
+ */
+@Component(service = ByteBufferPool.class)
+public class ByteBufferPool implements ByteBufferPoolMXBean {
+
+	/**
+	 * Pool configuration
+	 */
+	public @interface Config {
+		/**
+		 * Capacity of the smallest size class, rounded up to a power of two
+		 */
+		int minBufferSize() default 1024;
+
+		/**
+		 * Capacity of the largest size class, rounded up to a power of two
+		 */
+		int maxBufferSize() default 65536;
+
+		/**
+		 * Maximum number of idle buffers kept per size class (per kind)
+		 */
+		int maxPooledPerClass() default 256;
+
+		/**
+		 * Size of the off-heap slabs direct buffers are sliced from
+		 */
+		int directSlabSize() default 1048576;
+	}
+
+	/**
+	 * Pooled buffers of a single capacity
+	 */
+	private static class SizeClass {
+		final int capacity;
+		final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+		final AtomicInteger size = new AtomicInteger();
+
+		SizeClass(int capacity) {
+			this.capacity = capacity;
+		}
+
+		ByteBuffer poll() {
+			final ByteBuffer buffer = free.poll();
+			if (buffer != null) {
+				size.decrementAndGet();
+			}
+			return buffer;
+		}
+
+		boolean offer(ByteBuffer buffer, int max) {
+			if (size.incrementAndGet() > max) {
+				size.decrementAndGet();
+				return false;
+			}
+			free.offer(buffer);
+			return true;
+		}
+	}
+
+	private final int minShift;
+	private final int maxShift;
+	private final int maxPooledPerClass;
+	private final int directSlabSize;
+
+	private final SizeClass[] heapClasses;
+	private final SizeClass[] directClasses;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder releases = new LongAdder();
+	private final LongAdder discards = new LongAdder();
+	private final LongAdder slabs = new LongAdder();
+
+	/**
+	 * Creates a pool with the default configuration
+	 */
+	public ByteBufferPool() {
+		this(1024, 65536, 256, 1048576);
+	}
+
+	@Activate
+	public ByteBufferPool(final Config config) {
+		this(config.minBufferSize(), config.maxBufferSize(), config.maxPooledPerClass(), config.directSlabSize());
+	}
+
+	public ByteBufferPool(int minBufferSize, int maxBufferSize, int maxPooledPerClass, int directSlabSize) {
+		if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+			throw new IllegalArgumentException("Invalid size classes: " + minBufferSize + " - " + maxBufferSize);
+		}
+
+		this.minShift = shiftFor(minBufferSize);
+		this.maxShift = shiftFor(maxBufferSize);
+		this.maxPooledPerClass = Math.max(0, maxPooledPerClass);
+		this.directSlabSize = Math.max(directSlabSize, 1 << maxShift);
+
+		final int nbClasses = maxShift - minShift + 1;
+		heapClasses = new SizeClass[nbClasses];
+		directClasses = new SizeClass[nbClasses];
+		for (int i = 0; i < nbClasses; i++) {
+			heapClasses[i] = new SizeClass(1 << (minShift + i));
+			directClasses[i] = new SizeClass(1 << (minShift + i));
+		}
+	}
+
+	/**
+	 * Returns the exponent of the smallest power of two that is greater or equal to the given size
+	 */
+	private static int shiftFor(int size) {
+		return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+
+	/**
+	 * Returns the size class that can hold the given capacity, or null if it is too big to be pooled
+	 */
+	private SizeClass classFor(final SizeClass[] classes, int capacity) {
+		final int index = Math.max(shiftFor(capacity), minShift) - minShift;
+		return index < classes.length ? classes[index] : null;
+	}
+
+	/**
+	 * Leases a heap buffer, backed by an array, of at least the given capacity.
+	 *
+	 * @param capacity Minimum capacity of the buffer
+	 * @return A cleared buffer (position 0, limit = capacity)
+	 */
+	public ByteBuffer acquire(int capacity) {
+		final SizeClass sizeClass = classFor(heapClasses, capacity);
+		if (sizeClass == null) {
+			misses.increment();
+			return ByteBuffer.allocate(capacity);
+		}
+
+		final ByteBuffer buffer = sizeClass.poll();
+		if (buffer != null) {
+			hits.increment();
+			buffer.clear();
+			return buffer;
+		}
+
+		misses.increment();
+		return ByteBuffer.allocate(sizeClass.capacity);
+	}
+
+	/**
+	 * Leases a direct buffer of at least the given capacity, sliced from an off-heap slab when possible.
+	 *
+	 * @param capacity Minimum capacity of the buffer
+	 * @return A cleared buffer (position 0, limit = capacity)
+	 */
+	public ByteBuffer acquireDirect(int capacity) {
+		final SizeClass sizeClass = classFor(directClasses, capacity);
+		if (sizeClass == null) {
+			misses.increment();
+			return ByteBuffer.allocateDirect(capacity);
+		}
+
+		ByteBuffer buffer = sizeClass.poll();
+		if (buffer != null) {
+			hits.increment();
+			buffer.clear();
+			return buffer;
+		}
+
+		misses.increment();
+		buffer = allocateSlab(sizeClass);
+		return buffer;
+	}
+
+	/**
+	 * Allocates a new slab for the given size class: the first slice is returned, the others are made available in
+	 * the pool.
+	 */
+	private ByteBuffer allocateSlab(final SizeClass sizeClass) {
+		final int nbSlices = Math.max(1, Math.min(directSlabSize / sizeClass.capacity, maxPooledPerClass));
+		final ByteBuffer slab = ByteBuffer.allocateDirect(nbSlices * sizeClass.capacity);
+		slabs.increment();
+
+		ByteBuffer first = null;
+		for (int i = 0; i < nbSlices; i++) {
+			slab.limit((i + 1) * sizeClass.capacity).position(i * sizeClass.capacity);
+			final ByteBuffer slice = slab.slice();
+			if (first == null) {
+				first = slice;
+			} else if (!sizeClass.offer(slice, maxPooledPerClass)) {
+				break;
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used by the caller afterwards.
+	 *
+	 * @param buffer A buffer obtained from {@link #acquire(int)} or {@link #acquireDirect(int)} (can be null)
+	 */
+	public void release(final ByteBuffer buffer) {
+		if (buffer == null || buffer.isReadOnly()) {
+			return;
+		}
+
+		final int capacity = buffer.capacity();
+		final SizeClass sizeClass = classFor(buffer.isDirect() ? directClasses : heapClasses, capacity);
+		if (sizeClass != null && sizeClass.capacity == capacity && sizeClass.offer(buffer, maxPooledPerClass)) {
+			releases.increment();
+		} else {
+			discards.increment();
+		}
+	}
+
+	/**
+	 * Returns the largest capacity served from the pool
+	 */
+	@Override
+	public int getMaxPooledSize() {
+		return 1 << maxShift;
+	}
+
+	/**
+	 * Returns the number of leases served by a pooled buffer
+	 */
+	@Override
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of leases that required an allocation
+	 */
+	@Override
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the ratio of leases served by a pooled buffer (0 if the pool was never used)
+	 */
+	@Override
+	public double getHitRate() {
+		final long h = hits.sum();
+		final long total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * Returns the number of buffers given back to the pool
+	 */
+	@Override
+	public long getReleases() {
+		return releases.sum();
+	}
+
+	/**
+	 * Returns the number of released buffers dropped because their size class was full or unknown
+	 */
+	@Override
+	public long getDiscards() {
+		return discards.sum();
+	}
+
+	/**
+	 * Returns the number of off-heap slabs allocated so far
+	 */
+	@Override
+	public long getDirectSlabs() {
+		return slabs.sum();
+	}
+
+	/**
+	 * Returns the number of idle buffers currently held by the pool
+	 */
+	@Override
+	public int getPooledBuffers() {
+		int total = 0;
+		for (int i = 0; i < heapClasses.length; i++) {
+			total += heapClasses[i].size.get() + directClasses[i].size.get();
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the number of bytes held by idle buffers of the pool
+	 */
+	@Override
+	public long getPooledBytes() {
+		long total = 0;
+		for (int i = 0; i < heapClasses.length; i++) {
+			total += (long) heapClasses[i].capacity * (heapClasses[i].size.get() + directClasses[i].size.get());
+		}
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		return "ByteBufferPool{sizes=" + (1 << minShift) + "-" + (1 << maxShift) + ", pooled=" + getPooledBuffers()
+				+ ", hits=" + getHits() + ", misses=" + getMisses() + "}";
+	}
+}
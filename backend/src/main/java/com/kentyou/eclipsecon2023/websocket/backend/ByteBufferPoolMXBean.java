@@ -0,0 +1,64 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+/**
+ * JMX view of the shared buffer pool
+ */
+public interface ByteBufferPoolMXBean {
+
+	/**
+	 * Largest capacity served from the pool
+	 */
+	int getMaxPooledSize();
+
+	/**
+	 * Number of leases served by a pooled buffer
+	 */
+	long getHits();
+
+	/**
+	 * Number of leases that required an allocation
+	 */
+	long getMisses();
+
+	/**
+	 * Ratio of leases served by a pooled buffer (0 if the pool was never used)
+	 */
+	double getHitRate();
+
+	/**
+	 * Number of buffers given back to the pool
+	 */
+	long getReleases();
+
+	/**
+	 * Number of released buffers dropped because their size class was full or unknown
+	 */
+	long getDiscards();
+
+	/**
+	 * Number of off-heap slabs allocated so far
+	 */
+	long getDirectSlabs();
+
+	/**
+	 * Number of idle buffers currently held by the pool
+	 */
+	int getPooledBuffers();
+
+	/**
+	 * Number of bytes held by idle buffers of the pool
+	 */
+	long getPooledBytes();
+}
@@ -0,0 +1,50 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.function.Consumer;
+
+/**
+ * Forwards the messages sent to sessions to the other nodes of a cluster, so that they reach the sessions connected
+ * to them.
+ * <p>
+ * Implementations are registered as services and picked up by the {@link WebSocketBroadcaster}. A node exchanges
+ * messages with its peers, not with their sessions: the cost of a message on the network depends on the number of
+ * nodes, not on the number of remote sessions.
+ *
+ * @see AbstractClusterBus
+ */
+public interface ClusterBus {
+
+	/**
+	 * Returns the ID of this node, unique in the cluster
+	 */
+	String getNodeId();
+
+	/**
+	 * Forwards a message to the other nodes. It isn't delivered to the sessions of this node.
+	 * <p>
+	 * Messages without a key are never merged, even identical ones. A message with a key can replace a message with
+	 * the same target and key that hasn't been sent yet: the other nodes may only get the latest one.
+	 *
+	 * @param message Message to forward
+	 */
+	void publish(ClusterMessage message);
+
+	/**
+	 * Sets the receiver of the messages published by the other nodes
+	 *
+	 * @param receiver Message receiver, called from a thread of the bus (null to ignore messages)
+	 */
+	void setReceiver(Consumer<ClusterMessage> receiver);
+}
@@ -0,0 +1,159 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Message forwarded to the other nodes by a {@link ClusterBus}, to be sent to the matching sessions they hold.
+ * <p>
+ * Messages are immutable. Those with the same target and the same non-null key only deliver their latest value:
+ * buses keep the last one published during a tick. Messages without a key are all delivered, even identical ones.
+ */
+public final class ClusterMessage {
+
+	/**
+	 * Kind of the sessions targeted by a message
+	 */
+	public enum Target {
+		/**
+		 * Sessions of an endpoint path
+		 */
+		PATH,
+
+		/**
+		 * Sessions of a user principal
+		 */
+		PRINCIPAL,
+
+		/**
+		 * Sessions with a tag
+		 */
+		TAG,
+
+		/**
+		 * A single session, by ID
+		 */
+		SESSION
+	}
+
+	private final Target target;
+
+	private final String name;
+
+	private final String key;
+
+	private final String text;
+
+	private final byte[] data;
+
+	private ClusterMessage(final Target target, final String name, final String key, final String text,
+			final byte[] data) {
+		this.target = Objects.requireNonNull(target, "No target");
+		this.name = Objects.requireNonNull(name, "No target name");
+		this.key = key;
+		this.text = text;
+		this.data = data;
+	}
+
+	/**
+	 * Creates a text message
+	 *
+	 * @param target Kind of the target sessions
+	 * @param name   Path, principal name, tag or session ID of the target sessions
+	 * @param key    Conflation key (can be null)
+	 * @param text   Message content
+	 */
+	public static ClusterMessage text(final Target target, final String name, final String key, final String text) {
+		return new ClusterMessage(target, name, key, Objects.requireNonNull(text, "No text"), null);
+	}
+
+	/**
+	 * Creates a binary message
+	 *
+	 * @param target Kind of the target sessions
+	 * @param name   Path, principal name, tag or session ID of the target sessions
+	 * @param key    Conflation key (can be null)
+	 * @param data   Message content (not copied)
+	 */
+	public static ClusterMessage binary(final Target target, final String name, final String key,
+			final byte[] data) {
+		return new ClusterMessage(target, name, key, null, Objects.requireNonNull(data, "No data"));
+	}
+
+	public Target getTarget() {
+		return target;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the conflation key of the message, or null
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the content of a text message, or null for a binary message
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * Returns the content of a binary message, or null for a text message. The array must not be modified.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	public boolean isText() {
+		return text != null;
+	}
+
+	/**
+	 * Returns the identity of the message in a batch: its target and key, or null if it has no key
+	 */
+	Object batchKey() {
+		return key != null ? Arrays.asList(target, name, key) : null;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ClusterMessage)) {
+			return false;
+		}
+
+		final ClusterMessage other = (ClusterMessage) obj;
+		return target == other.target && name.equals(other.name) && Objects.equals(key, other.key)
+				&& Objects.equals(text, other.text) && Arrays.equals(data, other.data);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(target, name, key, text) * 31 + Arrays.hashCode(data);
+	}
+
+	@Override
+	public String toString() {
+		return "ClusterMessage{target=" + target + ", name=" + name + ", key=" + key + ", "
+				+ (text != null ? "text=" + text.length() + " chars" : "data=" + data.length + " bytes") + "}";
+	}
+}
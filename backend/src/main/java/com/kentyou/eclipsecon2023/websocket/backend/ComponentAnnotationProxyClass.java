@@ -16,83 +16,68 @@ import java.io.IOException;
 import java.util.Map;
 
 import org.glassfish.tyrus.core.AnnotatedEndpoint;
-import org.glassfish.tyrus.core.ComponentProviderService;
-import org.glassfish.tyrus.core.ErrorCollector;
-import org.glassfish.tyrus.core.TyrusWebSocketEngine;
-import org.osgi.framework.BundleContext;
-import org.osgi.framework.Constants;
-import org.osgi.framework.InvalidSyntaxException;
-import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.ComponentServiceObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import jakarta.websocket.CloseReason;
-import jakarta.websocket.Endpoint;
 import jakarta.websocket.EndpointConfig;
 import jakarta.websocket.Session;
 
-public class ComponentAnnotationProxyClass extends Endpoint {
+public class ComponentAnnotationProxyClass extends AbstractProxyEndpoint {
+
+	private static final Logger logger = LoggerFactory.getLogger(ComponentAnnotationProxyClass.class);
 
 	/**
-	 * Provider bundle context
+	 * Real handler service objects, given by the registrar
 	 */
-	private BundleContext context;
+	private ComponentServiceObjects<Object> serviceObjects;
 
 	/**
-	 * Real handler service reference
+	 * Real handler service instance
 	 */
-	private ServiceReference<?> svcRef;
+	private Object instance;
 
 	/**
 	 * Real handler
 	 */
 	private AnnotatedEndpoint handler;
 
-	/**
-	 * From {@link TyrusWebSocketEngine}
-	 */
-	private int incomingBufferSize = 4194315; // 4M (payload) + 11 (frame overhead)
-
 	@Override
+	@SuppressWarnings("unchecked")
 	public void onOpen(Session session, EndpointConfig config) {
 		// Extract configuration
 		final Map<String, Object> userProperties = config.getUserProperties();
-		context = (BundleContext) userProperties.get("osgi.ws.bundle.context");
-		if (context == null) {
-			throw new RuntimeException("No bundle context configured");
-		}
-
-		final ComponentProviderService componentProvider = (ComponentProviderService) userProperties
+		final SessionBoundComponentProvider componentProvider = (SessionBoundComponentProvider) userProperties
 				.get("osgi.ws.componentProvider");
 		if (componentProvider == null) {
 			throw new RuntimeException("No component provider found");
 		}
 
-		// Find the service underneath
-		final Long svcId = (Long) userProperties.get("osgi.ws.svc.id");
-		if (svcId == null) {
-			throw new RuntimeException("No handler service ID configured");
+		// Endpoint analyzed once by the registrar
+		final AnnotatedEndpoint annotatedEndpoint = (AnnotatedEndpoint) userProperties
+				.get("osgi.ws.annotated.endpoint");
+		if (annotatedEndpoint == null) {
+			throw new RuntimeException("No annotated endpoint analysis found");
 		}
 
-		final ServiceReference<?>[] references;
-		try {
-			references = context.getAllServiceReferences(null, String.format("(%s=%d)", Constants.SERVICE_ID, svcId));
-		} catch (InvalidSyntaxException e) {
-			throw new RuntimeException("Error looking for configured service", e);
+		// Get the service underneath
+		serviceObjects = (ComponentServiceObjects<Object>) userProperties.get("osgi.ws.service.objects");
+		if (serviceObjects == null) {
+			throw new RuntimeException("No handler service configured");
 		}
 
-		if (references == null || references.length != 1) {
-			throw new RuntimeException("Couldn't find configured service");
+		instance = serviceObjects.getService();
+		if (instance == null) {
+			throw new RuntimeException("Couldn't get configured service");
 		}
 
-		svcRef = references[0];
-		final Object instance = context.getServiceObjects(svcRef).getService();
-		try {
-			handler = WebSocketRegistrar.runWithClassLoader(() -> {
-				return AnnotatedEndpoint.fromInstance(instance, componentProvider, true, incomingBufferSize,
-						new ErrorCollector());
-			});
-		} catch (Exception e) {
-			throw new RuntimeException("Error analyzing annotated endpoint", e);
-		}
+		// Register the session and get the one to give to the handler
+		session = openSession(session, userProperties);
+
+		// Bind the service instance to the session given to the handler: it will be unbound by the handler onClose
+		componentProvider.bind(session, instance);
+		handler = annotatedEndpoint;
 
 		// Handle onOpen on handler side
 		handler.onOpen(session, config);
@@ -100,22 +85,50 @@ public class ComponentAnnotationProxyClass extends Endpoint {
 
 	@Override
 	public void onClose(Session session, CloseReason closeReason) {
+		closeSession(session, closeReason);
+
+		// Notify the handler after the messages already dispatched
+		final Session handlerSession = dispatchingSession != null ? dispatchingSession : session;
+		notifyClose(session, () -> closeHandler(handlerSession, closeReason));
+	}
+
+	/**
+	 * Notifies the handler of the end of the session and releases the service instance
+	 */
+	private void closeHandler(Session session, CloseReason closeReason) {
 		try {
 			if (handler != null) {
 				handler.onClose(session, closeReason);
 			}
 		} finally {
 			handler = null;
-			if (svcRef != null) {
-				context.ungetService(svcRef);
-				svcRef = null;
+			if (instance != null) {
+				ungetService(instance);
+				instance = null;
 			}
 		}
 	}
 
+	/**
+	 * Releases the handler service instance
+	 */
+	private void ungetService(final Object service) {
+		try {
+			serviceObjects.ungetService(service);
+		} catch (IllegalStateException e) {
+			// The endpoint service has already been unbound
+		}
+	}
+
 	@Override
 	public void onError(Session session, Throwable thr) {
-		thr.printStackTrace();
+		if (dispatchingSession != null && session != dispatchingSession) {
+			// Error raised by Tyrus: notify the handler after the messages already dispatched
+			dispatchingSession.execute(() -> onError(dispatchingSession, thr));
+			return;
+		}
+
+		logger.error("Error in session {}", session.getId(), thr);
 		if (handler != null) {
 			handler.onError(session, thr);
 		} else {
@@ -124,8 +137,7 @@ public class ComponentAnnotationProxyClass extends Endpoint {
 				session.getBasicRemote().sendText("ERROR: " + thr.getMessage());
 				session.close(new CloseReason(CloseReason.CloseCodes.UNEXPECTED_CONDITION, thr.getMessage()));
 			} catch (IOException e) {
-				System.err.println("Error closing session");
-				e.printStackTrace();
+				logger.error("Error closing session {}", session.getId(), e);
 			}
 		}
 	}
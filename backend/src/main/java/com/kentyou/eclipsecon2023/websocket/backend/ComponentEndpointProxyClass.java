@@ -13,30 +13,25 @@
 package com.kentyou.eclipsecon2023.websocket.backend;
 
 import java.io.IOException;
-import java.util.Collection;
 import java.util.Map;
 
-import org.osgi.framework.BundleContext;
-import org.osgi.framework.Constants;
-import org.osgi.framework.InvalidSyntaxException;
-import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.ComponentServiceObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import jakarta.websocket.CloseReason;
 import jakarta.websocket.Endpoint;
 import jakarta.websocket.EndpointConfig;
 import jakarta.websocket.Session;
 
-public class ComponentEndpointProxyClass extends Endpoint {
+public class ComponentEndpointProxyClass extends AbstractProxyEndpoint {
 
-	/**
-	 * Provider bundle context
-	 */
-	private BundleContext context;
+	private static final Logger logger = LoggerFactory.getLogger(ComponentEndpointProxyClass.class);
 
 	/**
-	 * Real handler service reference
+	 * Real handler service objects, given by the registrar
 	 */
-	private ServiceReference<Endpoint> svcRef;
+	private ComponentServiceObjects<Object> serviceObjects;
 
 	/**
 	 * Real handler
@@ -44,34 +39,24 @@ public class ComponentEndpointProxyClass extends Endpoint {
 	private Endpoint handler;
 
 	@Override
+	@SuppressWarnings("unchecked")
 	public void onOpen(Session session, EndpointConfig config) {
 		// Extract configuration
 		final Map<String, Object> userProperties = config.getUserProperties();
-		context = (BundleContext) userProperties.get("osgi.ws.bundle.context");
-		if (context == null) {
-			throw new RuntimeException("No bundle context configured");
-		}
-
-		// Find the service underneath
-		final Long svcId = (Long) userProperties.get("osgi.ws.svc.id");
-		if (svcId == null) {
-			throw new RuntimeException("No handler service ID configured");
-		}
 
-		final Collection<ServiceReference<Endpoint>> references;
-		try {
-			references = context.getServiceReferences(Endpoint.class,
-					String.format("(%s=%d)", Constants.SERVICE_ID, svcId));
-		} catch (InvalidSyntaxException e) {
-			throw new RuntimeException("Error looking for configured service", e);
+		// Get the service underneath
+		serviceObjects = (ComponentServiceObjects<Object>) userProperties.get("osgi.ws.service.objects");
+		if (serviceObjects == null) {
+			throw new RuntimeException("No handler service configured");
 		}
 
-		if (references == null || references.size() != 1) {
-			throw new RuntimeException("Couldn't find configured service");
+		handler = (Endpoint) serviceObjects.getService();
+		if (handler == null) {
+			throw new RuntimeException("Couldn't get configured service");
 		}
 
-		svcRef = references.iterator().next();
-		handler = context.getServiceObjects(svcRef).getService();
+		// Register the session and get the one to give to the handler
+		session = openSession(session, userProperties);
 
 		// Handle onOpen on handler side
 		handler.onOpen(session, config);
@@ -79,22 +64,50 @@ public class ComponentEndpointProxyClass extends Endpoint {
 
 	@Override
 	public void onClose(Session session, CloseReason closeReason) {
+		closeSession(session, closeReason);
+
+		// Notify the handler after the messages already dispatched
+		final Session handlerSession = dispatchingSession != null ? dispatchingSession : session;
+		notifyClose(session, () -> closeHandler(handlerSession, closeReason));
+	}
+
+	/**
+	 * Notifies the handler of the end of the session and releases the service instance
+	 */
+	private void closeHandler(Session session, CloseReason closeReason) {
+		final Endpoint closedHandler = handler;
 		try {
-			if (handler != null) {
-				handler.onClose(session, closeReason);
+			if (closedHandler != null) {
+				closedHandler.onClose(session, closeReason);
 			}
 		} finally {
 			handler = null;
-			if (svcRef != null) {
-				context.ungetService(svcRef);
-				svcRef = null;
+			if (closedHandler != null) {
+				ungetService(closedHandler);
 			}
 		}
 	}
 
+	/**
+	 * Releases the handler service instance
+	 */
+	private void ungetService(final Object service) {
+		try {
+			serviceObjects.ungetService(service);
+		} catch (IllegalStateException e) {
+			// The endpoint service has already been unbound
+		}
+	}
+
 	@Override
 	public void onError(Session session, Throwable thr) {
-		thr.printStackTrace();
+		if (dispatchingSession != null && session != dispatchingSession) {
+			// Error raised by Tyrus: notify the handler after the messages already dispatched
+			dispatchingSession.execute(() -> onError(dispatchingSession, thr));
+			return;
+		}
+
+		logger.error("Error in session {}", session.getId(), thr);
 		if (handler != null) {
 			handler.onError(session, thr);
 		} else {
@@ -102,8 +115,7 @@ public class ComponentEndpointProxyClass extends Endpoint {
 			try {
 				session.close(new CloseReason(CloseReason.CloseCodes.UNEXPECTED_CONDITION, thr.getMessage()));
 			} catch (IOException e) {
-				System.err.println("Error closing session");
-				e.printStackTrace();
+				logger.error("Error closing session {}", session.getId(), e);
 			}
 		}
 	}
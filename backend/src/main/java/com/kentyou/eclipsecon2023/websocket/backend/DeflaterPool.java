@@ -0,0 +1,163 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * Shared pool of raw (no zlib wrapper) {@link Deflater}s and {@link Inflater}s, used by {@link PerMessageDeflate}.
+ * <p>
+ * Each instance holds a few hundred kB of native memory, so they are reused instead of being created for each
+ * connection. The number of deflaters is bounded: when all of them are leased, {@link #acquireDeflater()} returns
+ * null and messages are sent uncompressed. Inflaters can't be refused, as compressed messages sent by peers must be
+ * read, but only a bounded number of idle ones is kept.
+ */
+@Component(service = DeflaterPool.class)
+public class DeflaterPool {
+
+	/**
+	 * Pool configuration
+	 */
+	public @interface Config {
+		/**
+		 * Compression level, from 1 (fastest) to 9 (smallest), -1 for the zlib default
+		 */
+		int level() default 6;
+
+		/**
+		 * Maximum number of deflaters, leased or idle
+		 */
+		int maxDeflaters() default 1024;
+
+		/**
+		 * Maximum number of idle inflaters kept in the pool
+		 */
+		int maxIdleInflaters() default 256;
+	}
+
+	private final int level;
+	private final int maxDeflaters;
+	private final int maxIdleInflaters;
+
+	private final Queue<Deflater> idleDeflaters = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger deflaters = new AtomicInteger();
+
+	private final Queue<Inflater> idleInflaters = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger nbIdleInflaters = new AtomicInteger();
+
+	private final LongAdder exhausted = new LongAdder();
+
+	/**
+	 * Creates a pool with the default configuration
+	 */
+	public DeflaterPool() {
+		this(6, 1024, 256);
+	}
+
+	@Activate
+	public DeflaterPool(final Config config) {
+		this(config.level(), config.maxDeflaters(), config.maxIdleInflaters());
+	}
+
+	public DeflaterPool(int level, int maxDeflaters, int maxIdleInflaters) {
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+
+		this.level = level;
+		this.maxDeflaters = Math.max(0, maxDeflaters);
+		this.maxIdleInflaters = Math.max(0, maxIdleInflaters);
+	}
+
+	/**
+	 * Leases a deflater
+	 *
+	 * @return A deflater in its initial state, or null if all deflaters are leased
+	 */
+	public Deflater acquireDeflater() {
+		final Deflater deflater = idleDeflaters.poll();
+		if (deflater != null) {
+			return deflater;
+		}
+
+		if (deflaters.incrementAndGet() > maxDeflaters) {
+			deflaters.decrementAndGet();
+			exhausted.increment();
+			return null;
+		}
+		return new Deflater(level, true);
+	}
+
+	/**
+	 * Gives back a deflater leased with {@link #acquireDeflater()}. It is reset before being reused.
+	 *
+	 * @param deflater Leased deflater
+	 */
+	public void releaseDeflater(final Deflater deflater) {
+		deflater.reset();
+		idleDeflaters.offer(deflater);
+	}
+
+	/**
+	 * Leases an inflater
+	 *
+	 * @return An inflater in its initial state
+	 */
+	public Inflater acquireInflater() {
+		final Inflater inflater = idleInflaters.poll();
+		if (inflater != null) {
+			nbIdleInflaters.decrementAndGet();
+			return inflater;
+		}
+		return new Inflater(true);
+	}
+
+	/**
+	 * Gives back an inflater leased with {@link #acquireInflater()}. It is reset before being reused, or freed if
+	 * enough inflaters are idle.
+	 *
+	 * @param inflater Leased inflater
+	 */
+	public void releaseInflater(final Inflater inflater) {
+		if (nbIdleInflaters.incrementAndGet() > maxIdleInflaters) {
+			nbIdleInflaters.decrementAndGet();
+			inflater.end();
+			return;
+		}
+
+		inflater.reset();
+		idleInflaters.offer(inflater);
+	}
+
+	/**
+	 * Number of deflaters created by the pool, leased or idle
+	 */
+	public int getDeflaters() {
+		return deflaters.get();
+	}
+
+	/**
+	 * Number of times a deflater was refused because all of them were leased
+	 */
+	public long getExhausted() {
+		return exhausted.sum();
+	}
+}
@@ -0,0 +1,417 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glassfish.tyrus.core.ReflectionHelper;
+import org.glassfish.tyrus.core.WebSocketException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.Extension;
+import jakarta.websocket.MessageHandler;
+import jakarta.websocket.RemoteEndpoint.Async;
+import jakarta.websocket.RemoteEndpoint.Basic;
+import jakarta.websocket.Session;
+import jakarta.websocket.WebSocketContainer;
+
+/**
+ * Session given to endpoint handlers when the endpoint service has the {@code websocket.dispatch=virtual} property.
+ * <p>
+ * Message handlers registered through this session are called on a {@link SerialExecutor} of the session instead of
+ * the thread that read the data, so that blocking handlers don't stall the container I/O threads. Messages of a
+ * session are still handled one at a time and in order. Other methods are delegated to the Tyrus session.
+ */
+class DispatchingSession implements Session {
+
+	private static final Logger logger = LoggerFactory.getLogger(DispatchingSession.class);
+
+	/**
+	 * Raised on the I/O thread for messages larger than the limit of their handler: Tyrus closes the session with
+	 * its close reason
+	 */
+	private static final class MessageTooBigException extends WebSocketException {
+		private static final long serialVersionUID = 1L;
+
+		MessageTooBigException(final long size, final long maxMessageSize) {
+			super("Message of " + size + " bytes, allowed message size is " + maxMessageSize + " bytes");
+		}
+
+		@Override
+		public CloseReason getCloseReason() {
+			return new CloseReason(CloseReason.CloseCodes.TOO_BIG, "Message too long");
+		}
+	}
+
+	/**
+	 * Lazily created executor shared by all dispatching sessions
+	 */
+	private static class VirtualThreadsHolder {
+		static final ExecutorService EXECUTOR = createVirtualThreadExecutor();
+	}
+
+	private final Session delegate;
+
+	private final SerialExecutor executor;
+
+	private final Endpoint endpoint;
+
+	/**
+	 * Histogram of the handlers execution time (can be null)
+	 */
+	private final LatencyHistogram handlerLatency;
+
+	/**
+	 * Handler given by the endpoint -&gt; handler registered in the Tyrus session
+	 */
+	private final Map<MessageHandler, MessageHandler> handlers = new ConcurrentHashMap<>();
+
+	/**
+	 * @param delegate       Tyrus session
+	 * @param executor       Executor running the dispatched tasks
+	 * @param maxPending     Number of pending messages from which the session executor is full
+	 * @param endpoint       Endpoint notified of the errors raised by the dispatched handlers
+	 * @param handlerLatency Histogram of the handlers execution time (can be null)
+	 */
+	DispatchingSession(final Session delegate, final Executor executor, final int maxPending,
+			final Endpoint endpoint, final LatencyHistogram handlerLatency) {
+		this.delegate = delegate;
+		this.executor = new SerialExecutor(executor, maxPending);
+		this.endpoint = endpoint;
+		this.handlerLatency = handlerLatency;
+	}
+
+	/**
+	 * Returns the executor shared by the sessions of endpoints in virtual dispatch mode.
+	 * <p>
+	 * Virtual threads are used when the JVM provides them (Java 21+). On older runtimes, a cached pool of daemon
+	 * threads is used instead: handlers are still taken off the I/O threads, but each blocked handler holds a
+	 * platform thread.
+	 */
+	static ExecutorService virtualThreadExecutor() {
+		return VirtualThreadsHolder.EXECUTOR;
+	}
+
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			logger.info("Virtual threads not available, dispatching WebSocket messages on platform threads");
+		}
+
+		final AtomicInteger counter = new AtomicInteger();
+		return Executors.newCachedThreadPool(r -> {
+			final Thread thread = new Thread(r, "websocket-dispatch-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Runs a task after the messages already dispatched for this session
+	 *
+	 * @param task Task to run
+	 */
+	void execute(final Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Returns the executor running the handlers of this session, one at a time
+	 */
+	SerialExecutor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Returns the Tyrus session
+	 */
+	Session getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Runs a handler call on the session executor, reporting its errors to the endpoint
+	 */
+	private void dispatch(final Runnable call) {
+		executor.execute(() -> {
+			final long start = handlerLatency != null ? System.nanoTime() : 0;
+			try {
+				call.run();
+			} catch (Throwable t) {
+				endpoint.onError(this, t);
+			} finally {
+				if (handlerLatency != null) {
+					handlerLatency.record(System.nanoTime() - start);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the message type handled by the given handler.
+	 * <p>
+	 * Tyrus handlers generated for annotated endpoints give their type with a {@code getType()} method. Other
+	 * handlers declare it as the type argument of {@link MessageHandler.Whole} or {@link MessageHandler.Partial}.
+	 */
+	private static Class<?> getHandlerType(final MessageHandler handler) {
+		try {
+			final Method getType = handler.getClass().getMethod("getType");
+			if (getType.getReturnType() == Class.class) {
+				getType.setAccessible(true);
+				return (Class<?>) getType.invoke(handler);
+			}
+		} catch (NoSuchMethodException e) {
+			// Not a Tyrus handler
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			logger.debug("Couldn't get the type of handler {}", handler, e);
+		}
+
+		final Class<?> type = ReflectionHelper.getClassType(handler.getClass(),
+				handler instanceof MessageHandler.Whole ? MessageHandler.Whole.class : MessageHandler.Partial.class);
+		return type == null ? Object.class : type;
+	}
+
+	/**
+	 * Returns the maximum size of the messages given to the handler, or -1 if not limited.
+	 * <p>
+	 * Tyrus handlers generated for annotated endpoints give the {@code maxMessageSize} of their {@code @OnMessage}
+	 * with a {@code getMaxMessageSize()} method, which Tyrus only calls on its own handlers: the dispatchers check it
+	 * instead.
+	 */
+	private static long getMaxMessageSize(final MessageHandler handler) {
+		try {
+			final Method getMaxMessageSize = handler.getClass().getMethod("getMaxMessageSize");
+			if (getMaxMessageSize.getReturnType() == long.class) {
+				getMaxMessageSize.setAccessible(true);
+				return (long) getMaxMessageSize.invoke(handler);
+			}
+		} catch (NoSuchMethodException e) {
+			// Not a Tyrus handler
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			logger.debug("Couldn't get the maximum message size of handler {}", handler, e);
+		}
+		return -1;
+	}
+
+	/**
+	 * Rejects a message, or a part of message, larger than the given limit, as Tyrus does before calling its handlers
+	 */
+	private static void checkMessageSize(final Object message, final long maxMessageSize) {
+		if (maxMessageSize < 0) {
+			return;
+		}
+
+		final long size;
+		if (message instanceof String) {
+			size = ((String) message).getBytes(StandardCharsets.UTF_8).length;
+		} else if (message instanceof ByteBuffer) {
+			size = ((ByteBuffer) message).remaining();
+		} else if (message instanceof byte[]) {
+			size = ((byte[]) message).length;
+		} else {
+			return;
+		}
+
+		if (size > maxMessageSize) {
+			throw new MessageTooBigException(size, maxMessageSize);
+		}
+	}
+
+	@Override
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void addMessageHandler(final MessageHandler handler) throws IllegalStateException {
+		if (handler instanceof MessageHandler.Whole) {
+			addMessageHandler((Class) getHandlerType(handler), (MessageHandler.Whole) handler);
+		} else if (handler instanceof MessageHandler.Partial) {
+			addMessageHandler((Class) getHandlerType(handler), (MessageHandler.Partial) handler);
+		} else {
+			throw new IllegalStateException("Message handler must implement Whole or Partial: " + handler);
+		}
+	}
+
+	@Override
+	public <T> void addMessageHandler(final Class<T> clazz, final MessageHandler.Whole<T> handler) {
+		final long maxMessageSize = getMaxMessageSize(handler);
+		final MessageHandler.Whole<T> dispatcher = message -> {
+			checkMessageSize(message, maxMessageSize);
+			dispatch(() -> handler.onMessage(message));
+		};
+		delegate.addMessageHandler(clazz, dispatcher);
+		handlers.put(handler, dispatcher);
+	}
+
+	@Override
+	public <T> void addMessageHandler(final Class<T> clazz, final MessageHandler.Partial<T> handler) {
+		final long maxMessageSize = getMaxMessageSize(handler);
+		final MessageHandler.Partial<T> dispatcher = (message, last) -> {
+			checkMessageSize(message, maxMessageSize);
+			dispatch(() -> handler.onMessage(message, last));
+		};
+		delegate.addMessageHandler(clazz, dispatcher);
+		handlers.put(handler, dispatcher);
+	}
+
+	@Override
+	public Set<MessageHandler> getMessageHandlers() {
+		return Set.copyOf(handlers.keySet());
+	}
+
+	@Override
+	public void removeMessageHandler(final MessageHandler handler) {
+		final MessageHandler dispatcher = handlers.remove(handler);
+		delegate.removeMessageHandler(dispatcher != null ? dispatcher : handler);
+	}
+
+	@Override
+	public WebSocketContainer getContainer() {
+		return delegate.getContainer();
+	}
+
+	@Override
+	public String getProtocolVersion() {
+		return delegate.getProtocolVersion();
+	}
+
+	@Override
+	public String getNegotiatedSubprotocol() {
+		return delegate.getNegotiatedSubprotocol();
+	}
+
+	@Override
+	public List<Extension> getNegotiatedExtensions() {
+		return delegate.getNegotiatedExtensions();
+	}
+
+	@Override
+	public boolean isSecure() {
+		return delegate.isSecure();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return delegate.isOpen();
+	}
+
+	@Override
+	public long getMaxIdleTimeout() {
+		return delegate.getMaxIdleTimeout();
+	}
+
+	@Override
+	public void setMaxIdleTimeout(long milliseconds) {
+		delegate.setMaxIdleTimeout(milliseconds);
+	}
+
+	@Override
+	public void setMaxBinaryMessageBufferSize(int length) {
+		delegate.setMaxBinaryMessageBufferSize(length);
+	}
+
+	@Override
+	public int getMaxBinaryMessageBufferSize() {
+		return delegate.getMaxBinaryMessageBufferSize();
+	}
+
+	@Override
+	public void setMaxTextMessageBufferSize(int length) {
+		delegate.setMaxTextMessageBufferSize(length);
+	}
+
+	@Override
+	public int getMaxTextMessageBufferSize() {
+		return delegate.getMaxTextMessageBufferSize();
+	}
+
+	@Override
+	public Async getAsyncRemote() {
+		return delegate.getAsyncRemote();
+	}
+
+	@Override
+	public Basic getBasicRemote() {
+		return delegate.getBasicRemote();
+	}
+
+	@Override
+	public String getId() {
+		return delegate.getId();
+	}
+
+	@Override
+	public void close() throws IOException {
+		delegate.close();
+	}
+
+	@Override
+	public void close(CloseReason closeReason) throws IOException {
+		delegate.close(closeReason);
+	}
+
+	@Override
+	public URI getRequestURI() {
+		return delegate.getRequestURI();
+	}
+
+	@Override
+	public Map<String, List<String>> getRequestParameterMap() {
+		return delegate.getRequestParameterMap();
+	}
+
+	@Override
+	public String getQueryString() {
+		return delegate.getQueryString();
+	}
+
+	@Override
+	public Map<String, String> getPathParameters() {
+		return delegate.getPathParameters();
+	}
+
+	@Override
+	public Map<String, Object> getUserProperties() {
+		return delegate.getUserProperties();
+	}
+
+	@Override
+	public Principal getUserPrincipal() {
+		return delegate.getUserPrincipal();
+	}
+
+	@Override
+	public Set<Session> getOpenSessions() {
+		return delegate.getOpenSessions();
+	}
+
+	@Override
+	public String toString() {
+		return "DispatchingSession{" + delegate + ", pending=" + executor.getPending() + "}";
+	}
+}
@@ -0,0 +1,333 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.glassfish.tyrus.core.frame.TyrusFrame.FrameType;
+import org.glassfish.tyrus.core.monitoring.EndpointEventListener;
+import org.glassfish.tyrus.core.monitoring.MessageEventListener;
+
+/**
+ * Metrics of an endpoint path.
+ * <p>
+ * Sessions and frames are counted from the Tyrus monitoring events: the same instance listens to the endpoint and to
+ * the messages of all its sessions. Close codes, handler execution and outbound queue residence are recorded by the
+ * proxies, the upgrade handler and the writer of the sessions.
+ * <p>
+ * The outbound queue depth is summed over the writers of the open sessions when it is read, so that writers don't
+ * update shared counters for each frame.
+ */
+public class EndpointMetrics implements EndpointMetricsMXBean, EndpointEventListener, MessageEventListener {
+
+	/**
+	 * Session user property holding the metrics of the session endpoint
+	 */
+	static final String SESSION_PROPERTY = "osgi.ws.metrics";
+
+	private final String path;
+
+	private final LongAdder handshakes = new LongAdder();
+	private final LongAdder openSessions = new LongAdder();
+	private final LongAdder closedSessions = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder messagesIn = new LongAdder();
+	private final LongAdder messagesOut = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final Map<Integer, LongAdder> closeCodes = new ConcurrentHashMap<>();
+	private final LongAdder droppedFrames = new LongAdder();
+	private final LongAdder rejectedFrames = new LongAdder();
+	private final LongAdder conflatedFrames = new LongAdder();
+
+	/**
+	 * Writers of the open sessions
+	 */
+	private final Set<TyrusServletWriter> writers = ConcurrentHashMap.newKeySet();
+
+	private final LatencyHistogram handlerLatency = new LatencyHistogram();
+	private final LatencyHistogram queueResidence = new LatencyHistogram();
+
+	EndpointMetrics(final String path) {
+		this.path = path;
+	}
+
+	@Override
+	public MessageEventListener onSessionOpened(String sessionId) {
+		handshakes.increment();
+		openSessions.increment();
+		return this;
+	}
+
+	@Override
+	public void onSessionClosed(String sessionId) {
+		openSessions.decrement();
+		closedSessions.increment();
+	}
+
+	@Override
+	public void onError(String sessionId, Throwable t) {
+		errors.increment();
+	}
+
+	@Override
+	public void onFrameSent(FrameType frameType, long payloadLength) {
+		switch (frameType) {
+		case TEXT:
+		case BINARY:
+			messagesOut.increment();
+			// Fall through
+		case TEXT_CONTINUATION:
+		case BINARY_CONTINUATION:
+			bytesOut.add(payloadLength);
+			break;
+		default:
+			break;
+		}
+	}
+
+	@Override
+	public void onFrameReceived(FrameType frameType, long payloadLength) {
+		switch (frameType) {
+		case TEXT:
+		case BINARY:
+			messagesIn.increment();
+			// Fall through
+		case TEXT_CONTINUATION:
+		case BINARY_CONTINUATION:
+			bytesIn.add(payloadLength);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Counts a message sent without going through Tyrus, e.g. a broadcast frame
+	 *
+	 * @param payloadLength Message payload length
+	 */
+	void messageSent(long payloadLength) {
+		messagesOut.increment();
+		bytesOut.add(payloadLength);
+	}
+
+	/**
+	 * Counts a session close code
+	 *
+	 * @param code Close code
+	 */
+	void sessionClosed(int code) {
+		closeCodes.computeIfAbsent(code, c -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Counts a frame dropped by the slow consumer policy of a session
+	 */
+	void frameDropped() {
+		droppedFrames.increment();
+	}
+
+	/**
+	 * Counts a frame failed for exceeding the outbound queue limit of a session
+	 */
+	void frameRejected() {
+		rejectedFrames.increment();
+	}
+
+	/**
+	 * Counts a queued message replaced by a newer one with the same conflation key
+	 */
+	void frameConflated() {
+		conflatedFrames.increment();
+	}
+
+	void addWriter(final TyrusServletWriter writer) {
+		writers.add(writer);
+	}
+
+	void removeWriter(final TyrusServletWriter writer) {
+		writers.remove(writer);
+	}
+
+	/**
+	 * Histogram of the time spent handling incoming data
+	 */
+	public LatencyHistogram getHandlerLatency() {
+		return handlerLatency;
+	}
+
+	/**
+	 * Histogram of the time outbound frames spent queued in the session writer
+	 */
+	public LatencyHistogram getQueueResidence() {
+		return queueResidence;
+	}
+
+	@Override
+	public String getPath() {
+		return path;
+	}
+
+	@Override
+	public long getHandshakes() {
+		return handshakes.sum();
+	}
+
+	@Override
+	public long getOpenSessions() {
+		return openSessions.sum();
+	}
+
+	@Override
+	public long getClosedSessions() {
+		return closedSessions.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public Map<Integer, Long> getCloseCodes() {
+		final Map<Integer, Long> result = new TreeMap<>();
+		closeCodes.forEach((code, count) -> result.put(code, count.sum()));
+		return result;
+	}
+
+	@Override
+	public long getQueuedFrames() {
+		long frames = 0;
+		for (final TyrusServletWriter writer : writers) {
+			frames += writer.getQueuedFrames();
+		}
+		return frames;
+	}
+
+	@Override
+	public long getQueuedBytes() {
+		long bytes = 0;
+		for (final TyrusServletWriter writer : writers) {
+			bytes += writer.getQueuedBytes();
+		}
+		return bytes;
+	}
+
+	@Override
+	public int getUnwritableSessions() {
+		int sessions = 0;
+		for (final TyrusServletWriter writer : writers) {
+			if (!writer.isWritable()) {
+				sessions++;
+			}
+		}
+		return sessions;
+	}
+
+	@Override
+	public long getDroppedFrames() {
+		return droppedFrames.sum();
+	}
+
+	@Override
+	public long getRejectedFrames() {
+		return rejectedFrames.sum();
+	}
+
+	@Override
+	public long getConflatedFrames() {
+		return conflatedFrames.sum();
+	}
+
+	@Override
+	public long getHandlerLatencyCount() {
+		return handlerLatency.getCount();
+	}
+
+	@Override
+	public long getHandlerLatencyP50() {
+		return handlerLatency.getPercentileMicros(50);
+	}
+
+	@Override
+	public long getHandlerLatencyP99() {
+		return handlerLatency.getPercentileMicros(99);
+	}
+
+	@Override
+	public long getHandlerLatencyP999() {
+		return handlerLatency.getPercentileMicros(99.9);
+	}
+
+	@Override
+	public long getHandlerLatencyMax() {
+		return TimeUnit.NANOSECONDS.toMicros(handlerLatency.getMax());
+	}
+
+	@Override
+	public long getQueueResidenceCount() {
+		return queueResidence.getCount();
+	}
+
+	@Override
+	public long getQueueResidenceP50() {
+		return queueResidence.getPercentileMicros(50);
+	}
+
+	@Override
+	public long getQueueResidenceP99() {
+		return queueResidence.getPercentileMicros(99);
+	}
+
+	@Override
+	public long getQueueResidenceP999() {
+		return queueResidence.getPercentileMicros(99.9);
+	}
+
+	@Override
+	public long getQueueResidenceMax() {
+		return TimeUnit.NANOSECONDS.toMicros(queueResidence.getMax());
+	}
+
+	@Override
+	public String toString() {
+		return "EndpointMetrics{path=" + path + ", open=" + getOpenSessions() + ", in=" + getMessagesIn() + ", out="
+				+ getMessagesOut() + ", handler=" + handlerLatency + ", queue=" + queueResidence + "}";
+	}
+}
@@ -0,0 +1,91 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of an endpoint path. Durations are given in microseconds.
+ */
+public interface EndpointMetricsMXBean {
+
+	String getPath();
+
+	long getHandshakes();
+
+	long getOpenSessions();
+
+	long getClosedSessions();
+
+	long getErrors();
+
+	long getMessagesIn();
+
+	long getMessagesOut();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	Map<Integer, Long> getCloseCodes();
+
+	/**
+	 * Number of frames waiting in the outbound queues of the open sessions
+	 */
+	long getQueuedFrames();
+
+	/**
+	 * Number of bytes waiting in the outbound queues of the open sessions
+	 */
+	long getQueuedBytes();
+
+	/**
+	 * Number of open sessions over their outbound high watermark
+	 */
+	int getUnwritableSessions();
+
+	/**
+	 * Number of frames dropped by the slow consumer policies
+	 */
+	long getDroppedFrames();
+
+	/**
+	 * Number of frames failed for exceeding the outbound queue limit
+	 */
+	long getRejectedFrames();
+
+	/**
+	 * Number of queued messages replaced by a newer one with the same conflation key
+	 */
+	long getConflatedFrames();
+
+	long getHandlerLatencyCount();
+
+	long getHandlerLatencyP50();
+
+	long getHandlerLatencyP99();
+
+	long getHandlerLatencyP999();
+
+	long getHandlerLatencyMax();
+
+	long getQueueResidenceCount();
+
+	long getQueueResidenceP50();
+
+	long getQueueResidenceP99();
+
+	long getQueueResidenceP999();
+
+	long getQueueResidenceMax();
+}
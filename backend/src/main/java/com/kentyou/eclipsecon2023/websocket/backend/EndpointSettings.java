@@ -0,0 +1,106 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Tuning of the connections of an endpoint, applied when their session opens, see {@link WebSocketTuning}
+ */
+class EndpointSettings {
+
+	/**
+	 * Default number of messages waiting for a dispatched handler, from which reads are suspended
+	 */
+	static final int DEFAULT_DISPATCH_MAX_PENDING = 1024;
+
+	/**
+	 * Default settings: the container read buffer size, the Tyrus message size limits, the default outbound options
+	 * and the dispatch mode of the endpoint service
+	 */
+	static final EndpointSettings DEFAULT = new EndpointSettings(0, 0, OutboundOptions.DEFAULT, "",
+			DEFAULT_DISPATCH_MAX_PENDING);
+
+	/**
+	 * Maximum size of a frame read from the connection, in bytes (0 to keep the size of the container)
+	 */
+	final int incomingBufferSize;
+
+	/**
+	 * Maximum size of a text or binary message, in bytes (0 to keep the Tyrus default)
+	 */
+	final int maxMessageSize;
+
+	/**
+	 * Settings of the outbound path of the connection
+	 */
+	final OutboundOptions outbound;
+
+	/**
+	 * Dispatch mode: {@code inline}, {@code virtual}, or empty to keep the {@code websocket.dispatch} service
+	 * property of the endpoint
+	 */
+	final String dispatch;
+
+	/**
+	 * Number of messages of a session waiting for a dispatched handler from which the reads of the connection are
+	 * suspended, until half of them have been handled
+	 */
+	final int dispatchMaxPending;
+
+	EndpointSettings(int incomingBufferSize, int maxMessageSize, OutboundOptions outbound, String dispatch,
+			int dispatchMaxPending) {
+		if (incomingBufferSize < 0 || maxMessageSize < 0) {
+			throw new IllegalArgumentException("Invalid buffer sizes: incoming=" + incomingBufferSize
+					+ " max message=" + maxMessageSize);
+		}
+		if (dispatchMaxPending <= 0) {
+			throw new IllegalArgumentException("Invalid maximum number of pending messages: " + dispatchMaxPending);
+		}
+
+		final String mode = dispatch != null ? dispatch.trim() : "";
+		if (!mode.isEmpty() && !"inline".equals(mode) && !"virtual".equals(mode)) {
+			throw new IllegalArgumentException("Unknown dispatch mode: " + dispatch);
+		}
+
+		this.incomingBufferSize = incomingBufferSize;
+		this.maxMessageSize = maxMessageSize;
+		this.outbound = outbound;
+		this.dispatch = mode;
+		this.dispatchMaxPending = dispatchMaxPending;
+	}
+
+	/**
+	 * Returns the executor handlers are dispatched to
+	 *
+	 * @param endpointExecutor Executor given by the service properties of the endpoint (null for inline dispatch)
+	 * @return The executor to use, or null to call handlers from the I/O thread
+	 */
+	Executor getDispatchExecutor(final Executor endpointExecutor) {
+		switch (dispatch) {
+		case "inline":
+			return null;
+		case "virtual":
+			return DispatchingSession.virtualThreadExecutor();
+		default:
+			return endpointExecutor;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "EndpointSettings{incomingBufferSize=" + incomingBufferSize + ", maxMessageSize=" + maxMessageSize
+				+ ", outbound=" + outbound + ", dispatch=" + dispatch + ", dispatchMaxPending=" + dispatchMaxPending
+				+ "}";
+	}
+}
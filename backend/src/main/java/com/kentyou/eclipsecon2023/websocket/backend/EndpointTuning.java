@@ -0,0 +1,145 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Modified;
+
+/**
+ * Tuning of the endpoint at a given path, overriding the defaults of {@link WebSocketTuning}.
+ * <p>
+ * One instance is created per factory configuration. Values left to -1 (or empty) keep the default. Changes apply
+ * to the sessions opened afterwards.
+ */
+@Component(service = EndpointTuning.class, configurationPid = EndpointTuning.PID, configurationPolicy = ConfigurationPolicy.REQUIRE)
+public class EndpointTuning {
+
+	static final String PID = "com.kentyou.eclipsecon2023.websocket.tuning.endpoint";
+
+	/**
+	 * Endpoint tuning configuration
+	 */
+	public @interface Config {
+		/**
+		 * Path of the endpoint, as given in its annotation or {@code websocket.path} service property
+		 */
+		String path();
+
+		/**
+		 * Maximum size of a frame read from a connection, in bytes
+		 */
+		int incoming_buffer_size() default -1;
+
+		/**
+		 * Maximum size of a text or binary message, in bytes
+		 */
+		int max_message_size() default -1;
+
+		/**
+		 * Maximum number of bytes gathered in a single socket write (0 to disable coalescing)
+		 */
+		int outbound_coalesce_bytes() default -1;
+
+		/**
+		 * Maximum time, in microseconds, a queued frame waits for other frames to be gathered with
+		 */
+		long outbound_coalesce_delay_us() default -1;
+
+		/**
+		 * Number of pending outbound bytes above which a connection is flagged as not writable
+		 */
+		long outbound_queue_high_watermark() default -1;
+
+		/**
+		 * Number of pending outbound bytes under which a connection becomes writable again
+		 */
+		long outbound_queue_low_watermark() default -1;
+
+		/**
+		 * Maximum number of pending outbound bytes per connection
+		 */
+		long outbound_queue_limit() default -1;
+
+		/**
+		 * Maximum time, in milliseconds, a sender waits for a connection to become writable with the {@code block}
+		 * slow consumer policy
+		 */
+		long slow_consumer_block_timeout_ms() default -1;
+
+		/**
+		 * Dispatch mode of the message handlers: {@code inline} or {@code virtual}
+		 */
+		String dispatch() default "";
+
+		/**
+		 * Number of messages of a session waiting for a dispatched handler from which reads are suspended
+		 */
+		int dispatch_max_pending() default -1;
+	}
+
+	private volatile Config config;
+
+	@Activate
+	@Modified
+	void configure(final Config config) {
+		if (config.path() == null || config.path().isBlank()) {
+			throw new IllegalArgumentException("No endpoint path given in configuration " + PID);
+		}
+		this.config = config;
+	}
+
+	/**
+	 * Returns the path of the tuned endpoint
+	 */
+	String getPath() {
+		return config.path().trim();
+	}
+
+	/**
+	 * Returns the settings of the endpoint
+	 *
+	 * @param defaults Default settings
+	 * @return The defaults with the values of this configuration
+	 * @throws IllegalArgumentException Invalid configuration
+	 */
+	EndpointSettings apply(final EndpointSettings defaults) {
+		final Config current = config;
+		final OutboundOptions outbound = defaults.outbound;
+		return new EndpointSettings(orDefault(current.incoming_buffer_size(), defaults.incomingBufferSize),
+				orDefault(current.max_message_size(), defaults.maxMessageSize),
+				new OutboundOptions(orDefault(current.outbound_coalesce_bytes(), outbound.coalesceBytes),
+						orDefault(current.outbound_coalesce_delay_us(), outbound.coalesceDelayMicros),
+						orDefault(current.outbound_queue_high_watermark(), outbound.highWatermark),
+						orDefault(current.outbound_queue_low_watermark(), outbound.lowWatermark),
+						orDefault(current.outbound_queue_limit(), outbound.queueLimit),
+						orDefault(current.slow_consumer_block_timeout_ms(), outbound.blockTimeoutMillis)),
+				current.dispatch().isBlank() ? defaults.dispatch : current.dispatch(),
+				orDefault(current.dispatch_max_pending(), defaults.dispatchMaxPending));
+	}
+
+	private static int orDefault(final int value, final int defaultValue) {
+		return value < 0 ? defaultValue : value;
+	}
+
+	private static long orDefault(final long value, final long defaultValue) {
+		return value < 0 ? defaultValue : value;
+	}
+
+	@Override
+	public String toString() {
+		final Config current = config;
+		return "EndpointTuning{path=" + (current != null ? current.path() : null) + "}";
+	}
+}
@@ -0,0 +1,275 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.glassfish.tyrus.spi.ReadHandler;
+
+/**
+ * Passes the frames read from a connection to the Tyrus read handler, without letting it buffer incomplete frames.
+ * <p>
+ * The Tyrus read handler copies the data it is given to a buffer that must hold a whole frame, and keeps that buffer
+ * for the lifetime of the connection: after a large frame, an idle connection would keep its capacity. Frames that are
+ * complete in the data read are given as is, so that Tyrus sees the frames of the client and its buffer never exceeds
+ * a read. Data frames spanning several reads are given as a sequence of fragments of at most {@link #MAX_PIECE_SIZE}
+ * bytes, i.e. a data frame followed by continuation frames, which is equivalent for the WebSocket protocol (RFC 6455,
+ * section 5.4). Control frames can't be fragmented but hold at most 125 bytes of payload, and are given whole.
+ * <p>
+ * Fragments are built in a per-thread scratch buffer and payload bytes are passed as they arrive, still masked: a
+ * connection only keeps the header of the frame being read, and the payload of an incomplete control frame.
+ * <p>
+ * Not thread safe: data of a connection is read by one thread at a time.
+ */
+class FrameSplitter {
+
+	/**
+	 * Maximum size of the fragments given to Tyrus. Its buffer capacity is rounded to 256 bytes and replaced when data
+	 * doesn't fit in its free space: fragments stay under 512 bytes so that it keeps the same buffer.
+	 */
+	static final int MAX_PIECE_SIZE = 500;
+
+	private static final int MAX_HEADER_SIZE = 14;
+
+	private static final int MAX_PIECE_PAYLOAD = MAX_PIECE_SIZE - MAX_HEADER_SIZE;
+
+	private static final int MAX_CONTROL_PAYLOAD = 125;
+
+	private static final int FIN = 0x80;
+
+	private static final int CONTROL = 0x08;
+
+	private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[MAX_PIECE_SIZE]);
+
+	/**
+	 * Header of the current frame, complete once {@link #headerLength} reaches {@link #headerSize}
+	 */
+	private final byte[] header = new byte[MAX_HEADER_SIZE];
+
+	private int headerLength;
+
+	/**
+	 * Size of the current frame header, 0 while unknown
+	 */
+	private int headerSize;
+
+	/**
+	 * Current frame is masked, and its masking key position in the header
+	 */
+	private boolean masked;
+	private int maskOffset;
+
+	/**
+	 * Payload bytes of the current frame passed so far, and left to pass
+	 */
+	private long offset;
+	private long remaining;
+
+	/**
+	 * Payload of the current control frame (null if the current frame is a data frame)
+	 */
+	private byte[] control;
+
+	/**
+	 * Passes data to the read handler. The data is consumed entirely: incomplete frames are kept in this splitter.
+	 *
+	 * @param data         data read from the connection
+	 * @param handler      Tyrus read handler of the connection
+	 * @param maxFrameSize maximum size of a frame, header included
+	 * @throws IOException frame too large
+	 */
+	void feed(final ByteBuffer data, final ReadHandler handler, final int maxFrameSize) throws IOException {
+		do {
+			if (headerLength == 0 && passFrame(data, handler, maxFrameSize)) {
+				continue;
+			}
+			if ((headerSize == 0 || headerLength < headerSize) && !readHeader(data, maxFrameSize)) {
+				return;
+			}
+			if (remaining > 0 && !data.hasRemaining()) {
+				// Wait for the payload
+				return;
+			}
+
+			if (control != null) {
+				readControl(data, handler);
+			} else {
+				passData(data, handler);
+			}
+		} while (data.hasRemaining());
+	}
+
+	/**
+	 * Returns true if no partial frame is pending
+	 */
+	boolean isIdle() {
+		return headerLength == 0;
+	}
+
+	/**
+	 * Passes the next frame as is if it is complete in the data
+	 *
+	 * @return true if the frame was passed, false if it must be read piece by piece
+	 */
+	private boolean passFrame(final ByteBuffer data, final ReadHandler handler, final int maxFrameSize) {
+		final int start = data.position();
+		final int available = data.remaining();
+		if (available < 2) {
+			return false;
+		}
+
+		final int second = data.get(start + 1) & 0xFF;
+		final int length = second & 0x7F;
+		final int lengthSize = length == 126 ? 2 : length == 127 ? 8 : 0;
+		final int size = 2 + lengthSize + ((second & 0x80) != 0 ? 4 : 0);
+		if (available < size) {
+			return false;
+		}
+
+		long payloadLength = length;
+		if (lengthSize > 0) {
+			payloadLength = 0;
+			for (int i = 0; i < lengthSize; i++) {
+				payloadLength = (payloadLength << 8) | (data.get(start + 2 + i) & 0xFF);
+			}
+		}
+		// Invalid frames are rejected when their header is read
+		if (payloadLength < 0 || payloadLength > available - size || payloadLength > maxFrameSize - size
+				|| ((data.get(start) & CONTROL) != 0 && payloadLength > MAX_CONTROL_PAYLOAD)) {
+			return false;
+		}
+
+		final int end = start + size + (int) payloadLength;
+		final int limit = data.limit();
+		data.limit(end);
+		try {
+			handler.handle(data.slice());
+		} finally {
+			data.limit(limit);
+			data.position(end);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the header of the next frame
+	 *
+	 * @return true once the header is complete
+	 */
+	private boolean readHeader(final ByteBuffer data, final int maxFrameSize) throws IOException {
+		while (data.hasRemaining() && (headerLength < 2 || headerLength < headerSize)) {
+			header[headerLength++] = data.get();
+			if (headerLength == 2) {
+				masked = (header[1] & 0x80) != 0;
+				final int length = header[1] & 0x7F;
+				maskOffset = 2 + (length == 126 ? 2 : length == 127 ? 8 : 0);
+				headerSize = maskOffset + (masked ? 4 : 0);
+			}
+		}
+		if (headerLength < 2 || headerLength < headerSize) {
+			return false;
+		}
+
+		final int length = header[1] & 0x7F;
+		long payloadLength = length;
+		if (length >= 126) {
+			payloadLength = 0;
+			for (int i = 2; i < maskOffset; i++) {
+				payloadLength = (payloadLength << 8) | (header[i] & 0xFF);
+			}
+		}
+		if (payloadLength < 0 || payloadLength > maxFrameSize - headerSize) {
+			throw new IOException(String.format("Tyrus input buffer exceeded. Current buffer size is %s bytes.",
+					maxFrameSize));
+		}
+
+		offset = 0;
+		remaining = payloadLength;
+		if ((header[0] & CONTROL) != 0) {
+			if (payloadLength > MAX_CONTROL_PAYLOAD) {
+				throw new IOException("Control frame payload too large: " + payloadLength + " bytes.");
+			}
+			control = new byte[(int) payloadLength];
+		}
+		return true;
+	}
+
+	/**
+	 * Gathers the payload of a control frame, and passes the frame once complete
+	 */
+	private void readControl(final ByteBuffer data, final ReadHandler handler) {
+		final int length = (int) Math.min(remaining, data.remaining());
+		data.get(control, (int) offset, length);
+		offset += length;
+		remaining -= length;
+		if (remaining > 0) {
+			return;
+		}
+
+		final byte[] scratch = SCRATCH.get();
+		System.arraycopy(header, 0, scratch, 0, headerSize);
+		System.arraycopy(control, 0, scratch, headerSize, control.length);
+		final int size = headerSize + control.length;
+		control = null;
+		endFrame();
+		handler.handle(ByteBuffer.wrap(scratch, 0, size));
+	}
+
+	/**
+	 * Passes the available payload bytes of a data frame, as a fragment
+	 */
+	private void passData(final ByteBuffer data, final ReadHandler handler) {
+		final int length = (int) Math.min(Math.min(remaining, data.remaining()), MAX_PIECE_PAYLOAD);
+		final boolean first = offset == 0;
+		final boolean last = length == remaining;
+
+		final byte[] scratch = SCRATCH.get();
+		int position = 0;
+
+		// The first fragment keeps the opcode and extension bits of the frame, the last one its final bit
+		int flags = first ? header[0] & ~FIN : 0;
+		if (last) {
+			flags |= header[0] & FIN;
+		}
+		scratch[position++] = (byte) flags;
+		if (length < 126) {
+			scratch[position++] = (byte) ((masked ? 0x80 : 0) | length);
+		} else {
+			scratch[position++] = (byte) ((masked ? 0x80 : 0) | 126);
+			scratch[position++] = (byte) (length >>> 8);
+			scratch[position++] = (byte) length;
+		}
+
+		if (masked) {
+			// The payload stays masked: the key of a fragment starts where its first byte was masked
+			for (int i = 0; i < 4; i++) {
+				scratch[position++] = header[maskOffset + (int) ((offset + i) & 3)];
+			}
+		}
+
+		data.get(scratch, position, length);
+		position += length;
+		offset += length;
+		remaining -= length;
+		if (last) {
+			endFrame();
+		}
+		handler.handle(ByteBuffer.wrap(scratch, 0, position));
+	}
+
+	private void endFrame() {
+		headerLength = 0;
+		headerSize = 0;
+	}
+}
@@ -0,0 +1,190 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Admission control of the upgrade requests, with a token bucket for the whole node and one per remote address.
+ * <p>
+ * Each bucket is a single {@code long}, following the generic cell rate algorithm: the time at which the bucket
+ * will be full again. A request is admitted if that time isn't further than the burst size in the future, and
+ * pushes it by the interval between two requests. Buckets of remote addresses are dropped from the map once full
+ * again, by {@link #sweep()}. When the map holds the maximum number of addresses, other addresses are only limited
+ * by the node bucket.
+ * <p>
+ * Rejected requests should be answered with a 503 status and a {@code Retry-After} header: it adds a random jitter
+ * to the time needed to get a token, so that rejected clients don't come back all at once.
+ * <p>
+ * The numbers of admitted and rejected requests are published by {@link WebSocketMetrics}.
+ */
+class HandshakeAdmission implements HandshakeAdmissionMXBean {
+
+	/**
+	 * Interval between two requests and tolerance (burst size - 1 intervals) of the node bucket, in nanoseconds (0 if
+	 * disabled)
+	 */
+	private final long interval;
+	private final long tolerance;
+
+	/**
+	 * Interval and tolerance of the buckets of remote addresses (0 if disabled)
+	 */
+	private final long addressInterval;
+	private final long addressTolerance;
+
+	private final int maxAddresses;
+
+	private final int retryAfterSeconds;
+
+	private final int retryJitterSeconds;
+
+	/**
+	 * Source of the current time, in nanoseconds
+	 */
+	private final LongSupplier nanoTime;
+
+	private final AtomicLong bucket;
+
+	/**
+	 * Remote address -&gt; bucket
+	 */
+	private final ConcurrentHashMap<String, AtomicLong> addressBuckets = new ConcurrentHashMap<>();
+
+	private final LongAdder admitted = new LongAdder();
+
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * @param rate               Requests per second admitted by the node (0 to disable)
+	 * @param burst              Requests the node admits at once after being idle
+	 * @param addressRate        Requests per second admitted per remote address (0 to disable)
+	 * @param addressBurst       Requests a remote address can make at once after being idle
+	 * @param maxAddresses       Maximum number of remote addresses tracked at once
+	 * @param retryAfterSeconds  Minimum delay given to rejected clients, in seconds
+	 * @param retryJitterSeconds Maximum random delay added to the delay given to rejected clients, in seconds
+	 */
+	HandshakeAdmission(double rate, int burst, double addressRate, int addressBurst, int maxAddresses,
+			int retryAfterSeconds, int retryJitterSeconds) {
+		this(rate, burst, addressRate, addressBurst, maxAddresses, retryAfterSeconds, retryJitterSeconds,
+				System::nanoTime);
+	}
+
+	/**
+	 * @param nanoTime Source of the current time, in nanoseconds, as given by {@link System#nanoTime()}
+	 */
+	HandshakeAdmission(double rate, int burst, double addressRate, int addressBurst, int maxAddresses,
+			int retryAfterSeconds, int retryJitterSeconds, LongSupplier nanoTime) {
+		this.nanoTime = nanoTime;
+		this.bucket = new AtomicLong(nanoTime.getAsLong());
+		this.interval = intervalNanos(rate);
+		this.tolerance = interval * (Math.max(1, burst) - 1);
+		this.addressInterval = intervalNanos(addressRate);
+		this.addressTolerance = addressInterval * (Math.max(1, addressBurst) - 1);
+		this.maxAddresses = Math.max(0, maxAddresses);
+		this.retryAfterSeconds = Math.max(1, retryAfterSeconds);
+		this.retryJitterSeconds = Math.max(0, retryJitterSeconds);
+	}
+
+	private static long intervalNanos(final double rate) {
+		return rate > 0 ? Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate)) : 0;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return interval > 0 || addressInterval > 0;
+	}
+
+	/**
+	 * Takes a token for an upgrade request
+	 *
+	 * @param remoteAddress Address of the client
+	 * @return 0 if the request is admitted, else the number of seconds the client should wait before retrying
+	 */
+	int admit(final String remoteAddress) {
+		final long now = nanoTime.getAsLong();
+
+		long wait = 0;
+		if (addressInterval > 0 && remoteAddress != null) {
+			AtomicLong addressBucket = addressBuckets.get(remoteAddress);
+			if (addressBucket == null && addressBuckets.size() < maxAddresses) {
+				addressBucket = addressBuckets.computeIfAbsent(remoteAddress, a -> new AtomicLong(now));
+			}
+			if (addressBucket != null) {
+				wait = acquire(addressBucket, now, addressInterval, addressTolerance);
+			}
+		}
+
+		if (wait == 0 && interval > 0) {
+			wait = acquire(bucket, now, interval, tolerance);
+		}
+
+		if (wait == 0) {
+			admitted.increment();
+			return 0;
+		}
+
+		rejected.increment();
+		final long waitSeconds = (wait + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+		return (int) Math.max(retryAfterSeconds, waitSeconds)
+				+ ThreadLocalRandom.current().nextInt(retryJitterSeconds + 1);
+	}
+
+	/**
+	 * Takes a token from a bucket
+	 *
+	 * @return 0 if a token was taken, else the time to wait for one, in nanoseconds
+	 */
+	private static long acquire(final AtomicLong bucket, final long now, final long interval,
+			final long tolerance) {
+		while (true) {
+			final long full = bucket.get();
+			final long base = full - now > 0 ? full : now;
+			final long wait = base - now - tolerance;
+			if (wait > 0) {
+				return wait;
+			}
+			if (bucket.compareAndSet(full, base + interval)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Drops the buckets of the remote addresses that are full again
+	 */
+	void sweep() {
+		final long now = nanoTime.getAsLong();
+		addressBuckets.values().removeIf(addressBucket -> addressBucket.get() - now <= 0);
+	}
+
+	@Override
+	public int getAddresses() {
+		return addressBuckets.size();
+	}
+
+	@Override
+	public long getAdmitted() {
+		return admitted.sum();
+	}
+
+	@Override
+	public long getRejected() {
+		return rejected.sum();
+	}
+}
@@ -0,0 +1,39 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+/**
+ * JMX view of the admission control of the upgrade requests
+ */
+public interface HandshakeAdmissionMXBean {
+
+	/**
+	 * Upgrade requests are limited at all
+	 */
+	boolean isEnabled();
+
+	/**
+	 * Number of upgrade requests admitted
+	 */
+	long getAdmitted();
+
+	/**
+	 * Number of upgrade requests rejected with a 503 status
+	 */
+	long getRejected();
+
+	/**
+	 * Number of remote addresses currently tracked
+	 */
+	int getAddresses();
+}
@@ -0,0 +1,98 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.Map;
+
+/**
+ * Heartbeat settings of the sessions of an endpoint, see {@link HeartbeatWheel}
+ */
+class HeartbeatOptions {
+
+	/**
+	 * Default options: a ping is sent after 30 seconds without incoming data and the session is closed if nothing
+	 * comes back within 10 seconds. Sessions aren't closed for being idle.
+	 */
+	static final HeartbeatOptions DEFAULT = new HeartbeatOptions(30000, 10000, 0);
+
+	/**
+	 * Time without incoming data, in milliseconds, after which a ping is sent (0 to disable pings)
+	 */
+	final long intervalMillis;
+
+	/**
+	 * Time, in milliseconds, the peer has to send data after a ping before the session is closed
+	 */
+	final long timeoutMillis;
+
+	/**
+	 * Time without incoming data, pongs included, in milliseconds, after which the session is closed (0 to disable)
+	 */
+	final long idleTimeoutMillis;
+
+	HeartbeatOptions(long intervalMillis, long timeoutMillis, long idleTimeoutMillis) {
+		if (intervalMillis > 0 && timeoutMillis <= 0) {
+			throw new IllegalArgumentException("A heartbeat timeout is required with pings: " + timeoutMillis);
+		}
+
+		this.intervalMillis = Math.max(0, intervalMillis);
+		this.timeoutMillis = Math.max(0, timeoutMillis);
+		this.idleTimeoutMillis = Math.max(0, idleTimeoutMillis);
+	}
+
+	/**
+	 * Returns a copy of these options, with the values given as endpoint service properties:
+	 * {@code websocket.heartbeat.interval}, {@code websocket.heartbeat.timeout} and {@code websocket.idle.timeout},
+	 * in milliseconds
+	 *
+	 * @param properties Endpoint service properties
+	 * @return The endpoint options
+	 * @throws IllegalArgumentException Invalid property value
+	 */
+	HeartbeatOptions withProperties(final Map<String, Object> properties) {
+		final long interval = longProperty(properties, "websocket.heartbeat.interval", intervalMillis);
+		final long timeout = longProperty(properties, "websocket.heartbeat.timeout", timeoutMillis);
+		final long idleTimeout = longProperty(properties, "websocket.idle.timeout", idleTimeoutMillis);
+		if (interval == intervalMillis && timeout == timeoutMillis && idleTimeout == idleTimeoutMillis) {
+			return this;
+		}
+		return new HeartbeatOptions(interval, timeout, idleTimeout);
+	}
+
+	private static long longProperty(final Map<String, Object> properties, final String name,
+			final long defaultValue) {
+		final Object value = properties.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Long.parseLong(value.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + name + ": " + value, e);
+		}
+	}
+
+	/**
+	 * Returns true if sessions must be watched at all
+	 */
+	boolean isEnabled() {
+		return intervalMillis > 0 || idleTimeoutMillis > 0;
+	}
+
+	@Override
+	public String toString() {
+		return "HeartbeatOptions{intervalMillis=" + intervalMillis + ", timeoutMillis=" + timeoutMillis
+				+ ", idleTimeoutMillis=" + idleTimeoutMillis + "}";
+	}
+}
@@ -0,0 +1,372 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Session;
+
+/**
+ * Server-wide heartbeat of the sessions, on a hashed timing wheel.
+ * <p>
+ * Each watched session has a single entry, linked in the slot of the wheel matching the tick of its next check. The
+ * wheel advances by one slot per tick, from the container scheduler thread, and only visits the entries of that
+ * slot: no timer is created per session, and the cost of a tick depends on the number of checks due, not on the
+ * number of sessions. Entries due in a later turn of the wheel are left in their slot.
+ * <p>
+ * Connections stamp their entry with the current tick when they read data. When an entry is checked:
+ * <ul>
+ * <li>if a ping was sent and nothing was read since, the session is closed;
+ * <li>if nothing was read for the idle timeout, the session is closed;
+ * <li>if nothing was read for the heartbeat interval, a ping is sent and the next check happens after the heartbeat
+ * timeout;
+ * <li>otherwise, the next check happens when the interval or the idle timeout would be reached.
+ * </ul>
+ * A session closed by the wheel only has a close frame queued, which a client that stopped reading never gets: its
+ * connection is closed once the closing handshake had a grace period to complete.
+ * <p>
+ * Times are rounded up to whole ticks.
+ */
+class HeartbeatWheel {
+
+	static final long DEFAULT_TICK_MILLIS = 500;
+
+	static final int DEFAULT_WHEEL_SIZE = 512;
+
+	/**
+	 * Delay given to the closing handshake of a timed out session before closing its connection
+	 */
+	static final long CLOSE_GRACE_MILLIS = 5000;
+
+	private static final Logger logger = LoggerFactory.getLogger(HeartbeatWheel.class);
+
+	private static final ByteBuffer PING_PAYLOAD = ByteBuffer.allocate(0);
+
+	/**
+	 * Heartbeat state of a session
+	 */
+	final class Entry {
+		private final Session session;
+		private final HeartbeatOptions options;
+
+		/**
+		 * Closes the connection of the session without handshake (null if the session is only closed)
+		 */
+		private final Runnable forceClose;
+
+		/**
+		 * Tick of the last read from the connection
+		 */
+		private volatile long lastRead;
+
+		private volatile boolean cancelled;
+
+		/**
+		 * Tick of the check, tick the unanswered ping was sent at (-1 if none), closing handshake waited for and next
+		 * entry of the slot: only accessed by the wheel thread
+		 */
+		private long deadline;
+		private long pingTick = -1;
+		private boolean closing;
+		private Entry next;
+
+		Entry(final Session session, final HeartbeatOptions options, final Runnable forceClose, final long tick) {
+			this.session = session;
+			this.options = options;
+			this.forceClose = forceClose;
+			this.lastRead = tick;
+		}
+
+		/**
+		 * Notes that data was read from the connection
+		 */
+		void activity() {
+			final long now = currentTick;
+			if (lastRead != now) {
+				lastRead = now;
+			}
+		}
+
+		/**
+		 * Stops watching the session: the entry is dropped when the wheel reaches it
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private final long tickMillis;
+
+	private final Entry[] slots;
+
+	private final int mask;
+
+	private final LongSupplier nanoTime;
+
+	/**
+	 * Entries added since the last tick, linked in the wheel by its thread
+	 */
+	private final Queue<Entry> added = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger sessions = new AtomicInteger();
+
+	private final LongAdder pings = new LongAdder();
+
+	private final LongAdder timeouts = new LongAdder();
+
+	/**
+	 * Number of ticks since the start of the wheel
+	 */
+	private volatile long currentTick;
+
+	private long startNanos;
+
+	private ScheduledFuture<?> task;
+
+	/**
+	 * @param tickMillis Duration of a tick, in milliseconds
+	 * @param wheelSize  Number of slots of the wheel, rounded up to a power of two
+	 */
+	HeartbeatWheel(final long tickMillis, final int wheelSize) {
+		this(tickMillis, wheelSize, System::nanoTime);
+	}
+
+	/**
+	 * @param nanoTime Source of the current time, in nanoseconds, as given by {@link System#nanoTime()}
+	 */
+	HeartbeatWheel(final long tickMillis, final int wheelSize, final LongSupplier nanoTime) {
+		if (tickMillis <= 0 || wheelSize <= 0) {
+			throw new IllegalArgumentException("Invalid heartbeat wheel: tick=" + tickMillis + " size=" + wheelSize);
+		}
+
+		this.tickMillis = tickMillis;
+		final int size = Integer.highestOneBit(wheelSize) == wheelSize ? wheelSize
+				: Integer.highestOneBit(wheelSize) << 1;
+		this.slots = new Entry[size];
+		this.mask = size - 1;
+		this.nanoTime = nanoTime;
+		this.startNanos = nanoTime.getAsLong();
+	}
+
+	/**
+	 * Starts advancing the wheel
+	 *
+	 * @param scheduler Scheduler running the ticks
+	 */
+	synchronized void start(final ScheduledExecutorService scheduler) {
+		if (task == null) {
+			startNanos = nanoTime.getAsLong();
+			task = scheduler.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	synchronized void stop() {
+		if (task != null) {
+			task.cancel(false);
+			task = null;
+		}
+	}
+
+	/**
+	 * Starts watching a session
+	 *
+	 * @param session    Session to ping and close
+	 * @param options    Heartbeat options of its endpoint
+	 * @param forceClose Closes the connection of the session if the closing handshake of a timeout doesn't complete
+	 *                   (null to only close the session)
+	 * @return The heartbeat entry of the session, or null if the options don't require watching it
+	 */
+	Entry watch(final Session session, final HeartbeatOptions options, final Runnable forceClose) {
+		if (!options.isEnabled()) {
+			return null;
+		}
+
+		final Entry entry = new Entry(session, options, forceClose, currentTick);
+		sessions.incrementAndGet();
+		added.offer(entry);
+		return entry;
+	}
+
+	/**
+	 * Processes the ticks elapsed since the last call, catching up if the scheduler was late
+	 */
+	void advance() {
+		try {
+			final long target = (nanoTime.getAsLong() - startNanos) / TimeUnit.MILLISECONDS.toNanos(tickMillis);
+			while (currentTick < target) {
+				currentTick++;
+				Entry entry;
+				while ((entry = added.poll()) != null) {
+					check(entry);
+				}
+				processSlot(currentTick);
+			}
+		} catch (Throwable t) {
+			// An exception would cancel the periodic task
+			logger.error("Error advancing the heartbeat wheel", t);
+		}
+	}
+
+	private void processSlot(final long tick) {
+		final int index = (int) (tick & mask);
+		Entry entry = slots[index];
+		slots[index] = null;
+		while (entry != null) {
+			final Entry next = entry.next;
+			entry.next = null;
+			if (entry.deadline > tick) {
+				// Due in a later turn of the wheel
+				link(entry);
+			} else {
+				check(entry);
+			}
+			entry = next;
+		}
+	}
+
+	private void check(final Entry entry) {
+		if (entry.closing) {
+			// The session isn't counted anymore, and its entry was cancelled when it closed
+			forceClose(entry);
+			return;
+		}
+
+		if (entry.cancelled || !entry.session.isOpen()) {
+			sessions.decrementAndGet();
+			return;
+		}
+
+		final long tick = currentTick;
+		final long lastRead = entry.lastRead;
+		if (entry.pingTick >= 0) {
+			if (lastRead < entry.pingTick) {
+				close(entry, "Heartbeat timeout");
+				return;
+			}
+			entry.pingTick = -1;
+		}
+
+		final HeartbeatOptions options = entry.options;
+		final long idle = tick - lastRead;
+		final long idleTimeout = ticks(options.idleTimeoutMillis);
+		if (idleTimeout > 0 && idle >= idleTimeout) {
+			close(entry, "Idle timeout");
+			return;
+		}
+
+		final long interval = ticks(options.intervalMillis);
+		if (interval > 0 && idle >= interval) {
+			ping(entry);
+			entry.pingTick = tick;
+			schedule(entry, ticks(options.timeoutMillis));
+			return;
+		}
+
+		long delay = Long.MAX_VALUE;
+		if (interval > 0) {
+			delay = interval - idle;
+		}
+		if (idleTimeout > 0) {
+			delay = Math.min(delay, idleTimeout - idle);
+		}
+		schedule(entry, delay);
+	}
+
+	private void ping(final Entry entry) {
+		try {
+			entry.session.getAsyncRemote().sendPing(PING_PAYLOAD);
+			pings.increment();
+		} catch (Exception e) {
+			// Session closing: the next check drops it
+			logger.debug("Error sending heartbeat ping to session {}", entry.session.getId(), e);
+		}
+	}
+
+	private void close(final Entry entry, final String reason) {
+		sessions.decrementAndGet();
+		timeouts.increment();
+		logger.debug("Closing session {}: {}", entry.session.getId(), reason);
+		try {
+			entry.session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, reason));
+		} catch (Exception e) {
+			logger.debug("Error closing session {}", entry.session.getId(), e);
+		}
+
+		if (entry.forceClose != null) {
+			entry.closing = true;
+			schedule(entry, ticks(CLOSE_GRACE_MILLIS));
+		}
+	}
+
+	/**
+	 * Closes the connection of a timed out session, in case the client didn't answer the close frame
+	 */
+	private void forceClose(final Entry entry) {
+		try {
+			entry.forceClose.run();
+		} catch (Exception e) {
+			logger.debug("Error closing the connection of session {}", entry.session.getId(), e);
+		}
+	}
+
+	/**
+	 * Converts a duration to a number of ticks, rounded up
+	 */
+	private long ticks(final long millis) {
+		return (millis + tickMillis - 1) / tickMillis;
+	}
+
+	private void schedule(final Entry entry, final long delay) {
+		entry.deadline = currentTick + Math.max(1, delay);
+		link(entry);
+	}
+
+	private void link(final Entry entry) {
+		final int index = (int) (entry.deadline & mask);
+		entry.next = slots[index];
+		slots[index] = entry;
+	}
+
+	/**
+	 * Number of watched sessions
+	 */
+	int getSessions() {
+		return sessions.get();
+	}
+
+	/**
+	 * Number of pings sent
+	 */
+	long getPings() {
+		return pings.sum();
+	}
+
+	/**
+	 * Number of sessions closed for not answering a ping or being idle
+	 */
+	long getTimeouts() {
+		return timeouts.sum();
+	}
+}
@@ -0,0 +1,141 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations, in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets: each power of two is split in 8 sub-buckets, which bounds the relative
+ * error of percentiles to 12.5%. Recording a value is a few atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int NB_BUCKETS = (64 - SUB_BITS + 1) << SUB_BITS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(NB_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Returns the bucket of a value
+	 */
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) Math.max(0, value);
+		}
+
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return ((exponent - SUB_BITS + 1) << SUB_BITS) | sub;
+	}
+
+	/**
+	 * Returns the lowest value of a bucket
+	 */
+	static long lowestValueOf(int bucket) {
+		final int group = bucket >>> SUB_BITS;
+		final int sub = bucket & (SUB_BUCKETS - 1);
+		return group == 0 ? sub : (long) (SUB_BUCKETS + sub) << (group - 1);
+	}
+
+	/**
+	 * Records a duration
+	 *
+	 * @param nanos Duration in nanoseconds (negative values are counted as 0)
+	 */
+	public void record(long nanos) {
+		final long value = Math.max(0, nanos);
+		buckets.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Returns the number of recorded durations
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the mean of the recorded durations, in nanoseconds
+	 */
+	public double getMean() {
+		final long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Returns the longest recorded duration, in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns an upper bound of the given percentile of the recorded durations
+	 *
+	 * @param percentile Percentile, between 0 and 100
+	 * @return The duration in nanoseconds (0 if nothing was recorded)
+	 */
+	public long getPercentile(double percentile) {
+		final long[] counts = new long[NB_BUCKETS];
+		long total = 0;
+		for (int i = 0; i < NB_BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		final long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+		long seen = 0;
+		for (int i = 0; i < NB_BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				final long upper = i + 1 < NB_BUCKETS ? lowestValueOf(i + 1) - 1 : Long.MAX_VALUE;
+				return Math.min(upper, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns the given percentile of the recorded durations, in microseconds
+	 *
+	 * @param percentile Percentile, between 0 and 100
+	 */
+	public long getPercentileMicros(double percentile) {
+		return TimeUnit.NANOSECONDS.toMicros(getPercentile(percentile));
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram{count=" + getCount() + ", p50=" + getPercentileMicros(50) + "us, p99="
+				+ getPercentileMicros(99) + "us, max=" + TimeUnit.NANOSECONDS.toMicros(getMax()) + "us}";
+	}
+}
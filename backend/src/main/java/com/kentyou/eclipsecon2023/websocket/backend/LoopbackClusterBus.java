@@ -0,0 +1,70 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process {@link ClusterBus}, connecting the nodes of a {@link Network} created in the same JVM, e.g. to test a
+ * cluster with several frameworks.
+ * <p>
+ * Batches go through the same encoding as on a real transport. They are delivered by the thread that sends them:
+ * either the tick thread once {@link #start(long)} is called, or the caller of {@link #flush()}.
+ */
+public class LoopbackClusterBus extends AbstractClusterBus {
+
+	/**
+	 * Set of nodes receiving the batches of each other
+	 */
+	public static final class Network {
+		private final List<LoopbackClusterBus> nodes = new CopyOnWriteArrayList<>();
+	}
+
+	private final Network network;
+
+	/**
+	 * Creates a node and adds it to the network
+	 *
+	 * @param nodeId  ID of the node
+	 * @param network Network of the node
+	 */
+	public LoopbackClusterBus(final String nodeId, final Network network) {
+		super(nodeId, DEFAULT_MAX_BATCH_MESSAGES);
+		this.network = network;
+		network.nodes.add(this);
+	}
+
+	@Override
+	public synchronized void start(final long tickMillis) {
+		super.start(tickMillis);
+	}
+
+	/**
+	 * Sends the pending messages and removes the node from the network
+	 */
+	public void leave() {
+		stop();
+		network.nodes.remove(this);
+	}
+
+	@Override
+	protected void transmit(final ByteBuffer batch) {
+		for (final LoopbackClusterBus node : network.nodes) {
+			if (node != this) {
+				node.receive(batch.duplicate());
+			}
+		}
+	}
+}
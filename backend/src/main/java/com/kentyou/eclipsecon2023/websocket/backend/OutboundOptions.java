@@ -0,0 +1,84 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+/**
+ * Settings of the outbound path of a connection, see {@link TyrusServletWriter}
+ */
+class OutboundOptions {
+
+	/**
+	 * Default options: frames already queued are gathered in writes of up to 16 kB, without waiting for more. The
+	 * writer is flagged as not writable above 1 MB of pending data, until it goes back under 256 kB, and frames are
+	 * rejected above 16 MB. Senders blocked by their {@link SlowConsumerPolicy} wait at most 5 seconds.
+	 */
+	static final OutboundOptions DEFAULT = new OutboundOptions(16384, 0, 1048576, 262144, 16777216, 5000);
+
+	/**
+	 * Maximum number of bytes gathered in a single write (0 to disable coalescing)
+	 */
+	final int coalesceBytes;
+
+	/**
+	 * Maximum time, in microseconds, a frame can wait in the queue for other frames to be gathered with (0 to only
+	 * gather frames that are already queued)
+	 */
+	final long coalesceDelayMicros;
+
+	/**
+	 * Number of pending bytes above which the writer is flagged as not writable
+	 */
+	final long highWatermark;
+
+	/**
+	 * Number of pending bytes under which a writer flagged as not writable becomes writable again
+	 */
+	final long lowWatermark;
+
+	/**
+	 * Maximum number of pending bytes: data frames exceeding it are failed, control frames are always queued
+	 */
+	final long queueLimit;
+
+	/**
+	 * Maximum time, in milliseconds, a sender waits for the writer to become writable with the
+	 * {@link SlowConsumerPolicy#BLOCK} policy
+	 */
+	final long blockTimeoutMillis;
+
+	OutboundOptions(int coalesceBytes, long coalesceDelayMicros, long highWatermark, long lowWatermark,
+			long queueLimit, long blockTimeoutMillis) {
+		if (lowWatermark > highWatermark || highWatermark > queueLimit) {
+			throw new IllegalArgumentException("Outbound watermarks must be ordered: low=" + lowWatermark + " <= high="
+					+ highWatermark + " <= limit=" + queueLimit);
+		}
+
+		this.coalesceBytes = Math.max(0, coalesceBytes);
+		this.coalesceDelayMicros = Math.max(0, coalesceDelayMicros);
+		this.highWatermark = highWatermark;
+		this.lowWatermark = Math.max(0, lowWatermark);
+		this.queueLimit = queueLimit;
+		this.blockTimeoutMillis = Math.max(0, blockTimeoutMillis);
+	}
+
+	boolean isCoalescing() {
+		return coalesceBytes > 0;
+	}
+
+	@Override
+	public String toString() {
+		return "OutboundOptions{coalesceBytes=" + coalesceBytes + ", coalesceDelayMicros=" + coalesceDelayMicros
+				+ ", highWatermark=" + highWatermark + ", lowWatermark=" + lowWatermark + ", queueLimit=" + queueLimit
+				+ ", blockTimeoutMillis=" + blockTimeoutMillis + "}";
+	}
+}
@@ -0,0 +1,360 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.glassfish.tyrus.core.ProtocolException;
+import org.glassfish.tyrus.core.TyrusExtension;
+import org.glassfish.tyrus.core.extension.ExtendedExtension;
+import org.glassfish.tyrus.core.frame.Frame;
+
+/**
+ * The permessage-deflate extension (RFC 7692), installed in the configuration of endpoints that accept compression.
+ * <p>
+ * Messages smaller than the minimum size are sent uncompressed, as are all messages while the {@link DeflaterPool}
+ * has no deflater left. Without context takeover, deflaters and inflaters are only leased for the duration of a
+ * message, so that idle connections hold none. With context takeover, they are kept by the connection until it is
+ * closed.
+ * <p>
+ * {@link java.util.zip} always compresses with a 32 kB window: when a client asks for a smaller
+ * {@code server_max_window_bits}, the extension is accepted but messages are sent uncompressed.
+ */
+class PerMessageDeflate implements ExtendedExtension {
+
+	static final String NAME = "permessage-deflate";
+
+	static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+
+	/**
+	 * Size of the window used by {@link Deflater}, as a power of two
+	 */
+	private static final int WINDOW_BITS = 15;
+
+	private static final byte CONTINUATION = 0x00;
+
+	/**
+	 * End of a block flushed with {@link Deflater#SYNC_FLUSH}: removed from sent messages, added back to received
+	 * ones
+	 */
+	private static final byte[] TAIL = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+
+	/**
+	 * Key of the connection state in the extension context
+	 */
+	private static final String STATE_KEY = PerMessageDeflate.class.getName();
+
+	private final DeflaterPool pool;
+
+	/**
+	 * Size of the first frame of a message under which it is sent uncompressed
+	 */
+	private final int minSize;
+
+	private final boolean serverNoContextTakeover;
+
+	private final boolean clientNoContextTakeover;
+
+	PerMessageDeflate(DeflaterPool pool, int minSize, boolean serverNoContextTakeover,
+			boolean clientNoContextTakeover) {
+		this.pool = pool;
+		this.minSize = Math.max(0, minSize);
+		this.serverNoContextTakeover = serverNoContextTakeover;
+		this.clientNoContextTakeover = clientNoContextTakeover;
+	}
+
+	/**
+	 * Returns a copy of this extension with another minimum message size
+	 */
+	PerMessageDeflate withMinSize(int minSize) {
+		return new PerMessageDeflate(pool, minSize, serverNoContextTakeover, clientNoContextTakeover);
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public List<Parameter> getParameters() {
+		return List.of();
+	}
+
+	@Override
+	public List<Parameter> onExtensionNegotiation(final ExtensionContext context,
+			final List<Parameter> requestedParameters) {
+		boolean serverNoContext = serverNoContextTakeover;
+		boolean compress = true;
+		String serverWindowBits = null;
+		if (requestedParameters != null) {
+			for (final Parameter parameter : requestedParameters) {
+				switch (parameter.getName()) {
+				case SERVER_NO_CONTEXT_TAKEOVER:
+					serverNoContext = true;
+					break;
+				case SERVER_MAX_WINDOW_BITS:
+					serverWindowBits = parameter.getValue();
+					compress = windowBits(serverWindowBits) >= WINDOW_BITS;
+					break;
+				default:
+					// client_no_context_takeover can be asked for even if not offered, and received messages are
+					// inflated with the largest window whatever client_max_window_bits says
+					break;
+				}
+			}
+		}
+
+		context.getProperties().put(STATE_KEY,
+				new ConnectionState(compress, serverNoContext, clientNoContextTakeover));
+
+		final List<Parameter> response = new ArrayList<>(3);
+		if (serverNoContext) {
+			response.add(new TyrusExtension.TyrusParameter(SERVER_NO_CONTEXT_TAKEOVER, null));
+		}
+		if (clientNoContextTakeover) {
+			response.add(new TyrusExtension.TyrusParameter(CLIENT_NO_CONTEXT_TAKEOVER, null));
+		}
+		if (serverWindowBits != null && windowBits(serverWindowBits) > 0) {
+			response.add(new TyrusExtension.TyrusParameter(SERVER_MAX_WINDOW_BITS, serverWindowBits));
+		}
+		return response;
+	}
+
+	/**
+	 * Parses a window bits parameter value
+	 *
+	 * @return The number of bits, -1 if invalid
+	 */
+	private static int windowBits(final String value) {
+		if (value == null) {
+			return -1;
+		}
+
+		try {
+			final int bits = Integer.parseInt(value.replace("\"", "").trim());
+			return bits >= 8 && bits <= WINDOW_BITS ? bits : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public void onHandshakeResponse(final ExtensionContext context, final List<Parameter> responseParameters) {
+		// Client side only
+	}
+
+	@Override
+	public Frame processOutgoing(final ExtensionContext context, final Frame frame) {
+		final ConnectionState state = (ConnectionState) context.getProperties().get(STATE_KEY);
+		if (state == null || frame.isControlFrame()) {
+			return frame;
+		}
+		return state.outgoing.process(frame);
+	}
+
+	@Override
+	public Frame processIncoming(final ExtensionContext context, final Frame frame) {
+		final ConnectionState state = (ConnectionState) context.getProperties().get(STATE_KEY);
+		if (state == null || frame.isControlFrame()) {
+			return frame;
+		}
+		return state.incoming.process(frame);
+	}
+
+	@Override
+	public void destroy(final ExtensionContext context) {
+		final ConnectionState state = (ConnectionState) context.getProperties().remove(STATE_KEY);
+		if (state != null) {
+			state.outgoing.close();
+			state.incoming.close();
+		}
+	}
+
+	/**
+	 * Negotiated settings and compression state of a connection
+	 */
+	private final class ConnectionState {
+		final Outgoing outgoing;
+		final Incoming incoming;
+
+		ConnectionState(boolean compress, boolean serverNoContext, boolean clientNoContext) {
+			outgoing = new Outgoing(compress, serverNoContext);
+			incoming = new Incoming(clientNoContext);
+		}
+	}
+
+	/**
+	 * Compression of sent messages. Frames are sent one at a time, but the connection can be closed concurrently.
+	 */
+	private final class Outgoing {
+		private final boolean compress;
+		private final boolean noContextTakeover;
+
+		private Deflater deflater;
+
+		/**
+		 * Current message is compressed
+		 */
+		private boolean deflating;
+
+		private boolean closed;
+
+		Outgoing(boolean compress, boolean noContextTakeover) {
+			this.compress = compress;
+			this.noContextTakeover = noContextTakeover;
+		}
+
+		synchronized Frame process(final Frame frame) {
+			final boolean first = frame.getOpcode() != CONTINUATION;
+			if (first) {
+				deflating = compress && !closed && frame.getPayloadLength() >= minSize && leaseDeflater();
+			}
+			if (!deflating || closed) {
+				return frame;
+			}
+
+			final Frame deflated = deflate(frame, first);
+			if (frame.isFin() && noContextTakeover) {
+				pool.releaseDeflater(deflater);
+				deflater = null;
+			}
+			return deflated;
+		}
+
+		private boolean leaseDeflater() {
+			if (deflater == null) {
+				deflater = pool.acquireDeflater();
+			}
+			return deflater != null;
+		}
+
+		private Frame deflate(final Frame frame, boolean first) {
+			final byte[] input = frame.getPayloadData();
+			deflater.setInput(input, 0, (int) frame.getPayloadLength());
+
+			byte[] output = new byte[input.length / 2 + 64];
+			int length = 0;
+			while (true) {
+				length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+				if (length < output.length) {
+					break;
+				}
+				output = Arrays.copyOf(output, output.length * 2);
+			}
+
+			if (frame.isFin() && length >= TAIL.length
+					&& Arrays.equals(output, length - TAIL.length, length, TAIL, 0, TAIL.length)) {
+				length -= TAIL.length;
+			}
+
+			// Only the first frame of a message is flagged
+			return Frame.builder(frame).rsv1(first).payloadData(output).payloadLength(length).build();
+		}
+
+		synchronized void close() {
+			closed = true;
+			deflating = false;
+			if (deflater != null) {
+				pool.releaseDeflater(deflater);
+				deflater = null;
+			}
+		}
+	}
+
+	/**
+	 * Decompression of received messages, on the reading thread. The connection can be closed concurrently.
+	 */
+	private final class Incoming {
+		private final boolean noContextTakeover;
+
+		private Inflater inflater;
+
+		/**
+		 * Current message is compressed
+		 */
+		private boolean inflating;
+
+		private boolean closed;
+
+		Incoming(boolean noContextTakeover) {
+			this.noContextTakeover = noContextTakeover;
+		}
+
+		synchronized Frame process(final Frame frame) {
+			if (frame.getOpcode() != CONTINUATION) {
+				inflating = frame.isRsv1();
+			}
+			if (!inflating || closed) {
+				return frame;
+			}
+
+			if (inflater == null) {
+				inflater = pool.acquireInflater();
+			}
+
+			final byte[] payload;
+			try {
+				payload = inflate(frame);
+			} catch (DataFormatException e) {
+				inflating = false;
+				release();
+				throw new ProtocolException("Invalid compressed message: " + e.getMessage());
+			}
+
+			if (frame.isFin() && noContextTakeover) {
+				release();
+			}
+			return Frame.builder(frame).rsv1(false).payloadData(payload).build();
+		}
+
+		private byte[] inflate(final Frame frame) throws DataFormatException {
+			final int inputLength = (int) frame.getPayloadLength();
+			inflater.setInput(frame.getPayloadData(), 0, inputLength);
+
+			boolean tail = frame.isFin();
+			byte[] output = new byte[Math.max(64, inputLength * 4)];
+			int length = 0;
+			while (true) {
+				length += inflater.inflate(output, length, output.length - length);
+				if (length == output.length) {
+					output = Arrays.copyOf(output, output.length * 2);
+				} else if (tail && inflater.needsInput()) {
+					// Add back the end of the flushed block, removed by the sender
+					inflater.setInput(TAIL);
+					tail = false;
+				} else {
+					return Arrays.copyOf(output, length);
+				}
+			}
+		}
+
+		private void release() {
+			if (inflater != null) {
+				pool.releaseInflater(inflater);
+				inflater = null;
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+			release();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor running its tasks one at a time, in submission order, on a shared delegate executor.
+ * <p>
+ * No thread is held while the queue is empty: a drain task is submitted to the delegate when the first task is
+ * queued, and it stops once the queue has been emptied.
+ * <p>
+ * Tasks are never rejected, but the executor is {@linkplain #isFull() full} once it holds its maximum number of
+ * pending tasks: the producer is expected to stop submitting until the {@linkplain #setResumeListener resume
+ * listener} is called, which happens once the queue has been drained down to half its capacity.
+ */
+class SerialExecutor implements Executor {
+
+	private static final Logger logger = LoggerFactory.getLogger(SerialExecutor.class);
+
+	private final Executor delegate;
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Number of queued tasks, including the running one
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * Number of pending tasks from which the executor is full
+	 */
+	private final int maxPending;
+
+	/**
+	 * Number of pending tasks at which the resume listener is called
+	 */
+	private final int resumeThreshold;
+
+	/**
+	 * Called when the executor stops being full (can be null)
+	 */
+	private volatile Runnable resumeListener;
+
+	SerialExecutor(final Executor delegate) {
+		this(delegate, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param delegate   Executor running the drain tasks
+	 * @param maxPending Number of pending tasks from which the executor is full
+	 */
+	SerialExecutor(final Executor delegate, final int maxPending) {
+		if (maxPending <= 0) {
+			throw new IllegalArgumentException("Invalid maximum number of pending tasks: " + maxPending);
+		}
+		this.delegate = delegate;
+		this.maxPending = maxPending;
+		this.resumeThreshold = maxPending / 2;
+	}
+
+	@Override
+	public void execute(final Runnable task) {
+		tasks.offer(task);
+		if (pending.getAndIncrement() == 0) {
+			try {
+				delegate.execute(this::drain);
+			} catch (RejectedExecutionException e) {
+				// Delegate stopped: keep the order by running from the caller thread
+				drain();
+			}
+		}
+	}
+
+	/**
+	 * Runs the queued tasks until the queue is empty
+	 */
+	private void drain() {
+		int left;
+		do {
+			final Runnable task = tasks.poll();
+			try {
+				task.run();
+			} catch (Throwable t) {
+				logger.error("Error running dispatched task", t);
+			}
+
+			left = pending.decrementAndGet();
+			if (left == resumeThreshold) {
+				notifyResume();
+			}
+		} while (left != 0);
+	}
+
+	private void notifyResume() {
+		final Runnable listener = resumeListener;
+		if (listener != null) {
+			try {
+				listener.run();
+			} catch (Throwable t) {
+				logger.error("Error resuming the producer of dispatched tasks", t);
+			}
+		}
+	}
+
+	/**
+	 * Sets the listener called, from the draining thread, when the number of pending tasks falls back to half the
+	 * capacity of the executor. The listener can be called while the executor isn't full.
+	 *
+	 * @param listener Resume listener (null to remove it)
+	 */
+	void setResumeListener(final Runnable listener) {
+		this.resumeListener = listener;
+	}
+
+	/**
+	 * Returns true if the executor holds its maximum number of pending tasks
+	 */
+	boolean isFull() {
+		return pending.get() >= maxPending;
+	}
+
+	/**
+	 * Returns the number of tasks waiting or running
+	 */
+	int getPending() {
+		return pending.get();
+	}
+}
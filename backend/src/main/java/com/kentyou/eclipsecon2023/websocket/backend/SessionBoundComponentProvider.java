@@ -0,0 +1,65 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.glassfish.tyrus.core.AnnotatedEndpoint;
+import org.glassfish.tyrus.core.ComponentProviderService;
+import org.glassfish.tyrus.core.ErrorCollector;
+
+import jakarta.websocket.Session;
+
+/**
+ * Component provider returning the service instance bound to a session.
+ * <p>
+ * This allows to analyze an annotated endpoint class once, with {@link AnnotatedEndpoint#fromClass}, and to reuse
+ * the result for all sessions: each session only binds its service instance before calling onOpen.
+ */
+class SessionBoundComponentProvider extends ComponentProviderService {
+
+	/**
+	 * Session -&gt; endpoint instance
+	 */
+	private final Map<Session, Object> instances = new ConcurrentHashMap<>();
+
+	SessionBoundComponentProvider(final ComponentProviderService componentProviderService) {
+		super(componentProviderService);
+	}
+
+	/**
+	 * Binds an endpoint instance to a session
+	 *
+	 * @param session  WebSocket session
+	 * @param instance Endpoint instance to use for this session
+	 */
+	public void bind(final Session session, final Object instance) {
+		instances.put(session, instance);
+	}
+
+	@Override
+	public <T> Object getInstance(Class<T> c, Session session, ErrorCollector collector) {
+		final Object instance = instances.get(session);
+		if (instance != null && c.isInstance(instance)) {
+			return instance;
+		}
+		return super.getInstance(c, session, collector);
+	}
+
+	@Override
+	public void removeSession(Session session) {
+		instances.remove(session);
+		super.removeSession(session);
+	}
+}
@@ -0,0 +1,448 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+
+import jakarta.websocket.Session;
+
+/**
+ * Off-heap store of the state of sessions, to keep per-connection data out of the heap of endpoint instances.
+ * <p>
+ * Each session has at most one record: a byte array, up to the maximum record size, whose content is up to the
+ * endpoint. Records are slots of direct buffer slabs, with one set of slabs per power-of-two size class: a record
+ * moves to another class when its size changes enough. Slabs are allocated on demand, up to the maximum store size,
+ * and kept for reuse.
+ * <p>
+ * Records of sessions opened on endpoints of the registrar are freed when the session is closed. Statistics are
+ * maintained on the fly, so that {@link #snapshot()} only copies a few counters.
+ */
+@Component(service = SessionStateStore.class)
+public class SessionStateStore {
+
+	/**
+	 * Store configuration
+	 */
+	public @interface Config {
+		/**
+		 * Size of a slab, in bytes
+		 */
+		int slab_size() default 1048576;
+
+		/**
+		 * Maximum size of a record, in bytes
+		 */
+		int max_record_size() default 4096;
+
+		/**
+		 * Maximum size of all the slabs, in bytes
+		 */
+		long max_bytes() default 268435456;
+	}
+
+	/**
+	 * Size of the smallest size class
+	 */
+	private static final int MIN_RECORD_SIZE = 64;
+
+	/**
+	 * Each slot starts with the length of its record
+	 */
+	private static final int HEADER_SIZE = Integer.BYTES;
+
+	/**
+	 * Diagnostics of the store, copied at once
+	 */
+	public static final class Snapshot {
+		private final int sessions;
+		private final long reservedBytes;
+		private final long usedBytes;
+		private final int[] recordSizes;
+		private final int[] records;
+		private final int[] slabs;
+
+		Snapshot(int sessions, long reservedBytes, long usedBytes, int[] recordSizes, int[] records, int[] slabs) {
+			this.sessions = sessions;
+			this.reservedBytes = reservedBytes;
+			this.usedBytes = usedBytes;
+			this.recordSizes = recordSizes;
+			this.records = records;
+			this.slabs = slabs;
+		}
+
+		/**
+		 * Number of sessions with a record
+		 */
+		public int getSessions() {
+			return sessions;
+		}
+
+		/**
+		 * Size of the allocated slabs, in bytes
+		 */
+		public long getReservedBytes() {
+			return reservedBytes;
+		}
+
+		/**
+		 * Size of the records content, in bytes
+		 */
+		public long getUsedBytes() {
+			return usedBytes;
+		}
+
+		/**
+		 * Slot size of each size class
+		 */
+		public int[] getRecordSizes() {
+			return recordSizes.clone();
+		}
+
+		/**
+		 * Number of records of each size class
+		 */
+		public int[] getRecords() {
+			return records.clone();
+		}
+
+		/**
+		 * Number of slabs of each size class
+		 */
+		public int[] getSlabs() {
+			return slabs.clone();
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder("SessionStateStore.Snapshot{sessions=").append(sessions)
+					.append(", reservedBytes=").append(reservedBytes).append(", usedBytes=").append(usedBytes);
+			for (int i = 0; i < recordSizes.length; i++) {
+				if (slabs[i] > 0) {
+					sb.append(", ").append(recordSizes[i]).append("B=").append(records[i]).append('/')
+							.append(slabs[i]).append(" slabs");
+				}
+			}
+			return sb.append('}').toString();
+		}
+	}
+
+	/**
+	 * Slabs of a size class, with the stack of their free slots. Guarded by its own lock, except the slabs array,
+	 * which is replaced when a slab is added so that records can be read without locking.
+	 */
+	private final class SizeClass {
+		final int slotSize;
+		final int slotsPerSlab;
+		volatile ByteBuffer[] slabs = new ByteBuffer[0];
+		int[] freeSlots = new int[0];
+		int freeCount;
+		int records;
+
+		SizeClass(int slotSize) {
+			this.slotSize = slotSize;
+			this.slotsPerSlab = Math.max(1, slabSize / slotSize);
+		}
+
+		/**
+		 * Takes a free slot, allocating a slab if needed
+		 *
+		 * @return The slot index, or -1 if the store is full
+		 */
+		synchronized int allocate() {
+			if (freeCount == 0) {
+				final long size = (long) slotsPerSlab * slotSize;
+				synchronized (SessionStateStore.this) {
+					if (reservedBytes + size > maxBytes) {
+						return -1;
+					}
+					reservedBytes += size;
+				}
+
+				final ByteBuffer[] current = slabs;
+				final int first = current.length * slotsPerSlab;
+				final ByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+				grown[current.length] = ByteBuffer.allocateDirect((int) size);
+				slabs = grown;
+				freeSlots = Arrays.copyOf(freeSlots, first + slotsPerSlab);
+				// Lowest slots on top of the stack
+				for (int slot = first + slotsPerSlab - 1; slot >= first; slot--) {
+					freeSlots[freeCount++] = slot;
+				}
+			}
+			records++;
+			return freeSlots[--freeCount];
+		}
+
+		synchronized void free(final int slot) {
+			freeSlots[freeCount++] = slot;
+			records--;
+		}
+
+		int getSlabCount() {
+			return slabs.length;
+		}
+
+		synchronized int getRecords() {
+			return records;
+		}
+
+		/**
+		 * Returns the slab holding a slot
+		 */
+		ByteBuffer slab(final int slot) {
+			return slabs[slot / slotsPerSlab];
+		}
+
+		int offset(final int slot) {
+			return (slot % slotsPerSlab) * slotSize;
+		}
+	}
+
+	private final int slabSize;
+
+	private final int maxRecordSize;
+
+	private final long maxBytes;
+
+	private final SizeClass[] classes;
+
+	/**
+	 * Session ID -&gt; record handle: size class index in the high bits, slot in the low bits
+	 */
+	private final ConcurrentHashMap<String, Long> handles = new ConcurrentHashMap<>();
+
+	/**
+	 * Size of the allocated slabs. Guarded by this.
+	 */
+	private long reservedBytes;
+
+	/**
+	 * Size of the records content. Guarded by this.
+	 */
+	private long usedBytes;
+
+	/**
+	 * Creates a store with the default configuration
+	 */
+	public SessionStateStore() {
+		this(1048576, 4096, 268435456L);
+	}
+
+	@Activate
+	public SessionStateStore(final Config config) {
+		this(config.slab_size(), config.max_record_size(), config.max_bytes());
+	}
+
+	public SessionStateStore(int slabSize, int maxRecordSize, long maxBytes) {
+		if (maxRecordSize < 1 || slabSize < maxRecordSize) {
+			throw new IllegalArgumentException(
+					"Invalid session state store: slab size=" + slabSize + " max record size=" + maxRecordSize);
+		}
+
+		this.slabSize = slabSize;
+		this.maxRecordSize = maxRecordSize;
+		this.maxBytes = maxBytes;
+
+		// Smallest classes up to the one holding the largest record
+		final List<SizeClass> sizeClasses = new ArrayList<>();
+		int slotSize = MIN_RECORD_SIZE;
+		while (true) {
+			if (slotSize > slabSize) {
+				throw new IllegalArgumentException("Slab size " + slabSize + " too small for records of "
+						+ maxRecordSize + " bytes");
+			}
+			sizeClasses.add(new SizeClass(slotSize));
+			if (slotSize - HEADER_SIZE >= maxRecordSize) {
+				break;
+			}
+			slotSize <<= 1;
+		}
+		this.classes = sizeClasses.toArray(new SizeClass[0]);
+	}
+
+	/**
+	 * Returns the largest record the store accepts, in bytes
+	 */
+	public int getMaxRecordSize() {
+		return maxRecordSize;
+	}
+
+	/**
+	 * Sets the record of a session
+	 *
+	 * @param session Session
+	 * @param value   Record content (its position isn't modified)
+	 * @return False if the store is full, in which case the session keeps its previous record, or if the session is
+	 *         closed
+	 * @throws IllegalArgumentException Record larger than the maximum record size
+	 */
+	public boolean put(final Session session, final ByteBuffer value) {
+		final int length = value.remaining();
+		final int classIndex = length <= maxRecordSize ? classIndex(length) : -1;
+		if (!session.isOpen()) {
+			// Its record wouldn't be freed
+			return false;
+		}
+		if (classIndex < 0) {
+			throw new IllegalArgumentException(
+					"Session record too large: " + length + " bytes, maximum is " + getMaxRecordSize());
+		}
+
+		final String sessionId = session.getId();
+		final Long previous = handles.get(sessionId);
+		long handle;
+		if (previous != null && (int) (previous >>> 32) == classIndex) {
+			// Same size class: overwrite in place
+			handle = previous;
+		} else {
+			final int slot = classes[classIndex].allocate();
+			if (slot < 0) {
+				return false;
+			}
+			handle = ((long) classIndex << 32) | slot;
+		}
+
+		final int previousLength = previous != null ? length(previous) : 0;
+		final SizeClass sizeClass = classes[classIndex];
+		final int slot = (int) handle;
+		final ByteBuffer slab = sizeClass.slab(slot);
+		final int offset = sizeClass.offset(slot);
+		slab.put(offset + HEADER_SIZE, value, value.position(), length);
+		slab.putInt(offset, length);
+
+		if (previous == null || previous != handle) {
+			handles.put(sessionId, handle);
+			if (previous != null) {
+				release(previous);
+			}
+		}
+
+		synchronized (this) {
+			usedBytes += length - previousLength;
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the record of a session to a string, encoded in UTF-8
+	 *
+	 * @see #put(Session, ByteBuffer)
+	 */
+	public boolean putString(final Session session, final String value) {
+		return put(session, ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Returns a copy of the record of a session
+	 *
+	 * @param session Session
+	 * @return The record content, or null if the session has none
+	 */
+	public byte[] get(final Session session) {
+		final Long handle = handles.get(session.getId());
+		if (handle == null) {
+			return null;
+		}
+
+		final SizeClass sizeClass = classes[(int) (handle >>> 32)];
+		final int slot = (int) (long) handle;
+		final ByteBuffer slab = sizeClass.slab(slot);
+		final int offset = sizeClass.offset(slot);
+		final byte[] value = new byte[slab.getInt(offset)];
+		slab.get(offset + HEADER_SIZE, value);
+		return value;
+	}
+
+	/**
+	 * Returns the record of a session as a string, decoded from UTF-8
+	 *
+	 * @param session Session
+	 * @return The record content, or null if the session has none
+	 */
+	public String getString(final Session session) {
+		final byte[] value = get(session);
+		return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+	}
+
+	/**
+	 * Frees the record of a session
+	 *
+	 * @param session Session
+	 */
+	public void remove(final Session session) {
+		final Long handle = handles.remove(session.getId());
+		if (handle != null) {
+			final int length = length(handle);
+			release(handle);
+			synchronized (this) {
+				usedBytes -= length;
+			}
+		}
+	}
+
+	/**
+	 * Returns the length of the record of a handle
+	 */
+	private int length(final long handle) {
+		final SizeClass sizeClass = classes[(int) (handle >>> 32)];
+		final int slot = (int) handle;
+		return sizeClass.slab(slot).getInt(sizeClass.offset(slot));
+	}
+
+	private void release(final long handle) {
+		classes[(int) (handle >>> 32)].free((int) handle);
+	}
+
+	/**
+	 * Returns the index of the smallest size class holding a record, or -1 if none can
+	 */
+	private int classIndex(final int length) {
+		for (int i = 0; i < classes.length; i++) {
+			if (classes[i].slotSize - HEADER_SIZE >= length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the current statistics of the store
+	 */
+	public Snapshot snapshot() {
+		final int[] recordSizes = new int[classes.length];
+		final int[] records = new int[classes.length];
+		final int[] slabs = new int[classes.length];
+		for (int i = 0; i < classes.length; i++) {
+			recordSizes[i] = classes[i].slotSize;
+			records[i] = classes[i].getRecords();
+			slabs[i] = classes[i].getSlabCount();
+		}
+
+		synchronized (this) {
+			return new Snapshot(handles.size(), reservedBytes, usedBytes, recordSizes, records, slabs);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+}
@@ -0,0 +1,63 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.Locale;
+
+/**
+ * What happens to the messages sent to a session whose outbound queue is above its high watermark, i.e. when the
+ * client doesn't read as fast as the endpoint sends.
+ * <p>
+ * Policies only apply to the first frame of data messages: control frames and the next frames of a message already
+ * queued are always accepted, up to the queue limit.
+ */
+public enum SlowConsumerPolicy {
+
+	/**
+	 * The sending thread waits for the queue to go back under its low watermark, for a bounded time after which the
+	 * message is failed. Threads writing to the connection never wait.
+	 */
+	BLOCK,
+
+	/**
+	 * The message is failed without being queued
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Queued messages that were not written yet are failed, oldest first, to make room for the new one
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * The message is failed, queued messages are dropped and the session is closed with a 1008 (policy violation)
+	 * code
+	 */
+	CLOSE;
+
+	/**
+	 * Parses a policy given as a service property: {@code block}, {@code drop-newest}, {@code drop-oldest} or
+	 * {@code close}
+	 *
+	 * @param value Property value
+	 * @return The policy
+	 * @throws IllegalArgumentException Unknown policy
+	 */
+	static SlowConsumerPolicy parse(final String value) {
+		try {
+			return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid slow consumer policy: " + value, e);
+		}
+	}
+}
@@ -17,9 +17,10 @@
 package com.kentyou.eclipsecon2023.websocket.backend;
 
 import java.io.IOException;
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,6 +34,7 @@ import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpUpgradeHandler;
 import jakarta.servlet.http.WebConnection;
 import jakarta.websocket.CloseReason;
+import jakarta.websocket.Session;
 
 /**
  * {@link HttpUpgradeHandler} and {@link ReadListener} implementation.
@@ -46,19 +48,86 @@ public class TyrusHttpUpgradeHandler implements HttpUpgradeHandler, ReadListener
 
     public static final String FRAME_BUFFER_SIZE = "org.glassfish.tyrus.servlet.incoming-buffer-size";
 
-    private final CountDownLatch connectionLatch = new CountDownLatch(1);
+    static final int DEFAULT_INCOMING_BUFFER_SIZE = 4194315; // 4M (payload) + 11 (frame overhead)
+
+    /**
+     * Maximum number of bytes read from the input stream at once
+     */
+    static final int READ_CHUNK_SIZE = 16384;
+
+    /**
+     * Set when data arrived before the connection was upgraded: reading is resumed by {@link #upgradeConnection}
+     */
+    private final AtomicBoolean readDeferred = new AtomicBoolean();
+
+    /**
+     * Set while reading is suspended because the dispatched handlers of the session lag behind: reading is resumed
+     * by {@link #resumeSuspendedRead} once they caught up
+     */
+    private final AtomicBoolean readSuspended = new AtomicBoolean();
+
+    /**
+     * Set once the close listener has been notified
+     */
+    private final AtomicBoolean closeNotified = new AtomicBoolean();
+
+    /**
+     * Notified once when the connection is closed, whichever side closes it (null if none)
+     */
+    private volatile Runnable closeListener;
+
+    /**
+     * Executor running the dispatched handlers of the session (null if handlers run on the I/O thread)
+     */
+    private volatile SerialExecutor dispatchExecutor;
 
     private ServletInputStream is;
     private ServletOutputStream os;
     private WebConnection wc;
-    private ByteBuffer buf;
+
+    /**
+     * Passes the data read to the Tyrus read handler, frames spanning reads in small pieces: the buffer it keeps
+     * never exceeds a read, whatever the size of the frames
+     */
+    private final FrameSplitter splitter = new FrameSplitter();
 
     private volatile boolean closed = false;
-    private int incomingBufferSize = 4194315; // 4M (payload) + 11 (frame overhead)
+
+    /**
+     * Set when the input couldn't be parsed: no more data is read from the connection
+     */
+    private volatile boolean inputRejected;
+    private int incomingBufferSize = DEFAULT_INCOMING_BUFFER_SIZE;
 
     private static final Logger LOGGER = Logger.getLogger(TyrusHttpUpgradeHandler.class.getName());
 
-    private Connection connection;
+    /**
+     * Handler of the connection being created by the current thread: endpoints are opened while the connection is
+     * created, which lets them find the handler and the writer of their session
+     */
+    private static final ThreadLocal<TyrusHttpUpgradeHandler> UPGRADING = new ThreadLocal<>();
+
+    private volatile Connection connection;
+
+    private TyrusServletWriter writer;
+
+    /**
+     * Histogram of the time spent handling incoming data (null if not measured)
+     */
+    private volatile LatencyHistogram handlerLatency;
+
+    private ByteBufferPool bufferPool;
+
+    private OutboundOptions outboundOptions = OutboundOptions.DEFAULT;
+
+    private ScheduledExecutorService scheduler;
+
+    private HeartbeatWheel heartbeatWheel;
+
+    /**
+     * Heartbeat entry of the session, stamped on each read (null if not watched)
+     */
+    private volatile HeartbeatWheel.Entry heartbeat;
 
     private boolean authenticated = false;
 
@@ -85,121 +154,151 @@ public class TyrusHttpUpgradeHandler implements HttpUpgradeHandler, ReadListener
     }
 
     public void upgradeConnection(WebSocketEngine.UpgradeInfo upgradeInfo) {
-        connection = upgradeInfo.createConnection(new TyrusServletWriter(wc), new Connection.CloseListener() {
+        if (bufferPool == null) {
+            bufferPool = new ByteBufferPool();
+        }
+        // Tyrus closes the writer whichever side closes the connection, not always through the close listener
+        writer = new TyrusServletWriter(wc, outboundOptions, bufferPool, scheduler) {
             @Override
-            public void close(CloseReason reason) {
-                try {
-                    TyrusHttpUpgradeHandler.this.getWebConnection().close();
-                } catch (Exception e) {
-                    LOGGER.log(Level.FINE, e.getMessage(), e);
-                }
+            public void close() {
+                notifyClosed();
+                super.close();
             }
-        });
-
-        connectionLatch.countDown();
-    }
-
-    @Override
-    public void onDataAvailable() {
+        };
+        UPGRADING.set(this);
         try {
-            connectionLatch.await();
-        } catch (InterruptedException e) {
-            // do nothing.
-        }
-
-        do {
-            try {
-                int available = is.available();
-                if (available == 0) {
-                    // tomcat impl returns always 0
-                    available = 16384;
-                }
-
-                int toRead;
-                if (buf == null) {
-                    if (available > incomingBufferSize) {
-                        toRead = incomingBufferSize;
-                    } else {
-                        toRead = available;
-                    }
-                } else {
-                    if (buf.remaining() + available > incomingBufferSize) {
-                        toRead = incomingBufferSize - buf.remaining();
-                    } else {
-                        toRead = buf.remaining() + available;
+            connection = upgradeInfo.createConnection(writer, new Connection.CloseListener() {
+                @Override
+                public void close(CloseReason reason) {
+                    notifyClosed();
+                    try {
+                        TyrusHttpUpgradeHandler.this.getWebConnection().close();
+                    } catch (Exception e) {
+                        LOGGER.log(Level.FINE, e.getMessage(), e);
                     }
                 }
+            });
+        } finally {
+            UPGRADING.remove();
+        }
 
-                if (toRead == 0) {
-                    throw new IOException(String.format("Tyrus input buffer exceeded. Current buffer size is %s bytes.",
-                                                        incomingBufferSize));
-                }
-
-                available -= fillBuf(toRead);
+        if (readDeferred.compareAndSet(true, false)) {
+            // The container won't notify us again until the pending data is read: resume reading out of the
+            // upgrade request thread
+            LOGGER.finest("Resuming deferred read");
+            resumeRead();
+        }
+    }
 
-                if (buf != null) {
+    /**
+     * Reads the available data out of the current thread
+     */
+    private void resumeRead() {
+        if (scheduler == null) {
+            readAvailable();
+            return;
+        }
 
-                    LOGGER.finest(String.format("Remaining Data = %d", buf.remaining()));
+        try {
+            scheduler.execute(this::readAvailable);
+        } catch (RejectedExecutionException e) {
+            // Scheduler stopped: read from the current thread
+            readAvailable();
+        }
+    }
 
-                    if (buf.hasRemaining()) {
-                        connection.getReadHandler().handle(buf);
-                    }
-                }
-            } catch (IOException e) {
-                connection.close(CloseReasons.CANNOT_ACCEPT.getCloseReason());
-            }
-        } while (!closed && is.isReady());
+    /**
+     * Called when the dispatched handlers of the session caught up: resumes reading if it was suspended
+     */
+    private void resumeSuspendedRead() {
+        if (readSuspended.compareAndSet(true, false) && !closed) {
+            LOGGER.finest("Resuming suspended read");
+            resumeRead();
+        }
     }
 
     /**
-     * Fill the buf with some more websocket protocol data.
+     * Checks if the dispatched handlers of the session lag behind, in which case reading is suspended: the input
+     * stream isn't read until {@link #resumeSuspendedRead} is called, so the container won't call
+     * {@link #onDataAvailable} and TCP flow control throttles the client.
      *
-     * @param length length of data available to read.
-     * @return legth of actually read data.
-     * @throws IOException if some other I/O error occurs.
+     * @return true if reading must stop
      */
-    private int fillBuf(int length) throws IOException {
-        byte[] data = new byte[length];
-        int len = is.read(data);
-        if (len == 0) {
-            return 0;
+    private boolean suspendRead() {
+        final SerialExecutor executor = dispatchExecutor;
+        if (executor == null || !executor.isFull()) {
+            return false;
         }
-        if (buf == null) {
-            LOGGER.finest("No Buffer. Allocating new one");
-            buf = ByteBuffer.wrap(data);
-            ((Buffer) buf).limit(len);
-        } else {
-            int limit = buf.limit();
-            int capacity = buf.capacity();
-            int remaining = buf.remaining();
-
-            if (capacity - limit >= len) {
-                // Remaining data need not be changed. New data is just appended
-                LOGGER.finest("Remaining data need not be moved. New data is just appended");
-                ((Buffer) buf).mark();
-                ((Buffer) buf).position(limit);
-                ((Buffer) buf).limit(capacity);
-                buf.put(data, 0, len);
-                ((Buffer) buf).limit(limit + len);
-                ((Buffer) buf).reset();
-            } else if (remaining + len < capacity) {
-                // Remaining data is moved to left. Then new data is appended
-                LOGGER.finest("Remaining data is moved to left. Then new data is appended");
-                buf.compact();
-                buf.put(data, 0, len);
-                ((Buffer) buf).flip();
-            } else {
-                // Remaining data + new > capacity. So allocate new one
-                LOGGER.finest("Remaining data + new > capacity. So allocate new one");
-                byte[] array = new byte[remaining + len];
-                buf.get(array, 0, remaining);
-                System.arraycopy(data, 0, array, remaining, len);
-                buf = ByteBuffer.wrap(array);
-                ((Buffer) buf).limit(remaining + len);
+
+        readSuspended.set(true);
+        // The handlers may have caught up before the flag was set: keep reading unless the resume listener took over
+        if (executor.isFull() || !readSuspended.compareAndSet(true, false)) {
+            LOGGER.finest("Dispatch queue full: read suspended");
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void onDataAvailable() {
+        if (connection == null) {
+            // Upgrade not complete yet: leave the data in the input stream instead of parking the container thread.
+            // The flag is checked again after being set, in case upgradeConnection ran in between.
+            readDeferred.set(true);
+            if (connection == null || !readDeferred.compareAndSet(true, false)) {
+                LOGGER.finest("Data available before upgrade: read deferred");
+                return;
             }
         }
 
-        return len;
+        readAvailable();
+    }
+
+    /**
+     * Reads the available data and passes it to the connection, until the input stream isn't ready anymore
+     */
+    private void readAvailable() {
+        final HeartbeatWheel.Entry currentHeartbeat = heartbeat;
+        if (currentHeartbeat != null) {
+            currentHeartbeat.activity();
+        }
+
+        // The buffer is consumed entirely by the frame splitter: it is leased for this call only, so that idle
+        // connections don't keep a read buffer
+        final ByteBuffer buffer = bufferPool.acquire(READ_CHUNK_SIZE);
+        try {
+            do {
+                if (inputRejected || suspendRead()) {
+                    return;
+                }
+
+                try {
+                    final int read = is.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+                    if (read < 0) {
+                        break;
+                    }
+
+                    LOGGER.finest(String.format("Read Data = %d", read));
+
+                    if (read > 0) {
+                        buffer.clear().limit(read);
+                        final LatencyHistogram histogram = handlerLatency;
+                        final long start = histogram != null ? System.nanoTime() : 0;
+                        splitter.feed(buffer, connection.getReadHandler(), incomingBufferSize);
+                        if (histogram != null) {
+                            histogram.record(System.nanoTime() - start);
+                        }
+                    }
+                } catch (IOException e) {
+                    // The splitter is left in the middle of a frame: ignore the rest of the input while closing
+                    inputRejected = true;
+                    connection.close(CloseReasons.CANNOT_ACCEPT.getCloseReason());
+                    return;
+                }
+            } while (!closed && is.isReady());
+        } finally {
+            bufferPool.release(buffer);
+        }
     }
 
     @Override
@@ -240,6 +339,7 @@ public class TyrusHttpUpgradeHandler implements HttpUpgradeHandler, ReadListener
         sb.append(", os=").append(os);
         sb.append(", wc=").append(wc);
         sb.append(", closed=").append(closed);
+        sb.append(", writer=").append(writer);
         sb.append('}');
         return sb.toString();
     }
@@ -248,7 +348,79 @@ public class TyrusHttpUpgradeHandler implements HttpUpgradeHandler, ReadListener
         this.incomingBufferSize = incomingBufferSize;
     }
 
+    public void setBufferPool(ByteBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    void setOutboundOptions(OutboundOptions outboundOptions) {
+        this.outboundOptions = outboundOptions;
+    }
+
+    void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    void setHeartbeatWheel(HeartbeatWheel heartbeatWheel) {
+        this.heartbeatWheel = heartbeatWheel;
+    }
+
+    /**
+     * Applies the settings of the endpoint of the connection, while its session opens
+     *
+     * @param settings endpoint settings
+     */
+    void applySettings(EndpointSettings settings) {
+        if (settings.incomingBufferSize > 0) {
+            incomingBufferSize = settings.incomingBufferSize;
+        }
+        writer.setOptions(settings.outbound);
+    }
+
+    /**
+     * Sets the executor of the dispatched handlers of the session, while it opens: reading is suspended while it is
+     * full
+     *
+     * @param executor session executor
+     */
+    void setDispatchExecutor(SerialExecutor executor) {
+        executor.setResumeListener(this::resumeSuspendedRead);
+        this.dispatchExecutor = executor;
+    }
+
+    /**
+     * Starts the heartbeat of the session of the connection
+     *
+     * @param session Tyrus session
+     * @param options Heartbeat options of the endpoint
+     * @return The heartbeat entry of the session, to cancel when it is closed, or null if it isn't watched
+     */
+    HeartbeatWheel.Entry startHeartbeat(Session session, HeartbeatOptions options) {
+        if (heartbeatWheel == null) {
+            return null;
+        }
+        // Closing the connection again is harmless if the client completed the closing handshake in time
+        heartbeat = heartbeatWheel.watch(session, options, writer::close);
+        return heartbeat;
+    }
+
+    /**
+     * Sets the listener notified once when the connection is closed, before it is upgraded
+     *
+     * @param closeListener close listener
+     */
+    void setCloseListener(Runnable closeListener) {
+        this.closeListener = closeListener;
+    }
+
+    private void notifyClosed() {
+        final Runnable listener = closeListener;
+        if (listener != null && closeNotified.compareAndSet(false, true)) {
+            listener.run();
+        }
+    }
+
     private void httpSessionForcedClose(int closeCode, String closeReason) {
+        notifyClosed();
         if (!closed) {
             try {
                 // TODO
@@ -265,6 +437,7 @@ public class TyrusHttpUpgradeHandler implements HttpUpgradeHandler, ReadListener
     }
 
     private void close(int closeCode, String closeReason) {
+        notifyClosed();
         if (!closed) {
             try {
                 connection.close(CloseReasons.create(CloseReason.CloseCodes.getCloseCode(closeCode), closeReason));
@@ -276,6 +449,34 @@ public class TyrusHttpUpgradeHandler implements HttpUpgradeHandler, ReadListener
         }
     }
 
+    /**
+     * Returns the handler of the connection being created by the current thread, i.e. when called from the
+     * {@code onOpen} of an endpoint.
+     *
+     * @return the handler of the session being opened, or null
+     */
+    static TyrusHttpUpgradeHandler getUpgrading() {
+        return UPGRADING.get();
+    }
+
+    /**
+     * Sets the metrics of the endpoint of the connection
+     *
+     * @param metrics      endpoint metrics
+     * @param timeHandlers if true, the time spent handling incoming data is recorded
+     */
+    void setEndpointMetrics(EndpointMetrics metrics, boolean timeHandlers) {
+        this.handlerLatency = timeHandlers ? metrics.getHandlerLatency() : null;
+        writer.setEndpointMetrics(metrics);
+    }
+
+    /**
+     * Returns the writer of the connection, which gives access to its outbound queue depth
+     */
+    TyrusServletWriter getWriter() {
+        return writer;
+    }
+
     WebConnection getWebConnection() {
         if (wc == null) {
             throw new IllegalStateException();
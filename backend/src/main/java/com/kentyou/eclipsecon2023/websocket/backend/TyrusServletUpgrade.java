@@ -18,11 +18,15 @@ package com.kentyou.eclipsecon2023.websocket.backend;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Logger;
 
 import org.glassfish.tyrus.core.RequestContext;
@@ -37,12 +41,19 @@ import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
+import jakarta.servlet.http.HttpSessionBindingEvent;
+import jakarta.servlet.http.HttpSessionBindingListener;
 import jakarta.websocket.server.HandshakeRequest;
 import jakarta.websocket.server.ServerContainer;
 
 public class TyrusServletUpgrade {
     private static final Logger LOGGER = Logger.getLogger(TyrusServletUpgrade.class.getName());
-    private TyrusWebSocketEngine engine;
+
+    /**
+     * Attribute of the HTTP sessions with open WebSockets, notifying their end
+     */
+    static final String SESSION_LISTENER_ATTRIBUTE = TyrusServletUpgrade.class.getName() + ".sessionListener";
+    private volatile TyrusWebSocketEngine engine;
 
     // I don't like this map, but it seems like it is necessary. I am forced to
     // handle subscriptions
@@ -52,11 +63,51 @@ public class TyrusServletUpgrade {
     // I could create List of listeners and send a create something like
     // sessionDestroyed(HttpSession s)
     // but that would take more time (statistically higher number of comparisons).
-    private final Map<HttpSession, TyrusHttpUpgradeHandler> sessionToHandler = new ConcurrentHashMap<HttpSession, TyrusHttpUpgradeHandler>();
+    // An HTTP session can open several WebSockets: all their handlers are kept until they are closed, and the
+    // session gets a binding listener attribute instead.
+    private final Map<HttpSession, Set<TyrusHttpUpgradeHandler>> sessionToHandler = new ConcurrentHashMap<HttpSession, Set<TyrusHttpUpgradeHandler>>();
+
+    /**
+     * Handlers of all the open WebSockets, with or without an HTTP session, closed when the container stops
+     */
+    private final Set<TyrusHttpUpgradeHandler> liveHandlers = ConcurrentHashMap.newKeySet();
 
     private org.glassfish.tyrus.server.TyrusServerContainer serverContainer = null;
 
-    TyrusServletUpgrade(TyrusWebSocketEngine engine) {
+    private final ByteBufferPool bufferPool;
+
+    private final OutboundOptions outboundOptions;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final HeartbeatWheel heartbeatWheel;
+
+    /**
+     * Admission control of the upgrade requests (null if requests aren't limited)
+     */
+    private final HandshakeAdmission admission;
+
+    /**
+     * Settings of the servlet context of the last upgrade request
+     */
+    private volatile ContextSettings contextSettings;
+
+    TyrusServletUpgrade(TyrusWebSocketEngine engine, ByteBufferPool bufferPool, OutboundOptions outboundOptions,
+            ScheduledExecutorService scheduler, HeartbeatWheel heartbeatWheel, HandshakeAdmission admission) {
+        this.engine = engine;
+        this.bufferPool = bufferPool;
+        this.outboundOptions = outboundOptions;
+        this.scheduler = scheduler;
+        this.heartbeatWheel = heartbeatWheel;
+        this.admission = admission;
+    }
+
+    /**
+     * Sets the engine handling the next upgrade requests. Connections already upgraded are kept on their engine.
+     *
+     * @param engine the new engine
+     */
+    void setEngine(TyrusWebSocketEngine engine) {
         this.engine = engine;
     }
 
@@ -87,16 +138,34 @@ public class TyrusServletUpgrade {
      */
     boolean upgrade(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
             throws IOException, ServletException {
-        // check for mandatory websocket header
+        // check for mandatory websocket header: other requests are passed down the chain right away
         final String header = httpServletRequest.getHeader(HandshakeRequest.SEC_WEBSOCKET_KEY);
         if (header != null) {
+            // Turn clients away before doing any handshake work when too many requests come in
+            if (admission != null) {
+                final int retryAfter = admission.admit(httpServletRequest.getRemoteAddr());
+                if (retryAfter > 0) {
+                    LOGGER.fine("Upgrade request rejected by admission control");
+                    httpServletResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    httpServletResponse.setIntHeader("Retry-After", retryAfter);
+                    httpServletResponse.setContentLength(0);
+                    return true;
+                }
+            }
+
             LOGGER.fine("Setting up WebSocket protocol handler");
 
-            final Map<String, String[]> paramMap = httpServletRequest.getParameterMap();
+            final ContextSettings settings = getContextSettings(httpServletRequest.getServletContext());
 
+            // The parameter map is only materialized when there are parameters to parse
+            final String queryString = httpServletRequest.getQueryString();
+            final Map<String, String[]> paramMap = queryString == null ? Collections.emptyMap()
+                    : httpServletRequest.getParameterMap();
+
+            final String localName = httpServletRequest.getLocalName();
             final RequestContext requestContext = RequestContext.Builder.create()
                     .requestURI(URI.create(httpServletRequest.getRequestURI()))
-                    .queryString(httpServletRequest.getQueryString()).httpSession(httpServletRequest.getSession(false))
+                    .queryString(queryString).httpSession(httpServletRequest.getSession(false))
                     .secure(httpServletRequest.isSecure()).userPrincipal(httpServletRequest.getUserPrincipal())
                     .isUserInRoleDelegate(new RequestContext.Builder.IsUserInRoleDelegate() {
                         @Override
@@ -104,29 +173,11 @@ public class TyrusServletUpgrade {
                             return httpServletRequest.isUserInRole(role);
                         }
                     }).parameterMap(paramMap).remoteAddr(httpServletRequest.getRemoteAddr())
-                    .serverAddr(httpServletRequest.getLocalName() == null ? httpServletRequest.getLocalAddr()
-                            : httpServletRequest.getLocalName())
+                    .serverAddr(localName == null ? httpServletRequest.getLocalAddr() : localName)
                     .serverPort(httpServletRequest.getLocalPort())
-                    .tyrusProperties(getInitParams(httpServletRequest.getServletContext())).build();
-
-            Enumeration<String> headerNames = httpServletRequest.getHeaderNames();
-
-            while (headerNames.hasMoreElements()) {
-                String name = headerNames.nextElement();
+                    .tyrusProperties(settings.initParams).build();
 
-                Enumeration<String> headerValues = httpServletRequest.getHeaders(name);
-
-                while (headerValues.hasMoreElements()) {
-
-                    final List<String> values = requestContext.getHeaders().get(name);
-                    if (values == null) {
-                        requestContext.getHeaders().put(name,
-                                Utils.parseHeaderValue(headerValues.nextElement().trim()));
-                    } else {
-                        values.addAll(Utils.parseHeaderValue(headerValues.nextElement().trim()));
-                    }
-                }
-            }
+            copyHeaders(httpServletRequest, requestContext.getHeaders());
 
             final TyrusUpgradeResponse tyrusUpgradeResponse = new TyrusUpgradeResponse();
             final WebSocketEngine.UpgradeInfo upgradeInfo = engine.upgrade(requestContext, tyrusUpgradeResponse);
@@ -152,20 +203,31 @@ public class TyrusServletUpgrade {
 
                 // Configure the instance
                 handler.setAuthenticated(httpServletRequest.getUserPrincipal() != null);
+                handler.setBufferPool(bufferPool);
+                handler.setOutboundOptions(outboundOptions);
+                handler.setScheduler(scheduler);
+                handler.setHeartbeatWheel(heartbeatWheel);
 
-                final String frameBufferSize = httpServletRequest.getServletContext()
-                        .getInitParameter(TyrusHttpUpgradeHandler.FRAME_BUFFER_SIZE);
-                if (frameBufferSize != null) {
-                    handler.setIncomingBufferSize(Integer.parseInt(frameBufferSize));
+                if (settings.incomingBufferSize != null) {
+                    handler.setIncomingBufferSize(settings.incomingBufferSize);
                 }
 
+                // Track the handler until its connection is closed, which can happen as soon as it is upgraded
+                final HttpSession httpSession = (HttpSession) requestContext.getHttpSession();
+                liveHandlers.add(handler);
+                if (httpSession != null) {
+                    addSessionHandler(httpSession, handler);
+                }
+                handler.setCloseListener(() -> {
+                    liveHandlers.remove(handler);
+                    if (httpSession != null) {
+                        removeSessionHandler(httpSession, handler);
+                    }
+                });
+
                 // Upgrade the connection for real
                 handler.upgradeConnection(upgradeInfo);
 
-                if (requestContext.getHttpSession() != null) {
-                    sessionToHandler.put((HttpSession) requestContext.getHttpSession(), handler);
-                }
-
                 httpServletResponse.flushBuffer();
                 LOGGER.fine("Handshake Complete");
                 break;
@@ -176,13 +238,70 @@ public class TyrusServletUpgrade {
         return false;
     }
 
-    TyrusHttpUpgradeHandler destroySession(HttpSession session) {
-        final TyrusHttpUpgradeHandler upgradeHandler = sessionToHandler.get(session);
-        if (upgradeHandler != null) {
-            sessionToHandler.remove(session);
-            upgradeHandler.sessionDestroyed();
+    /**
+     * Adds the handler of a WebSocket opened by an HTTP session, and listens to the end of the session
+     */
+    private void addSessionHandler(HttpSession httpSession, TyrusHttpUpgradeHandler handler) {
+        sessionToHandler.compute(httpSession, (s, handlers) -> {
+            final Set<TyrusHttpUpgradeHandler> sessionHandlers = handlers != null ? handlers
+                    : ConcurrentHashMap.newKeySet();
+            sessionHandlers.add(handler);
+            return sessionHandlers;
+        });
+
+        try {
+            if (httpSession.getAttribute(SESSION_LISTENER_ATTRIBUTE) == null) {
+                httpSession.setAttribute(SESSION_LISTENER_ATTRIBUTE, new SessionListener());
+            }
+        } catch (IllegalStateException e) {
+            // Invalidated during the upgrade
+            LOGGER.fine("HTTP session invalidated during the upgrade");
+            destroySession(httpSession);
+        }
+    }
+
+    /**
+     * Removes the handler of a closed WebSocket: the HTTP session is forgotten with its last WebSocket
+     */
+    private void removeSessionHandler(HttpSession httpSession, TyrusHttpUpgradeHandler handler) {
+        final Set<TyrusHttpUpgradeHandler> remaining = sessionToHandler.computeIfPresent(httpSession,
+                (s, handlers) -> {
+                    handlers.remove(handler);
+                    return handlers.isEmpty() ? null : handlers;
+                });
+        if (remaining != null) {
+            return;
+        }
+
+        try {
+            final Object listener = httpSession.getAttribute(SESSION_LISTENER_ATTRIBUTE);
+            if (listener instanceof SessionListener) {
+                ((SessionListener) listener).detached = true;
+                httpSession.removeAttribute(SESSION_LISTENER_ATTRIBUTE);
+            }
+            if (sessionToHandler.containsKey(httpSession)) {
+                // The session opened another WebSocket in the meantime
+                httpSession.setAttribute(SESSION_LISTENER_ATTRIBUTE, new SessionListener());
+            }
+        } catch (IllegalStateException e) {
+            // Session already invalidated: its attributes are gone
+        }
+    }
+
+    /**
+     * Notifies the handlers of the WebSockets opened by an HTTP session that it was destroyed or invalidated
+     *
+     * @param session the HTTP session
+     * @return the handlers of the WebSockets of the session
+     */
+    Set<TyrusHttpUpgradeHandler> destroySession(HttpSession session) {
+        final Set<TyrusHttpUpgradeHandler> upgradeHandlers = sessionToHandler.remove(session);
+        if (upgradeHandlers == null) {
+            return Collections.emptySet();
         }
-        return upgradeHandler;
+
+        upgradeHandlers.forEach(TyrusHttpUpgradeHandler::sessionDestroyed);
+        return upgradeHandlers;
     }
 
     private static void appendTraceHeaders(HttpServletResponse httpServletResponse,
@@ -194,18 +313,94 @@ public class TyrusServletUpgrade {
         }
     }
 
-    private Map<String, Object> getInitParams(ServletContext ctx) {
-        Map<String, Object> initParams = new HashMap<>();
-        Enumeration<String> enumeration = ctx.getInitParameterNames();
-        while (enumeration.hasMoreElements()) {
-            String initName = enumeration.nextElement();
-            initParams.put(initName, ctx.getInitParameter(initName));
+    /**
+     * Returns the settings of a servlet context, read on its first upgrade request. The init parameters of a context
+     * can't change once it is initialized.
+     */
+    private ContextSettings getContextSettings(ServletContext ctx) {
+        final ContextSettings settings = contextSettings;
+        if (settings != null && settings.context == ctx) {
+            return settings;
+        }
+
+        final ContextSettings newSettings = new ContextSettings(ctx);
+        contextSettings = newSettings;
+        return newSettings;
+    }
+
+    /**
+     * Copies the request headers to the request context. Header values are split on commas like
+     * {@link Utils#parseHeaderValue(String)} does, which is only called when there is something to split.
+     */
+    private static void copyHeaders(HttpServletRequest httpServletRequest, Map<String, List<String>> headers) {
+        final Enumeration<String> headerNames = httpServletRequest.getHeaderNames();
+        while (headerNames.hasMoreElements()) {
+            final String name = headerNames.nextElement();
+            final Enumeration<String> headerValues = httpServletRequest.getHeaders(name);
+            while (headerValues.hasMoreElements()) {
+                final String value = headerValues.nextElement().trim();
+                List<String> values = headers.get(name);
+                if (values == null) {
+                    values = new ArrayList<>(1);
+                    headers.put(name, values);
+                }
+
+                if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+                    if (!value.isEmpty()) {
+                        values.add(value);
+                    }
+                } else {
+                    values.addAll(Utils.parseHeaderValue(value));
+                }
+            }
+        }
+    }
+
+    /**
+     * Container-level settings, computed once per servlet context
+     */
+    private static final class ContextSettings {
+        final ServletContext context;
+        final Map<String, Object> initParams;
+        final Integer incomingBufferSize;
+
+        ContextSettings(ServletContext ctx) {
+            final Map<String, Object> params = new HashMap<>();
+            final Enumeration<String> enumeration = ctx.getInitParameterNames();
+            while (enumeration.hasMoreElements()) {
+                final String initName = enumeration.nextElement();
+                params.put(initName, ctx.getInitParameter(initName));
+            }
+
+            final String frameBufferSize = ctx.getInitParameter(TyrusHttpUpgradeHandler.FRAME_BUFFER_SIZE);
+            this.context = ctx;
+            this.initParams = Collections.unmodifiableMap(params);
+            this.incomingBufferSize = frameBufferSize != null ? Integer.valueOf(frameBufferSize) : null;
+        }
+    }
+
+    /**
+     * Attribute of the HTTP sessions with open WebSockets: an HttpSessionListener would have to be registered before
+     * the servlet context is initialized, but attributes are unbound when their session ends
+     */
+    private final class SessionListener implements HttpSessionBindingListener {
+        /**
+         * Set when the attribute is removed because the session has no WebSocket left
+         */
+        volatile boolean detached;
+
+        @Override
+        public void valueUnbound(HttpSessionBindingEvent event) {
+            if (!detached) {
+                destroySession(event.getSession());
+            }
         }
-        return initParams;
     }
 
     public void stop() {
-        sessionToHandler.forEach((session, upgradeHandler) -> upgradeHandler.destroy());
+        // Closed handlers remove themselves from the set
+        liveHandlers.forEach(TyrusHttpUpgradeHandler::destroy);
+        liveHandlers.clear();
         sessionToHandler.clear();
     }
 
@@ -17,9 +17,24 @@
 package com.kentyou.eclipsecon2023.websocket.backend;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.nio.ByteBuffer;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,128 +44,1124 @@ import org.glassfish.tyrus.spi.Writer;
 import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.WriteListener;
 import jakarta.servlet.http.WebConnection;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Session;
 
 /**
  * {@link org.glassfish.tyrus.spi.Writer} implementation used in Servlet integration.
+ * <p>
+ * Senders never lock: frames are appended to a lock-free queue and the first sender finding the writer idle becomes
+ * the drainer, until the queue is empty or the stream isn't ready anymore. In the latter case, the container resumes
+ * the drain through {@link #onWritePossible()}.
+ * <p>
+ * When coalescing is enabled in the {@link OutboundOptions}, queued frames are gathered in a single write of up to
+ * {@link OutboundOptions#coalesceBytes} bytes and the stream is flushed once per drain cycle instead of once per
+ * frame.
+ * <p>
+ * Frames without an accessible backing array (direct or read-only buffers) are never copied in a buffer of their own
+ * size: they are either given to the native {@link ByteBuffer} write method of the stream, or streamed in chunks
+ * through pooled buffers.
+ * <p>
+ * The queue is bounded by {@link OutboundOptions#queueLimit} bytes: frames beyond that limit are failed. The writer
+ * is flagged as not writable once the queue grows above the high watermark and until it goes back under the low
+ * watermark, and {@link WritabilityListener}s are notified of those changes. While it isn't writable, new messages
+ * are handled according to the {@link SlowConsumerPolicy} of the session, if any. Messages dropped from the queue are
+ * only marked as such: the drainer skips them when it reaches them.
+ * <p>
+ * When conflation is enabled, messages can be given a key, either explicitly or through
+ * {@link #withConflationKey(Object, Runnable)} for the frames Tyrus writes from the current thread. A whole message
+ * whose key matches a queued message not taken by the drainer yet replaces it in place: the sender of the replaced
+ * message is notified of its completion, as its value is delivered by the new one.
  *
  * @author Pavel Bucek
  */
 class TyrusServletWriter extends Writer implements WriteListener {
 
     private final WebConnection webConnection;
-    private final Deque<QueuedFrame> queue = new LinkedList<QueuedFrame>();
+    private final Queue<QueuedFrame> queue = new ConcurrentLinkedQueue<QueuedFrame>();
+    private volatile OutboundOptions options;
+    private final ByteBufferPool bufferPool;
+    private final ScheduledExecutorService scheduler;
 
     private static final Logger LOGGER = Logger.getLogger(TyrusServletWriter.class.getName());
 
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_CLOSE = 0x8;
+
+    /**
+     * Time a slow consumer closed by its policy has to take the close frame before its connection is closed
+     */
+    private static final long SLOW_CONSUMER_CLOSE_GRACE_SECONDS = 5;
+
+    /**
+     * Number of threads that asked for a drain: the one incrementing it from 0 is the drainer.
+     */
+    private final AtomicInteger drainRequests = new AtomicInteger();
+
+    /**
+     * Number of frames waiting in the queue
+     */
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+
+    /**
+     * Number of bytes waiting in the queue or being written
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /**
+     * Set while a delayed drain is scheduled
+     */
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private final List<WritabilityListener> writabilityListeners = new CopyOnWriteArrayList<>();
+
+    private volatile boolean writable = true;
+
+    private volatile Throwable failure;
+
+    /**
+     * Policy applied to new messages while the writer isn't writable (null to only apply the queue limit), and the
+     * session it closes
+     */
+    private volatile SlowConsumerPolicy slowConsumerPolicy;
+    private volatile Session session;
+
+    /**
+     * Set when the first frame of the message being sent was dropped, so that its next frames are dropped too. Only
+     * accessed by the frames of Tyrus, which serializes them.
+     */
+    private boolean droppingMessage;
+
+    /**
+     * Orders the frames of Tyrus and the broadcast frames in the queue. Only held to check the state below and queue
+     * a frame, never while calling out.
+     */
+    private final Object sendLock = new Object();
+
+    /**
+     * Set once a close frame has been queued: data frames are rejected afterwards. Guarded by sendLock.
+     */
+    private boolean closeQueued;
+
+    /**
+     * Set while Tyrus sends a fragmented message. Guarded by sendLock.
+     */
+    private boolean fragmenting;
+
+    /**
+     * Broadcast frames waiting for the end of the fragmented message being sent. Guarded by sendLock.
+     */
+    private final List<QueuedFrame> deferred = new ArrayList<>();
+
+    /**
+     * Thread currently draining the queue, which must never wait for it to be drained
+     */
+    private volatile Thread drainingThread;
+
+    /**
+     * Set once the session was closed for being too slow
+     */
+    private final AtomicBoolean slowConsumerClosed = new AtomicBoolean();
+
+    private final LongAdder droppedFrames = new LongAdder();
+
+    /**
+     * Number of frames failed for exceeding the queue limit
+     */
+    private final LongAdder rejectedFrames = new LongAdder();
+
+    /**
+     * Conflation key of the messages sent by the current thread through Tyrus
+     */
+    private static final ThreadLocal<Object> CONFLATION_KEY = new ThreadLocal<>();
+
     /**
-     * ServletOutputStream is not thread safe, must be synchronized.
-     * <p/>
-     * Access synchronized via "this" - Tyrus creates one instance of TyrusServletWriter per WebSocket connection, so
-     * that should be ok.
+     * Queued messages that can be replaced, by conflation key (null if conflation is disabled)
+     */
+    private volatile Map<Object, QueuedFrame> conflated;
+
+    private final LongAdder conflatedFrames = new LongAdder();
+
+    /**
+     * Metrics of the endpoint of the connection, counting its dropped, rejected and conflated frames (null if not
+     * measured)
+     */
+    private volatile EndpointMetrics metrics;
+
+    /**
+     * Histogram of the time frames spend in the queue, until the stream accepts them (null if not measured)
+     */
+    private volatile LatencyHistogram queueResidence;
+
+    /**
+     * ServletOutputStream is not thread safe: it is only accessed by the drainer.
      */
     private ServletOutputStream servletOutputStream = null;
 
     private boolean isListenerSet;
 
+    /**
+     * Set when some data has been written but not flushed yet
+     */
+    private boolean needsFlush;
+
+    /**
+     * Frames handed to the stream, completed once it is ready again
+     */
+    private final List<QueuedFrame> inflight = new ArrayList<>();
+
+    /**
+     * Pooled buffer handed to the stream, released once it is ready again
+     */
+    private ByteBuffer inflightBatch;
+
+    /**
+     * Frame being streamed in chunks, and the view of its remaining content
+     */
+    private QueuedFrame streamed;
+    private ByteBuffer streamedData;
+
+    /**
+     * Native {@link ByteBuffer} write method of the output stream implementations, if any (e.g. Jetty's HttpOutput)
+     */
+    private static final ClassValue<MethodHandle> BUFFER_WRITE = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            try {
+                return MethodHandles.publicLookup().findVirtual(type, "write",
+                        MethodType.methodType(void.class, ByteBuffer.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                return null;
+            }
+        }
+    };
+
     private static class QueuedFrame {
-        public final CompletionHandler<ByteBuffer> completionHandler;
-        public final ByteBuffer dataFrame;
+        private static final AtomicIntegerFieldUpdater<QueuedFrame> STATE = AtomicIntegerFieldUpdater
+                .newUpdater(QueuedFrame.class, "state");
+
+        private static final int QUEUED = 0;
+        private static final int CLAIMED = 1;
+        private static final int REPLACING = 2;
+
+        /**
+         * Content of the frame: only changed by a sender holding the frame in the replacing state, and only read by
+         * the thread that claimed it
+         */
+        public CompletionHandler<ByteBuffer> completionHandler;
+        public ByteBuffer dataFrame;
+        public int size;
+
+        public final long queuedAt;
 
-        QueuedFrame(CompletionHandler<ByteBuffer> completionHandler, ByteBuffer dataFrame) {
+        /**
+         * The frame holds a whole data message, which can be dropped without breaking the stream
+         */
+        public final boolean droppable;
+
+        /**
+         * Conflation key of the message (null if it can't be replaced)
+         */
+        public final Object key;
+
+        /**
+         * Claimed by the drainer taking the frame or by the sender dropping it, whichever comes first
+         */
+        private volatile int state;
+
+        QueuedFrame(CompletionHandler<ByteBuffer> completionHandler, ByteBuffer dataFrame, long queuedAt,
+                boolean droppable, Object key) {
             this.completionHandler = completionHandler;
             this.dataFrame = dataFrame;
+            this.size = dataFrame.remaining();
+            this.queuedAt = queuedAt;
+            this.droppable = droppable;
+            this.key = key;
+        }
+
+        /**
+         * Takes the frame, waiting for a replacement of its content to complete
+         *
+         * @return false if the frame was already claimed
+         */
+        boolean claim() {
+            while (true) {
+                if (STATE.compareAndSet(this, QUEUED, CLAIMED)) {
+                    return true;
+                }
+                if (state == CLAIMED) {
+                    return false;
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        /**
+         * Gives back a frame claimed by the drainer, which didn't write it
+         */
+        void unclaim() {
+            state = QUEUED;
+        }
+
+        /**
+         * Starts replacing the content of the frame
+         *
+         * @return false if the frame was claimed or is being replaced by another sender
+         */
+        boolean startReplacing() {
+            return STATE.compareAndSet(this, QUEUED, REPLACING);
         }
+
+        void endReplacing() {
+            state = QUEUED;
+        }
+    }
+
+    /**
+     * Listener notified when the writer goes over its high watermark or back under its low watermark.
+     */
+    interface WritabilityListener {
+        /**
+         * @param writable false when the queue went over the high watermark, true when it went back under the low
+         *                 watermark
+         */
+        void writabilityChanged(boolean writable);
     }
 
     /**
      * Constructor.
      *
-     * @param tyrusHttpUpgradeHandler encapsulated {@link TyrusHttpUpgradeHandler} instance.
+     * @param webConnection underlying connection.
      */
     public TyrusServletWriter(WebConnection webConnection) {
+        this(webConnection, OutboundOptions.DEFAULT, null, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param webConnection underlying connection.
+     * @param options       outbound settings.
+     * @param bufferPool    pool of the buffers frames are gathered in (can be null).
+     * @param scheduler     scheduler of the delayed drains, when a coalescing delay is configured (can be null).
+     */
+    public TyrusServletWriter(WebConnection webConnection, OutboundOptions options, ByteBufferPool bufferPool,
+            ScheduledExecutorService scheduler) {
         this.webConnection = webConnection;
+        this.options = options != null ? options : OutboundOptions.DEFAULT;
+        this.bufferPool = bufferPool != null ? bufferPool : new ByteBufferPool();
+        this.scheduler = scheduler;
     }
 
     @Override
-    public synchronized void onWritePossible() throws IOException {
+    public void onWritePossible() throws IOException {
         LOGGER.log(Level.FINEST, "OnWritePossible called");
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        LOGGER.log(Level.WARNING, "TyrusServletWriter.onError", t);
+
+        if (failure == null) {
+            failure = t;
+        }
+        drain();
+    }
 
-        try /* servletOutputStream.isReady() */ {
-            while (!queue.isEmpty() && servletOutputStream.isReady()) {
-                final QueuedFrame queuedFrame = queue.poll();
-                assert queuedFrame != null;
+    @Override
+    public void write(final ByteBuffer buffer, CompletionHandler<ByteBuffer> completionHandler) {
+        write(buffer, completionHandler, conflated != null ? CONFLATION_KEY.get() : null, false);
+    }
+
+    /**
+     * Queues a frame
+     *
+     * @param buffer            frame to write
+     * @param completionHandler frame completion handler
+     * @param key               conflation key of the message, ignored if conflation is disabled or if the frame
+     *                          doesn't hold a whole data message (can be null)
+     */
+    void write(final ByteBuffer buffer, CompletionHandler<ByteBuffer> completionHandler, final Object key) {
+        write(buffer, completionHandler, key, false);
+    }
+
+    /**
+     * Queues a whole message frame built outside of Tyrus, e.g. shared by several sessions. The frame is queued after
+     * the fragmented message Tyrus may be sending, and is rejected once a close frame has been queued.
+     *
+     * @param buffer            final data frame to write
+     * @param completionHandler frame completion handler
+     * @param key               conflation key of the message (can be null)
+     * @return false if the frame was refused because a close frame has already been queued or the connection failed
+     */
+    boolean writeMessage(final ByteBuffer buffer, CompletionHandler<ByteBuffer> completionHandler, final Object key) {
+        return write(buffer, completionHandler, key, true);
+    }
 
-                _write(queuedFrame.dataFrame, queuedFrame.completionHandler);
+    private boolean write(final ByteBuffer buffer, CompletionHandler<ByteBuffer> completionHandler, final Object key,
+            final boolean external) {
+        final Throwable error = failure;
+        if (error != null) {
+            completionHandler.failed(error);
+            return false;
+        }
+
+        final int size = buffer.remaining();
+        final int header = size > 0 ? buffer.get(buffer.position()) : 0;
+        final int opcode = header & 0x0F;
+        final boolean fin = (header & 0x80) != 0;
+        final boolean wholeMessage = fin && opcode != OPCODE_CONTINUATION && opcode < OPCODE_CLOSE;
+        final Map<Object, QueuedFrame> conflated = this.conflated;
+        final Object conflationKey = conflated != null && wholeMessage ? key : null;
+        if (conflationKey != null && replace(conflated, conflationKey, buffer, completionHandler)) {
+            return true;
+        }
+
+        if (opcode == OPCODE_CONTINUATION) {
+            if (droppingMessage) {
+                // Rest of a dropped message
+                droppingMessage = !fin;
+                sequence(null, opcode, fin, false);
+                countDropped();
+                completionHandler.failed(new IOException("Frame dropped with the start of its message."));
+                return true;
             }
-        } catch (Exception e) {
-            onError(e);
+        } else if ((!writable || slowConsumerClosed.get()) && opcode < OPCODE_CLOSE && slowConsumerPolicy != null
+                && !applySlowConsumerPolicy(size, completionHandler)) {
+            if (!external) {
+                droppingMessage = !fin;
+                sequence(null, opcode, fin, false);
+            }
+            return true;
+        }
+
+        // Control frames aren't limited: a close frame must get through to end the session of a slow client
+        final long bytes = queuedBytes.addAndGet(size);
+        if (bytes > options.queueLimit && bytes != size && opcode < OPCODE_CLOSE) {
+            queuedBytes.addAndGet(-size);
+            if (!external) {
+                // The message is broken anyway: drop its next frames
+                droppingMessage = !fin;
+                sequence(null, opcode, fin, false);
+            }
+            rejectedFrames.increment();
+            final EndpointMetrics endpointMetrics = metrics;
+            if (endpointMetrics != null) {
+                endpointMetrics.frameRejected();
+            }
+            completionHandler.failed(new IOException(String.format(
+                    "Outbound queue limit exceeded: %d bytes pending, limit is %d bytes.", bytes - size,
+                    options.queueLimit)));
+            return true;
+        }
+
+        final QueuedFrame queuedFrame = new QueuedFrame(completionHandler, buffer,
+                queueResidence != null ? System.nanoTime() : 0, wholeMessage, conflationKey);
+        if (conflationKey != null) {
+            // Before queueing it, so that the drainer can't forget the frame before it is known
+            conflated.put(conflationKey, queuedFrame);
+        }
+        if (!sequence(queuedFrame, opcode, fin, external)) {
+            fail(queuedFrame, new IOException("Data frame sent after the close frame."));
+            return false;
+        }
+
+        if (bytes > options.highWatermark && writable) {
+            updateWritability();
         }
 
+        if (isDelayed() && bytes < options.coalesceBytes) {
+            // Wait a little for other frames to gather with
+            if (drainScheduled.compareAndSet(false, true)) {
+                scheduler.schedule(this::onDrainDeadline, options.coalesceDelayMicros, TimeUnit.MICROSECONDS);
+            }
+        } else {
+            drain();
+        }
+        return true;
     }
 
-    @Override
-    public synchronized void onError(Throwable t) {
-        LOGGER.log(Level.WARNING, "TyrusServletWriter.onError", t);
+    /**
+     * Queues a frame in send order: data frames are refused once the close frame has been queued, and external frames
+     * wait for the end of the fragmented message being sent by Tyrus
+     *
+     * @param frame    frame to queue, or null to only account for a dropped frame of Tyrus
+     * @param opcode   frame opcode
+     * @param fin      final frame of its message
+     * @param external frame built outside of Tyrus
+     * @return false if the frame was refused
+     */
+    private boolean sequence(final QueuedFrame frame, final int opcode, final boolean fin, final boolean external) {
+        List<QueuedFrame> orphans = null;
+        synchronized (sendLock) {
+            if (closeQueued && opcode < OPCODE_CLOSE) {
+                return false;
+            }
 
-        QueuedFrame queuedFrame;
-        while ((queuedFrame = queue.poll()) != null) {
-            queuedFrame.completionHandler.failed(t);
+            if (external && fragmenting) {
+                deferred.add(frame);
+                return true;
+            }
+
+            if (frame != null) {
+                queue.offer(frame);
+                queuedFrames.incrementAndGet();
+            }
+
+            if (opcode == OPCODE_CLOSE) {
+                closeQueued = true;
+                if (!deferred.isEmpty()) {
+                    orphans = new ArrayList<>(deferred);
+                    deferred.clear();
+                }
+            } else if (!external && opcode < OPCODE_CLOSE) {
+                fragmenting = !fin;
+                if (!fragmenting && !deferred.isEmpty()) {
+                    for (final QueuedFrame waiting : deferred) {
+                        queue.offer(waiting);
+                        queuedFrames.incrementAndGet();
+                    }
+                    deferred.clear();
+                }
+            }
+        }
+
+        if (orphans != null) {
+            final IOException closed = new IOException("Session closed before the frame could be sent.");
+            for (final QueuedFrame orphan : orphans) {
+                fail(orphan, closed);
+            }
         }
+        return true;
     }
 
-    @Override
-    public synchronized void write(final ByteBuffer buffer, CompletionHandler<ByteBuffer> completionHandler) {
+    /**
+     * Fails a frame that was counted but not queued
+     */
+    private void fail(final QueuedFrame frame, final Throwable error) {
+        if (frame.claim()) {
+            forget(frame);
+            queuedBytes.addAndGet(-frame.size);
+            frame.completionHandler.failed(error);
+        }
+    }
+
+    /**
+     * Replaces the content of the queued message with the same conflation key, if it wasn't taken yet
+     *
+     * @return true if the frame replaced a queued one
+     */
+    private boolean replace(final Map<Object, QueuedFrame> conflated, final Object key, final ByteBuffer buffer,
+            final CompletionHandler<ByteBuffer> completionHandler) {
+        final QueuedFrame queued = conflated.get(key);
+        if (queued == null || !queued.startReplacing()) {
+            return false;
+        }
+
+        final CompletionHandler<ByteBuffer> replacedHandler = queued.completionHandler;
+        final ByteBuffer replaced = queued.dataFrame;
+        final int size = buffer.remaining();
+        queuedBytes.addAndGet(size - queued.size);
+        queued.completionHandler = completionHandler;
+        queued.dataFrame = buffer;
+        queued.size = size;
+        queued.endReplacing();
+
+        conflatedFrames.increment();
+        final EndpointMetrics endpointMetrics = metrics;
+        if (endpointMetrics != null) {
+            endpointMetrics.frameConflated();
+        }
+        if (replacedHandler != null) {
+            replacedHandler.completed(replaced);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the conflation key of a frame that can't be replaced anymore
+     */
+    private void forget(final QueuedFrame frame) {
+        final Map<Object, QueuedFrame> conflated = this.conflated;
+        if (frame.key != null && conflated != null) {
+            conflated.remove(frame.key, frame);
+        }
+    }
+
+    /**
+     * Enables or disables the conflation of messages with the same key
+     */
+    void setConflating(boolean conflating) {
+        if (!conflating) {
+            this.conflated = null;
+        } else if (this.conflated == null) {
+            this.conflated = new ConcurrentHashMap<>();
+        }
+    }
+
+    boolean isConflating() {
+        return conflated != null;
+    }
+
+    /**
+     * Runs a send operation with a conflation key: the whole messages Tyrus writes from the current thread during
+     * the operation are given that key
+     *
+     * @param key  conflation key
+     * @param send send operation, which must write its frames from the current thread
+     */
+    static void withConflationKey(final Object key, final Runnable send) {
+        final Object previous = CONFLATION_KEY.get();
+        CONFLATION_KEY.set(key);
+        try {
+            send.run();
+        } finally {
+            if (previous == null) {
+                CONFLATION_KEY.remove();
+            } else {
+                CONFLATION_KEY.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of queued messages replaced by a newer one with the same key
+     */
+    long getConflatedFrames() {
+        return conflatedFrames.sum();
+    }
 
-        // first write
-        if (servletOutputStream == null) {
+    /**
+     * Applies the slow consumer policy to the first frame of a new message, while the writer isn't writable
+     *
+     * @param size              frame size
+     * @param completionHandler frame completion handler, failed if the frame can't be queued
+     * @return true if the frame can be queued
+     */
+    private boolean applySlowConsumerPolicy(final int size, final CompletionHandler<ByteBuffer> completionHandler) {
+        switch (slowConsumerPolicy) {
+        case BLOCK:
+            if (awaitWritable()) {
+                return true;
+            }
+            break;
+        case DROP_OLDEST:
+            dropQueued(options.highWatermark - size);
+            return true;
+        case CLOSE:
+            closeSlowConsumer();
+            break;
+        case DROP_NEWEST:
+        default:
+            break;
+        }
+
+        countDropped();
+        completionHandler.failed(new IOException(String.format(
+                "Message dropped by the %s slow consumer policy: %d bytes pending, high watermark is %d bytes.",
+                slowConsumerPolicy, queuedBytes.get(), options.highWatermark)));
+        return false;
+    }
+
+    /**
+     * Waits for the writer to become writable, at most for the block timeout. The thread draining the queue doesn't
+     * wait, as the queue can't be drained while it does.
+     *
+     * @return true if the writer is writable or if the current thread is the drainer
+     */
+    private boolean awaitWritable() {
+        if (Thread.currentThread() == drainingThread) {
+            return true;
+        }
+
+        long remaining = TimeUnit.MILLISECONDS.toNanos(options.blockTimeoutMillis);
+        final long deadline = System.nanoTime() + remaining;
+        synchronized (writabilityListeners) {
             try {
-                servletOutputStream = webConnection.getOutputStream();
-            } catch (IOException e) {
-                LOGGER.log(Level.CONFIG, "ServletOutputStream cannot be obtained", e);
-                completionHandler.failed(e);
-                return;
+                while (!writable && failure == null && remaining > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(writabilityListeners, remaining);
+                    remaining = deadline - System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            return writable || failure != null;
         }
+    }
 
-        try /* servletOutputStream.isReady() */ {
-            if (queue.isEmpty() && servletOutputStream.isReady()) {
-                _write(buffer, completionHandler);
-            } else {
-                final QueuedFrame queuedFrame = new QueuedFrame(completionHandler, buffer);
-                queue.offer(queuedFrame);
+    /**
+     * Drops the oldest whole messages of the queue, which were not taken by the drainer yet, until the pending bytes
+     * reach the given target or there is nothing left to drop
+     *
+     * @param targetBytes number of pending bytes to reach
+     */
+    private void dropQueued(final long targetBytes) {
+        final IOException dropped = new IOException("Message dropped from the outbound queue of a slow consumer.");
+        for (final QueuedFrame frame : queue) {
+            if (queuedBytes.get() <= targetBytes) {
+                break;
+            }
 
-                if (!isListenerSet) {
-                    isListenerSet = true;
-                    servletOutputStream.setWriteListener(this);
+            if (frame.droppable && frame.claim()) {
+                forget(frame);
+                queuedFrames.decrementAndGet();
+                queuedBytes.addAndGet(-frame.size);
+                countDropped();
+                if (frame.completionHandler != null) {
+                    frame.completionHandler.failed(dropped);
                 }
             }
-        } catch (Exception e) {
-            completionHandler.failed(e);
+        }
+
+        if (!writable) {
+            updateWritability();
         }
     }
 
-    private void _write(ByteBuffer buffer, CompletionHandler<ByteBuffer> completionHandler) {
+    /**
+     * Drops the queued messages and closes the session with a policy violation code. If the close frame can't be
+     * written, the connection is closed after a grace period.
+     */
+    private void closeSlowConsumer() {
+        final Session target = session;
+        if (target == null || !slowConsumerClosed.compareAndSet(false, true)) {
+            return;
+        }
 
-        try {
-            if (buffer.hasArray()) {
-                byte[] array = buffer.array();
-                servletOutputStream.write(array, buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        LOGGER.log(Level.FINE, "Closing slow consumer session {0} ({1} bytes queued)",
+                new Object[] { target.getId(), queuedBytes.get() });
+        dropQueued(-1);
+
+        final Runnable closeSession = () -> {
+            try {
+                target.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "Slow consumer"));
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Error closing slow consumer session", e);
+            }
+        };
+        if (scheduler != null) {
+            // Don't close from a sending thread, which may hold the lock of the Tyrus protocol handler
+            scheduler.execute(closeSession);
+            scheduler.schedule(this::close, SLOW_CONSUMER_CLOSE_GRACE_SECONDS, TimeUnit.SECONDS);
+        } else {
+            closeSession.run();
+        }
+    }
+
+    /**
+     * Replaces the outbound settings, when the endpoint of the connection is known, i.e. before any frame is queued
+     *
+     * @param options outbound settings of the endpoint
+     */
+    void setOptions(OutboundOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Sets the policy applied to new messages while the writer isn't writable
+     *
+     * @param policy  slow consumer policy, or null to only apply the queue limit
+     * @param session session to close with the {@link SlowConsumerPolicy#CLOSE} policy
+     */
+    void setSlowConsumerPolicy(SlowConsumerPolicy policy, Session session) {
+        this.session = session;
+        this.slowConsumerPolicy = policy;
+    }
+
+    SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Runs a callback once the writer is writable: right away if it already is, else from the thread that drains the
+     * queue under the low watermark. The callback also runs if the connection fails, as its queue is then emptied.
+     *
+     * @param callback callback to run once, which must not block
+     */
+    void whenWritable(final Runnable callback) {
+        if (writable) {
+            callback.run();
+            return;
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final WritabilityListener listener = new WritabilityListener() {
+            @Override
+            public void writabilityChanged(boolean writable) {
+                if (writable && done.compareAndSet(false, true)) {
+                    removeWritabilityListener(this);
+                    callback.run();
+                }
+            }
+        };
+        addWritabilityListener(listener);
+
+        // The writer may have become writable before the listener was added
+        if (writable) {
+            listener.writabilityChanged(true);
+        }
+    }
+
+    private void countDropped() {
+        droppedFrames.increment();
+        final EndpointMetrics endpointMetrics = metrics;
+        if (endpointMetrics != null) {
+            endpointMetrics.frameDropped();
+        }
+    }
+
+    /**
+     * Returns the number of frames dropped by the slow consumer policy
+     */
+    long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    /**
+     * Returns the number of frames failed for exceeding the queue limit
+     */
+    long getRejectedFrames() {
+        return rejectedFrames.sum();
+    }
+
+    /**
+     * Sets the metrics of the endpoint of the connection, which record the time frames spend in the queue, count the
+     * frames that don't reach the client and sum the queues of the endpoint connections
+     *
+     * @param metrics endpoint metrics, or null to stop measuring
+     */
+    void setEndpointMetrics(EndpointMetrics metrics) {
+        final EndpointMetrics previous = this.metrics;
+        if (previous != null) {
+            previous.removeWriter(this);
+        }
+
+        this.metrics = metrics;
+        this.queueResidence = metrics != null ? metrics.getQueueResidence() : null;
+        if (metrics != null) {
+            metrics.addWriter(this);
+        }
+    }
+
+    /**
+     * Returns the number of frames waiting to be written
+     */
+    int getQueuedFrames() {
+        return queuedFrames.get();
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written
+     */
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Checks if the queue is under its high watermark
+     */
+    boolean isWritable() {
+        return writable;
+    }
+
+    void addWritabilityListener(final WritabilityListener listener) {
+        writabilityListeners.add(listener);
+    }
+
+    void removeWritabilityListener(final WritabilityListener listener) {
+        writabilityListeners.remove(listener);
+    }
+
+    /**
+     * Checks if frames must wait for the coalescing delay before being written
+     */
+    private boolean isDelayed() {
+        return scheduler != null && options.isCoalescing() && options.coalesceDelayMicros > 0;
+    }
+
+    private void onDrainDeadline() {
+        drainScheduled.set(false);
+        drain();
+    }
+
+    /**
+     * Updates the writability flag according to the watermarks and notifies listeners when it changed
+     */
+    private void updateWritability() {
+        final boolean newState;
+        synchronized (writabilityListeners) {
+            final long bytes = queuedBytes.get();
+            if (writable && bytes > options.highWatermark) {
+                newState = false;
+            } else if (!writable && bytes <= options.lowWatermark) {
+                newState = true;
             } else {
-                final int remaining = buffer.remaining();
-                final byte[] array = new byte[remaining];
-                buffer.get(array);
-                servletOutputStream.write(array);
+                return;
+            }
+            writable = newState;
+            if (newState) {
+                // Wake up blocked senders
+                writabilityListeners.notifyAll();
             }
+        }
 
-            servletOutputStream.flush();
+        LOGGER.log(Level.FINE, "Outbound queue writable={0} ({1} bytes queued)",
+                new Object[] { newState, queuedBytes.get() });
+        for (final WritabilityListener listener : writabilityListeners) {
+            try {
+                listener.writabilityChanged(newState);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error notifying writability listener", e);
+            }
+        }
+    }
 
-            if (completionHandler != null) {
-                completionHandler.completed(buffer);
+    /**
+     * Writes queued frames until the queue is empty or the stream isn't ready. Only one thread drains at a time:
+     * others only notify the current drainer that it has to loop once more.
+     */
+    private void drain() {
+        if (drainRequests.getAndIncrement() != 0) {
+            return;
+        }
+
+        drainingThread = Thread.currentThread();
+        int missed = 1;
+        do {
+            drainLoop();
+            missed = drainRequests.addAndGet(-missed);
+        } while (missed != 0);
+        drainingThread = null;
+
+        if (!writable) {
+            updateWritability();
+        }
+    }
+
+    private void drainLoop() {
+        try {
+            if (failure != null) {
+                failAll(failure);
+                return;
+            }
+
+            if (servletOutputStream == null) {
+                servletOutputStream = webConnection.getOutputStream();
+            }
+
+            if (!isListenerSet) {
+                // Switch to non-blocking mode: the container will call onWritePossible()
+                isListenerSet = true;
+                servletOutputStream.setWriteListener(this);
+                return;
+            }
+
+            while (servletOutputStream.isReady()) {
+                // Previous writes are over
+                completeInflight();
+
+                if (streamed != null) {
+                    writeChunk();
+                    needsFlush = true;
+                } else if (queue.isEmpty()) {
+                    if (!needsFlush) {
+                        return;
+                    }
+
+                    needsFlush = false;
+                    servletOutputStream.flush();
+                } else if (options.isCoalescing() && queuedFrames.get() > 1
+                        && queue.peek().size < options.coalesceBytes) {
+                    writeCoalesced();
+                    needsFlush = true;
+                } else {
+                    final QueuedFrame queuedFrame = queue.poll();
+                    if (queuedFrame.claim()) {
+                        forget(queuedFrame);
+                        queuedFrames.decrementAndGet();
+                        writeFrame(queuedFrame);
+                        needsFlush = true;
+                    }
+                }
             }
         } catch (Exception e) {
-            if (completionHandler != null) {
-                completionHandler.failed(e);
+            if (failure == null) {
+                failure = e;
+            }
+            failAll(e);
+        }
+    }
+
+    /**
+     * Gathers the frames at the head of the queue in a single write of at most {@link OutboundOptions#coalesceBytes}
+     * bytes.
+     *
+     * @throws IOException error writing to the stream
+     */
+    private void writeCoalesced() throws IOException {
+        final ByteBuffer batch = bufferPool.acquire(options.coalesceBytes);
+        inflightBatch = batch;
+
+        QueuedFrame head;
+        while ((head = queue.peek()) != null) {
+            if (!head.claim()) {
+                // Dropped
+                queue.poll();
+                continue;
+            }
+            if (head.size > batch.remaining()) {
+                // Written by the next cycle
+                head.unclaim();
+                break;
+            }
+            queue.poll();
+            forget(head);
+            queuedFrames.decrementAndGet();
+            batch.put(head.dataFrame.duplicate());
+            inflight.add(head);
+        }
+
+        servletOutputStream.write(batch.array(), batch.arrayOffset(), batch.position());
+    }
+
+    /**
+     * Writes a single frame. Frames backed by an accessible array are written as is. Other ones (direct or read-only
+     * buffers) are given to the native {@link ByteBuffer} write method of the stream when it has one, else they are
+     * streamed in chunks through pooled buffers.
+     *
+     * @param frame frame to write
+     * @throws IOException error writing to the stream
+     */
+    private void writeFrame(final QueuedFrame frame) throws IOException {
+        final ByteBuffer buffer = frame.dataFrame;
+        if (buffer.hasArray()) {
+            inflight.add(frame);
+            servletOutputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+
+        final MethodHandle bufferWrite = BUFFER_WRITE.get(servletOutputStream.getClass());
+        if (bufferWrite != null) {
+            inflight.add(frame);
+            try {
+                bufferWrite.invoke(servletOutputStream, buffer.duplicate());
+            } catch (IOException | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IOException(e);
             }
+            return;
+        }
+
+        streamed = frame;
+        streamedData = buffer.duplicate();
+        writeChunk();
+    }
+
+    /**
+     * Writes the next chunk of the frame being streamed, through a pooled buffer released once the stream is ready
+     * again.
+     *
+     * @throws IOException error writing to the stream
+     */
+    private void writeChunk() throws IOException {
+        final int length = Math.min(streamedData.remaining(), bufferPool.getMaxPooledSize());
+        final ByteBuffer chunk = bufferPool.acquire(length);
+        inflightBatch = chunk;
+
+        final int limit = streamedData.limit();
+        streamedData.limit(streamedData.position() + length);
+        chunk.put(streamedData);
+        streamedData.limit(limit);
+
+        if (!streamedData.hasRemaining()) {
+            // Last chunk: the frame will be completed with it
+            inflight.add(streamed);
+            streamed = null;
+            streamedData = null;
+        }
+
+        servletOutputStream.write(chunk.array(), chunk.arrayOffset(), chunk.position());
+    }
+
+    /**
+     * Notifies the senders of the frames the stream accepted
+     */
+    private void completeInflight() {
+        if (inflightBatch != null) {
+            bufferPool.release(inflightBatch);
+            inflightBatch = null;
+        }
+
+        if (inflight.isEmpty()) {
+            return;
+        }
+
+        final LatencyHistogram histogram = queueResidence;
+        final long now = histogram != null ? System.nanoTime() : 0;
+        for (final QueuedFrame frame : inflight) {
+            queuedBytes.addAndGet(-frame.size);
+            if (histogram != null && frame.queuedAt != 0) {
+                histogram.record(now - frame.queuedAt);
+            }
+            if (frame.completionHandler != null) {
+                frame.completionHandler.completed(frame.dataFrame);
+            }
+        }
+        inflight.clear();
+    }
+
+    /**
+     * Fails the frames being written, the queued ones and the ones waiting for the end of a fragmented message
+     */
+    private void failAll(final Throwable t) {
+        // The stream may still reference the batch: don't give it back to the pool
+        inflightBatch = null;
+
+        for (final QueuedFrame frame : inflight) {
+            queuedBytes.addAndGet(-frame.size);
+            if (frame.completionHandler != null) {
+                frame.completionHandler.failed(t);
+            }
+        }
+        inflight.clear();
+
+        if (streamed != null) {
+            queuedBytes.addAndGet(-streamed.size);
+            if (streamed.completionHandler != null) {
+                streamed.completionHandler.failed(t);
+            }
+            streamed = null;
+            streamedData = null;
+        }
+
+        QueuedFrame queuedFrame;
+        while ((queuedFrame = queue.poll()) != null) {
+            if (!queuedFrame.claim()) {
+                continue;
+            }
+            forget(queuedFrame);
+            queuedFrames.decrementAndGet();
+            queuedBytes.addAndGet(-queuedFrame.size);
+            if (queuedFrame.completionHandler != null) {
+                queuedFrame.completionHandler.failed(t);
+            }
+        }
+
+        // The fragmented message won't be finished: later frames are queued, then failed by the drainer
+        final List<QueuedFrame> orphans;
+        synchronized (sendLock) {
+            fragmenting = false;
+            if (deferred.isEmpty()) {
+                return;
+            }
+            orphans = new ArrayList<>(deferred);
+            deferred.clear();
+        }
+
+        for (final QueuedFrame orphan : orphans) {
+            fail(orphan, t);
         }
     }
 
@@ -162,4 +1173,11 @@ class TyrusServletWriter extends Writer implements WriteListener {
             // do nothing.
         }
     }
+
+    @Override
+    public String toString() {
+        return "TyrusServletWriter{queuedFrames=" + queuedFrames.get() + ", queuedBytes=" + queuedBytes.get()
+                + ", writable=" + writable + ", droppedFrames=" + droppedFrames.sum() + ", rejectedFrames="
+                + rejectedFrames.sum() + ", conflatedFrames=" + conflatedFrames.sum() + "}";
+    }
 }
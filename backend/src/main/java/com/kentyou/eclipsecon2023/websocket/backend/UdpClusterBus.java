@@ -0,0 +1,203 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link ClusterBus} sending its batches to a static list of peers over UDP.
+ * <p>
+ * Each node uses a single datagram socket, whatever the number of peers and sessions: a batch is sent as one
+ * datagram per peer. Datagrams can be lost, so this bus suits messages that are superseded by later ones, like state
+ * updates, rather than messages that must be delivered exactly once.
+ * <p>
+ * Datagrams are only accepted from the configured peers, by source address and port: others are dropped. The socket
+ * is bound to the loopback address by default, and must be bound to an address reachable by the peers to form a
+ * cluster of several hosts. The network between the nodes must be trusted, as batches aren't authenticated.
+ * <p>
+ * The component is only activated once configured.
+ */
+@Component(service = ClusterBus.class, configurationPid = UdpClusterBus.PID, configurationPolicy = ConfigurationPolicy.REQUIRE)
+public class UdpClusterBus extends AbstractClusterBus {
+
+	static final String PID = "com.kentyou.eclipsecon2023.websocket.cluster.udp";
+
+	private static final Logger logger = LoggerFactory.getLogger(UdpClusterBus.class);
+
+	/**
+	 * Largest payload of a UDP datagram
+	 */
+	private static final int MAX_DATAGRAM_SIZE = 65507;
+
+	/**
+	 * Bus configuration
+	 */
+	public @interface Config {
+		/**
+		 * ID of this node, unique in the cluster (random if empty)
+		 */
+		String node_id() default "";
+
+		/**
+		 * Address the socket is bound to, also the source address of the datagrams sent to the peers
+		 */
+		String bind_address() default "127.0.0.1";
+
+		/**
+		 * Port the socket is bound to
+		 */
+		int port() default 7800;
+
+		/**
+		 * Addresses of the other nodes, as host:port: datagrams from other addresses are dropped
+		 */
+		String[] peers() default {};
+
+		/**
+		 * Time, in milliseconds, messages are kept to be batched and de-duplicated before being sent
+		 */
+		long tick_ms() default 20;
+
+		/**
+		 * Maximum size of a datagram, in bytes: messages that don't fit in a datagram on their own are dropped
+		 */
+		int max_datagram_size() default 60000;
+
+		/**
+		 * Maximum number of messages kept between two ticks before sending them right away
+		 */
+		int max_batch_messages() default DEFAULT_MAX_BATCH_MESSAGES;
+	}
+
+	private final DatagramChannel channel;
+
+	private final List<InetSocketAddress> peers = new ArrayList<>();
+
+	/**
+	 * Resolved addresses of the peers, the only sources datagrams are accepted from
+	 */
+	private final Set<InetSocketAddress> peerAddresses = new HashSet<>();
+
+	private final LongAdder droppedDatagrams = new LongAdder();
+
+	private final int maxDatagramSize;
+
+	private final Thread receiverThread;
+
+	@Activate
+	public UdpClusterBus(final Config config) throws IOException {
+		super(config.node_id().isEmpty() ? UUID.randomUUID().toString() : config.node_id(),
+				config.max_batch_messages());
+		this.maxDatagramSize = Math.min(MAX_DATAGRAM_SIZE, Math.max(512, config.max_datagram_size()));
+
+		for (final String peer : config.peers()) {
+			final int separator = peer.lastIndexOf(':');
+			if (separator <= 0) {
+				throw new IllegalArgumentException("Invalid peer address, expected host:port: " + peer);
+			}
+			final InetSocketAddress address = new InetSocketAddress(peer.substring(0, separator).trim(),
+					Integer.parseInt(peer.substring(separator + 1).trim()));
+			if (address.isUnresolved()) {
+				throw new IllegalArgumentException("Unknown peer host: " + peer);
+			}
+			peers.add(address);
+			peerAddresses.add(address);
+		}
+
+		final InetSocketAddress bindAddress = new InetSocketAddress(config.bind_address(), config.port());
+		if (bindAddress.getAddress() != null && bindAddress.getAddress().isLoopbackAddress()
+				&& peers.stream().anyMatch(peer -> !peer.getAddress().isLoopbackAddress())) {
+			logger.warn("Cluster socket bound to the loopback address {}: remote peers can't be reached",
+					config.bind_address());
+		}
+
+		channel = DatagramChannel.open();
+		channel.bind(bindAddress);
+
+		receiverThread = new Thread(this::receiveLoop, "websocket-cluster-udp");
+		receiverThread.setDaemon(true);
+		receiverThread.start();
+		start(config.tick_ms());
+
+		logger.info("Cluster node {} listening on {} with {} peer(s)", getNodeId(), channel.getLocalAddress(),
+				peers.size());
+	}
+
+	@Deactivate
+	void deactivate() throws InterruptedException {
+		stop();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.debug("Error closing the cluster socket", e);
+		}
+		receiverThread.join(1000);
+	}
+
+	@Override
+	protected int getMaxBatchSize() {
+		return maxDatagramSize;
+	}
+
+	@Override
+	protected void transmit(final ByteBuffer batch) throws IOException {
+		for (final InetSocketAddress peer : peers) {
+			channel.send(batch.duplicate(), peer);
+		}
+	}
+
+	/**
+	 * Number of datagrams dropped because they weren't sent by a peer
+	 */
+	public long getDroppedDatagrams() {
+		return droppedDatagrams.sum();
+	}
+
+	private void receiveLoop() {
+		final ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+		while (channel.isOpen()) {
+			try {
+				buffer.clear();
+				final SocketAddress source = channel.receive(buffer);
+				if (!peerAddresses.contains(source)) {
+					droppedDatagrams.increment();
+					logger.debug("Dropping a datagram from {}, which isn't a peer", source);
+					continue;
+				}
+				receive(buffer.flip());
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				logger.warn("Error receiving a cluster batch", e);
+			}
+		}
+	}
+}
@@ -12,9 +12,17 @@
 **********************************************************************/
 package com.kentyou.eclipsecon2023.websocket.backend;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.glassfish.tyrus.core.TyrusWebSocketEngine;
+import org.glassfish.tyrus.core.monitoring.ApplicationEventListener;
 import org.glassfish.tyrus.server.TyrusServerContainer;
 import org.glassfish.tyrus.spi.WebSocketEngine;
 
@@ -23,16 +31,49 @@ import jakarta.websocket.server.ServerEndpointConfig;
 
 public class WSServerContainer extends TyrusServerContainer {
 
-    private final TyrusWebSocketEngine engine;
+    private static final Logger LOGGER = Logger.getLogger(WSServerContainer.class.getName());
+
+    /**
+     * Interval between two removals of the admission buckets of remote addresses that are full again
+     */
+    private static final long ADMISSION_SWEEP_SECONDS = 10;
+
+    private volatile TyrusWebSocketEngine engine;
     private final String contextPath;
     private final TyrusServletUpgrade tyrusServletUpgrade;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final HeartbeatWheel heartbeatWheel;
+    private final ApplicationEventListener applicationEventListener;
+
+    /**
+     * Endpoints registered in the engine, either as {@link Class} or as {@link ServerEndpointConfig}, in registration
+     * order. Guarded by {@code this}.
+     */
+    private final Set<Object> registered = new LinkedHashSet<>();
 
-    public WSServerContainer(final String contextPath) {
+    public WSServerContainer(final String contextPath, final ByteBufferPool bufferPool,
+            final OutboundOptions outboundOptions, final ApplicationEventListener applicationEventListener,
+            final HandshakeAdmission admission) {
         super(Set.of());
 
         this.contextPath = contextPath;
-        this.engine = TyrusWebSocketEngine.builder(this).build();
-        this.tyrusServletUpgrade = new TyrusServletUpgrade(engine);
+        this.applicationEventListener = applicationEventListener;
+        this.engine = buildEngine();
+        this.scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread thread = new Thread(r, "websocket-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.heartbeatWheel = new HeartbeatWheel(HeartbeatWheel.DEFAULT_TICK_MILLIS, HeartbeatWheel.DEFAULT_WHEEL_SIZE);
+        this.heartbeatWheel.start(scheduler);
+        final HandshakeAdmission activeAdmission = admission != null && admission.isEnabled() ? admission : null;
+        if (activeAdmission != null) {
+            this.scheduler.scheduleWithFixedDelay(activeAdmission::sweep, ADMISSION_SWEEP_SECONDS,
+                    ADMISSION_SWEEP_SECONDS, TimeUnit.SECONDS);
+        }
+        this.tyrusServletUpgrade = new TyrusServletUpgrade(engine, bufferPool, outboundOptions, scheduler,
+                heartbeatWheel, activeAdmission);
     }
 
     @Override
@@ -47,16 +88,63 @@ public class WSServerContainer extends TyrusServerContainer {
     @Override
     public void stop() {
         tyrusServletUpgrade.stop();
+        heartbeatWheel.stop();
+        scheduler.shutdownNow();
         super.stop();
     }
 
     @Override
-    public void register(Class<?> endpointClass) throws DeploymentException {
+    public synchronized void register(Class<?> endpointClass) throws DeploymentException {
         engine.register(endpointClass, contextPath);
+        registered.add(endpointClass);
     }
 
     @Override
-    public void register(ServerEndpointConfig serverEndpointConfig) throws DeploymentException {
+    public synchronized void register(ServerEndpointConfig serverEndpointConfig) throws DeploymentException {
         engine.register(serverEndpointConfig, contextPath);
+        registered.add(serverEndpointConfig);
+    }
+
+    /**
+     * Removes an endpoint from the running container.
+     * <p>
+     * Tyrus can only unregister an endpoint using its internal wrapper, so a new engine is built with the remaining
+     * endpoints and swapped in for the next upgrades. Established connections keep working on the engine they were
+     * upgraded with: it is up to the caller to close the sessions of the removed endpoint.
+     *
+     * @param serverEndpointConfig Configuration given to {@link #register(ServerEndpointConfig)}
+     * @return True if the endpoint was registered
+     */
+    public synchronized boolean unregister(ServerEndpointConfig serverEndpointConfig) {
+        if (!registered.remove(serverEndpointConfig)) {
+            return false;
+        }
+
+        final TyrusWebSocketEngine newEngine = buildEngine();
+        final List<Object> endpoints = new ArrayList<>(registered);
+        for (final Object endpoint : endpoints) {
+            try {
+                if (endpoint instanceof ServerEndpointConfig) {
+                    newEngine.register((ServerEndpointConfig) endpoint, contextPath);
+                } else {
+                    newEngine.register((Class<?>) endpoint, contextPath);
+                }
+            } catch (DeploymentException e) {
+                // Was valid in the previous engine: shouldn't happen
+                registered.remove(endpoint);
+                LOGGER.log(Level.WARNING, "Error registering endpoint again: " + endpoint, e);
+            }
+        }
+
+        engine = newEngine;
+        tyrusServletUpgrade.setEngine(newEngine);
+        if (applicationEventListener != null) {
+            applicationEventListener.onEndpointUnregistered(serverEndpointConfig.getPath());
+        }
+        return true;
+    }
+
+    private TyrusWebSocketEngine buildEngine() {
+        return TyrusWebSocketEngine.builder(this).applicationEventListener(applicationEventListener).build();
     }
 }
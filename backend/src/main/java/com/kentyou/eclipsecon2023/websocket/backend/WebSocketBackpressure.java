@@ -0,0 +1,109 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import org.osgi.service.component.annotations.Component;
+
+import jakarta.websocket.Session;
+
+/**
+ * Outbound backpressure of the sessions, so that endpoints can stop producing messages for a client that doesn't
+ * read them.
+ * <p>
+ * A session is writable while its outbound queue is under its high watermark. Once it went over, it becomes writable
+ * again when the queue goes back under its low watermark. Messages sent in between are handled according to the
+ * {@link SlowConsumerPolicy} of the endpoint, given by its {@code websocket.slow.consumer} service property.
+ * <p>
+ * Sessions not opened through the servlet container of this bundle are always considered writable while open.
+ */
+@Component(service = WebSocketBackpressure.class)
+public class WebSocketBackpressure {
+
+	/**
+	 * Checks if the session can be sent messages without being subject to its slow consumer policy
+	 *
+	 * @param session Session given to the endpoint
+	 * @return True if the outbound queue of the session is under its high watermark
+	 */
+	public boolean isWritable(final Session session) {
+		final TyrusServletWriter writer = getWriter(session);
+		return writer != null ? writer.isWritable() : session.isOpen();
+	}
+
+	/**
+	 * Returns the number of bytes waiting to be written to the client
+	 *
+	 * @param session Session given to the endpoint
+	 * @return The number of pending bytes (0 if unknown)
+	 */
+	public long getPendingBytes(final Session session) {
+		final TyrusServletWriter writer = getWriter(session);
+		return writer != null ? writer.getQueuedBytes() : 0;
+	}
+
+	/**
+	 * Returns the number of frames waiting to be written to the client
+	 *
+	 * @param session Session given to the endpoint
+	 * @return The number of pending frames (0 if unknown)
+	 */
+	public int getPendingFrames(final Session session) {
+		final TyrusServletWriter writer = getWriter(session);
+		return writer != null ? writer.getQueuedFrames() : 0;
+	}
+
+	/**
+	 * Returns the number of frames sent to the session that never reached the client: dropped by its slow consumer
+	 * policy or failed for exceeding its queue limit
+	 *
+	 * @param session Session given to the endpoint
+	 * @return The number of lost frames (0 if unknown)
+	 */
+	public long getLostFrames(final Session session) {
+		final TyrusServletWriter writer = getWriter(session);
+		return writer != null ? writer.getDroppedFrames() + writer.getRejectedFrames() : 0;
+	}
+
+	/**
+	 * Returns the policy applied to the messages sent to the session while it isn't writable
+	 *
+	 * @param session Session given to the endpoint
+	 * @return The slow consumer policy, or null if only the queue limit applies
+	 */
+	public SlowConsumerPolicy getSlowConsumerPolicy(final Session session) {
+		final TyrusServletWriter writer = getWriter(session);
+		return writer != null ? writer.getSlowConsumerPolicy() : null;
+	}
+
+	/**
+	 * Runs a callback once the session is writable: right away if it already is, else from the thread that drained
+	 * its outbound queue. The callback also runs if the connection fails: sending from it then fails too.
+	 * <p>
+	 * The callback must not block, and should hand over to the producer of the messages.
+	 *
+	 * @param session  Session given to the endpoint
+	 * @param callback Callback to run once
+	 */
+	public void whenWritable(final Session session, final Runnable callback) {
+		final TyrusServletWriter writer = getWriter(session);
+		if (writer != null) {
+			writer.whenWritable(callback);
+		} else {
+			callback.run();
+		}
+	}
+
+	private static TyrusServletWriter getWriter(final Session session) {
+		return (TyrusServletWriter) session.getUserProperties().get(WebSocketBroadcaster.WRITER_PROPERTY);
+	}
+}
@@ -0,0 +1,408 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.glassfish.tyrus.spi.CompletionHandler;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.websocket.Extension;
+import jakarta.websocket.Session;
+
+/**
+ * Sends a message to all the sessions of an endpoint path, or to a filtered subset of them.
+ * <p>
+ * The message is encoded and framed once: the same read-only frame buffer is queued in the writer of each target
+ * session. Sessions with negotiated extensions (e.g. compression) need their own frame and get the message through
+ * their asynchronous remote endpoint.
+ * <p>
+ * Broadcast frames are queued as whole frames, ordered with the frames sent by Tyrus: a broadcast frame waits for the
+ * end of the fragmented message the session may be sending, and sessions whose close frame has been queued are
+ * skipped.
+ * <p>
+ * State updates can be sent with a key, e.g. the ID of the updated entity: on endpoints with the
+ * {@code websocket.conflate} service property set to true, a keyed message replaces the queued message with the same
+ * key that wasn't written yet, so that slow clients only get the latest value of each key. Sessions compressing
+ * messages with context takeover don't conflate them, as each compressed message depends on the previous ones.
+ * <p>
+ * When a {@link ClusterBus} is available, messages sent to an endpoint path without filter and pushes are also
+ * forwarded to the other nodes, which send them to their own matching sessions. Messages sent to given sessions or
+ * through a filter only reach the sessions of this node. Returned counts only include the sessions of this node.
+ */
+@Component(service = WebSocketBroadcaster.class)
+public class WebSocketBroadcaster {
+
+	private static final Logger logger = LoggerFactory.getLogger(WebSocketBroadcaster.class);
+
+	/**
+	 * Session user property holding the writer of the session connection
+	 */
+	static final String WRITER_PROPERTY = "osgi.ws.writer";
+
+	private static final byte OPCODE_TEXT = 0x1;
+	private static final byte OPCODE_BINARY = 0x2;
+
+	/**
+	 * Logs the frames that couldn't be written
+	 */
+	private static final CompletionHandler<ByteBuffer> COMPLETION = new CompletionHandler<ByteBuffer>() {
+		@Override
+		public void failed(Throwable throwable) {
+			logger.debug("Broadcast frame not sent: {}", throwable.getMessage());
+		}
+	};
+
+	/**
+	 * Open sessions
+	 */
+	@Reference
+	private WebSocketSessionRegistry registry;
+
+	/**
+	 * Bus forwarding messages to the other nodes (null if not clustered)
+	 */
+	private volatile ClusterBus clusterBus;
+
+	@Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC, policyOption = ReferencePolicyOption.GREEDY)
+	void bindClusterBus(final ClusterBus bus) {
+		bus.setReceiver(this::deliver);
+		clusterBus = bus;
+		logger.info("Forwarding messages to the cluster as node {}", bus.getNodeId());
+	}
+
+	void unbindClusterBus(final ClusterBus bus) {
+		bus.setReceiver(null);
+		if (clusterBus == bus) {
+			clusterBus = null;
+		}
+	}
+
+	/**
+	 * Sends a text message to all the sessions of an endpoint
+	 *
+	 * @param path Endpoint path, as registered
+	 * @param text Message to send
+	 * @return The number of sessions the message was queued for
+	 */
+	public int broadcast(final String path, final String text) {
+		return broadcast(path, text, null);
+	}
+
+	/**
+	 * Sends a text message to the sessions of an endpoint accepted by the given filter
+	 *
+	 * @param path   Endpoint path, as registered
+	 * @param text   Message to send
+	 * @param filter Session filter (null to target all sessions)
+	 * @return The number of sessions the message was queued for
+	 */
+	public int broadcast(final String path, final String text, final Predicate<Session> filter) {
+		if (filter == null) {
+			forward(ClusterMessage.Target.PATH, path, null, text, null);
+		}
+		return send(registry.getSessionsByPath(path), OPCODE_TEXT, null, text, filter);
+	}
+
+	/**
+	 * Sends a binary message to all the sessions of an endpoint
+	 *
+	 * @param path Endpoint path, as registered
+	 * @param data Message to send (its position isn't modified)
+	 * @return The number of sessions the message was queued for
+	 */
+	public int broadcast(final String path, final ByteBuffer data) {
+		return broadcast(path, data, null);
+	}
+
+	/**
+	 * Sends a binary message to the sessions of an endpoint accepted by the given filter
+	 *
+	 * @param path   Endpoint path, as registered
+	 * @param data   Message to send (its position isn't modified)
+	 * @param filter Session filter (null to target all sessions)
+	 * @return The number of sessions the message was queued for
+	 */
+	public int broadcast(final String path, final ByteBuffer data, final Predicate<Session> filter) {
+		if (filter == null) {
+			forward(ClusterMessage.Target.PATH, path, null, null, data);
+		}
+		return send(registry.getSessionsByPath(path), OPCODE_BINARY, data, null, filter);
+	}
+
+	/**
+	 * Sends a text message to the given sessions, e.g. the sessions of a user found in the
+	 * {@link WebSocketSessionRegistry}
+	 *
+	 * @param sessions Target sessions
+	 * @param text     Message to send
+	 * @return The number of sessions the message was queued for
+	 */
+	public int broadcast(final Collection<Session> sessions, final String text) {
+		return send(sessions, OPCODE_TEXT, null, text, null);
+	}
+
+	/**
+	 * Sends a binary message to the given sessions, e.g. the sessions of a user found in the
+	 * {@link WebSocketSessionRegistry}
+	 *
+	 * @param sessions Target sessions
+	 * @param data     Message to send (its position isn't modified)
+	 * @return The number of sessions the message was queued for
+	 */
+	public int broadcast(final Collection<Session> sessions, final ByteBuffer data) {
+		return send(sessions, OPCODE_BINARY, data, null, null);
+	}
+
+	/**
+	 * Sends the latest value of a key as a text message to all the sessions of an endpoint
+	 *
+	 * @param path Endpoint path, as registered
+	 * @param key  Conflation key of the message
+	 * @param text Message to send
+	 * @return The number of sessions the message was queued for
+	 */
+	public int broadcastLatest(final String path, final Object key, final String text) {
+		forward(ClusterMessage.Target.PATH, path, key, text, null);
+		return send(registry.getSessionsByPath(path), OPCODE_TEXT, null, text, null, key);
+	}
+
+	/**
+	 * Sends the latest value of a key as a binary message to all the sessions of an endpoint
+	 *
+	 * @param path Endpoint path, as registered
+	 * @param key  Conflation key of the message
+	 * @param data Message to send (its position isn't modified)
+	 * @return The number of sessions the message was queued for
+	 */
+	public int broadcastLatest(final String path, final Object key, final ByteBuffer data) {
+		forward(ClusterMessage.Target.PATH, path, key, null, data);
+		return send(registry.getSessionsByPath(path), OPCODE_BINARY, data, null, null, key);
+	}
+
+	/**
+	 * Sends the latest value of a key as a text message to the given sessions
+	 *
+	 * @param sessions Target sessions
+	 * @param key      Conflation key of the message
+	 * @param text     Message to send
+	 * @return The number of sessions the message was queued for
+	 */
+	public int broadcastLatest(final Collection<Session> sessions, final Object key, final String text) {
+		return send(sessions, OPCODE_TEXT, null, text, null, key);
+	}
+
+	/**
+	 * Sends the latest value of a key as a binary message to the given sessions
+	 *
+	 * @param sessions Target sessions
+	 * @param key      Conflation key of the message
+	 * @param data     Message to send (its position isn't modified)
+	 * @return The number of sessions the message was queued for
+	 */
+	public int broadcastLatest(final Collection<Session> sessions, final Object key, final ByteBuffer data) {
+		return send(sessions, OPCODE_BINARY, data, null, null, key);
+	}
+
+	/**
+	 * Sends a text message to the sessions of a user, of a tag or to a single session, on all the nodes
+	 *
+	 * @param target Kind of the target sessions
+	 * @param name   Principal name, tag or session ID
+	 * @param text   Message to send
+	 * @return The number of sessions of this node the message was queued for
+	 */
+	public int push(final ClusterMessage.Target target, final String name, final String text) {
+		forward(target, name, null, text, null);
+		return send(lookup(target, name), OPCODE_TEXT, null, text, null);
+	}
+
+	/**
+	 * Sends a binary message to the sessions of a user, of a tag or to a single session, on all the nodes
+	 *
+	 * @param target Kind of the target sessions
+	 * @param name   Principal name, tag or session ID
+	 * @param data   Message to send (its position isn't modified)
+	 * @return The number of sessions of this node the message was queued for
+	 */
+	public int push(final ClusterMessage.Target target, final String name, final ByteBuffer data) {
+		forward(target, name, null, null, data);
+		return send(lookup(target, name), OPCODE_BINARY, data, null, null);
+	}
+
+	/**
+	 * Returns the sessions of this node matching a target
+	 */
+	private Collection<Session> lookup(final ClusterMessage.Target target, final String name) {
+		switch (target) {
+		case PATH:
+			return registry.getSessionsByPath(name);
+		case PRINCIPAL:
+			return registry.getSessionsByPrincipal(name);
+		case TAG:
+			return registry.getSessionsByTag(name);
+		case SESSION:
+		default:
+			final Session session = registry.getSession(name);
+			return session != null ? List.of(session) : List.of();
+		}
+	}
+
+	/**
+	 * Forwards a message to the other nodes, if clustered
+	 */
+	private void forward(final ClusterMessage.Target target, final String name, final Object key, final String text,
+			final ByteBuffer data) {
+		final ClusterBus bus = clusterBus;
+		if (bus == null) {
+			return;
+		}
+
+		final String clusterKey = key != null ? key.toString() : null;
+		if (text != null) {
+			bus.publish(ClusterMessage.text(target, name, clusterKey, text));
+		} else {
+			final byte[] bytes = new byte[data.remaining()];
+			data.duplicate().get(bytes);
+			bus.publish(ClusterMessage.binary(target, name, clusterKey, bytes));
+		}
+	}
+
+	/**
+	 * Sends a message received from another node to the matching sessions of this node
+	 */
+	private void deliver(final ClusterMessage message) {
+		final Collection<Session> sessions = lookup(message.getTarget(), message.getName());
+		if (message.isText()) {
+			send(sessions, OPCODE_TEXT, null, message.getText(), null, message.getKey());
+		} else {
+			send(sessions, OPCODE_BINARY, ByteBuffer.wrap(message.getData()), null, null, message.getKey());
+		}
+	}
+
+	private int send(final Collection<Session> sessions, final byte opcode, final ByteBuffer data, final String text,
+			final Predicate<Session> filter) {
+		return send(sessions, opcode, data, text, filter, null);
+	}
+
+	/**
+	 * Queues the message for the target sessions. The frame is only built if at least one session can share it.
+	 */
+	private int send(final Collection<Session> sessions, final byte opcode, final ByteBuffer data, final String text,
+			final Predicate<Session> filter, final Object key) {
+		if (sessions.isEmpty()) {
+			return 0;
+		}
+
+		// Keys are compared as strings, like the keys of messages received from other nodes
+		final String conflationKey = key != null ? key.toString() : null;
+
+		ByteBuffer frame = null;
+		int payloadLength = 0;
+		int count = 0;
+		for (final Session session : sessions) {
+			if (!session.isOpen() || (filter != null && !filter.test(session))) {
+				continue;
+			}
+
+			final TyrusServletWriter writer = (TyrusServletWriter) session.getUserProperties().get(WRITER_PROPERTY);
+			if (writer == null || !session.getNegotiatedExtensions().isEmpty()) {
+				// Frame depends on the session
+				final Runnable sendAsync = () -> {
+					if (text != null) {
+						session.getAsyncRemote().sendText(text);
+					} else {
+						session.getAsyncRemote().sendBinary(data.duplicate());
+					}
+				};
+				if (conflationKey != null && writer != null && writer.isConflating() && canConflate(session)) {
+					// Tyrus writes the frame from this thread
+					TyrusServletWriter.withConflationKey(conflationKey, sendAsync);
+				} else {
+					sendAsync.run();
+				}
+			} else {
+				if (frame == null) {
+					final ByteBuffer payload = text != null ? ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8))
+							: data.duplicate();
+					payloadLength = payload.remaining();
+					frame = frame(opcode, payload);
+				}
+				if (!writer.writeMessage(frame.duplicate(), COMPLETION, conflationKey)) {
+					// Session closing
+					continue;
+				}
+
+				// Tyrus doesn't see this frame: count it here
+				final EndpointMetrics metrics = (EndpointMetrics) session.getUserProperties()
+						.get(EndpointMetrics.SESSION_PROPERTY);
+				if (metrics != null) {
+					metrics.messageSent(payloadLength);
+				}
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Checks if the messages sent to a session don't depend on the previous ones, i.e. if its extensions are limited
+	 * to permessage-deflate without server context takeover
+	 */
+	private static boolean canConflate(final Session session) {
+		for (final Extension extension : session.getNegotiatedExtensions()) {
+			if (!PerMessageDeflate.NAME.equals(extension.getName()) || extension.getParameters().stream()
+					.noneMatch(p -> PerMessageDeflate.SERVER_NO_CONTEXT_TAKEOVER.equals(p.getName()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Builds a final, unmasked, server frame (RFC 6455, section 5.2)
+	 *
+	 * @param opcode  Frame opcode
+	 * @param payload Frame payload (consumed)
+	 * @return A read-only buffer holding the frame
+	 */
+	static ByteBuffer frame(final byte opcode, final ByteBuffer payload) {
+		final int length = payload.remaining();
+		final int headerLength = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+
+		final ByteBuffer frame = ByteBuffer.allocate(headerLength + length);
+		frame.put((byte) (0x80 | opcode));
+		if (length < 126) {
+			frame.put((byte) length);
+		} else if (length <= 0xFFFF) {
+			frame.put((byte) 126);
+			frame.putShort((short) length);
+		} else {
+			frame.put((byte) 127);
+			frame.putLong(length);
+		}
+		frame.put(payload);
+		frame.flip();
+		return frame.asReadOnlyBuffer();
+	}
+}
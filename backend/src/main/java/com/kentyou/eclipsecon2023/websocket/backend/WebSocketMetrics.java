@@ -0,0 +1,280 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.glassfish.tyrus.core.monitoring.ApplicationEventListener;
+import org.glassfish.tyrus.core.monitoring.EndpointEventListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metrics of the WebSocket endpoints, by endpoint path.
+ * <p>
+ * This service is given to the Tyrus engine as its {@link ApplicationEventListener}. The metrics of each endpoint
+ * path are also registered in the platform MBean server, as
+ * {@code com.kentyou.eclipsecon2023.websocket:type=Endpoint,path="..."}, the counters of the admission control of
+ * the upgrade requests as {@code com.kentyou.eclipsecon2023.websocket:type=Admission} and those of the shared buffer
+ * pool as {@code com.kentyou.eclipsecon2023.websocket:type=BufferPool}.
+ */
+@Component(service = WebSocketMetrics.class)
+public class WebSocketMetrics implements ApplicationEventListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(WebSocketMetrics.class);
+
+	static final String JMX_DOMAIN = "com.kentyou.eclipsecon2023.websocket";
+
+	private static final ObjectName ADMISSION_NAME = objectName("Admission");
+
+	private static final ObjectName BUFFER_POOL_NAME = objectName("BufferPool");
+
+	/**
+	 * Endpoint path -&gt; metrics
+	 */
+	private final Map<String, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+
+	/**
+	 * Admission control of the upgrade requests (null if unknown)
+	 */
+	private volatile HandshakeAdmission admission;
+
+	/**
+	 * Buffer pool of the connections (null if unknown)
+	 */
+	private volatile ByteBufferPool bufferPool;
+
+	private MBeanServer mbeanServer;
+
+	@Activate
+	void activate() {
+		mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		endpoints.values().forEach(this::registerMBean);
+		final HandshakeAdmission current = admission;
+		if (current != null) {
+			registerMBean(current);
+		}
+		final ByteBufferPool currentPool = bufferPool;
+		if (currentPool != null) {
+			registerMBean(currentPool);
+		}
+	}
+
+	@Deactivate
+	void deactivate() {
+		endpoints.values().forEach(this::unregisterMBean);
+		if (admission != null) {
+			unregisterAdmissionMBean();
+		}
+		if (bufferPool != null) {
+			unregisterBufferPoolMBean();
+		}
+		mbeanServer = null;
+	}
+
+	/**
+	 * Returns the metrics of an endpoint path, creating them if necessary
+	 *
+	 * @param path Endpoint path, as registered
+	 */
+	public EndpointMetrics getEndpoint(final String path) {
+		return endpoints.computeIfAbsent(path, p -> {
+			final EndpointMetrics metrics = new EndpointMetrics(p);
+			registerMBean(metrics);
+			return metrics;
+		});
+	}
+
+	/**
+	 * Returns the metrics of all the known endpoint paths
+	 */
+	public Collection<EndpointMetrics> getEndpoints() {
+		return Collections.unmodifiableCollection(endpoints.values());
+	}
+
+	/**
+	 * Sets the admission control whose counters are published
+	 *
+	 * @param admission Admission control of the upgrade requests
+	 */
+	void setAdmission(final HandshakeAdmission admission) {
+		this.admission = admission;
+		registerMBean(admission);
+	}
+
+	/**
+	 * Stops publishing the counters of an admission control
+	 *
+	 * @param admission Admission control given to {@link #setAdmission(HandshakeAdmission)}
+	 */
+	void unsetAdmission(final HandshakeAdmission admission) {
+		if (this.admission == admission) {
+			this.admission = null;
+			unregisterAdmissionMBean();
+		}
+	}
+
+	/**
+	 * Returns the admission control whose counters are published, if any
+	 */
+	public HandshakeAdmissionMXBean getAdmission() {
+		return admission;
+	}
+
+	/**
+	 * Sets the buffer pool whose counters are published
+	 *
+	 * @param bufferPool Buffer pool of the connections
+	 */
+	void setBufferPool(final ByteBufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+		registerMBean(bufferPool);
+	}
+
+	/**
+	 * Stops publishing the counters of a buffer pool
+	 *
+	 * @param bufferPool Buffer pool given to {@link #setBufferPool(ByteBufferPool)}
+	 */
+	void unsetBufferPool(final ByteBufferPool bufferPool) {
+		if (this.bufferPool == bufferPool) {
+			this.bufferPool = null;
+			unregisterBufferPoolMBean();
+		}
+	}
+
+	/**
+	 * Returns the buffer pool whose counters are published, if any
+	 */
+	public ByteBufferPoolMXBean getBufferPool() {
+		return bufferPool;
+	}
+
+	@Override
+	public void onApplicationInitialized(String applicationName) {
+		// Nothing to do
+	}
+
+	@Override
+	public void onApplicationDestroyed() {
+		// Nothing to do
+	}
+
+	@Override
+	public EndpointEventListener onEndpointRegistered(String endpointPath, Class<?> endpointClass) {
+		return getEndpoint(endpointPath);
+	}
+
+	@Override
+	public void onEndpointUnregistered(String endpointPath) {
+		final EndpointMetrics metrics = endpoints.remove(endpointPath);
+		if (metrics != null) {
+			unregisterMBean(metrics);
+		}
+	}
+
+	private static ObjectName objectName(final String type) {
+		try {
+			return new ObjectName(JMX_DOMAIN + ":type=" + type);
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static ObjectName objectName(final EndpointMetrics metrics) throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=Endpoint,path=" + ObjectName.quote(metrics.getPath()));
+	}
+
+	private void registerMBean(final EndpointMetrics metrics) {
+		try {
+			registerMBean(objectName(metrics), metrics, EndpointMetricsMXBean.class);
+		} catch (JMException e) {
+			logger.warn("Error registering the metrics MBean of {}", metrics.getPath(), e);
+		}
+	}
+
+	private void registerMBean(final HandshakeAdmission admission) {
+		try {
+			registerMBean(ADMISSION_NAME, admission, HandshakeAdmissionMXBean.class);
+		} catch (JMException e) {
+			logger.warn("Error registering the admission control MBean", e);
+		}
+	}
+
+	private void registerMBean(final ByteBufferPool bufferPool) {
+		try {
+			registerMBean(BUFFER_POOL_NAME, bufferPool, ByteBufferPoolMXBean.class);
+		} catch (JMException e) {
+			logger.warn("Error registering the buffer pool MBean", e);
+		}
+	}
+
+	private void unregisterMBean(final EndpointMetrics metrics) {
+		try {
+			unregisterMBean(objectName(metrics));
+		} catch (JMException e) {
+			logger.warn("Error unregistering the metrics MBean of {}", metrics.getPath(), e);
+		}
+	}
+
+	private void unregisterAdmissionMBean() {
+		try {
+			unregisterMBean(ADMISSION_NAME);
+		} catch (JMException e) {
+			logger.warn("Error unregistering the admission control MBean", e);
+		}
+	}
+
+	private void unregisterBufferPoolMBean() {
+		try {
+			unregisterMBean(BUFFER_POOL_NAME);
+		} catch (JMException e) {
+			logger.warn("Error unregistering the buffer pool MBean", e);
+		}
+	}
+
+	/**
+	 * Registers an MXBean in the MBean server, if active, replacing the one registered with the same name
+	 */
+	private <T> void registerMBean(final ObjectName name, final T mbean, final Class<T> mbeanInterface)
+			throws JMException {
+		final MBeanServer server = mbeanServer;
+		if (server == null) {
+			return;
+		}
+
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(new StandardMBean(mbean, mbeanInterface, true), name);
+	}
+
+	private void unregisterMBean(final ObjectName name) throws JMException {
+		final MBeanServer server = mbeanServer;
+		if (server != null && server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+	}
+}
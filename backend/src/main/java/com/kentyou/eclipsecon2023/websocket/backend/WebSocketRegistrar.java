@@ -13,15 +13,24 @@
 package com.kentyou.eclipsecon2023.websocket.backend;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
+import org.glassfish.tyrus.core.AnnotatedEndpoint;
 import org.glassfish.tyrus.core.ComponentProviderService;
+import org.glassfish.tyrus.core.ErrorCollector;
 import org.glassfish.tyrus.core.TyrusServerEndpointConfigurator;
+import org.glassfish.tyrus.core.monitoring.EndpointEventListener;
 import org.osgi.framework.Constants;
 import org.osgi.service.component.AnyService;
+import org.osgi.service.component.ComponentServiceObjects;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
@@ -46,8 +55,11 @@ import jakarta.servlet.ServletResponse;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import jakarta.websocket.CloseReason;
 import jakarta.websocket.DeploymentException;
 import jakarta.websocket.Endpoint;
+import jakarta.websocket.Extension;
+import jakarta.websocket.Session;
 import jakarta.websocket.server.ServerContainer;
 import jakarta.websocket.server.ServerEndpoint;
 import jakarta.websocket.server.ServerEndpointConfig;
@@ -63,46 +75,227 @@ public class WebSocketRegistrar extends HttpServlet implements Filter {
 
 	private static final Logger logger = LoggerFactory.getLogger(WebSocketRegistrar.class);
 
+	/**
+	 * Registrar configuration
+	 */
+	public @interface Config {
+		/**
+		 * Policy applied to messages sent to a connection above its high watermark, unless an endpoint has a
+		 * {@code websocket.slow.consumer} service property: {@code block}, {@code drop-newest}, {@code drop-oldest}
+		 * or {@code close}
+		 */
+		String slow_consumer_policy() default "drop-newest";
+
+		/**
+		 * Negotiate permessage-deflate on endpoints without a {@code websocket.deflate} service property. Disabled by
+		 * default: compressed sessions get broadcast messages through their own frame instead of the shared one.
+		 */
+		boolean deflate_enabled() default false;
+
+		/**
+		 * Size, in bytes, under which messages are sent uncompressed, unless an endpoint has a
+		 * {@code websocket.deflate.min.size} service property
+		 */
+		int deflate_min_size() default 256;
+
+		/**
+		 * Compress each sent message on its own, so that connections only hold a deflater while sending
+		 */
+		boolean deflate_server_no_context_takeover() default true;
+
+		/**
+		 * Ask clients to compress each message on its own, so that connections only hold an inflater while reading
+		 */
+		boolean deflate_client_no_context_takeover() default true;
+
+		/**
+		 * Time without incoming data, in milliseconds, after which a session is pinged (0 to disable pings), unless
+		 * an endpoint has a {@code websocket.heartbeat.interval} service property
+		 */
+		long heartbeat_interval_ms() default 30000;
+
+		/**
+		 * Time, in milliseconds, a pinged session has to send data before being closed, unless an endpoint has a
+		 * {@code websocket.heartbeat.timeout} service property
+		 */
+		long heartbeat_timeout_ms() default 10000;
+
+		/**
+		 * Time without incoming data, pongs included, in milliseconds, after which a session is closed (0 to
+		 * disable), unless an endpoint has a {@code websocket.idle.timeout} service property
+		 */
+		long idle_timeout_ms() default 0;
+
+		/**
+		 * Upgrade requests per second admitted by the node (0 to disable)
+		 */
+		double admission_rate() default 1000;
+
+		/**
+		 * Upgrade requests admitted at once by the node after a quiet period
+		 */
+		int admission_burst() default 1000;
+
+		/**
+		 * Upgrade requests per second admitted per remote address (0 to disable). Disabled by default, as clients
+		 * behind a proxy or a NAT share an address.
+		 */
+		double admission_address_rate() default 0;
+
+		/**
+		 * Upgrade requests admitted at once per remote address after a quiet period
+		 */
+		int admission_address_burst() default 20;
+
+		/**
+		 * Maximum number of remote addresses tracked at once: other addresses are only limited by the node rate
+		 */
+		int admission_max_addresses() default 100000;
+
+		/**
+		 * Minimum Retry-After delay, in seconds, given to rejected clients
+		 */
+		int admission_retry_after_s() default 1;
+
+		/**
+		 * Maximum random delay, in seconds, added to the Retry-After delay, so that rejected clients don't retry all
+		 * at once
+		 */
+		int admission_retry_jitter_s() default 10;
+	}
+
 	private WSServerContainer serverContainer;
 
+	/**
+	 * Servlet context the container is published in
+	 */
+	private ServletContext servletContext;
+
 	private ComponentProviderService componentProviderService;
 
 	/**
-	 * Registered endpoints (service ID -&gt; config)
+	 * Component provider giving annotated endpoints the service instance of their session
+	 */
+	private SessionBoundComponentProvider sessionBoundProvider;
+
+	/**
+	 * Shared pool of the buffers connections read into and gather outbound frames in
+	 */
+	private final ByteBufferPool bufferPool;
+
+	/**
+	 * Registry of the open sessions
 	 */
-	private Map<Long, ServerEndpointConfig> webSocketConfigs = new HashMap<>();
+	private final WebSocketSessionRegistry sessionRegistry;
 
-	public WebSocketRegistrar() throws Exception {
+	/**
+	 * Endpoints metrics
+	 */
+	private final WebSocketMetrics metrics;
+
+	/**
+	 * Off-heap state of the sessions, freed when they are closed
+	 */
+	private final SessionStateStore stateStore;
+
+	/**
+	 * Buffers, queues and dispatch settings of the endpoints, looked up when sessions open
+	 */
+	private final WebSocketTuning tuning;
+
+	/**
+	 * Default slow consumer policy of the endpoints
+	 */
+	private final SlowConsumerPolicy slowConsumerPolicy;
+
+	/**
+	 * Negotiate permessage-deflate by default
+	 */
+	private boolean deflateEnabled;
+
+	/**
+	 * Default permessage-deflate extension of the endpoints, sharing the deflater pool
+	 */
+	private final PerMessageDeflate deflate;
+
+	/**
+	 * Default heartbeat settings of the endpoints
+	 */
+	private final HeartbeatOptions heartbeatOptions;
+
+	/**
+	 * Admission control of the upgrade requests
+	 */
+	private final HandshakeAdmission admission;
+
+	/**
+	 * Registered endpoints (service ID -&gt; config). The configuration holds the endpoint service objects, so that
+	 * proxies get their handler instance without looking up the service registry, and the endpoint open sessions.
+	 * Also used as lock for endpoints (un)registration.
+	 */
+	private final Map<Long, ServerEndpointConfig> webSocketConfigs = new LinkedHashMap<>();
+
+	/**
+	 * The configuration and the services used by the endpoint proxies are given to the constructor: endpoint services
+	 * are bound right after it, before the field references are set
+	 */
+	@Activate
+	public WebSocketRegistrar(final Config config, @Reference final DeflaterPool deflaterPool,
+			@Reference final WebSocketSessionRegistry sessionRegistry, @Reference final WebSocketMetrics metrics,
+			@Reference final SessionStateStore stateStore, @Reference final WebSocketTuning tuning,
+			@Reference final ByteBufferPool bufferPool) throws Exception {
+		this.sessionRegistry = sessionRegistry;
+		this.metrics = metrics;
+		this.stateStore = stateStore;
+		this.tuning = tuning;
+		this.bufferPool = bufferPool;
 		componentProviderService = runWithClassLoader(() -> {
 			return ComponentProviderService.create();
 		});
+		sessionBoundProvider = new SessionBoundComponentProvider(componentProviderService);
+
+		slowConsumerPolicy = SlowConsumerPolicy.parse(config.slow_consumer_policy());
+		deflateEnabled = config.deflate_enabled();
+		deflate = new PerMessageDeflate(deflaterPool, config.deflate_min_size(),
+				config.deflate_server_no_context_takeover(), config.deflate_client_no_context_takeover());
+		heartbeatOptions = new HeartbeatOptions(config.heartbeat_interval_ms(), config.heartbeat_timeout_ms(),
+				config.idle_timeout_ms());
+		admission = new HandshakeAdmission(config.admission_rate(), config.admission_burst(),
+				config.admission_address_rate(), config.admission_address_burst(), config.admission_max_addresses(),
+				config.admission_retry_after_s(), config.admission_retry_jitter_s());
 	}
 
 	/**
 	 * New websocket service registered
 	 */
-	@Reference(service = AnyService.class, target = "(&(websocket.server=*))", cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.STATIC, policyOption = ReferencePolicyOption.GREEDY)
-	void addServerEndpoint(final Object endpoint, final Map<String, Object> properties) {
+	@Reference(service = AnyService.class, target = "(&(websocket.server=*))", cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC, policyOption = ReferencePolicyOption.GREEDY)
+	void addServerEndpoint(final Object endpoint, final ComponentServiceObjects<Object> serviceObjects,
+			final Map<String, Object> properties) {
 		final Long svcId = (Long) properties.get(Constants.SERVICE_ID);
 		if (webSocketConfigs.containsKey(svcId)) {
-			System.err.println("Service already known: " + svcId + " / " + endpoint.getClass());
+			logger.warn("Service already known: {} / {}", svcId, endpoint.getClass());
 			return;
 		}
 
 		final Class<?> proxyClass;
 		final String path;
+		AnnotatedEndpoint annotatedEndpoint = null;
 
 		final ServerEndpoint annotation = endpoint.getClass().getAnnotation(ServerEndpoint.class);
 		if (annotation != null) {
 			// Got an annotated class
 			proxyClass = ComponentAnnotationProxyClass.class;
 			path = annotation.value();
+			annotatedEndpoint = analyzeAnnotatedEndpoint(endpoint.getClass(), svcId);
+			if (annotatedEndpoint == null) {
+				return;
+			}
 		} else if (Endpoint.class.isAssignableFrom(endpoint.getClass()) && properties.get("websocket.path") != null) {
 			// Got an endpoint class
 			proxyClass = ComponentEndpointProxyClass.class;
 			final Object rawPath = properties.get("websocket.path");
 			if (rawPath == null) {
-				System.out.println("ERROR: no path given for endpoint " + endpoint.getClass() + " / svc=" + svcId);
+				logger.error("No path given for endpoint {} / svc={}", endpoint.getClass(), svcId);
 				return;
 			}
 
@@ -112,27 +305,177 @@ public class WebSocketRegistrar extends HttpServlet implements Filter {
 			return;
 		}
 
-		webSocketConfigs.put(svcId, makeProxyConfig(proxyClass, path, svcId));
+		final ServerEndpointConfig config = makeProxyConfig(proxyClass, path, svcId, makeExtensions(properties));
+		config.getUserProperties().put("osgi.ws.service.objects", serviceObjects);
+		if (annotatedEndpoint != null) {
+			config.getUserProperties().put("osgi.ws.annotated.endpoint", annotatedEndpoint);
+			config.getUserProperties().put("osgi.ws.componentProvider", sessionBoundProvider);
+		}
+
+		try {
+			config.getUserProperties().put("osgi.ws.heartbeat", heartbeatOptions.withProperties(properties));
+		} catch (IllegalArgumentException e) {
+			logger.warn("Invalid heartbeat settings for endpoint {} / svc={}: {}", path, svcId, e.getMessage());
+			config.getUserProperties().put("osgi.ws.heartbeat", heartbeatOptions);
+		}
+
+		final Object policy = properties.get("websocket.slow.consumer");
+		try {
+			config.getUserProperties().put("osgi.ws.slow.consumer",
+					policy != null ? SlowConsumerPolicy.parse(policy.toString()) : slowConsumerPolicy);
+		} catch (IllegalArgumentException e) {
+			logger.warn("Invalid slow consumer policy for endpoint {} / svc={}: {}", path, svcId, e.getMessage());
+			config.getUserProperties().put("osgi.ws.slow.consumer", slowConsumerPolicy);
+		}
+
+		// Replace queued messages by newer ones with the same key
+		final Object conflate = properties.get("websocket.conflate");
+		config.getUserProperties().put("osgi.ws.conflate",
+				conflate != null && Boolean.parseBoolean(conflate.toString()));
+
+		final Object dispatch = properties.get("websocket.dispatch");
+		if ("virtual".equals(dispatch)) {
+			// Message handlers run on virtual threads, in order for each session
+			config.getUserProperties().put("osgi.ws.dispatch.executor", DispatchingSession.virtualThreadExecutor());
+		} else if (dispatch != null && !"inline".equals(dispatch)) {
+			logger.warn("Unknown dispatch mode '{}' for endpoint {} / svc={}: using inline dispatch", dispatch, path,
+					svcId);
+		}
+
+		synchronized (webSocketConfigs) {
+			webSocketConfigs.put(svcId, config);
+			if (serverContainer != null) {
+				// Container already running: register the endpoint right away
+				registerConfig(config);
+			}
+		}
+	}
+
+	/**
+	 * Analyzes the methods and parameters of an annotated endpoint class once, for all its sessions
+	 *
+	 * @param clazz Annotated endpoint class
+	 * @param svcId ID of the endpoint service
+	 * @return The analyzed endpoint, or null in case of error
+	 */
+	private AnnotatedEndpoint analyzeAnnotatedEndpoint(final Class<?> clazz, final Long svcId) {
+		final ErrorCollector collector = new ErrorCollector();
+		final AnnotatedEndpoint annotatedEndpoint;
+		try {
+			annotatedEndpoint = runWithClassLoader(() -> {
+				return AnnotatedEndpoint.fromClass(clazz, sessionBoundProvider, true,
+						TyrusHttpUpgradeHandler.DEFAULT_INCOMING_BUFFER_SIZE, collector, EndpointEventListener.NO_OP);
+			});
+		} catch (Exception e) {
+			logger.error("Error analyzing annotated endpoint {} / svc={}", clazz.getName(), svcId, e);
+			return null;
+		}
+
+		if (!collector.isEmpty()) {
+			logger.error("Invalid annotated endpoint {} / svc={}", clazz.getName(), svcId,
+					collector.composeComprehensiveException());
+			return null;
+		}
+		return annotatedEndpoint;
 	}
 
 	void removeServerEndpoint(final Object endpoint, final Map<String, Object> properties) {
 		final Long svcId = (Long) properties.get(Constants.SERVICE_ID);
 
-		// TODO: unregister from Tyrus
-		webSocketConfigs.remove(svcId);
+		// Dropping the configuration also drops the analyzed annotated endpoint
+		final ServerEndpointConfig config;
+		synchronized (webSocketConfigs) {
+			config = webSocketConfigs.remove(svcId);
+			if (config == null) {
+				return;
+			}
+
+			if (serverContainer != null && unregisterConfig(config)) {
+				// Another service may have been waiting for this path
+				for (final ServerEndpointConfig other : webSocketConfigs.values()) {
+					if (other.getPath().equals(config.getPath())) {
+						registerConfig(other);
+						break;
+					}
+				}
+			}
+		}
+
+		// Only close the sessions of the removed endpoint
+		closeSessions(config);
+	}
+
+	/**
+	 * Closes the sessions opened on the given endpoint
+	 *
+	 * @param config Endpoint configuration
+	 */
+	private void closeSessions(final ServerEndpointConfig config) {
+		@SuppressWarnings("unchecked")
+		final Set<Session> sessions = (Set<Session>) config.getUserProperties().get("osgi.ws.sessions");
+		if (sessions == null || sessions.isEmpty()) {
+			return;
+		}
+
+		logger.info("Closing {} session(s) of unregistered endpoint {}", sessions.size(), config.getPath());
+		final CloseReason reason = new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "Endpoint unregistered");
+		for (final Session session : new ArrayList<>(sessions)) {
+			try {
+				session.close(reason);
+			} catch (Exception e) {
+				logger.warn("Error closing session {} of endpoint {}", session.getId(), config.getPath(), e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the extensions an endpoint accepts, according to its service properties:
+	 * <ul>
+	 * <li>{@code websocket.deflate}: negotiate permessage-deflate (true or false), see {@link Config#deflate_enabled()}
+	 * <li>{@code websocket.deflate.min.size}: size under which messages are sent uncompressed
+	 * </ul>
+	 *
+	 * @param properties Endpoint service properties
+	 * @return The extensions to install
+	 */
+	List<Extension> makeExtensions(final Map<String, Object> properties) {
+		final Object enabled = properties.get("websocket.deflate");
+		if (enabled == null ? !deflateEnabled : !Boolean.parseBoolean(enabled.toString())) {
+			return List.of();
+		}
+
+		final Object minSize = properties.get("websocket.deflate.min.size");
+		if (minSize == null) {
+			return List.of(deflate);
+		}
+
+		try {
+			return List.of(deflate.withMinSize(Integer.parseInt(minSize.toString())));
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid websocket.deflate.min.size '{}' for service {}: using the default", minSize,
+					properties.get(Constants.SERVICE_ID));
+			return List.of(deflate);
+		}
 	}
 
-	ServerEndpointConfig makeConfig(final Class<?> clazz, final String path) {
+	ServerEndpointConfig makeConfig(final Class<?> clazz, final String path, final List<Extension> extensions) {
 		return ServerEndpointConfig.Builder.create(clazz, path).configurator(new TyrusServerEndpointConfigurator())
-				.build();
+				.extensions(extensions).build();
 	}
 
-	ServerEndpointConfig makeProxyConfig(final Class<?> clazz, final String path, final Long svcId) {
-		final ServerEndpointConfig config = makeConfig(clazz, path);
+	ServerEndpointConfig makeProxyConfig(final Class<?> clazz, final String path, final Long svcId,
+			final List<Extension> extensions) {
+		final ServerEndpointConfig config = makeConfig(clazz, path, extensions);
 		final Map<String, Object> userProperties = config.getUserProperties();
 		userProperties.put("osgi.ws.bundle.context", Activator.getContext());
 		userProperties.put("osgi.ws.svc.id", svcId);
 		userProperties.put("osgi.ws.componentProvider", componentProviderService);
+		userProperties.put("osgi.ws.sessions", ConcurrentHashMap.newKeySet());
+		userProperties.put("osgi.ws.path", path);
+		userProperties.put("osgi.ws.registry", sessionRegistry);
+		userProperties.put("osgi.ws.metrics", metrics);
+		userProperties.put("osgi.ws.state", stateStore);
+		userProperties.put("osgi.ws.tuning", tuning);
 		return config;
 	}
 
@@ -141,20 +484,59 @@ public class WebSocketRegistrar extends HttpServlet implements Filter {
 		Filter.super.init(filterConfig);
 
 		final ServletContext context = filterConfig.getServletContext();
-		serverContainer = new WSServerContainer(context.getContextPath());
+		synchronized (webSocketConfigs) {
+			// Connections get the outbound options of their endpoint when their session opens
+			serverContainer = new WSServerContainer(context.getContextPath(), bufferPool,
+					tuning.getDefaults().outbound, metrics, admission);
 
-		System.out.println("*** Init with endpoints: "
-				+ webSocketConfigs.values().stream().map(c -> c.getPath()).collect(Collectors.joining(", ")));
-		registerClasses();
+			logger.info("Init with endpoints: {}",
+					webSocketConfigs.values().stream().map(c -> c.getPath()).collect(Collectors.joining(", ")));
+			registerClasses();
+		}
 
 		try {
 			serverContainer.start(context.getContextPath(), 0);
 		} catch (Exception e) {
-			e.printStackTrace();
+			logger.error("Error starting the WebSocket container", e);
 			throw new ServletException(e);
 		}
 
 		context.setAttribute(ServerContainer.class.getName(), serverContainer);
+		servletContext = context;
+
+		// Only the filter instance upgrades connections: the servlet instance doesn't publish its admission control
+		// nor the buffer pool
+		metrics.setAdmission(admission);
+		metrics.setBufferPool(bufferPool);
+	}
+
+	/**
+	 * Stops the container created by {@link #init(FilterConfig)}, its connections and its scheduler thread, when the
+	 * filter is taken out of service, and stops publishing its admission and buffer pool counters
+	 */
+	@Override
+	public void destroy() {
+		final WSServerContainer container;
+		synchronized (webSocketConfigs) {
+			container = serverContainer;
+			serverContainer = null;
+		}
+
+		if (container != null) {
+			metrics.unsetAdmission(admission);
+			metrics.unsetBufferPool(bufferPool);
+			if (servletContext != null && servletContext.getAttribute(ServerContainer.class.getName()) == container) {
+				servletContext.removeAttribute(ServerContainer.class.getName());
+			}
+			servletContext = null;
+
+			try {
+				container.stop();
+			} catch (Exception e) {
+				logger.warn("Error stopping the WebSocket container", e);
+			}
+		}
+		super.destroy();
 	}
 
 	static <T> T runWithClassLoader(Callable<T> r) throws Exception {
@@ -168,21 +550,41 @@ public class WebSocketRegistrar extends HttpServlet implements Filter {
 	}
 
 	private void registerClasses() {
+		for (final ServerEndpointConfig config : webSocketConfigs.values()) {
+			registerConfig(config);
+		}
+	}
+
+	/**
+	 * Registers an endpoint in the running container
+	 *
+	 * @param config Endpoint configuration
+	 */
+	private void registerConfig(final ServerEndpointConfig config) {
 		try {
 			runWithClassLoader(() -> {
-				for (final ServerEndpointConfig config : webSocketConfigs.values()) {
-					try {
-						serverContainer.register(config);
-					} catch (DeploymentException e) {
-						logger.error("Error registering WebSocket server endpoint class {}: {}",
-								config.getClass().getName(), e.getMessage(), e);
-					}
-				}
+				serverContainer.register(config);
 				return null;
 			});
+		} catch (DeploymentException e) {
+			logger.error("Error registering WebSocket server endpoint {}: {}", config.getPath(), e.getMessage(), e);
 		} catch (Exception e) {
 			logger.error("Error registering classes", e);
-			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Unregisters an endpoint from the running container. Sessions of other endpoints are kept.
+	 *
+	 * @param config Endpoint configuration
+	 * @return True if the endpoint was registered in the container
+	 */
+	private boolean unregisterConfig(final ServerEndpointConfig config) {
+		try {
+			return runWithClassLoader(() -> serverContainer.unregister(config));
+		} catch (Exception e) {
+			logger.error("Error unregistering WebSocket server endpoint {}", config.getPath(), e);
+			return false;
 		}
 	}
 
@@ -193,10 +595,11 @@ public class WebSocketRegistrar extends HttpServlet implements Filter {
 		final HttpServletResponse httpServletResponse = (HttpServletResponse) response;
 
 		try {
-			System.out.println("DO FILTER on " + httpServletRequest.getServletPath() + " / ctxt="
-					+ httpServletRequest.getContextPath() + " / " + httpServletRequest.getPathInfo());
 			boolean success = serverContainer.getServletUpgrade().upgrade(httpServletRequest, httpServletResponse);
-			System.out.println(" => " + success);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Filter on {} / ctxt={} / {} => {}", httpServletRequest.getServletPath(),
+						httpServletRequest.getContextPath(), httpServletRequest.getPathInfo(), success);
+			}
 
 			if (!success && chain != null) {
 				chain.doFilter(request, response);
@@ -0,0 +1,247 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.security.Principal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.service.component.annotations.Component;
+
+import jakarta.websocket.Session;
+
+/**
+ * Registry of the open WebSocket sessions, indexed by endpoint path, user principal name and tags.
+ * <p>
+ * All tables are {@link ConcurrentHashMap}s: an update only locks the bin of its key, and lookups never lock. Each
+ * index maps a key to a concurrent set of sessions, which is dropped once empty, so that finding all the sessions of
+ * a user or of a tag doesn't depend on the total number of sessions. Returned collections are live, read-only views
+ * that can be iterated while sessions come and go.
+ */
+@Component(service = WebSocketSessionRegistry.class)
+public class WebSocketSessionRegistry {
+
+	/**
+	 * Indexed description of a session
+	 */
+	private static class Registration {
+		final Session session;
+		final String path;
+		final String principal;
+		final Set<String> tags = ConcurrentHashMap.newKeySet();
+
+		Registration(final Session session, final String path, final String principal) {
+			this.session = session;
+			this.path = path;
+			this.principal = principal;
+		}
+	}
+
+	/**
+	 * Session ID -&gt; registration
+	 */
+	private final Map<String, Registration> sessions = new ConcurrentHashMap<>();
+
+	/**
+	 * Endpoint path -&gt; sessions
+	 */
+	private final Map<String, Set<Session>> byPath = new ConcurrentHashMap<>();
+
+	/**
+	 * User principal name -&gt; sessions
+	 */
+	private final Map<String, Set<Session>> byPrincipal = new ConcurrentHashMap<>();
+
+	/**
+	 * Tag -&gt; sessions
+	 */
+	private final Map<String, Set<Session>> byTag = new ConcurrentHashMap<>();
+
+	/**
+	 * Registers an open session
+	 *
+	 * @param session Tyrus session
+	 * @param path    Path of the endpoint, as registered
+	 */
+	void register(final Session session, final String path) {
+		final Principal principal = session.getUserPrincipal();
+		final Registration registration = new Registration(session, path,
+				principal != null ? principal.getName() : null);
+		if (sessions.putIfAbsent(session.getId(), registration) != null) {
+			return;
+		}
+
+		index(byPath, path, session);
+		index(byPrincipal, registration.principal, session);
+	}
+
+	/**
+	 * Unregisters a session and removes it from all indexes
+	 *
+	 * @param session Tyrus session
+	 */
+	void unregister(final Session session) {
+		final Registration registration = sessions.remove(session.getId());
+		if (registration == null) {
+			return;
+		}
+
+		unindex(byPath, registration.path, session);
+		unindex(byPrincipal, registration.principal, session);
+		for (final String tag : registration.tags) {
+			unindex(byTag, tag, session);
+		}
+	}
+
+	private static void index(final Map<String, Set<Session>> index, final String key, final Session session) {
+		if (key != null) {
+			index.compute(key, (k, set) -> {
+				final Set<Session> result = set != null ? set : ConcurrentHashMap.newKeySet();
+				result.add(session);
+				return result;
+			});
+		}
+	}
+
+	private static void unindex(final Map<String, Set<Session>> index, final String key, final Session session) {
+		if (key != null) {
+			index.computeIfPresent(key, (k, set) -> set.remove(session) && set.isEmpty() ? null : set);
+		}
+	}
+
+	private static Collection<Session> lookup(final Map<String, Set<Session>> index, final String key) {
+		final Set<Session> set = key != null ? index.get(key) : null;
+		return set != null ? Collections.unmodifiableSet(set) : Collections.emptySet();
+	}
+
+	/**
+	 * Adds a tag to a registered session
+	 *
+	 * @param session Session to tag
+	 * @param tag     Tag
+	 * @return True if the tag was added, false if the session is unknown or already had that tag
+	 */
+	public boolean tag(final Session session, final String tag) {
+		final Registration registration = sessions.get(session.getId());
+		if (registration == null || !registration.tags.add(tag)) {
+			return false;
+		}
+
+		index(byTag, tag, registration.session);
+		if (!sessions.containsKey(session.getId())) {
+			// Unregistered concurrently: make sure the index doesn't keep it
+			unindex(byTag, tag, registration.session);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a tag from a registered session
+	 *
+	 * @param session Tagged session
+	 * @param tag     Tag
+	 * @return True if the tag was removed
+	 */
+	public boolean untag(final Session session, final String tag) {
+		final Registration registration = sessions.get(session.getId());
+		if (registration == null || !registration.tags.remove(tag)) {
+			return false;
+		}
+
+		unindex(byTag, tag, registration.session);
+		return true;
+	}
+
+	/**
+	 * Returns the tags of a session
+	 *
+	 * @param session A session
+	 * @return The tags of the session (empty if it is unknown)
+	 */
+	public Set<String> getTags(final Session session) {
+		final Registration registration = sessions.get(session.getId());
+		return registration != null ? Collections.unmodifiableSet(registration.tags) : Collections.emptySet();
+	}
+
+	/**
+	 * Returns the open session with the given ID
+	 *
+	 * @param sessionId Session ID
+	 * @return The session, or null
+	 */
+	public Session getSession(final String sessionId) {
+		final Registration registration = sessions.get(sessionId);
+		return registration != null ? registration.session : null;
+	}
+
+	/**
+	 * Returns the endpoint path of a session
+	 *
+	 * @param session A session
+	 * @return The endpoint path, or null if the session is unknown
+	 */
+	public String getPath(final Session session) {
+		final Registration registration = sessions.get(session.getId());
+		return registration != null ? registration.path : null;
+	}
+
+	/**
+	 * Returns the open sessions of an endpoint
+	 *
+	 * @param path Endpoint path, as registered
+	 */
+	public Collection<Session> getSessionsByPath(final String path) {
+		return lookup(byPath, path);
+	}
+
+	/**
+	 * Returns the open sessions of a user
+	 *
+	 * @param principalName Name of the user principal
+	 */
+	public Collection<Session> getSessionsByPrincipal(final String principalName) {
+		return lookup(byPrincipal, principalName);
+	}
+
+	/**
+	 * Returns the open sessions with the given tag
+	 *
+	 * @param tag A tag
+	 */
+	public Collection<Session> getSessionsByTag(final String tag) {
+		return lookup(byTag, tag);
+	}
+
+	/**
+	 * Returns the endpoint paths with open sessions
+	 */
+	public Set<String> getPaths() {
+		return Collections.unmodifiableSet(byPath.keySet());
+	}
+
+	/**
+	 * Returns the number of open sessions
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	@Override
+	public String toString() {
+		return "WebSocketSessionRegistry{sessions=" + sessions.size() + ", paths=" + byPath.size() + ", principals="
+				+ byPrincipal.size() + ", tags=" + byTag.size() + "}";
+	}
+}
@@ -0,0 +1,189 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tuning of the buffers, queues and dispatch of the connections, given through Configuration Admin.
+ * <p>
+ * The defaults come from the configuration of this component, and can be overridden per endpoint path with
+ * {@link EndpointTuning} factory configurations. Settings are parsed once per configuration change and looked up when
+ * a session opens: changes apply to new connections without restarting the registrar, while open connections keep
+ * their settings.
+ * <p>
+ * Endpoints are matched on the path they are registered with, i.e. on the template for paths with parameters.
+ */
+@Component(service = WebSocketTuning.class, configurationPid = WebSocketTuning.PID)
+public class WebSocketTuning {
+
+	static final String PID = "com.kentyou.eclipsecon2023.websocket.tuning";
+
+	private static final Logger logger = LoggerFactory.getLogger(WebSocketTuning.class);
+
+	/**
+	 * Default tuning of the endpoints
+	 */
+	public @interface Config {
+		/**
+		 * Maximum size of a frame read from a connection, in bytes (0 to keep the
+		 * {@value TyrusHttpUpgradeHandler#FRAME_BUFFER_SIZE} servlet context parameter, or
+		 * {@value TyrusHttpUpgradeHandler#DEFAULT_INCOMING_BUFFER_SIZE})
+		 */
+		int incoming_buffer_size() default 0;
+
+		/**
+		 * Maximum size of a text or binary message, in bytes (0 to keep the Tyrus default). Endpoints annotated with
+		 * a {@code maxMessageSize} keep theirs.
+		 */
+		int max_message_size() default 0;
+
+		/**
+		 * Maximum number of bytes gathered in a single socket write (0 to disable coalescing)
+		 */
+		int outbound_coalesce_bytes() default 16384;
+
+		/**
+		 * Maximum time, in microseconds, a queued frame waits for other frames to be gathered with (0 to only gather
+		 * frames that are already queued)
+		 */
+		long outbound_coalesce_delay_us() default 0;
+
+		/**
+		 * Number of pending outbound bytes above which a connection is flagged as not writable
+		 */
+		long outbound_queue_high_watermark() default 1048576;
+
+		/**
+		 * Number of pending outbound bytes under which a connection becomes writable again
+		 */
+		long outbound_queue_low_watermark() default 262144;
+
+		/**
+		 * Maximum number of pending outbound bytes per connection: data frames exceeding it are failed
+		 */
+		long outbound_queue_limit() default 16777216;
+
+		/**
+		 * Maximum time, in milliseconds, a sender waits for a connection to become writable with the {@code block}
+		 * slow consumer policy
+		 */
+		long slow_consumer_block_timeout_ms() default 5000;
+
+		/**
+		 * Dispatch mode of the message handlers, {@code inline} or {@code virtual}, overriding the
+		 * {@code websocket.dispatch} service property of the endpoints (empty to keep it)
+		 */
+		String dispatch() default "";
+
+		/**
+		 * Number of messages of a session waiting for a dispatched handler from which the reads of the connection
+		 * are suspended, until half of them have been handled
+		 */
+		int dispatch_max_pending() default EndpointSettings.DEFAULT_DISPATCH_MAX_PENDING;
+	}
+
+	/**
+	 * Per-endpoint configurations, in binding order. Guarded by this.
+	 */
+	private final Set<EndpointTuning> endpointTunings = new LinkedHashSet<>();
+
+	/**
+	 * Default settings
+	 */
+	private volatile EndpointSettings defaults = EndpointSettings.DEFAULT;
+
+	/**
+	 * Settings of the tuned endpoints (path -&gt; settings), replaced on each change
+	 */
+	private volatile Map<String, EndpointSettings> settings = Map.of();
+
+	@Activate
+	@Modified
+	synchronized void configure(final Config config) {
+		try {
+			defaults = new EndpointSettings(config.incoming_buffer_size(), config.max_message_size(),
+					new OutboundOptions(config.outbound_coalesce_bytes(), config.outbound_coalesce_delay_us(),
+							config.outbound_queue_high_watermark(), config.outbound_queue_low_watermark(),
+							config.outbound_queue_limit(), config.slow_consumer_block_timeout_ms()),
+					config.dispatch(), config.dispatch_max_pending());
+		} catch (IllegalArgumentException e) {
+			logger.error("Invalid WebSocket tuning, keeping {}: {}", defaults, e.getMessage());
+		}
+		update();
+	}
+
+	@Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC, policyOption = ReferencePolicyOption.GREEDY, updated = "updatedEndpointTuning")
+	synchronized void addEndpointTuning(final EndpointTuning tuning) {
+		endpointTunings.add(tuning);
+		update();
+	}
+
+	synchronized void updatedEndpointTuning(final EndpointTuning tuning) {
+		update();
+	}
+
+	synchronized void removeEndpointTuning(final EndpointTuning tuning) {
+		endpointTunings.remove(tuning);
+		update();
+	}
+
+	/**
+	 * Computes the settings of the tuned endpoints. Must be called while holding the lock.
+	 */
+	private void update() {
+		final Map<String, EndpointSettings> newSettings = new HashMap<>();
+		for (final EndpointTuning tuning : endpointTunings) {
+			final String path = tuning.getPath();
+			try {
+				if (newSettings.putIfAbsent(path, tuning.apply(defaults)) != null) {
+					logger.warn("Several tuning configurations for endpoint {}: only the first one is used", path);
+				}
+			} catch (IllegalArgumentException e) {
+				logger.error("Invalid tuning of endpoint {}, using the defaults: {}", path, e.getMessage());
+			}
+		}
+		settings = Map.copyOf(newSettings);
+	}
+
+	/**
+	 * Returns the default settings
+	 */
+	EndpointSettings getDefaults() {
+		return defaults;
+	}
+
+	/**
+	 * Returns the settings of an endpoint
+	 *
+	 * @param path Path the endpoint is registered with
+	 * @return The settings of the endpoint, or the defaults
+	 */
+	EndpointSettings getSettings(final String path) {
+		final EndpointSettings endpointSettings = path != null ? settings.get(path) : null;
+		return endpointSettings != null ? endpointSettings : defaults;
+	}
+}
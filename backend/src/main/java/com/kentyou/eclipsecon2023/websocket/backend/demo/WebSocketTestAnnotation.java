@@ -18,6 +18,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+
+import com.kentyou.eclipsecon2023.websocket.backend.SessionStateStore;
 
 import jakarta.websocket.OnMessage;
 import jakarta.websocket.OnOpen;
@@ -32,7 +35,11 @@ public class WebSocketTestAnnotation {
 
 	private String id;
 
-	private String lastMessage;
+	/**
+	 * Holds the last message of each session
+	 */
+	@Reference
+	private SessionStateStore stateStore;
 
 	@Activate
 	void activate() {
@@ -49,10 +56,16 @@ public class WebSocketTestAnnotation {
 	public void onMessage(String message, Session session) {
 		final String toReturn;
 		if ("$".equals(message)) {
-			toReturn = "Last message you sent to " + id + " was: " + lastMessage;
+			toReturn = "Last message you sent to " + id + " was: " + stateStore.getString(session);
 		} else {
 			toReturn = "Echo from " + id + ": " + message;
-			lastMessage = message;
+			try {
+				if (!stateStore.putString(session, message)) {
+					System.err.println("Session state store full, last message of " + session.getId() + " not kept");
+				}
+			} catch (IllegalArgumentException e) {
+				System.err.println("Last message of " + session.getId() + " not kept: " + e.getMessage());
+			}
 		}
 
 		try {
@@ -0,0 +1,85 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+
+import com.kentyou.eclipsecon2023.websocket.backend.ClusterMessage.Target;
+
+class AbstractClusterBusTest {
+
+	@Test
+	void testIdenticalMessagesWithoutKeyAreAllSent() {
+		final LoopbackClusterBus.Network network = new LoopbackClusterBus.Network();
+		final LoopbackClusterBus sender = new LoopbackClusterBus("a", network);
+		final LoopbackClusterBus receiver = new LoopbackClusterBus("b", network);
+		final List<ClusterMessage> received = new CopyOnWriteArrayList<>();
+		receiver.setReceiver(received::add);
+
+		sender.publish(ClusterMessage.text(Target.PATH, "/chat", null, "hello"));
+		sender.publish(ClusterMessage.text(Target.PATH, "/chat", null, "hello"));
+		sender.publish(ClusterMessage.binary(Target.TAG, "room", null, new byte[] { 1, 2 }));
+		sender.flush();
+
+		assertEquals(3, received.size());
+		assertEquals("hello", received.get(0).getText());
+		assertEquals("hello", received.get(1).getText());
+		assertArrayEquals(new byte[] { 1, 2 }, received.get(2).getData());
+		assertEquals(0, sender.getDeduplicated());
+		assertEquals(3, receiver.getReceived());
+	}
+
+	@Test
+	void testKeyedMessageReplacesPendingOne() {
+		final LoopbackClusterBus.Network network = new LoopbackClusterBus.Network();
+		final LoopbackClusterBus sender = new LoopbackClusterBus("a", network);
+		final LoopbackClusterBus receiver = new LoopbackClusterBus("b", network);
+		final List<ClusterMessage> received = new CopyOnWriteArrayList<>();
+		receiver.setReceiver(received::add);
+
+		sender.publish(ClusterMessage.text(Target.PATH, "/prices", "EUR", "1.07"));
+		sender.publish(ClusterMessage.text(Target.PATH, "/prices", null, "open"));
+		sender.publish(ClusterMessage.text(Target.PATH, "/prices", "EUR", "1.08"));
+		sender.publish(ClusterMessage.text(Target.PATH, "/other", "EUR", "1.09"));
+		sender.flush();
+
+		// The latest value takes the position of the first one, other targets are kept
+		assertEquals(3, received.size());
+		assertEquals("1.08", received.get(0).getText());
+		assertEquals("open", received.get(1).getText());
+		assertNull(received.get(1).getKey());
+		assertEquals("/other", received.get(2).getName());
+		assertEquals(1, sender.getDeduplicated());
+	}
+
+	@Test
+	void testOwnBatchesIgnored() {
+		final LoopbackClusterBus.Network network = new LoopbackClusterBus.Network();
+		final LoopbackClusterBus first = new LoopbackClusterBus("same", network);
+		final LoopbackClusterBus second = new LoopbackClusterBus("same", network);
+		final List<ClusterMessage> received = new CopyOnWriteArrayList<>();
+		second.setReceiver(received::add);
+
+		first.publish(ClusterMessage.text(Target.SESSION, "1", null, "hello"));
+		first.flush();
+		assertTrue(received.isEmpty());
+	}
+}
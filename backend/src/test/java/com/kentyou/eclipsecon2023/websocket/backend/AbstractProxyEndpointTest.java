@@ -0,0 +1,109 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.EndpointConfig;
+import jakarta.websocket.Session;
+
+class AbstractProxyEndpointTest {
+
+	/**
+	 * Endpoint recording the state of its session when notified of its end
+	 */
+	private static class TestProxyEndpoint extends AbstractProxyEndpoint {
+		final SessionStateStore stateStore;
+		final AtomicReference<String> stateOnClose = new AtomicReference<>();
+
+		TestProxyEndpoint(final SessionStateStore stateStore) {
+			this.stateStore = stateStore;
+		}
+
+		@Override
+		public void onOpen(final Session session, final EndpointConfig config) {
+		}
+
+		@Override
+		public void onClose(final Session session, final CloseReason closeReason) {
+			closeSession(session, closeReason);
+			notifyClose(session, () -> stateOnClose.set(stateStore.getString(session)));
+		}
+	}
+
+	@Test
+	void testCloseFreesSessionState() {
+		final SessionStateStore stateStore = new SessionStateStore(4096, 256, 1 << 20);
+		final WebSocketSessionRegistry registry = new WebSocketSessionRegistry();
+		final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+		final Map<String, Object> userProperties = Map.of("osgi.ws.path", "/ws/test", "osgi.ws.sessions", sessions,
+				"osgi.ws.registry", registry, "osgi.ws.state", stateStore);
+
+		final Session session = FakeSession.create("1", null);
+		final TestProxyEndpoint endpoint = new TestProxyEndpoint(stateStore);
+		assertSame(session, endpoint.openSession(session, userProperties));
+		assertTrue(stateStore.putString(session, "demo state"));
+		assertEquals("demo state", stateStore.getString(session));
+		assertEquals(1, stateStore.snapshot().getSessions());
+
+		endpoint.onClose(session, new CloseReason(CloseReason.CloseCodes.NORMAL_CLOSURE, null));
+
+		assertEquals("demo state", endpoint.stateOnClose.get());
+		assertNull(stateStore.getString(session));
+		assertEquals(0, stateStore.snapshot().getSessions());
+		assertEquals(0, stateStore.snapshot().getUsedBytes());
+		assertTrue(sessions.isEmpty());
+		assertEquals(0, registry.size());
+	}
+
+	@Test
+	void testDispatchedCloseSeesSessionState() {
+		final SessionStateStore stateStore = new SessionStateStore(4096, 256, 1 << 20);
+		final Queue<Runnable> tasks = new ArrayDeque<>();
+		final Executor executor = tasks::add;
+		final Map<String, Object> userProperties = Map.of("osgi.ws.path", "/ws/test", "osgi.ws.state", stateStore,
+				"osgi.ws.dispatch.executor", executor);
+
+		final Session session = FakeSession.create("1", null);
+		final TestProxyEndpoint endpoint = new TestProxyEndpoint(stateStore);
+		assertInstanceOf(DispatchingSession.class, endpoint.openSession(session, userProperties));
+		assertTrue(stateStore.putString(session, "demo state"));
+
+		endpoint.onClose(session, new CloseReason(CloseReason.CloseCodes.NORMAL_CLOSURE, null));
+
+		// The handler hasn't been notified yet: the state is kept until it is
+		assertEquals("demo state", stateStore.getString(session));
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+		assertEquals("demo state", endpoint.stateOnClose.get());
+		assertNull(stateStore.getString(session));
+		assertEquals(0, stateStore.snapshot().getSessions());
+	}
+}
@@ -0,0 +1,47 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Component property types instances, as given by Declarative Services
+ */
+final class Configs {
+
+	private Configs() {
+	}
+
+	/**
+	 * @param type   Component property type
+	 * @param values Values of the configuration (method name -&gt; value), others keep their default
+	 * @return An instance of the property type
+	 */
+	static <T> T create(final Class<T> type, final Map<String, Object> values) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					case "toString":
+						return type.getSimpleName() + values;
+					default:
+						final Object value = values.get(method.getName());
+						return value != null ? value : method.getDefaultValue();
+					}
+				}));
+	}
+}
@@ -0,0 +1,110 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.glassfish.tyrus.core.AnnotatedEndpoint;
+import org.glassfish.tyrus.core.ComponentProviderService;
+import org.glassfish.tyrus.core.ErrorCollector;
+import org.glassfish.tyrus.core.monitoring.EndpointEventListener;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.EndpointConfig;
+import jakarta.websocket.OnMessage;
+import jakarta.websocket.Session;
+import jakarta.websocket.server.ServerEndpoint;
+
+class DispatchingSessionTest {
+
+	private static final String PATH = "/ws/dispatch";
+
+	private static final byte[] MASK = { 1, 2, 3, 4 };
+
+	private WSServerContainer container;
+
+	/**
+	 * Annotated handler limiting the size of its messages
+	 */
+	@ServerEndpoint(PATH)
+	public static class LimitedHandler {
+		final List<String> messages = new CopyOnWriteArrayList<>();
+
+		@OnMessage(maxMessageSize = 16)
+		public void onMessage(final String message) {
+			messages.add(message);
+		}
+	}
+
+	/**
+	 * Endpoint giving its sessions to an annotated handler through a dispatching session, as the annotation proxy
+	 * does in virtual dispatch mode
+	 */
+	public static class DispatchEndpoint extends Endpoint {
+		final LimitedHandler instance = new LimitedHandler();
+		final SessionBoundComponentProvider componentProvider = new SessionBoundComponentProvider(
+				ComponentProviderService.create());
+		final AnnotatedEndpoint handler = AnnotatedEndpoint.fromClass(LimitedHandler.class, componentProvider, true,
+				TyrusHttpUpgradeHandler.DEFAULT_INCOMING_BUFFER_SIZE, new ErrorCollector(),
+				EndpointEventListener.NO_OP);
+		final List<Integer> closeCodes = new CopyOnWriteArrayList<>();
+
+		@Override
+		public void onOpen(final Session session, final EndpointConfig config) {
+			final DispatchingSession dispatchingSession = new DispatchingSession(session, Runnable::run, 16, this,
+					null);
+			componentProvider.bind(dispatchingSession, instance);
+			handler.onOpen(dispatchingSession, config);
+		}
+
+		@Override
+		public void onClose(final Session session, final CloseReason closeReason) {
+			closeCodes.add(closeReason.getCloseCode().getCode());
+		}
+	}
+
+	@AfterEach
+	void stopContainer() {
+		if (container != null) {
+			container.stop();
+		}
+	}
+
+	@Test
+	void testDispatchedHandlerKeepsMaxMessageSize() throws Exception {
+		final DispatchEndpoint endpoint = new DispatchEndpoint();
+		container = FakeUpgrade.container(PATH, endpoint);
+		final FakeWebConnection connection = new FakeWebConnection();
+		assertNotNull(FakeUpgrade.upgrade(container, PATH, connection));
+
+		connection.getInputStream()
+				.receive(FrameSplitterTest.frame(0x80 | 0x1, "small".getBytes(StandardCharsets.UTF_8), MASK));
+		assertEquals(List.of("small"), endpoint.instance.messages);
+
+		// Larger than the @OnMessage limit: not given to the handler, and the session is closed
+		connection.getInputStream().receive(
+				FrameSplitterTest.frame(0x80 | 0x1, "a".repeat(100).getBytes(StandardCharsets.UTF_8), MASK));
+		assertEquals(List.of("small"), endpoint.instance.messages);
+		assertEquals(List.of(CloseReason.CloseCodes.TOO_BIG.getCode()), endpoint.closeCodes);
+		assertTrue(connection.isClosed());
+	}
+}
@@ -0,0 +1,89 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jakarta.servlet.http.HttpSession;
+import jakarta.servlet.http.HttpSessionBindingEvent;
+import jakarta.servlet.http.HttpSessionBindingListener;
+
+/**
+ * HTTP sessions only holding attributes, notifying the binding listeners like a servlet container
+ */
+final class FakeHttpSession {
+
+	private FakeHttpSession() {
+	}
+
+	/**
+	 * @param id Session ID
+	 * @return A session answering its attribute methods and {@code invalidate}, and failing the others
+	 */
+	static HttpSession create(final String id) {
+		final Map<String, Object> attributes = new ConcurrentHashMap<>();
+		final AtomicBoolean valid = new AtomicBoolean(true);
+		return (HttpSession) Proxy.newProxyInstance(FakeHttpSession.class.getClassLoader(),
+				new Class<?>[] { HttpSession.class }, (proxy, method, args) -> {
+					final HttpSession session = (HttpSession) proxy;
+					switch (method.getName()) {
+					case "getId":
+						return id;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					case "toString":
+						return "FakeHttpSession{id=" + id + "}";
+					default:
+						break;
+					}
+
+					if (!valid.get()) {
+						throw new IllegalStateException("Session invalidated: " + id);
+					}
+
+					switch (method.getName()) {
+					case "getAttribute":
+						return attributes.get(args[0]);
+					case "getAttributeNames":
+						return Collections.enumeration(attributes.keySet());
+					case "setAttribute":
+						unbound(session, (String) args[0], attributes.put((String) args[0], args[1]));
+						return null;
+					case "removeAttribute":
+						unbound(session, (String) args[0], attributes.remove(args[0]));
+						return null;
+					case "invalidate":
+						valid.set(false);
+						for (final String name : new ArrayList<>(attributes.keySet())) {
+							unbound(session, name, attributes.remove(name));
+						}
+						return null;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	private static void unbound(final HttpSession session, final String name, final Object value) {
+		if (value instanceof HttpSessionBindingListener) {
+			((HttpSessionBindingListener) value).valueUnbound(new HttpSessionBindingEvent(session, name, value));
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletContext;
+
+/**
+ * Servlet contexts only holding attributes, to initialize filters outside of a servlet container
+ */
+final class FakeServletContext {
+
+	private FakeServletContext() {
+	}
+
+	/**
+	 * @param contextPath Context path
+	 * @return A servlet context answering its path and attribute methods, and failing the others
+	 */
+	static ServletContext create(final String contextPath) {
+		final Map<String, Object> attributes = new ConcurrentHashMap<>();
+		return (ServletContext) Proxy.newProxyInstance(FakeServletContext.class.getClassLoader(),
+				new Class<?>[] { ServletContext.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getContextPath":
+						return contextPath;
+					case "getAttribute":
+						return attributes.get(args[0]);
+					case "getAttributeNames":
+						return Collections.enumeration(attributes.keySet());
+					case "setAttribute":
+						attributes.put((String) args[0], args[1]);
+						return null;
+					case "removeAttribute":
+						attributes.remove(args[0]);
+						return null;
+					case "getInitParameter":
+						return null;
+					case "getInitParameterNames":
+						return Collections.emptyEnumeration();
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					case "toString":
+						return "FakeServletContext{path=" + contextPath + "}";
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	/**
+	 * @param context Servlet context of the filter
+	 * @return A filter configuration without init parameters
+	 */
+	static FilterConfig filterConfig(final ServletContext context) {
+		return (FilterConfig) Proxy.newProxyInstance(FakeServletContext.class.getClassLoader(),
+				new Class<?>[] { FilterConfig.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getServletContext":
+						return context;
+					case "getFilterName":
+						return "websocket";
+					case "getInitParameter":
+						return null;
+					case "getInitParameterNames":
+						return Collections.emptyEnumeration();
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+}
@@ -0,0 +1,87 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+
+/**
+ * Input stream giving the data received by the test.
+ * <p>
+ * Each chunk of data received is given by separate reads, like packets from a socket. Like a container, it notifies
+ * its read listener when data is received.
+ */
+class FakeServletInputStream extends ServletInputStream {
+
+	private final Queue<ByteBuffer> chunks = new ArrayDeque<>();
+
+	private volatile ReadListener readListener;
+
+	/**
+	 * Makes data available, notifying the read listener
+	 */
+	void receive(final byte[] data) throws IOException {
+		synchronized (chunks) {
+			chunks.add(ByteBuffer.wrap(data.clone()));
+		}
+		final ReadListener listener = readListener;
+		if (listener != null) {
+			listener.onDataAvailable();
+		}
+	}
+
+	@Override
+	public boolean isFinished() {
+		return false;
+	}
+
+	@Override
+	public boolean isReady() {
+		synchronized (chunks) {
+			return !chunks.isEmpty();
+		}
+	}
+
+	@Override
+	public void setReadListener(final ReadListener readListener) {
+		this.readListener = readListener;
+	}
+
+	@Override
+	public int read() {
+		final byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) {
+		synchronized (chunks) {
+			final ByteBuffer chunk = chunks.peek();
+			if (chunk == null) {
+				return 0;
+			}
+
+			final int length = Math.min(len, chunk.remaining());
+			chunk.get(b, off, length);
+			if (!chunk.hasRemaining()) {
+				chunks.poll();
+			}
+			return length;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+/**
+ * Output stream keeping what is written to it.
+ * <p>
+ * Its readiness is controlled by the test, to simulate a peer that doesn't read fast enough. Like a container, it
+ * notifies its write listener when it becomes ready.
+ */
+class FakeServletOutputStream extends ServletOutputStream {
+
+	private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+	private volatile boolean ready = true;
+
+	private volatile WriteListener writeListener;
+
+	/**
+	 * Changes the readiness of the stream, notifying the write listener when it becomes ready
+	 */
+	void setReady(final boolean ready) throws IOException {
+		this.ready = ready;
+		final WriteListener listener = writeListener;
+		if (ready && listener != null) {
+			listener.onWritePossible();
+		}
+	}
+
+	/**
+	 * Returns a copy of the bytes written so far
+	 */
+	byte[] getContent() {
+		synchronized (content) {
+			return content.toByteArray();
+		}
+	}
+
+	@Override
+	public boolean isReady() {
+		return ready;
+	}
+
+	@Override
+	public void setWriteListener(final WriteListener writeListener) {
+		this.writeListener = writeListener;
+		if (ready) {
+			try {
+				writeListener.onWritePossible();
+			} catch (IOException e) {
+				writeListener.onError(e);
+			}
+		}
+	}
+
+	@Override
+	public void write(final int b) {
+		synchronized (content) {
+			content.write(b);
+		}
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) {
+		synchronized (content) {
+			content.write(b, off, len);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jakarta.websocket.Session;
+
+/**
+ * Open sessions without connection, only giving their ID, user principal and user properties
+ */
+final class FakeSession {
+
+	private FakeSession() {
+	}
+
+	/**
+	 * @param id        Session ID
+	 * @param principal Name of the user principal (null for anonymous sessions)
+	 * @return A session answering the identity and user properties methods, and failing the others
+	 */
+	static Session create(final String id, final String principal) {
+		final Principal userPrincipal = principal != null ? () -> principal : null;
+		final Map<String, Object> userProperties = new ConcurrentHashMap<>();
+		return (Session) Proxy.newProxyInstance(FakeSession.class.getClassLoader(), new Class<?>[] { Session.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getId":
+						return id;
+					case "getUserPrincipal":
+						return userPrincipal;
+					case "getUserProperties":
+						return userProperties;
+					case "getNegotiatedExtensions":
+						return List.of();
+					case "isOpen":
+						return true;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					case "toString":
+						return "FakeSession{id=" + id + "}";
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+}
@@ -0,0 +1,148 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.server.HandshakeRequest;
+import jakarta.websocket.server.ServerEndpointConfig;
+
+/**
+ * Upgrade requests of fake connections, to open sessions on a container outside of a servlet container
+ */
+final class FakeUpgrade {
+
+	private static final Map<String, String> HEADERS = Map.of("Host", "localhost", "Upgrade", "websocket",
+			"Connection", "Upgrade", HandshakeRequest.SEC_WEBSOCKET_KEY, "dGhlIHNhbXBsZSBub25jZQ==",
+			HandshakeRequest.SEC_WEBSOCKET_VERSION, "13");
+
+	private FakeUpgrade() {
+	}
+
+	/**
+	 * Starts a container with a single endpoint instance, to stop once done
+	 *
+	 * @param path     Path of the endpoint
+	 * @param endpoint Endpoint instance given all the sessions
+	 * @return The started container
+	 */
+	static WSServerContainer container(final String path, final Endpoint endpoint) throws Exception {
+		final WSServerContainer container = new WSServerContainer("", new ByteBufferPool(), OutboundOptions.DEFAULT,
+				null, null);
+		container.register(ServerEndpointConfig.Builder.create(endpoint.getClass(), path)
+				.configurator(new ServerEndpointConfig.Configurator() {
+					@Override
+					public <T> T getEndpointInstance(final Class<T> endpointClass) {
+						return endpointClass.cast(endpoint);
+					}
+				}).build());
+		container.start("", 0);
+		return container;
+	}
+
+	/**
+	 * Upgrades an anonymous connection on a container
+	 *
+	 * @see #upgrade(WSServerContainer, String, HttpSession, String, FakeWebConnection)
+	 */
+	static TyrusHttpUpgradeHandler upgrade(final WSServerContainer container, final String path,
+			final FakeWebConnection connection) throws Exception {
+		return upgrade(container, path, null, null, connection);
+	}
+
+	/**
+	 * Upgrades a connection on a container
+	 *
+	 * @param container   Container to upgrade the connection with
+	 * @param path        Path of the endpoint
+	 * @param httpSession HTTP session of the request (can be null)
+	 * @param principal   Name of the user principal (null for anonymous requests)
+	 * @param connection  Connection given to the upgrade handler
+	 * @return The upgrade handler of the connection, or null if the request wasn't upgraded
+	 */
+	static TyrusHttpUpgradeHandler upgrade(final WSServerContainer container, final String path,
+			final HttpSession httpSession, final String principal, final FakeWebConnection connection)
+			throws Exception {
+		final Principal userPrincipal = principal != null ? () -> principal : null;
+		final ServletContext context = FakeServletContext.create("");
+		final AtomicReference<TyrusHttpUpgradeHandler> handler = new AtomicReference<>();
+		final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+				FakeUpgrade.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getHeader":
+						return HEADERS.get(args[0]);
+					case "getHeaderNames":
+						return Collections.enumeration(HEADERS.keySet());
+					case "getHeaders":
+						return Collections.enumeration(HEADERS.containsKey(args[0]) ? List.of(HEADERS.get(args[0]))
+								: List.of());
+					case "getRequestURI":
+						return path;
+					case "getQueryString":
+						return null;
+					case "getUserPrincipal":
+						return userPrincipal;
+					case "getSession":
+						return httpSession;
+					case "getServletContext":
+						return context;
+					case "isSecure":
+					case "isUserInRole":
+						return false;
+					case "getRemoteAddr":
+					case "getLocalAddr":
+						return "127.0.0.1";
+					case "getLocalName":
+						return "localhost";
+					case "getLocalPort":
+						return 8080;
+					case "upgrade":
+						final TyrusHttpUpgradeHandler upgradeHandler = new TyrusHttpUpgradeHandler();
+						upgradeHandler.init(connection);
+						handler.set(upgradeHandler);
+						return upgradeHandler;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+		final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+				FakeUpgrade.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "setStatus":
+					case "addHeader":
+					case "setIntHeader":
+					case "setContentLength":
+					case "sendError":
+					case "flushBuffer":
+						return null;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+
+		container.getServletUpgrade().upgrade(request, response);
+		return handler.get();
+	}
+}
@@ -0,0 +1,46 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import jakarta.servlet.http.WebConnection;
+
+/**
+ * Upgraded connection reading from and writing to in-memory streams instead of a socket
+ */
+class FakeWebConnection implements WebConnection {
+
+	private final FakeServletInputStream inputStream = new FakeServletInputStream();
+
+	private final FakeServletOutputStream outputStream = new FakeServletOutputStream();
+
+	private volatile boolean closed;
+
+	@Override
+	public FakeServletInputStream getInputStream() {
+		return inputStream;
+	}
+
+	@Override
+	public FakeServletOutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+}
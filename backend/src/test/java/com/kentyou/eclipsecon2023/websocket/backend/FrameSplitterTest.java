@@ -0,0 +1,291 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.glassfish.tyrus.spi.ReadHandler;
+import org.junit.jupiter.api.Test;
+
+class FrameSplitterTest {
+
+	private static final int MAX_FRAME_SIZE = 1 << 20;
+
+	/**
+	 * Frame given to the read handler, unmasked
+	 */
+	private static class Piece {
+		final int flags;
+		final byte[] payload;
+
+		Piece(final int flags, final byte[] payload) {
+			this.flags = flags;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * Read handler decoding the pieces it is given
+	 */
+	private static class CapturingReadHandler implements ReadHandler {
+		final List<Piece> pieces = new ArrayList<>();
+		final List<byte[]> raw = new ArrayList<>();
+		final int maxPieceSize;
+
+		CapturingReadHandler() {
+			this(FrameSplitter.MAX_PIECE_SIZE);
+		}
+
+		CapturingReadHandler(final int maxPieceSize) {
+			this.maxPieceSize = maxPieceSize;
+		}
+
+		@Override
+		public void handle(final ByteBuffer data) {
+			assertTrue(data.remaining() <= maxPieceSize, "Piece of " + data.remaining() + " bytes");
+			final byte[] bytes = new byte[data.remaining()];
+			data.duplicate().get(bytes);
+			raw.add(bytes);
+
+			final int flags = data.get() & 0xFF;
+			final int second = data.get() & 0xFF;
+			long length = second & 0x7F;
+			if (length == 126) {
+				length = data.getShort() & 0xFFFF;
+			} else if (length == 127) {
+				length = data.getLong();
+			}
+			final byte[] mask = new byte[4];
+			if ((second & 0x80) != 0) {
+				data.get(mask);
+			}
+			assertEquals(length, data.remaining(), "Piece holds a single frame");
+
+			final byte[] payload = new byte[(int) length];
+			for (int i = 0; i < payload.length; i++) {
+				payload[i] = (byte) (data.get() ^ mask[i & 3]);
+			}
+			pieces.add(new Piece(flags, payload));
+		}
+
+		byte[] payload() {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (final Piece piece : pieces) {
+				out.writeBytes(piece.payload);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * Encodes a masked frame
+	 */
+	static byte[] frame(final int flags, final byte[] payload, final byte[] mask) {
+		final ByteBuffer frame = ByteBuffer.allocate(payload.length + 14);
+		frame.put((byte) flags);
+		if (payload.length < 126) {
+			frame.put((byte) (0x80 | payload.length));
+		} else if (payload.length < 65536) {
+			frame.put((byte) (0x80 | 126)).putShort((short) payload.length);
+		} else {
+			frame.put((byte) (0x80 | 127)).putLong(payload.length);
+		}
+		frame.put(mask);
+		for (int i = 0; i < payload.length; i++) {
+			frame.put((byte) (payload[i] ^ mask[i & 3]));
+		}
+		frame.flip();
+		final byte[] bytes = new byte[frame.remaining()];
+		frame.get(bytes);
+		return bytes;
+	}
+
+	private static byte[] random(final Random random, final int length) {
+		final byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Feeds data in chunks of the given size
+	 */
+	private static void feed(final FrameSplitter splitter, final ReadHandler handler, final byte[] data,
+			final int chunkSize) throws IOException {
+		for (int offset = 0; offset < data.length; offset += chunkSize) {
+			splitter.feed(ByteBuffer.wrap(data, offset, Math.min(chunkSize, data.length - offset)), handler,
+					MAX_FRAME_SIZE);
+		}
+	}
+
+	@Test
+	void testLargeFrameIsFragmented() throws Exception {
+		final Random random = new Random(42);
+		final byte[] payload = random(random, 100000);
+		final byte[] frame = frame(0x80 | 0x40 | 0x2, payload, random(random, 4));
+
+		for (final int chunkSize : new int[] { 1, 3, 7, 500, 4096, frame.length - 1 }) {
+			final FrameSplitter splitter = new FrameSplitter();
+			final CapturingReadHandler handler = new CapturingReadHandler();
+			feed(splitter, handler, frame, chunkSize);
+
+			assertTrue(splitter.isIdle());
+			assertArrayEquals(payload, handler.payload(), "Chunks of " + chunkSize + " bytes");
+
+			// The first fragment keeps the opcode and extension bits, the last one the final bit
+			final List<Piece> pieces = handler.pieces;
+			assertTrue(pieces.size() > 1);
+			assertEquals(0x40 | 0x2, pieces.get(0).flags);
+			for (int i = 1; i < pieces.size() - 1; i++) {
+				assertEquals(0, pieces.get(i).flags);
+			}
+			assertEquals(0x80, pieces.get(pieces.size() - 1).flags);
+		}
+	}
+
+	@Test
+	void testCompleteFramesGivenAsIs() throws Exception {
+		final Random random = new Random(3);
+		final List<byte[]> frames = List.of(frame(0x80 | 0x1, random(random, 20), random(random, 4)),
+				frame(0x2, random(random, 2000), random(random, 4)),
+				frame(0x80 | 0x9, random(random, 125), random(random, 4)),
+				frame(0x80, random(random, 70000), random(random, 4)));
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		frames.forEach(data::writeBytes);
+
+		final FrameSplitter splitter = new FrameSplitter();
+		final CapturingReadHandler handler = new CapturingReadHandler(data.size());
+		splitter.feed(ByteBuffer.wrap(data.toByteArray()), handler, MAX_FRAME_SIZE);
+		assertTrue(splitter.isIdle());
+
+		// One call per frame, with the bytes of the client
+		assertEquals(frames.size(), handler.raw.size());
+		for (int i = 0; i < frames.size(); i++) {
+			assertArrayEquals(frames.get(i), handler.raw.get(i));
+		}
+	}
+
+	@Test
+	void testOnlyFrameSpanningReadsIsFragmented() throws Exception {
+		final Random random = new Random(5);
+		final byte[] first = frame(0x80 | 0x1, random(random, 100), random(random, 4));
+		final byte[] spanning = frame(0x80 | 0x2, random(random, 3000), random(random, 4));
+		final byte[] last = frame(0x80 | 0x1, random(random, 50), random(random, 4));
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.writeBytes(first);
+		data.writeBytes(spanning);
+		data.writeBytes(last);
+		final byte[] bytes = data.toByteArray();
+
+		final FrameSplitter splitter = new FrameSplitter();
+		final CapturingReadHandler handler = new CapturingReadHandler();
+		final int split = first.length + 1000;
+		splitter.feed(ByteBuffer.wrap(bytes, 0, split), handler, MAX_FRAME_SIZE);
+		splitter.feed(ByteBuffer.wrap(bytes, split, bytes.length - split), handler, MAX_FRAME_SIZE);
+		assertTrue(splitter.isIdle());
+
+		// The frames complete in a read are given as is, the other one in fragments
+		assertArrayEquals(first, handler.raw.get(0));
+		assertArrayEquals(last, handler.raw.get(handler.raw.size() - 1));
+		assertTrue(handler.raw.size() > 3);
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		for (final Piece piece : handler.pieces.subList(1, handler.pieces.size() - 1)) {
+			payload.writeBytes(piece.payload);
+		}
+		assertEquals(3000, payload.size());
+		assertEquals(0x80, handler.pieces.get(handler.pieces.size() - 2).flags);
+	}
+
+	@Test
+	void testControlFrameIsGiven() throws Exception {
+		final Random random = new Random(7);
+		final byte[] ping = random(random, 125);
+		final byte[] text = random(random, 2000);
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.writeBytes(frame(0x1, text, random(random, 4)));
+		data.writeBytes(frame(0x80 | 0x9, ping, random(random, 4)));
+		data.writeBytes(frame(0x80, new byte[0], random(random, 4)));
+
+		final FrameSplitter splitter = new FrameSplitter();
+		final CapturingReadHandler handler = new CapturingReadHandler();
+		feed(splitter, handler, data.toByteArray(), 5);
+		assertTrue(splitter.isIdle());
+
+		// Ping between the fragments of a text message, given whole
+		final List<Piece> pings = new ArrayList<>();
+		final ByteArrayOutputStream message = new ByteArrayOutputStream();
+		for (final Piece piece : handler.pieces) {
+			if ((piece.flags & 0x0F) == 0x9) {
+				pings.add(piece);
+			} else {
+				message.writeBytes(piece.payload);
+			}
+		}
+		assertEquals(1, pings.size());
+		assertEquals(0x80 | 0x9, pings.get(0).flags);
+		assertArrayEquals(ping, pings.get(0).payload);
+		assertArrayEquals(text, message.toByteArray());
+
+		// Empty final continuation
+		final Piece last = handler.pieces.get(handler.pieces.size() - 1);
+		assertEquals(0x80, last.flags);
+		assertEquals(0, last.payload.length);
+	}
+
+	@Test
+	void testPartialFrame() throws Exception {
+		final byte[] frame = frame(0x80 | 0x1, new byte[] { 'a', 'b', 'c' }, new byte[] { 1, 2, 3, 4 });
+		final FrameSplitter splitter = new FrameSplitter();
+		final CapturingReadHandler handler = new CapturingReadHandler();
+
+		splitter.feed(ByteBuffer.wrap(frame, 0, 4), handler, MAX_FRAME_SIZE);
+		assertFalse(splitter.isIdle());
+		assertTrue(handler.pieces.isEmpty());
+
+		splitter.feed(ByteBuffer.wrap(frame, 4, frame.length - 4), handler, MAX_FRAME_SIZE);
+		assertTrue(splitter.isIdle());
+		assertEquals(1, handler.pieces.size());
+		assertEquals(0x80 | 0x1, handler.pieces.get(0).flags);
+		assertArrayEquals(new byte[] { 'a', 'b', 'c' }, handler.pieces.get(0).payload);
+	}
+
+	@Test
+	void testFrameTooLarge() {
+		final byte[] frame = frame(0x80 | 0x2, new byte[2000], new byte[4]);
+		final FrameSplitter splitter = new FrameSplitter();
+		final CapturingReadHandler handler = new CapturingReadHandler();
+
+		assertThrows(IOException.class, () -> splitter.feed(ByteBuffer.wrap(frame), handler, 1024));
+		assertTrue(handler.pieces.isEmpty());
+	}
+
+	@Test
+	void testControlFrameTooLarge() {
+		final ByteBuffer frame = ByteBuffer.allocate(8).put((byte) (0x80 | 0x9)).put((byte) (0x80 | 126))
+				.putShort((short) 200).putInt(0);
+		frame.flip();
+		final FrameSplitter splitter = new FrameSplitter();
+
+		assertThrows(IOException.class, () -> splitter.feed(frame, new CapturingReadHandler(), MAX_FRAME_SIZE));
+	}
+}
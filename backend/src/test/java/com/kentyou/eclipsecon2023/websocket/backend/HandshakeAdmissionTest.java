@@ -0,0 +1,163 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+class HandshakeAdmissionTest {
+
+	@Test
+	void testDisabled() {
+		final HandshakeAdmission admission = new HandshakeAdmission(0, 1, 0, 1, 10, 1, 0);
+		assertFalse(admission.isEnabled());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(0, admission.admit("10.0.0.1"));
+		}
+		assertEquals(1000, admission.getAdmitted());
+		assertEquals(0, admission.getRejected());
+		assertEquals(0, admission.getAddresses());
+	}
+
+	@Test
+	void testNodeBurst() {
+		// One request per 100 seconds: only the burst is admitted during the test
+		final HandshakeAdmission admission = new HandshakeAdmission(0.01, 5, 0, 1, 10, 1, 0);
+		assertTrue(admission.isEnabled());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(0, admission.admit("10.0.0." + i));
+		}
+
+		// The client is told to wait for the next token
+		final int retryAfter = admission.admit("10.0.0.10");
+		assertTrue(retryAfter > 1 && retryAfter <= 100, "Retry after " + retryAfter);
+		assertEquals(5, admission.getAdmitted());
+		assertEquals(1, admission.getRejected());
+	}
+
+	@Test
+	void testRetryJitter() {
+		final HandshakeAdmission admission = new HandshakeAdmission(0.01, 1, 0, 1, 10, 5, 3);
+		assertEquals(0, admission.admit(null));
+		for (int i = 0; i < 100; i++) {
+			final int retryAfter = admission.admit(null);
+			assertTrue(retryAfter >= 100 && retryAfter <= 103, "Retry after " + retryAfter);
+		}
+		assertEquals(100, admission.getRejected());
+	}
+
+	@Test
+	void testBucketRefills() {
+		// One request per 50 milliseconds, no burst
+		final AtomicLong now = new AtomicLong();
+		final HandshakeAdmission admission = new HandshakeAdmission(20, 1, 0, 1, 10, 1, 0, now::get);
+		assertEquals(0, admission.admit(null));
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(49));
+		assertTrue(admission.admit(null) > 0);
+
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+		assertEquals(0, admission.admit(null));
+		assertEquals(2, admission.getAdmitted());
+		assertEquals(1, admission.getRejected());
+	}
+
+	@Test
+	void testAddressBuckets() {
+		// Node limit disabled, 2 requests per remote address
+		final HandshakeAdmission admission = new HandshakeAdmission(0, 1, 0.01, 2, 2, 1, 0);
+		assertEquals(0, admission.admit("10.0.0.1"));
+		assertEquals(0, admission.admit("10.0.0.1"));
+		assertTrue(admission.admit("10.0.0.1") > 0);
+
+		// Other addresses have their own bucket
+		assertEquals(0, admission.admit("10.0.0.2"));
+		assertEquals(2, admission.getAddresses());
+
+		// Addresses beyond the tracked maximum are only limited by the node bucket
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0, admission.admit("10.0.0.3"));
+		}
+		assertEquals(2, admission.getAddresses());
+		assertEquals(13, admission.getAdmitted());
+		assertEquals(1, admission.getRejected());
+	}
+
+	@Test
+	void testRejectedAddressDoesNotTakeNodeToken() {
+		final HandshakeAdmission admission = new HandshakeAdmission(0.01, 2, 0.01, 1, 10, 1, 0);
+		assertEquals(0, admission.admit("10.0.0.1"));
+		assertTrue(admission.admit("10.0.0.1") > 0);
+
+		// The second node token is still available
+		assertEquals(0, admission.admit("10.0.0.2"));
+		assertTrue(admission.admit("10.0.0.3") > 0);
+	}
+
+	@Test
+	void testSweep() {
+		// Buckets of addresses are full again 10 milliseconds after their last request
+		final AtomicLong now = new AtomicLong(-TimeUnit.HOURS.toNanos(1));
+		final HandshakeAdmission admission = new HandshakeAdmission(0, 1, 100, 1, 10, 1, 0, now::get);
+		admission.admit("10.0.0.1");
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(5));
+		admission.admit("10.0.0.2");
+		admission.sweep();
+		assertEquals(2, admission.getAddresses());
+
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(5));
+		admission.sweep();
+		assertEquals(1, admission.getAddresses());
+
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(5));
+		admission.sweep();
+		assertEquals(0, admission.getAddresses());
+	}
+
+	@Test
+	void testPublishedThroughJmx() throws Exception {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = new ObjectName(WebSocketMetrics.JMX_DOMAIN + ":type=Admission");
+		final WebSocketMetrics metrics = new WebSocketMetrics();
+		metrics.activate();
+		try {
+			final HandshakeAdmission admission = new HandshakeAdmission(0.01, 1, 0, 1, 10, 1, 0);
+			metrics.setAdmission(admission);
+			assertSame(admission, metrics.getAdmission());
+
+			admission.admit(null);
+			admission.admit(null);
+			admission.admit(null);
+			assertEquals(Boolean.TRUE, server.getAttribute(name, "Enabled"));
+			assertEquals(1L, server.getAttribute(name, "Admitted"));
+			assertEquals(2L, server.getAttribute(name, "Rejected"));
+
+			metrics.unsetAdmission(admission);
+			assertNull(metrics.getAdmission());
+			assertFalse(server.isRegistered(name));
+		} finally {
+			metrics.deactivate();
+		}
+	}
+}
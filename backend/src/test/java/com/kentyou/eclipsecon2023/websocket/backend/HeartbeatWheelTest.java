@@ -0,0 +1,64 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class HeartbeatWheelTest {
+
+	private static final long TICK_MILLIS = 10;
+
+	@Test
+	void testConnectionClosedAfterTimeoutGrace() {
+		final AtomicLong now = new AtomicLong();
+		final HeartbeatWheel wheel = new HeartbeatWheel(TICK_MILLIS, 64, now::get);
+		final AtomicInteger forcedCloses = new AtomicInteger();
+
+		// The fake session fails the pings and the close: it never answers
+		assertNotNull(wheel.watch(FakeSession.create("1", null), new HeartbeatOptions(20, 20, 0),
+				forcedCloses::incrementAndGet));
+
+		// Pinged at the 2nd tick, timed out at the 4th
+		advanceTo(wheel, now, 4);
+		assertEquals(1, wheel.getTimeouts());
+		assertEquals(0, wheel.getSessions());
+		assertEquals(0, forcedCloses.get());
+
+		// The connection is closed once the closing handshake had its grace period, several turns of the wheel later
+		final long graceTicks = HeartbeatWheel.CLOSE_GRACE_MILLIS / TICK_MILLIS;
+		advanceTo(wheel, now, 4 + graceTicks - 1);
+		assertEquals(0, forcedCloses.get());
+		advanceTo(wheel, now, 4 + graceTicks);
+		assertEquals(1, forcedCloses.get());
+
+		advanceTo(wheel, now, 4 + 2 * graceTicks);
+		assertEquals(1, forcedCloses.get());
+	}
+
+	/**
+	 * Moves the clock to the given tick, one tick at a time
+	 */
+	private static void advanceTo(final HeartbeatWheel wheel, final AtomicLong now, final long tick) {
+		while (now.get() < TimeUnit.MILLISECONDS.toNanos(tick * TICK_MILLIS)) {
+			now.addAndGet(TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS));
+			wheel.advance();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.glassfish.tyrus.core.extension.ExtendedExtension.ExtensionContext;
+import org.glassfish.tyrus.core.frame.Frame;
+import org.junit.jupiter.api.Test;
+
+class PerMessageDeflateTest {
+
+	private static final byte TEXT = 0x1;
+	private static final byte CONTINUATION = 0x0;
+
+	/**
+	 * Extension context of a connection
+	 */
+	private static class Context implements ExtensionContext {
+		final Map<String, Object> properties = new HashMap<>();
+
+		@Override
+		public Map<String, Object> getProperties() {
+			return properties;
+		}
+	}
+
+	private static Frame frame(final byte opcode, final boolean fin, final byte[] payload) {
+		return Frame.builder().opcode(opcode).fin(fin).payloadData(payload).payloadLength(payload.length).build();
+	}
+
+	private static byte[] payload(final int length) {
+		return "compressible ".repeat(length / 13 + 1).substring(0, length).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	void testRoundTrip() {
+		final PerMessageDeflate deflate = new PerMessageDeflate(new DeflaterPool(), 16, false, false);
+		final Context server = new Context();
+		final Context peer = new Context();
+		deflate.onExtensionNegotiation(server, List.of());
+		deflate.onExtensionNegotiation(peer, List.of());
+
+		for (int i = 0; i < 3; i++) {
+			final byte[] payload = payload(1000 + i);
+			final Frame sent = deflate.processOutgoing(server, frame(TEXT, true, payload));
+			assertTrue(sent.isRsv1());
+			assertTrue(sent.getPayloadLength() < payload.length);
+
+			final Frame received = deflate.processIncoming(peer, sent);
+			assertFalse(received.isRsv1());
+			assertArrayEquals(payload, received.getPayloadData());
+		}
+
+		// Small messages are sent as is
+		final Frame small = frame(TEXT, true, payload(8));
+		assertSame(small, deflate.processOutgoing(server, small));
+
+		deflate.destroy(server);
+		deflate.destroy(peer);
+	}
+
+	@Test
+	void testCloseDuringFragmentedMessage() {
+		final PerMessageDeflate deflate = new PerMessageDeflate(new DeflaterPool(), 16, true, false);
+		final Context context = new Context();
+		deflate.onExtensionNegotiation(context, List.of());
+
+		assertTrue(deflate.processOutgoing(context, frame(TEXT, false, payload(1000))).isRsv1());
+
+		// Connection closed while a sender was still holding the connection state
+		final Object state = context.getProperties().get(PerMessageDeflate.class.getName());
+		deflate.destroy(context);
+		context.getProperties().put(PerMessageDeflate.class.getName(), state);
+
+		final Frame continuation = frame(CONTINUATION, true, payload(1000));
+		assertSame(continuation, deflate.processOutgoing(context, continuation));
+	}
+}
@@ -0,0 +1,159 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class SerialExecutorTest {
+
+	/**
+	 * Delegate executor running its tasks when asked to
+	 */
+	private static class ManualExecutor implements Executor {
+		final Queue<Runnable> tasks = new ArrayDeque<>();
+
+		@Override
+		public void execute(final Runnable command) {
+			tasks.add(command);
+		}
+
+		void runAll() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+	}
+
+	@Test
+	void testTasksRunInOrder() throws Exception {
+		final ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			final SerialExecutor executor = new SerialExecutor(pool);
+			final List<Integer> ran = new CopyOnWriteArrayList<>();
+			final AtomicInteger running = new AtomicInteger();
+			final AtomicInteger overlaps = new AtomicInteger();
+			final CountDownLatch done = new CountDownLatch(1000);
+
+			for (int i = 0; i < 1000; i++) {
+				final int index = i;
+				executor.execute(() -> {
+					if (running.incrementAndGet() != 1) {
+						overlaps.incrementAndGet();
+					}
+					ran.add(index);
+					running.decrementAndGet();
+					done.countDown();
+				});
+			}
+
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(0, overlaps.get());
+			for (int i = 0; i < 1000; i++) {
+				assertEquals(i, ran.get(i));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	void testFullUntilHalfDrained() {
+		final ManualExecutor delegate = new ManualExecutor();
+		final SerialExecutor executor = new SerialExecutor(delegate, 4);
+		final AtomicInteger resumed = new AtomicInteger();
+		final AtomicInteger pendingOnResume = new AtomicInteger(-1);
+		executor.setResumeListener(() -> {
+			resumed.incrementAndGet();
+			pendingOnResume.set(executor.getPending());
+		});
+
+		for (int i = 0; i < 3; i++) {
+			executor.execute(() -> {
+			});
+		}
+		assertFalse(executor.isFull());
+
+		// Tasks are accepted beyond the capacity, but the executor tells the producer to stop
+		executor.execute(() -> {
+		});
+		assertTrue(executor.isFull());
+		executor.execute(() -> {
+		});
+		assertTrue(executor.isFull());
+		assertEquals(5, executor.getPending());
+
+		// Single drain task, resuming the producer once half the capacity is left
+		assertEquals(1, delegate.tasks.size());
+		delegate.runAll();
+		assertEquals(0, executor.getPending());
+		assertFalse(executor.isFull());
+		assertEquals(1, resumed.get());
+		assertEquals(2, pendingOnResume.get());
+	}
+
+	@Test
+	void testRunsInlineWhenDelegateRejects() {
+		final SerialExecutor executor = new SerialExecutor(command -> {
+			throw new RejectedExecutionException();
+		});
+		final Thread caller = Thread.currentThread();
+		final AtomicInteger ranInline = new AtomicInteger();
+
+		executor.execute(() -> {
+			if (Thread.currentThread() == caller) {
+				ranInline.incrementAndGet();
+			}
+		});
+		assertEquals(1, ranInline.get());
+		assertEquals(0, executor.getPending());
+	}
+
+	@Test
+	void testFailingTaskDoesNotStopDrain() {
+		final ManualExecutor delegate = new ManualExecutor();
+		final SerialExecutor executor = new SerialExecutor(delegate, 8);
+		final AtomicInteger ran = new AtomicInteger();
+
+		executor.execute(() -> {
+			throw new IllegalStateException("Expected by the test");
+		});
+		executor.execute(ran::incrementAndGet);
+		delegate.runAll();
+
+		assertEquals(1, ran.get());
+		assertEquals(0, executor.getPending());
+	}
+
+	@Test
+	void testInvalidCapacity() {
+		assertThrows(IllegalArgumentException.class, () -> new SerialExecutor(Runnable::run, 0));
+	}
+}
@@ -0,0 +1,92 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.EndpointConfig;
+import jakarta.websocket.MessageHandler;
+import jakarta.websocket.Session;
+
+class TyrusHttpUpgradeHandlerTest {
+
+	private static final byte[] MASK = { 1, 2, 3, 4 };
+
+	private WSServerContainer container;
+
+	/**
+	 * Endpoint recording the parts of the text messages it receives
+	 */
+	public static class PartialEndpoint extends Endpoint {
+		final List<String> parts = new CopyOnWriteArrayList<>();
+		final List<Boolean> lasts = new CopyOnWriteArrayList<>();
+
+		@Override
+		public void onOpen(final Session session, final EndpointConfig config) {
+			session.addMessageHandler(String.class, new MessageHandler.Partial<String>() {
+				@Override
+				public void onMessage(final String part, final boolean last) {
+					parts.add(part);
+					lasts.add(last);
+				}
+			});
+		}
+	}
+
+	@AfterEach
+	void stopContainer() {
+		if (container != null) {
+			container.stop();
+		}
+	}
+
+	/**
+	 * Starts a container with a single endpoint instance, and opens a connection to it
+	 */
+	private FakeWebConnection connect(final String path, final Endpoint endpoint) throws Exception {
+		container = FakeUpgrade.container(path, endpoint);
+		final FakeWebConnection connection = new FakeWebConnection();
+		assertNotNull(FakeUpgrade.upgrade(container, path, connection));
+		return connection;
+	}
+
+	/**
+	 * Frames that arrive whole are given to a partial handler as sent by the client, even when they are larger than
+	 * the pieces frames spanning reads are split in
+	 */
+	@Test
+	void testPartialHandlerGetsClientFrames() throws Exception {
+		final PartialEndpoint endpoint = new PartialEndpoint();
+		final FakeWebConnection connection = connect("/ws/partial", endpoint);
+
+		final List<String> parts = List.of("a".repeat(2000), "b".repeat(10), "c".repeat(3000));
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.writeBytes(FrameSplitterTest.frame(0x1, parts.get(0).getBytes(StandardCharsets.UTF_8), MASK));
+		data.writeBytes(FrameSplitterTest.frame(0x0, parts.get(1).getBytes(StandardCharsets.UTF_8), MASK));
+		data.writeBytes(FrameSplitterTest.frame(0x80, parts.get(2).getBytes(StandardCharsets.UTF_8), MASK));
+		connection.getInputStream().receive(data.toByteArray());
+
+		assertEquals(parts, endpoint.parts);
+		assertEquals(List.of(false, false, true), endpoint.lasts);
+	}
+}
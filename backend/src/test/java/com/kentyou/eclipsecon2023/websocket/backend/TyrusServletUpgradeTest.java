@@ -0,0 +1,128 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import jakarta.servlet.http.HttpSession;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.EndpointConfig;
+import jakarta.websocket.Session;
+
+class TyrusServletUpgradeTest {
+
+	private static final String PATH = "/ws/test";
+
+	private WSServerContainer container;
+
+	/**
+	 * Endpoint recording the close codes of its sessions
+	 */
+	public static class ClosingEndpoint extends Endpoint {
+		final List<Integer> closeCodes = new CopyOnWriteArrayList<>();
+
+		@Override
+		public void onOpen(final Session session, final EndpointConfig config) {
+		}
+
+		@Override
+		public void onClose(final Session session, final CloseReason closeReason) {
+			closeCodes.add(closeReason.getCloseCode().getCode());
+		}
+	}
+
+	@AfterEach
+	void stopContainer() {
+		if (container != null) {
+			container.stop();
+		}
+	}
+
+	/**
+	 * Encodes the masked close frame of a client
+	 */
+	private static byte[] closeFrame() {
+		final byte[] payload = ByteBuffer.allocate(2).putShort((short) 1000).array();
+		return FrameSplitterTest.frame(0x80 | 0x8, payload, new byte[] { 1, 2, 3, 4 });
+	}
+
+	@Test
+	void testClosedWebSocketsForgotten() throws Exception {
+		final ClosingEndpoint endpoint = new ClosingEndpoint();
+		container = FakeUpgrade.container(PATH, endpoint);
+		final HttpSession httpSession = FakeHttpSession.create("http-1");
+		final FakeWebConnection first = new FakeWebConnection();
+		final FakeWebConnection second = new FakeWebConnection();
+		assertNotNull(FakeUpgrade.upgrade(container, PATH, httpSession, null, first));
+		assertNotNull(FakeUpgrade.upgrade(container, PATH, httpSession, null, second));
+		assertNotNull(httpSession.getAttribute(TyrusServletUpgrade.SESSION_LISTENER_ATTRIBUTE));
+
+		first.getInputStream().receive(closeFrame());
+		assertTrue(first.isClosed());
+		assertNotNull(httpSession.getAttribute(TyrusServletUpgrade.SESSION_LISTENER_ATTRIBUTE));
+
+		// The HTTP session is forgotten with its last WebSocket, without closing anything
+		second.getInputStream().receive(closeFrame());
+		assertTrue(second.isClosed());
+		assertNull(httpSession.getAttribute(TyrusServletUpgrade.SESSION_LISTENER_ATTRIBUTE));
+		assertTrue(container.getServletUpgrade().destroySession(httpSession).isEmpty());
+		assertEquals(List.of(1000, 1000), endpoint.closeCodes);
+	}
+
+	@Test
+	void testInvalidatedSessionClosesWebSockets() throws Exception {
+		final ClosingEndpoint endpoint = new ClosingEndpoint();
+		container = FakeUpgrade.container(PATH, endpoint);
+		final HttpSession httpSession = FakeHttpSession.create("http-1");
+		final FakeWebConnection authenticated = new FakeWebConnection();
+		final FakeWebConnection other = new FakeWebConnection();
+		assertNotNull(FakeUpgrade.upgrade(container, PATH, httpSession, "user", authenticated));
+		assertNotNull(FakeUpgrade.upgrade(container, PATH, FakeHttpSession.create("http-2"), "user", other));
+
+		httpSession.invalidate();
+		assertTrue(authenticated.isClosed());
+		assertFalse(other.isClosed());
+		assertEquals(List.of(CloseReason.CloseCodes.VIOLATED_POLICY.getCode()), endpoint.closeCodes);
+		assertTrue(container.getServletUpgrade().destroySession(httpSession).isEmpty());
+	}
+
+	@Test
+	void testStopClosesAllWebSockets() throws Exception {
+		final ClosingEndpoint endpoint = new ClosingEndpoint();
+		container = FakeUpgrade.container(PATH, endpoint);
+		final FakeWebConnection anonymous = new FakeWebConnection();
+		final FakeWebConnection withSession = new FakeWebConnection();
+		assertNotNull(FakeUpgrade.upgrade(container, PATH, anonymous));
+		assertNotNull(FakeUpgrade.upgrade(container, PATH, FakeHttpSession.create("http-1"), null, withSession));
+
+		// WebSockets without an HTTP session are closed too
+		container.stop();
+		container = null;
+		assertTrue(anonymous.isClosed());
+		assertTrue(withSession.isClosed());
+		assertEquals(List.of(CloseReason.CloseCodes.CLOSED_ABNORMALLY.getCode(),
+				CloseReason.CloseCodes.CLOSED_ABNORMALLY.getCode()), endpoint.closeCodes);
+	}
+}
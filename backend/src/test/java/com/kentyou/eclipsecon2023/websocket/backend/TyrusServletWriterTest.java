@@ -0,0 +1,457 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.glassfish.tyrus.spi.CompletionHandler;
+import org.junit.jupiter.api.Test;
+
+class TyrusServletWriterTest {
+
+	private static final int FRAME_SIZE = 16;
+
+	/**
+	 * Whole binary message frame holding the ID of its sender and its sequence number
+	 */
+	private static ByteBuffer frame(final int sender, final int sequence) {
+		final ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+		frame.put((byte) 0x82).put((byte) (FRAME_SIZE - 2)).putInt(sender).putInt(sequence);
+		return frame.clear();
+	}
+
+	/**
+	 * Frame of a fragmented message, holding its sequence number
+	 */
+	private static ByteBuffer fragment(final int opcode, final boolean fin, final int sequence) {
+		final ByteBuffer frame = ByteBuffer.allocate(6);
+		frame.put((byte) ((fin ? 0x80 : 0) | opcode)).put((byte) 4).putInt(sequence);
+		return frame.clear();
+	}
+
+	/**
+	 * Close frame without payload
+	 */
+	private static ByteBuffer closeFrame() {
+		return ByteBuffer.wrap(new byte[] { (byte) 0x88, 0 });
+	}
+
+	private static OutboundOptions options(int coalesceBytes, long highWatermark, long lowWatermark,
+			long queueLimit) {
+		return new OutboundOptions(coalesceBytes, 0, highWatermark, lowWatermark, queueLimit, 100);
+	}
+
+	/**
+	 * Completion handler recording the outcome of a frame
+	 */
+	private static class Outcome extends CompletionHandler<ByteBuffer> {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile boolean completed;
+		volatile Throwable failure;
+
+		@Override
+		public void completed(final ByteBuffer result) {
+			completed = true;
+			done.countDown();
+		}
+
+		@Override
+		public void failed(final Throwable throwable) {
+			failure = throwable;
+			done.countDown();
+		}
+	}
+
+	@Test
+	void testFramesWrittenInOrder() throws Exception {
+		final FakeWebConnection connection = new FakeWebConnection();
+		final TyrusServletWriter writer = new TyrusServletWriter(connection, options(0, 1024, 512, 4096), null,
+				null);
+
+		final List<Outcome> outcomes = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			final Outcome outcome = new Outcome();
+			outcomes.add(outcome);
+			writer.write(frame(0, i), outcome);
+		}
+
+		for (final Outcome outcome : outcomes) {
+			assertTrue(outcome.completed);
+		}
+		assertEquals(0, writer.getQueuedFrames());
+		assertEquals(0, writer.getQueuedBytes());
+
+		final ByteBuffer content = ByteBuffer.wrap(connection.getOutputStream().getContent());
+		assertEquals(10 * FRAME_SIZE, content.remaining());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, content.getInt(i * FRAME_SIZE + 6));
+		}
+	}
+
+	@Test
+	void testConcurrentWriters() throws Exception {
+		checkConcurrentWriters(0);
+	}
+
+	@Test
+	void testConcurrentWritersCoalescing() throws Exception {
+		checkConcurrentWriters(256);
+	}
+
+	/**
+	 * Writes frames from several threads while the stream readiness changes, and checks that each frame is written
+	 * once, in the order of its sender
+	 */
+	private void checkConcurrentWriters(final int coalesceBytes) throws Exception {
+		final int senders = 8;
+		final int framesPerSender = 2000;
+
+		final FakeWebConnection connection = new FakeWebConnection();
+		final FakeServletOutputStream stream = connection.getOutputStream();
+		final TyrusServletWriter writer = new TyrusServletWriter(connection,
+				options(coalesceBytes, Long.MAX_VALUE / 2, 0, Long.MAX_VALUE), null, null);
+
+		final AtomicInteger completed = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final CompletionHandler<ByteBuffer> handler = new CompletionHandler<ByteBuffer>() {
+			@Override
+			public void completed(final ByteBuffer result) {
+				completed.incrementAndGet();
+			}
+
+			@Override
+			public void failed(final Throwable throwable) {
+				failure.set(throwable);
+			}
+		};
+
+		// Peer alternately blocking and reading
+		final AtomicBoolean sending = new AtomicBoolean(true);
+		final Thread peer = new Thread(() -> {
+			try {
+				while (sending.get()) {
+					stream.setReady(false);
+					Thread.yield();
+					stream.setReady(true);
+				}
+			} catch (IOException e) {
+				failure.set(e);
+			}
+		});
+		peer.start();
+
+		final List<Thread> threads = new ArrayList<>();
+		final CountDownLatch start = new CountDownLatch(1);
+		for (int s = 0; s < senders; s++) {
+			final int sender = s;
+			final Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < framesPerSender; i++) {
+					writer.write(frame(sender, i), handler);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		sending.set(false);
+		peer.join();
+		stream.setReady(true);
+
+		assertNull(failure.get());
+		assertEquals(senders * framesPerSender, completed.get());
+		assertEquals(0, writer.getQueuedFrames());
+		assertEquals(0, writer.getQueuedBytes());
+
+		final ByteBuffer content = ByteBuffer.wrap(stream.getContent());
+		assertEquals(senders * framesPerSender * FRAME_SIZE, content.remaining());
+		final int[] next = new int[senders];
+		for (int offset = 0; offset < content.limit(); offset += FRAME_SIZE) {
+			final int sender = content.getInt(offset + 2);
+			assertEquals(next[sender]++, content.getInt(offset + 6), "Frame out of order for sender " + sender);
+		}
+	}
+
+	@Test
+	void testQueueLimit() throws Exception {
+		final FakeWebConnection connection = new FakeWebConnection();
+		final FakeServletOutputStream stream = connection.getOutputStream();
+		stream.setReady(false);
+		final TyrusServletWriter writer = new TyrusServletWriter(connection,
+				options(0, 3 * FRAME_SIZE, FRAME_SIZE, 3 * FRAME_SIZE), null, null);
+
+		final List<Outcome> outcomes = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			final Outcome outcome = new Outcome();
+			outcomes.add(outcome);
+			writer.write(frame(0, i), outcome);
+		}
+
+		// The last frame doesn't fit in the queue
+		assertInstanceOf(IOException.class, outcomes.get(3).failure);
+		assertEquals(1, writer.getRejectedFrames());
+		assertEquals(3, writer.getQueuedFrames());
+		assertEquals(3 * FRAME_SIZE, writer.getQueuedBytes());
+
+		// The queued ones are written once the peer reads again
+		stream.setReady(true);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(outcomes.get(i).completed);
+		}
+		assertEquals(3 * FRAME_SIZE, stream.getContent().length);
+		assertEquals(0, writer.getQueuedBytes());
+
+		// A frame larger than the limit is accepted in an empty queue, so that it can be sent at all
+		final Outcome large = new Outcome();
+		writer.write(ByteBuffer.allocate(4 * FRAME_SIZE).put(0, (byte) 0x82), large);
+		assertTrue(large.completed);
+
+	}
+
+	@Test
+	void testCloseFrameIgnoresQueueLimit() throws Exception {
+		final FakeWebConnection connection = new FakeWebConnection();
+		final FakeServletOutputStream stream = connection.getOutputStream();
+		stream.setReady(false);
+		final TyrusServletWriter writer = new TyrusServletWriter(connection,
+				options(0, 2 * FRAME_SIZE, FRAME_SIZE, 2 * FRAME_SIZE), null, null);
+		writer.write(frame(0, 0), new Outcome());
+		writer.write(frame(0, 1), new Outcome());
+
+		// The queue is full, but the session can still be closed
+		final Outcome data = new Outcome();
+		writer.write(frame(0, 2), data);
+		assertInstanceOf(IOException.class, data.failure);
+		final Outcome close = new Outcome();
+		writer.write(closeFrame(), close);
+		assertNull(close.failure);
+		assertEquals(2 * FRAME_SIZE + 2, writer.getQueuedBytes());
+
+		stream.setReady(true);
+		assertTrue(close.completed);
+		assertEquals(2 * FRAME_SIZE + 2, stream.getContent().length);
+	}
+
+	@Test
+	void testWatermarks() throws Exception {
+		final FakeWebConnection connection = new FakeWebConnection();
+		final FakeServletOutputStream stream = connection.getOutputStream();
+		stream.setReady(false);
+		final TyrusServletWriter writer = new TyrusServletWriter(connection,
+				options(0, 4 * FRAME_SIZE, 2 * FRAME_SIZE, 100 * FRAME_SIZE), null, null);
+
+		final List<Boolean> transitions = new CopyOnWriteArrayList<>();
+		writer.addWritabilityListener(transitions::add);
+
+		for (int i = 0; i < 4; i++) {
+			writer.write(frame(0, i), new Outcome());
+		}
+		assertTrue(writer.isWritable(), "Not over the high watermark yet");
+
+		writer.write(frame(0, 4), new Outcome());
+		assertFalse(writer.isWritable());
+		writer.write(frame(0, 5), new Outcome());
+		assertEquals(List.of(false), transitions);
+
+		// Writable again once drained under the low watermark
+		final CountDownLatch writable = new CountDownLatch(1);
+		writer.whenWritable(writable::countDown);
+		stream.setReady(true);
+		assertTrue(writable.await(1, TimeUnit.SECONDS));
+		assertTrue(writer.isWritable());
+		assertEquals(List.of(false, true), transitions);
+	}
+
+	@Test
+	void testDropNewestPolicy() throws Exception {
+		final FakeWebConnection connection = new FakeWebConnection();
+		final FakeServletOutputStream stream = connection.getOutputStream();
+		stream.setReady(false);
+		final TyrusServletWriter writer = new TyrusServletWriter(connection,
+				options(0, 2 * FRAME_SIZE, FRAME_SIZE, 100 * FRAME_SIZE), null, null);
+		writer.setSlowConsumerPolicy(SlowConsumerPolicy.DROP_NEWEST, null);
+
+		final List<Outcome> outcomes = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			final Outcome outcome = new Outcome();
+			outcomes.add(outcome);
+			writer.write(frame(0, i), outcome);
+		}
+
+		// Frames sent over the high watermark are dropped
+		assertEquals(2, writer.getDroppedFrames());
+		assertInstanceOf(IOException.class, outcomes.get(3).failure);
+		assertInstanceOf(IOException.class, outcomes.get(4).failure);
+
+		stream.setReady(true);
+		final ByteBuffer content = ByteBuffer.wrap(stream.getContent());
+		assertEquals(3 * FRAME_SIZE, content.remaining());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(i, content.getInt(i * FRAME_SIZE + 6));
+		}
+	}
+
+	@Test
+	void testDropOldestPolicy() throws Exception {
+		final FakeWebConnection connection = new FakeWebConnection();
+		final FakeServletOutputStream stream = connection.getOutputStream();
+		stream.setReady(false);
+		final TyrusServletWriter writer = new TyrusServletWriter(connection,
+				options(0, 2 * FRAME_SIZE, FRAME_SIZE, 100 * FRAME_SIZE), null, null);
+		writer.setSlowConsumerPolicy(SlowConsumerPolicy.DROP_OLDEST, null);
+
+		for (int i = 0; i < 6; i++) {
+			writer.write(frame(0, i), new Outcome());
+		}
+
+		stream.setReady(true);
+		final ByteBuffer content = ByteBuffer.wrap(stream.getContent());
+		assertTrue(writer.getDroppedFrames() > 0);
+		assertEquals(6 - writer.getDroppedFrames(), content.remaining() / FRAME_SIZE);
+
+		// The newest frame is always kept
+		assertEquals(5, content.getInt(content.limit() - FRAME_SIZE + 6));
+	}
+
+	@Test
+	void testEndpointMetrics() throws Exception {
+		final FakeWebConnection connection = new FakeWebConnection();
+		final FakeServletOutputStream stream = connection.getOutputStream();
+		stream.setReady(false);
+		final TyrusServletWriter writer = new TyrusServletWriter(connection,
+				options(0, 2 * FRAME_SIZE, FRAME_SIZE, 3 * FRAME_SIZE), null, null);
+		writer.setSlowConsumerPolicy(SlowConsumerPolicy.DROP_NEWEST, null);
+
+		final EndpointMetrics metrics = new EndpointMetrics("/ws/test");
+		writer.setEndpointMetrics(metrics);
+
+		for (int i = 0; i < 4; i++) {
+			writer.write(frame(0, i), new Outcome());
+		}
+		assertEquals(3, metrics.getQueuedFrames());
+		assertEquals(3 * FRAME_SIZE, metrics.getQueuedBytes());
+		assertEquals(1, metrics.getUnwritableSessions());
+		assertEquals(1, metrics.getDroppedFrames());
+
+		stream.setReady(true);
+		assertEquals(0, metrics.getQueuedFrames());
+		assertEquals(0, metrics.getUnwritableSessions());
+		assertEquals(3, metrics.getQueueResidenceCount());
+
+		// Closed sessions aren't summed anymore, but their counts are kept
+		writer.setEndpointMetrics(null);
+		stream.setReady(false);
+		writer.write(frame(0, 4), new Outcome());
+		assertEquals(0, metrics.getQueuedFrames());
+		assertEquals(1, metrics.getDroppedFrames());
+	}
+
+	@Test
+	void testMessageWaitsForFragmentedMessage() throws Exception {
+		final FakeWebConnection connection = new FakeWebConnection();
+		final TyrusServletWriter writer = new TyrusServletWriter(connection, options(0, 1024, 512, 4096), null,
+				null);
+
+		final Outcome broadcast = new Outcome();
+		writer.write(fragment(0x2, false, 1), new Outcome());
+		assertTrue(writer.writeMessage(frame(0, 42), broadcast, null));
+		writer.write(fragment(0x0, false, 2), new Outcome());
+		assertFalse(broadcast.completed);
+		writer.write(fragment(0x0, true, 3), new Outcome());
+		assertTrue(broadcast.completed);
+
+		// Whole fragmented message, then the broadcast frame
+		final ByteBuffer content = ByteBuffer.wrap(connection.getOutputStream().getContent());
+		assertEquals(3 * 6 + FRAME_SIZE, content.remaining());
+		assertEquals(1, content.getInt(2));
+		assertEquals(2, content.getInt(8));
+		assertEquals((byte) 0x80, content.get(12));
+		assertEquals(3, content.getInt(14));
+		assertEquals((byte) 0x82, content.get(18));
+		assertEquals(42, content.getInt(18 + 6));
+		assertEquals(0, writer.getQueuedBytes());
+	}
+
+	@Test
+	void testNoDataAfterClose() throws Exception {
+		final FakeWebConnection connection = new FakeWebConnection();
+		final FakeServletOutputStream stream = connection.getOutputStream();
+		final TyrusServletWriter writer = new TyrusServletWriter(connection, options(0, 1024, 512, 4096), null,
+				null);
+		stream.setReady(false);
+
+		// Deferred by a fragmented message, then orphaned by the close frame
+		writer.write(fragment(0x1, false, 1), new Outcome());
+		final Outcome deferred = new Outcome();
+		assertTrue(writer.writeMessage(frame(0, 1), deferred, null));
+		writer.write(closeFrame(), new Outcome());
+		assertInstanceOf(IOException.class, deferred.failure);
+
+		final Outcome afterClose = new Outcome();
+		assertFalse(writer.writeMessage(frame(0, 2), afterClose, null));
+		assertInstanceOf(IOException.class, afterClose.failure);
+		final Outcome tyrusAfterClose = new Outcome();
+		writer.write(frame(0, 3), tyrusAfterClose);
+		assertInstanceOf(IOException.class, tyrusAfterClose.failure);
+
+		stream.setReady(true);
+		assertEquals(6 + 2, stream.getContent().length);
+		assertEquals(0, writer.getQueuedBytes());
+		assertEquals(0, writer.getQueuedFrames());
+	}
+
+	@Test
+	void testDeferredFramesFailedWithConnection() throws Exception {
+		final FakeWebConnection connection = new FakeWebConnection();
+		final FakeServletOutputStream stream = connection.getOutputStream();
+		final TyrusServletWriter writer = new TyrusServletWriter(connection, options(0, 1024, 512, 4096), null,
+				null);
+		stream.setReady(false);
+
+		// Waiting for a fragmented message that will never be finished
+		writer.write(fragment(0x2, false, 1), new Outcome());
+		final Outcome deferred = new Outcome();
+		assertTrue(writer.writeMessage(frame(0, 1), deferred, null));
+		assertEquals(6 + FRAME_SIZE, writer.getQueuedBytes());
+
+		final IOException error = new IOException("Connection reset");
+		writer.onError(error);
+		assertSame(error, deferred.failure);
+		assertEquals(0, writer.getQueuedBytes());
+		assertEquals(0, writer.getQueuedFrames());
+	}
+}
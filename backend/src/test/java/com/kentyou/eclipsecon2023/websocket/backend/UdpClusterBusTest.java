@@ -0,0 +1,102 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.kentyou.eclipsecon2023.websocket.backend.ClusterMessage.Target;
+
+class UdpClusterBusTest {
+
+	private final List<UdpClusterBus> buses = new ArrayList<>();
+
+	@AfterEach
+	void stopBuses() throws Exception {
+		for (final UdpClusterBus bus : buses) {
+			bus.deactivate();
+		}
+	}
+
+	private static int freePort() throws Exception {
+		try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private UdpClusterBus bus(final String nodeId, final int port, final String... peers) throws Exception {
+		final UdpClusterBus bus = new UdpClusterBus(Configs.create(UdpClusterBus.Config.class,
+				Map.of("node_id", nodeId, "port", port, "peers", peers, "tick_ms", 5L)));
+		buses.add(bus);
+		return bus;
+	}
+
+	private static ClusterMessage poll(final BlockingQueue<ClusterMessage> queue) throws InterruptedException {
+		return queue.poll(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void testDefaultBindAddressIsLoopback() {
+		assertEquals("127.0.0.1", Configs.create(UdpClusterBus.Config.class, Map.of()).bind_address());
+	}
+
+	@Test
+	void testOnlyPeersAccepted() throws Exception {
+		final int portA = freePort();
+		final int portB = freePort();
+		final int portC = freePort();
+
+		final UdpClusterBus a = bus("a", portA, "127.0.0.1:" + portB);
+		final UdpClusterBus b = bus("b", portB, "localhost:" + portA);
+		// Not a peer of a, which it sends to anyway
+		final UdpClusterBus c = bus("c", portC, "127.0.0.1:" + portA);
+
+		final BlockingQueue<ClusterMessage> received = new LinkedBlockingQueue<>();
+		a.setReceiver(received::add);
+
+		c.publish(ClusterMessage.text(Target.PATH, "/chat", null, "intruder"));
+		c.flush();
+		b.publish(ClusterMessage.text(Target.PATH, "/chat", null, "peer"));
+		b.flush();
+
+		final ClusterMessage message = poll(received);
+		assertEquals("peer", message.getText());
+		assertTrue(received.isEmpty());
+
+		// The datagram of the intruder was dropped
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (a.getDroppedDatagrams() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, a.getDroppedDatagrams());
+		assertEquals(1, a.getReceived());
+	}
+
+	@Test
+	void testInvalidPeer() {
+		assertThrows(IllegalArgumentException.class, () -> bus("a", 0, "no-port"));
+	}
+}
@@ -0,0 +1,117 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+import jakarta.websocket.server.ServerEndpointConfig;
+
+class WebSocketRegistrarTest {
+
+	/**
+	 * Declarative Services binds the endpoint services right after calling the constructor: the proxy configurations
+	 * must get the services without waiting for the field references
+	 */
+	@Test
+	void testProxyConfigRightAfterConstruction() throws Exception {
+		final WebSocketSessionRegistry sessionRegistry = new WebSocketSessionRegistry();
+		final WebSocketMetrics metrics = new WebSocketMetrics();
+		final SessionStateStore stateStore = new SessionStateStore(4096, 256, 1 << 20);
+		final WebSocketTuning tuning = new WebSocketTuning();
+		final WebSocketRegistrar registrar = new WebSocketRegistrar(
+				Configs.create(WebSocketRegistrar.Config.class, Map.of()), new DeflaterPool(), sessionRegistry,
+				metrics, stateStore, tuning, new ByteBufferPool());
+
+		final ServerEndpointConfig config = registrar.makeProxyConfig(ComponentEndpointProxyClass.class, "/ws/test",
+				42L, List.of());
+		final Map<String, Object> userProperties = config.getUserProperties();
+		assertSame(sessionRegistry, userProperties.get("osgi.ws.registry"));
+		assertSame(metrics, userProperties.get("osgi.ws.metrics"));
+		assertSame(stateStore, userProperties.get("osgi.ws.state"));
+		assertSame(tuning, userProperties.get("osgi.ws.tuning"));
+	}
+
+	/**
+	 * The registrar is both the filter upgrading the connections and a servlet: only the filter instance publishes
+	 * its admission control
+	 */
+	@Test
+	void testAdmissionPublishedByFilterInstance() throws Exception {
+		final WebSocketMetrics metrics = new WebSocketMetrics();
+		final WebSocketRegistrar filter = registrar(metrics);
+		final WebSocketRegistrar servlet = registrar(metrics);
+		assertNull(metrics.getAdmission());
+
+		filter.init(FakeServletContext.filterConfig(FakeServletContext.create("")));
+		final HandshakeAdmissionMXBean admission = metrics.getAdmission();
+		assertNotNull(admission);
+
+		// The servlet instance is never initialized as a filter
+		servlet.destroy();
+		assertSame(admission, metrics.getAdmission());
+
+		filter.destroy();
+		assertNull(metrics.getAdmission());
+	}
+
+	/**
+	 * The filter instance publishes the counters of the buffer pool of its connections next to the endpoint metrics
+	 */
+	@Test
+	void testBufferPoolPublishedByFilterInstance() throws Exception {
+		final WebSocketMetrics metrics = new WebSocketMetrics();
+		metrics.activate();
+		try {
+			final WebSocketRegistrar filter = registrar(metrics);
+			final WebSocketRegistrar servlet = registrar(metrics);
+			final ObjectName name = new ObjectName(WebSocketMetrics.JMX_DOMAIN + ":type=BufferPool");
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertNull(metrics.getBufferPool());
+
+			filter.init(FakeServletContext.filterConfig(FakeServletContext.create("")));
+			final ByteBufferPoolMXBean bufferPool = metrics.getBufferPool();
+			assertNotNull(bufferPool);
+			assertTrue(server.isRegistered(name));
+			assertEquals(bufferPool.getMaxPooledSize(), server.getAttribute(name, "MaxPooledSize"));
+
+			servlet.destroy();
+			assertSame(bufferPool, metrics.getBufferPool());
+
+			filter.destroy();
+			assertNull(metrics.getBufferPool());
+			assertFalse(server.isRegistered(name));
+		} finally {
+			metrics.deactivate();
+		}
+	}
+
+	private static WebSocketRegistrar registrar(final WebSocketMetrics metrics) throws Exception {
+		return new WebSocketRegistrar(Configs.create(WebSocketRegistrar.Config.class, Map.of()), new DeflaterPool(),
+				new WebSocketSessionRegistry(), metrics, new SessionStateStore(4096, 256, 1 << 20),
+				new WebSocketTuning(), new ByteBufferPool());
+	}
+}
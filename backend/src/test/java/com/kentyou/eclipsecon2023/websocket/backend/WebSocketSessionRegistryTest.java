@@ -0,0 +1,175 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import jakarta.websocket.Session;
+
+class WebSocketSessionRegistryTest {
+
+	@Test
+	void testIndexes() {
+		final WebSocketSessionRegistry registry = new WebSocketSessionRegistry();
+		final Session alice1 = FakeSession.create("1", "alice");
+		final Session alice2 = FakeSession.create("2", "alice");
+		final Session bob = FakeSession.create("3", "bob");
+		final Session anonymous = FakeSession.create("4", null);
+
+		registry.register(alice1, "/ws/chat");
+		registry.register(alice2, "/ws/feed");
+		registry.register(bob, "/ws/chat");
+		registry.register(anonymous, "/ws/feed");
+
+		assertEquals(4, registry.size());
+		assertEquals(Set.of(alice1, bob), Set.copyOf(registry.getSessionsByPath("/ws/chat")));
+		assertEquals(Set.of(alice2, anonymous), Set.copyOf(registry.getSessionsByPath("/ws/feed")));
+		assertEquals(Set.of(alice1, alice2), Set.copyOf(registry.getSessionsByPrincipal("alice")));
+		assertEquals(Set.of(bob), Set.copyOf(registry.getSessionsByPrincipal("bob")));
+		assertTrue(registry.getSessionsByPath("/ws/unknown").isEmpty());
+		assertTrue(registry.getSessionsByPrincipal(null).isEmpty());
+		assertEquals(Set.of("/ws/chat", "/ws/feed"), registry.getPaths());
+
+		assertSame(bob, registry.getSession("3"));
+		assertEquals("/ws/feed", registry.getPath(alice2));
+		assertNull(registry.getSession("5"));
+
+		// Registering again keeps the first registration
+		registry.register(bob, "/ws/feed");
+		assertEquals("/ws/chat", registry.getPath(bob));
+		assertEquals(4, registry.size());
+	}
+
+	@Test
+	void testUnregister() {
+		final WebSocketSessionRegistry registry = new WebSocketSessionRegistry();
+		final Session session = FakeSession.create("1", "alice");
+		registry.register(session, "/ws/chat");
+		registry.tag(session, "room-1");
+
+		registry.unregister(session);
+
+		// Empty index entries are dropped
+		assertEquals(0, registry.size());
+		assertNull(registry.getSession("1"));
+		assertNull(registry.getPath(session));
+		assertTrue(registry.getSessionsByPath("/ws/chat").isEmpty());
+		assertTrue(registry.getSessionsByPrincipal("alice").isEmpty());
+		assertTrue(registry.getSessionsByTag("room-1").isEmpty());
+		assertTrue(registry.getPaths().isEmpty());
+		assertTrue(registry.getTags(session).isEmpty());
+
+		// Unknown sessions are ignored
+		registry.unregister(session);
+		assertFalse(registry.tag(session, "room-1"));
+	}
+
+	@Test
+	void testTags() {
+		final WebSocketSessionRegistry registry = new WebSocketSessionRegistry();
+		final Session first = FakeSession.create("1", null);
+		final Session second = FakeSession.create("2", null);
+		registry.register(first, "/ws/chat");
+		registry.register(second, "/ws/chat");
+
+		assertTrue(registry.tag(first, "room-1"));
+		assertFalse(registry.tag(first, "room-1"));
+		assertTrue(registry.tag(first, "room-2"));
+		assertTrue(registry.tag(second, "room-1"));
+
+		assertEquals(Set.of(first, second), Set.copyOf(registry.getSessionsByTag("room-1")));
+		assertEquals(Set.of(first), Set.copyOf(registry.getSessionsByTag("room-2")));
+		assertEquals(Set.of("room-1", "room-2"), registry.getTags(first));
+
+		assertTrue(registry.untag(first, "room-1"));
+		assertFalse(registry.untag(first, "room-1"));
+		assertEquals(Set.of(second), Set.copyOf(registry.getSessionsByTag("room-1")));
+		assertEquals(Set.of("room-2"), registry.getTags(first));
+	}
+
+	@Test
+	void testViews() {
+		final WebSocketSessionRegistry registry = new WebSocketSessionRegistry();
+		final Session first = FakeSession.create("1", null);
+		registry.register(first, "/ws/chat");
+
+		// Live, read-only views
+		final Collection<Session> chat = registry.getSessionsByPath("/ws/chat");
+		final Session second = FakeSession.create("2", null);
+		registry.register(second, "/ws/chat");
+		assertEquals(2, chat.size());
+		assertThrows(UnsupportedOperationException.class, () -> chat.remove(first));
+		assertThrows(UnsupportedOperationException.class, () -> registry.getTags(first).add("room-1"));
+	}
+
+	@Test
+	void testConcurrentRegistrations() throws Exception {
+		final WebSocketSessionRegistry registry = new WebSocketSessionRegistry();
+		final int threads = 8;
+		final int sessionsPerThread = 1000;
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			final CountDownLatch start = new CountDownLatch(1);
+			final List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				futures.add(pool.submit(() -> {
+					start.await();
+					for (int i = 0; i < sessionsPerThread; i++) {
+						final Session session = FakeSession.create(thread + "-" + i, "user-" + (i % 10));
+						registry.register(session, "/ws/chat");
+						registry.tag(session, "shared");
+						if (i % 2 == 0) {
+							registry.unregister(session);
+						}
+					}
+					return null;
+				}));
+			}
+
+			start.countDown();
+			for (final Future<?> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		final int expected = threads * sessionsPerThread / 2;
+		assertEquals(expected, registry.size());
+		assertEquals(expected, registry.getSessionsByPath("/ws/chat").size());
+		assertEquals(expected, registry.getSessionsByTag("shared").size());
+		int byPrincipal = 0;
+		for (int i = 0; i < 10; i++) {
+			byPrincipal += registry.getSessionsByPrincipal("user-" + i).size();
+		}
+		assertEquals(expected, byPrincipal);
+	}
+}
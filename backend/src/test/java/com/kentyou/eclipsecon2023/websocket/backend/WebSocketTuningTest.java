@@ -0,0 +1,110 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class WebSocketTuningTest {
+
+	private static WebSocketTuning tuning(final Map<String, Object> values) {
+		final WebSocketTuning tuning = new WebSocketTuning();
+		tuning.configure(Configs.create(WebSocketTuning.Config.class, values));
+		return tuning;
+	}
+
+	private static EndpointTuning endpointTuning(final Map<String, Object> values) {
+		final EndpointTuning endpointTuning = new EndpointTuning();
+		endpointTuning.configure(Configs.create(EndpointTuning.Config.class, values));
+		return endpointTuning;
+	}
+
+	@Test
+	void testDefaults() {
+		final WebSocketTuning tuning = tuning(Map.of("max_message_size", 4096, "outbound_queue_limit", 4194304L));
+
+		final EndpointSettings defaults = tuning.getDefaults();
+		assertEquals(4096, defaults.maxMessageSize);
+		assertEquals(4194304L, defaults.outbound.queueLimit);
+		assertEquals(EndpointSettings.DEFAULT_DISPATCH_MAX_PENDING, defaults.dispatchMaxPending);
+		assertSame(defaults, tuning.getSettings("/ws/any"));
+		assertSame(defaults, tuning.getSettings(null));
+	}
+
+	@Test
+	void testEndpointOverrides() {
+		final WebSocketTuning tuning = tuning(Map.of("max_message_size", 4096, "dispatch", "virtual"));
+		tuning.addEndpointTuning(endpointTuning(Map.of("path", "/ws/feed", "max_message_size", 256,
+				"outbound_queue_limit", 2097152L)));
+
+		final EndpointSettings feed = tuning.getSettings("/ws/feed");
+		assertEquals(256, feed.maxMessageSize);
+		assertEquals(2097152L, feed.outbound.queueLimit);
+		// Values left to -1 or empty are inherited
+		assertEquals("virtual", feed.dispatch);
+		assertEquals(tuning.getDefaults().outbound.highWatermark, feed.outbound.highWatermark);
+		assertEquals(4096, tuning.getSettings("/ws/other").maxMessageSize);
+
+		// Defaults changes apply to the inherited values
+		tuning.configure(Configs.create(WebSocketTuning.Config.class, Map.of("dispatch", "inline")));
+		assertEquals("inline", tuning.getSettings("/ws/feed").dispatch);
+		assertEquals(256, tuning.getSettings("/ws/feed").maxMessageSize);
+	}
+
+	@Test
+	void testUpdatedFactoryConfiguration() {
+		final WebSocketTuning tuning = tuning(Map.of());
+		final EndpointTuning endpointTuning = endpointTuning(Map.of("path", "/ws/feed", "max_message_size", 256));
+		tuning.addEndpointTuning(endpointTuning);
+		assertEquals(256, tuning.getSettings("/ws/feed").maxMessageSize);
+
+		// Modified configuration, as given by Configuration Admin
+		endpointTuning.configure(Configs.create(EndpointTuning.Config.class,
+				Map.of("path", "/ws/feed", "max_message_size", 1024, "dispatch_max_pending", 16)));
+		tuning.updatedEndpointTuning(endpointTuning);
+		assertEquals(1024, tuning.getSettings("/ws/feed").maxMessageSize);
+		assertEquals(16, tuning.getSettings("/ws/feed").dispatchMaxPending);
+
+		// Moved to another endpoint
+		endpointTuning.configure(Configs.create(EndpointTuning.Config.class,
+				Map.of("path", "/ws/chat", "max_message_size", 1024)));
+		tuning.updatedEndpointTuning(endpointTuning);
+		assertSame(tuning.getDefaults(), tuning.getSettings("/ws/feed"));
+		assertEquals(1024, tuning.getSettings("/ws/chat").maxMessageSize);
+
+		// Deleted configuration
+		tuning.removeEndpointTuning(endpointTuning);
+		assertSame(tuning.getDefaults(), tuning.getSettings("/ws/chat"));
+	}
+
+	@Test
+	void testInvalidConfigurations() {
+		final WebSocketTuning tuning = tuning(Map.of("max_message_size", 4096));
+
+		// Invalid defaults keep the previous ones
+		tuning.configure(Configs.create(WebSocketTuning.Config.class, Map.of("dispatch", "unknown")));
+		assertEquals(4096, tuning.getDefaults().maxMessageSize);
+
+		// Invalid endpoint tuning falls back to the defaults
+		tuning.addEndpointTuning(endpointTuning(Map.of("path", "/ws/feed", "dispatch_max_pending", 0)));
+		assertSame(tuning.getDefaults(), tuning.getSettings("/ws/feed"));
+
+		// Endpoint tuning without path
+		assertThrows(IllegalArgumentException.class, () -> endpointTuning(Map.of("path", " ")));
+	}
+}
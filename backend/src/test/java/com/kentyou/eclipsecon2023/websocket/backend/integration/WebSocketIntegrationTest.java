@@ -32,7 +32,10 @@ import org.eclipse.jetty.websocket.client.WebSocketClient;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
 import org.osgi.test.common.annotation.InjectBundleContext;
 import org.osgi.test.common.annotation.Property;
 import org.osgi.test.common.annotation.config.WithConfiguration;
@@ -296,4 +299,188 @@ public class WebSocketIntegrationTest {
 			assertFalse(barrierAfter.await(1, TimeUnit.SECONDS));
 		}
 	}
+
+	/**
+	 * Endpoint answering all messages with the same text
+	 */
+	public static class ReplyEndpoint extends Endpoint {
+		private final String reply;
+
+		public ReplyEndpoint(final String reply) {
+			this.reply = reply;
+		}
+
+		@Override
+		public void onOpen(jakarta.websocket.Session session, EndpointConfig config) {
+			session.addMessageHandler(String.class, (s) -> {
+				try {
+					session.getBasicRemote().sendText(reply);
+				} catch (IOException e) {
+					fail(e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Client session with the messages and close code it received
+	 */
+	class Connection {
+		final BlockingArrayQueue<String> messages = new BlockingArrayQueue<>(16);
+		final CountDownLatch opened = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		final AtomicReference<Session> session = new AtomicReference<>();
+		volatile int closeCode;
+
+		/**
+		 * Connects to an endpoint
+		 *
+		 * @return true if the connection was upgraded
+		 */
+		boolean connect(final WebSocketClient ws, final String path) throws Exception {
+			final WSHandler handler = new WSHandler();
+			handler.onConnect = (s) -> {
+				session.set(s);
+				opened.countDown();
+			};
+			handler.onClose = (s, code) -> {
+				closeCode = code;
+				closed.countDown();
+			};
+			handler.onMessage = (s, m) -> messages.offer(m);
+			ws.connect(handler, new URI("ws://localhost:14001" + path));
+			return opened.await(1, TimeUnit.SECONDS);
+		}
+
+		String ask(final String question) throws Exception {
+			session.get().getRemote().sendString(question);
+			return messages.poll(1, TimeUnit.SECONDS);
+		}
+	}
+
+	private ServiceRegistration<Endpoint> registerReplyEndpoint(final String path, final String reply) {
+		return bundleContext.registerService(Endpoint.class, new ReplyEndpoint(reply),
+				new Hashtable<String, Object>(Map.of("websocket.server", "true", "websocket.path", path)));
+	}
+
+	@Test
+	void testUnregistrationWhileRunning() throws Exception {
+		final String endPoint = "/ws/transient";
+
+		try (WSClient wsClient = new WSClient()) {
+			final WebSocketClient ws = wsClient.ws;
+
+			// Session of another endpoint, which must survive the unregistration
+			final Connection other = new Connection();
+			assertTrue(other.connect(ws, "/ws/test-endpoint"));
+			assertNotNull(other.messages.poll(1, TimeUnit.SECONDS), "No welcome message");
+
+			final ServiceRegistration<Endpoint> svcReg = registerReplyEndpoint(endPoint, "here");
+			final Connection removed = new Connection();
+			try {
+				assertTrue(removed.connect(ws, endPoint));
+				assertEquals("here", removed.ask("where?"));
+			} finally {
+				svcReg.unregister();
+			}
+
+			// Only the session of the unregistered endpoint is closed
+			assertTrue(removed.closed.await(1, TimeUnit.SECONDS));
+			assertEquals(1001, removed.closeCode);
+			assertEquals(1, other.closed.getCount());
+			final String echo = other.ask("still there?");
+			assertNotNull(echo);
+			assertTrue(echo.contains("still there?"), "Wrong echo");
+
+			// New upgrades are refused on the removed path, but still accepted on the other ones
+			assertFalse(new Connection().connect(ws, endPoint));
+			assertTrue(new Connection().connect(ws, "/ws/test-endpoint"));
+		}
+	}
+
+	@Test
+	void testWaitingEndpointTakesOver() throws Exception {
+		final String endPoint = "/ws/shared";
+
+		final ServiceRegistration<Endpoint> first = registerReplyEndpoint(endPoint, "first");
+		ServiceRegistration<Endpoint> second = null;
+		try (WSClient wsClient = new WSClient()) {
+			final WebSocketClient ws = wsClient.ws;
+
+			// The second service waits for the path to be free
+			second = registerReplyEndpoint(endPoint, "second");
+			final Connection firstConnection = new Connection();
+			assertTrue(firstConnection.connect(ws, endPoint));
+			assertEquals("first", firstConnection.ask("who?"));
+
+			first.unregister();
+			assertTrue(firstConnection.closed.await(1, TimeUnit.SECONDS));
+
+			final Connection secondConnection = new Connection();
+			assertTrue(secondConnection.connect(ws, endPoint));
+			assertEquals("second", secondConnection.ask("who?"));
+
+			second.unregister();
+			second = null;
+			assertTrue(secondConnection.closed.await(1, TimeUnit.SECONDS));
+			assertFalse(new Connection().connect(ws, endPoint));
+		} finally {
+			try {
+				first.unregister();
+			} catch (IllegalStateException e) {
+				// Already unregistered
+			}
+			if (second != null) {
+				second.unregister();
+			}
+		}
+	}
+
+	/**
+	 * Sends a message on new connections until it is answered or refused as too big, as configurations are applied
+	 * asynchronously
+	 *
+	 * @return true if the expected outcome was observed
+	 */
+	private boolean awaitMessageLimit(final WebSocketClient ws, final String path, final String message,
+			final boolean accepted) throws Exception {
+		final long deadline = System.currentTimeMillis() + 5000;
+		do {
+			final Connection connection = new Connection();
+			assertTrue(connection.connect(ws, path));
+			final String reply = connection.ask(message);
+			if (accepted ? reply != null
+					: connection.closed.await(1, TimeUnit.SECONDS) && connection.closeCode == 1009) {
+				return true;
+			}
+			connection.session.get().close();
+		} while (System.currentTimeMillis() < deadline);
+		return false;
+	}
+
+	@Test
+	void testEndpointTuningUpdate() throws Exception {
+		final String endPoint = "/ws/tuned";
+		final String message = "x".repeat(64);
+
+		final ServiceReference<ConfigurationAdmin> cmRef = bundleContext.getServiceReference(ConfigurationAdmin.class);
+		final ConfigurationAdmin configAdmin = bundleContext.getService(cmRef);
+		final Configuration tuning = configAdmin
+				.getFactoryConfiguration("com.kentyou.eclipsecon2023.websocket.tuning.endpoint", "tuned", "?");
+		final ServiceRegistration<Endpoint> svcReg = registerReplyEndpoint(endPoint, "ok");
+		try (WSClient wsClient = new WSClient()) {
+			final WebSocketClient ws = wsClient.ws;
+
+			tuning.update(new Hashtable<String, Object>(Map.of("path", endPoint, "max_message_size", 16)));
+			assertTrue(awaitMessageLimit(ws, endPoint, message, false), "Message limit not applied");
+
+			// Updated configuration applies to the next sessions
+			tuning.update(new Hashtable<String, Object>(Map.of("path", endPoint, "max_message_size", 1024)));
+			assertTrue(awaitMessageLimit(ws, endPoint, message, true), "Message limit not updated");
+		} finally {
+			tuning.delete();
+			svcReg.unregister();
+			bundleContext.ungetService(cmRef);
+		}
+	}
 }
@@ -0,0 +1,59 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the JMH command line options.
+ * <p>
+ * Unlike the default JMH entry point, results are written as JSON in {@code jmh-result.json} unless another format or
+ * file is given with {@code -rf} or {@code -rff}, so that runs of different releases can be compared.
+ */
+public class BenchmarkMain {
+
+	static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+	public static void main(final String[] args) throws RunnerException, IOException {
+		final CommandLineOptions cmdOptions;
+		try {
+			cmdOptions = new CommandLineOptions(args);
+		} catch (CommandLineOptionException e) {
+			System.err.println("Error parsing command line: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListWithParams()
+				|| cmdOptions.shouldListProfilers() || cmdOptions.shouldListResultFormats()) {
+			// Let the JMH entry point handle the informational options
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		final ChainedOptionsBuilder options = new OptionsBuilder().parent(cmdOptions);
+		if (!cmdOptions.getResultFormat().hasValue() && !cmdOptions.getResult().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON).result(DEFAULT_RESULT_FILE);
+		}
+
+		new Runner(options.build()).run();
+	}
+}
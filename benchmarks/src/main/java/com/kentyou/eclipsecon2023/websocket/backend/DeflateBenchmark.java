@@ -0,0 +1,100 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.tyrus.core.extension.ExtendedExtension.ExtensionContext;
+import org.glassfish.tyrus.core.frame.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compression and decompression of JSON messages by {@link PerMessageDeflate}, with and without context takeover.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeflateBenchmark {
+
+	@Param({ "256", "4096" })
+	public int messageSize;
+
+	@Param({ "true", "false" })
+	public boolean noContextTakeover;
+
+	private PerMessageDeflate extension;
+
+	private final Map<String, Object> properties = new HashMap<>();
+
+	private final ExtensionContext context = () -> properties;
+
+	private Frame message;
+
+	private Frame compressed;
+
+	@Setup
+	public void setup() {
+		extension = new PerMessageDeflate(new DeflaterPool(), 0, noContextTakeover, noContextTakeover);
+		extension.onExtensionNegotiation(context, List.of());
+
+		final StringBuilder json = new StringBuilder("[");
+		for (int i = 0; json.length() < messageSize; i++) {
+			json.append("{\"id\":").append(i).append(",\"name\":\"sensor-").append(i % 16)
+					.append("\",\"value\":").append(i * 31 % 1000).append(",\"unit\":\"celsius\"},");
+		}
+		final byte[] payload = json.substring(0, messageSize).getBytes(StandardCharsets.UTF_8);
+		message = Frame.builder().fin(true).opcode((byte) 0x01).payloadData(payload).build();
+
+		// Compressed on its own, so that it can be inflated whatever the context takeover
+		final PerMessageDeflate sender = new PerMessageDeflate(new DeflaterPool(), 0, true, true);
+		final Map<String, Object> senderProperties = new HashMap<>();
+		sender.onExtensionNegotiation(() -> senderProperties, List.of());
+		final Frame deflated = sender.processOutgoing(() -> senderProperties, message);
+		final byte[] data = new byte[(int) deflated.getPayloadLength()];
+		System.arraycopy(deflated.getPayloadData(), 0, data, 0, data.length);
+		compressed = Frame.builder(deflated).payloadData(data).build();
+	}
+
+	@TearDown
+	public void tearDown() {
+		extension.destroy(context);
+	}
+
+	@Benchmark
+	public Frame deflate() {
+		return extension.processOutgoing(context, message);
+	}
+
+	@Benchmark
+	public Frame inflate() {
+		return extension.processIncoming(context, compressed);
+	}
+}
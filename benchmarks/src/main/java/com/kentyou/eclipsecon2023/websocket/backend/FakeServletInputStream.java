@@ -0,0 +1,92 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+
+/**
+ * Input stream serving a byte array in fragments, as a socket would deliver it in TCP segments: {@link #available()}
+ * and {@link #read(byte[], int, int)} never go past the end of the current fragment.
+ */
+class FakeServletInputStream extends ServletInputStream {
+
+	private final int fragmentSize;
+
+	private byte[] data = new byte[0];
+
+	private int position;
+
+	private ReadListener readListener;
+
+	/**
+	 * @param fragmentSize Maximum number of bytes returned by a read
+	 */
+	FakeServletInputStream(final int fragmentSize) {
+		this.fragmentSize = fragmentSize;
+	}
+
+	/**
+	 * Sets the data to serve, from its start
+	 */
+	void reset(final byte[] data) {
+		this.data = data;
+		this.position = 0;
+	}
+
+	ReadListener getReadListener() {
+		return readListener;
+	}
+
+	private int fragmentRemaining() {
+		final int fragmentEnd = Math.min(data.length, (position / fragmentSize + 1) * fragmentSize);
+		return fragmentEnd - position;
+	}
+
+	@Override
+	public boolean isFinished() {
+		return position >= data.length;
+	}
+
+	@Override
+	public boolean isReady() {
+		return position < data.length;
+	}
+
+	@Override
+	public void setReadListener(final ReadListener readListener) {
+		this.readListener = readListener;
+	}
+
+	@Override
+	public int available() {
+		return isFinished() ? 0 : fragmentRemaining();
+	}
+
+	@Override
+	public int read() {
+		return isFinished() ? -1 : data[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) {
+		if (isFinished()) {
+			return -1;
+		}
+
+		final int n = Math.min(len, fragmentRemaining());
+		System.arraycopy(data, position, b, off, n);
+		position += n;
+		return n;
+	}
+}
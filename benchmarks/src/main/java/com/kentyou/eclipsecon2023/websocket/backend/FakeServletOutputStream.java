@@ -0,0 +1,72 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+/**
+ * Output stream discarding what is written to it, counting the bytes and writes.
+ * <p>
+ * Its readiness is controlled by the benchmark, to simulate a peer that doesn't read fast enough.
+ */
+class FakeServletOutputStream extends ServletOutputStream {
+
+	private final LongAdder bytes = new LongAdder();
+
+	private final LongAdder writes = new LongAdder();
+
+	private volatile boolean ready = true;
+
+	private volatile WriteListener writeListener;
+
+	void setReady(final boolean ready) {
+		this.ready = ready;
+	}
+
+	WriteListener getWriteListener() {
+		return writeListener;
+	}
+
+	long getBytes() {
+		return bytes.sum();
+	}
+
+	long getWrites() {
+		return writes.sum();
+	}
+
+	@Override
+	public boolean isReady() {
+		return ready;
+	}
+
+	@Override
+	public void setWriteListener(final WriteListener writeListener) {
+		this.writeListener = writeListener;
+	}
+
+	@Override
+	public void write(final int b) {
+		writes.increment();
+		bytes.increment();
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) {
+		writes.increment();
+		bytes.add(len);
+	}
+}
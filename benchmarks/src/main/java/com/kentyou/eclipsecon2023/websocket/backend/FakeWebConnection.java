@@ -0,0 +1,51 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import jakarta.servlet.http.WebConnection;
+
+/**
+ * Upgraded connection backed by in-memory streams instead of a socket
+ */
+class FakeWebConnection implements WebConnection {
+
+	private final FakeServletInputStream inputStream;
+
+	private final FakeServletOutputStream outputStream;
+
+	private volatile boolean closed;
+
+	FakeWebConnection(final int fragmentSize) {
+		this.inputStream = new FakeServletInputStream(fragmentSize);
+		this.outputStream = new FakeServletOutputStream();
+	}
+
+	@Override
+	public FakeServletInputStream getInputStream() {
+		return inputStream;
+	}
+
+	@Override
+	public FakeServletOutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+}
@@ -0,0 +1,220 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.websocket.DeploymentException;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.EndpointConfig;
+import jakarta.websocket.Session;
+import jakarta.websocket.server.ServerEndpointConfig;
+
+/**
+ * Handling of HTTP requests by {@link TyrusServletUpgrade#upgrade(HttpServletRequest, HttpServletResponse)}.
+ * <p>
+ * Requests carry the headers a browser sends when opening a WebSocket, in a servlet context with a few init
+ * parameters. They are served by {@link Proxy} based stand-ins of the servlet API and upgraded to a
+ * {@link FakeWebConnection}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandshakeBenchmark {
+
+	/**
+	 * Endpoint accepting all sessions and ignoring their messages
+	 */
+	public static class NoOpEndpoint extends Endpoint {
+		@Override
+		public void onOpen(final Session session, final EndpointConfig config) {
+			// Nothing to do
+		}
+	}
+
+	private WSServerContainer container;
+
+	private TyrusServletUpgrade servletUpgrade;
+
+	private HttpServletRequest plainRequest;
+
+	private HttpServletRequest unknownPathRequest;
+
+	private HttpServletRequest upgradeRequest;
+
+	private HttpServletResponse response;
+
+	private TyrusHttpUpgradeHandler lastHandler;
+
+	@Setup
+	public void setup() throws DeploymentException {
+		container = new WSServerContainer("", new ByteBufferPool(), OutboundOptions.DEFAULT, null, null);
+		container.register(ServerEndpointConfig.Builder.create(NoOpEndpoint.class, "/ws/bench").build());
+		servletUpgrade = container.getServletUpgrade();
+
+		final Map<String, String> headers = new LinkedHashMap<>();
+		headers.put("Host", "localhost:8080");
+		headers.put("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/118.0");
+		headers.put("Accept", "*/*");
+		headers.put("Accept-Language", "en-US,en;q=0.5");
+		headers.put("Accept-Encoding", "gzip, deflate, br");
+		headers.put("Origin", "http://localhost:8080");
+		headers.put("Cookie", "JSESSIONID=node01vwe7nbhcz1te1x1q5u2v8ww0f0");
+		headers.put("Pragma", "no-cache");
+		headers.put("Cache-Control", "no-cache");
+
+		plainRequest = request("/ws/bench", headers);
+
+		headers.put("Sec-WebSocket-Version", "13");
+		headers.put("Sec-WebSocket-Key", "dGhlIHNhbXBsZSBub25jZQ==");
+		headers.put("Sec-WebSocket-Extensions", "permessage-deflate");
+		headers.put("Connection", "keep-alive, Upgrade");
+		headers.put("Upgrade", "websocket");
+
+		unknownPathRequest = request("/ws/unknown", headers);
+		upgradeRequest = request("/ws/bench", headers);
+		response = response();
+	}
+
+	@TearDown
+	public void tearDown() {
+		container.stop();
+	}
+
+	/**
+	 * Request without WebSocket headers, passed down the filter chain
+	 */
+	@Benchmark
+	public boolean plainRequest() throws IOException, ServletException {
+		return servletUpgrade.upgrade(plainRequest, response);
+	}
+
+	/**
+	 * Upgrade request to a path without endpoint: the request context is built, then rejected by the engine
+	 */
+	@Benchmark
+	public boolean unknownPath() throws IOException, ServletException {
+		return servletUpgrade.upgrade(unknownPathRequest, response);
+	}
+
+	/**
+	 * Complete upgrade, closing the session right after
+	 */
+	@Benchmark
+	public boolean handshake() throws IOException, ServletException {
+		final boolean upgraded = servletUpgrade.upgrade(upgradeRequest, response);
+		lastHandler.destroy();
+		return upgraded;
+	}
+
+	private HttpServletRequest request(final String uri, final Map<String, String> headers) {
+		final Map<String, String> requestHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		requestHeaders.putAll(headers);
+		final List<String> headerNames = List.copyOf(headers.keySet());
+		final ServletContext servletContext = servletContext();
+
+		return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getHeader":
+						return requestHeaders.get(args[0]);
+					case "getHeaders": {
+						final String value = requestHeaders.get(args[0]);
+						return Collections.enumeration(value == null ? List.of() : List.of(value));
+					}
+					case "getHeaderNames":
+						return Collections.enumeration(headerNames);
+					case "getRequestURI":
+						return uri;
+					case "getParameterMap":
+						return Map.of();
+					case "getRemoteAddr":
+					case "getLocalAddr":
+						return "127.0.0.1";
+					case "getLocalPort":
+						return 8080;
+					case "getServletContext":
+						return servletContext;
+					case "upgrade":
+						lastHandler = new TyrusHttpUpgradeHandler();
+						lastHandler.init(new FakeWebConnection(16384));
+						return lastHandler;
+					default:
+						return defaultValue(method.getReturnType());
+					}
+				});
+	}
+
+	private ServletContext servletContext() {
+		final Map<String, String> initParameters = new LinkedHashMap<>();
+		initParameters.put("org.eclipse.jetty.servlet.Default.dirAllowed", "false");
+		initParameters.put("org.eclipse.jetty.servlet.SessionCookie", "JSESSIONID");
+		initParameters.put("org.eclipse.jetty.servlet.SessionIdPathParameterName", "jsessionid");
+		initParameters.put(TyrusHttpUpgradeHandler.FRAME_BUFFER_SIZE,
+				String.valueOf(TyrusHttpUpgradeHandler.DEFAULT_INCOMING_BUFFER_SIZE));
+
+		return (ServletContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { ServletContext.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getInitParameterNames":
+						return Collections.enumeration(initParameters.keySet());
+					case "getInitParameter":
+						return initParameters.get(args[0]);
+					default:
+						return defaultValue(method.getReturnType());
+					}
+				});
+	}
+
+	private HttpServletResponse response() {
+		return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { HttpServletResponse.class }, (proxy, method, args) -> defaultValue(method.getReturnType()));
+	}
+
+	private static Object defaultValue(final Class<?> type) {
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,132 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.tyrus.spi.Connection;
+import org.glassfish.tyrus.spi.ReadHandler;
+import org.glassfish.tyrus.spi.WebSocketEngine;
+import org.glassfish.tyrus.spi.Writer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jakarta.websocket.CloseReason;
+
+/**
+ * Accumulation of incoming data by {@link TyrusHttpUpgradeHandler}.
+ * <p>
+ * Each operation reads a 64 KiB stream delivered in fragments of {@code fragmentSize} bytes. The read handler only
+ * consumes complete frames of {@code frameSize} bytes, like the Tyrus frame parser, so that fragments ending in the
+ * middle of a frame go through the append, compact and grow cases of the buffer handling.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+
+	private static final int STREAM_SIZE = 65536;
+
+	/**
+	 * Bytes returned by each read of the input stream
+	 */
+	@Param({ "64", "1460", "16384" })
+	int fragmentSize;
+
+	/**
+	 * Size of the frames consumed by the read handler
+	 */
+	@Param({ "125", "4096" })
+	int frameSize;
+
+	private byte[] data;
+
+	private FakeWebConnection webConnection;
+
+	private TyrusHttpUpgradeHandler handler;
+
+	private long consumed;
+
+	/**
+	 * Read handler consuming complete frames only, leaving the start of the next frame in the buffer
+	 */
+	private final ReadHandler readHandler = new ReadHandler() {
+		@Override
+		public void handle(final ByteBuffer buffer) {
+			final int frames = buffer.remaining() / frameSize;
+			buffer.position(buffer.position() + frames * frameSize);
+			consumed += frames;
+		}
+	};
+
+	@Setup
+	public void setup() {
+		data = new byte[STREAM_SIZE - STREAM_SIZE % frameSize];
+
+		webConnection = new FakeWebConnection(fragmentSize);
+		handler = new TyrusHttpUpgradeHandler();
+		handler.setBufferPool(new ByteBufferPool());
+		handler.init(webConnection);
+		handler.upgradeConnection(new WebSocketEngine.UpgradeInfo() {
+			@Override
+			public WebSocketEngine.UpgradeStatus getStatus() {
+				return WebSocketEngine.UpgradeStatus.SUCCESS;
+			}
+
+			@Override
+			public Connection createConnection(final Writer writer, final Connection.CloseListener closeListener) {
+				return new Connection() {
+					@Override
+					public ReadHandler getReadHandler() {
+						return readHandler;
+					}
+
+					@Override
+					public Writer getWriter() {
+						return writer;
+					}
+
+					@Override
+					public CloseListener getCloseListener() {
+						return closeListener;
+					}
+
+					@Override
+					public void close(final CloseReason reason) {
+						throw new IllegalStateException("Connection closed: " + reason);
+					}
+				};
+			}
+		});
+	}
+
+	@Benchmark
+	public long fragmentedRead() {
+		webConnection.getInputStream().reset(data);
+		handler.onDataAvailable();
+		return consumed;
+	}
+}
@@ -0,0 +1,158 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.tyrus.spi.CompletionHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Frame queueing and draining by {@link TyrusServletWriter}.
+ * <p>
+ * The {@code write} benchmarks share a single writer between 1, 4 or as many threads as there are processors, writing
+ * to a stream that is always ready: the writing threads take turns draining the queue. Each thread waits for its
+ * frame to be written before sending the next one, which bounds the queue to a frame per thread. The {@code drainBacklog}
+ * benchmark queues frames while the stream isn't ready, then writes them in a single {@code onWritePossible()} call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+	private static final int BACKLOG = 256;
+
+	private static final CompletionHandler<ByteBuffer> NO_OP = new CompletionHandler<ByteBuffer>() {
+	};
+
+	/**
+	 * Writer and frame shared by the writing threads
+	 */
+	@State(Scope.Benchmark)
+	public static class WriterState {
+
+		@Param({ "64", "1024" })
+		int frameSize;
+
+		/**
+		 * Maximum size of a coalesced write (0 to write frames one by one)
+		 */
+		@Param({ "0", "16384" })
+		int coalesceBytes;
+
+		FakeWebConnection webConnection;
+
+		TyrusServletWriter writer;
+
+		ByteBuffer frame;
+
+		@Setup
+		public void setup() throws IOException {
+			frame = ByteBuffer.allocate(frameSize);
+			webConnection = new FakeWebConnection(frameSize);
+
+			final OutboundOptions defaults = OutboundOptions.DEFAULT;
+			writer = new TyrusServletWriter(webConnection, new OutboundOptions(coalesceBytes, 0,
+					defaults.highWatermark, defaults.lowWatermark, defaults.queueLimit, defaults.blockTimeoutMillis),
+					new ByteBufferPool(), null);
+
+			// The first write only registers the writer as write listener, as with a real container
+			writer.write(frame, NO_OP);
+			writer.onWritePossible();
+		}
+	}
+
+	/**
+	 * Sender waiting for each of its frames to be written before sending the next one, like a blocking send
+	 */
+	@State(Scope.Thread)
+	public static class SenderState {
+
+		volatile boolean completed;
+
+		final CompletionHandler<ByteBuffer> completionHandler = new CompletionHandler<ByteBuffer>() {
+			@Override
+			public void completed(final ByteBuffer result) {
+				completed = true;
+			}
+
+			@Override
+			public void failed(final Throwable throwable) {
+				completed = true;
+			}
+		};
+
+		void send(final WriterState state) {
+			completed = false;
+			state.writer.write(state.frame, completionHandler);
+			while (!completed) {
+				Thread.onSpinWait();
+			}
+		}
+	}
+
+	/**
+	 * Writer with a queue filled while the stream isn't ready
+	 */
+	@State(Scope.Thread)
+	public static class BacklogState extends WriterState {
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void write1Thread(final WriterState state, final SenderState sender) {
+		sender.send(state);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void write4Threads(final WriterState state, final SenderState sender) {
+		sender.send(state);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public void writeMaxThreads(final WriterState state, final SenderState sender) {
+		sender.send(state);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BACKLOG)
+	public long drainBacklog(final BacklogState state) throws IOException {
+		final FakeServletOutputStream outputStream = state.webConnection.getOutputStream();
+		outputStream.setReady(false);
+		for (int i = 0; i < BACKLOG; i++) {
+			state.writer.write(state.frame, NO_OP);
+		}
+
+		outputStream.setReady(true);
+		state.writer.onWritePossible();
+		return outputStream.getWrites();
+	}
+}
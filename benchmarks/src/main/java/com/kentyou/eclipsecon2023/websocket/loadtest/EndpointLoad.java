@@ -0,0 +1,95 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.loadtest;
+
+import java.net.URI;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load state of an endpoint path: its connections and the counters of the current phase
+ */
+class EndpointLoad {
+
+	final String path;
+
+	final URI uri;
+
+	final LongAdder connected = new LongAdder();
+
+	final LongAdder connectFailures = new LongAdder();
+
+	final LongAdder closed = new LongAdder();
+
+	/**
+	 * Counters of the whole run, updated along those of the endpoint
+	 */
+	private final EndpointLoad total;
+
+	private volatile LoadStats stats = new LoadStats();
+
+	EndpointLoad(final String path, final URI uri, final EndpointLoad total) {
+		this.path = path;
+		this.uri = uri;
+		this.total = total;
+	}
+
+	LoadStats stats() {
+		return stats;
+	}
+
+	/**
+	 * Starts a new phase
+	 *
+	 * @return The counters of the previous phase
+	 */
+	LoadStats reset() {
+		final LoadStats previous = stats;
+		stats = new LoadStats();
+		return previous;
+	}
+
+	void sent() {
+		stats.sent.increment();
+		if (total != null) {
+			total.sent();
+		}
+	}
+
+	void skipped() {
+		stats.skipped.increment();
+		if (total != null) {
+			total.skipped();
+		}
+	}
+
+	void error() {
+		stats.errors.increment();
+		if (total != null) {
+			total.error();
+		}
+	}
+
+	void unexpected() {
+		stats.unexpected.increment();
+		if (total != null) {
+			total.unexpected();
+		}
+	}
+
+	void roundTrip(final long nanos) {
+		stats.roundTrips.record(nanos);
+		if (total != null) {
+			total.roundTrip(nanos);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.loadtest;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+/**
+ * Client side of a load test connection.
+ * <p>
+ * The demo endpoints answer each message with a single reply, in order: the send time of each message is queued, and
+ * taken back when its reply arrives to compute the round-trip time. The greeting the echo endpoints send on open
+ * isn't a reply and is ignored.
+ */
+@WebSocket
+public class LoadConnection {
+
+	private static final String GREETING_PREFIX = "Hello from ";
+
+	private final EndpointLoad endpoint;
+
+	/**
+	 * Send time of the messages waiting for a reply
+	 */
+	private final Queue<Long> sendTimes = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final WriteCallback writeCallback = new WriteCallback() {
+		@Override
+		public void writeFailed(final Throwable x) {
+			endpoint.error();
+		}
+	};
+
+	private volatile Session session;
+
+	/**
+	 * Value of the next message, only accessed by the sending thread
+	 */
+	private long nextValue;
+
+	LoadConnection(final EndpointLoad endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	/**
+	 * Sends a message, unless the connection is closed or has too many messages waiting for a reply
+	 *
+	 * @param sendTime    Time the message was scheduled for, from {@link System#nanoTime()}
+	 * @param maxInFlight Maximum number of messages waiting for a reply
+	 */
+	void send(final long sendTime, final int maxInFlight) {
+		final Session current = session;
+		if (current == null || !current.isOpen()) {
+			return;
+		}
+
+		if (inFlight.get() >= maxInFlight) {
+			endpoint.skipped();
+			return;
+		}
+
+		inFlight.incrementAndGet();
+		sendTimes.add(sendTime);
+		nextValue = (nextValue + 1) % 1_000_000;
+		current.getRemote().sendString(Long.toString(nextValue), writeCallback);
+		endpoint.sent();
+	}
+
+	void close() {
+		final Session current = session;
+		if (current != null) {
+			current.close();
+		}
+	}
+
+	@OnWebSocketConnect
+	public void onConnect(final Session session) {
+		this.session = session;
+		endpoint.connected.increment();
+	}
+
+	@OnWebSocketMessage
+	public void onMessage(final Session session, final String message) {
+		final long now = System.nanoTime();
+		if (message.startsWith(GREETING_PREFIX)) {
+			return;
+		}
+
+		final Long sendTime = sendTimes.poll();
+		if (sendTime == null) {
+			endpoint.unexpected();
+			return;
+		}
+
+		inFlight.decrementAndGet();
+		endpoint.roundTrip(now - sendTime);
+	}
+
+	@OnWebSocketClose
+	public void onClose(final Session session, final int statusCode, final String reason) {
+		this.session = null;
+		endpoint.connected.decrement();
+		endpoint.closed.increment();
+	}
+
+	@OnWebSocketError
+	public void onError(final Session session, final Throwable t) {
+		endpoint.error();
+	}
+}
@@ -0,0 +1,242 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+/**
+ * Load generator for the demo endpoints of a running framework.
+ * <p>
+ * Opens connections spread over the tested endpoint paths, then sends messages at a fixed total rate, round-robin over
+ * the connections, and reports the reply throughput and round-trip time percentiles of each endpoint. Round-trip
+ * times are measured from the time each message was scheduled for, so that a server falling behind shows in the
+ * percentiles instead of slowing down the load. Messages aren't sent on connections already waiting for
+ * {@code max-in-flight} replies: they are reported as skipped, a sign the server is saturated.
+ * <p>
+ * Run it from the benchmarks jar, with options given as {@code --name=value}:
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.kentyou.eclipsecon2023.websocket.loadtest.LoadGenerator \
+ *     --url=ws://localhost:8080 --connections=5000 --rate=20000 --duration=60
+ * </pre>
+ *
+ * Thousands of connections need a matching limit of open files, on the client and on the server.
+ */
+public class LoadGenerator {
+
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+	static {
+		DEFAULTS.put("url", "ws://localhost:8080");
+		DEFAULTS.put("endpoints", "/ws/test-annotation,/ws/test-endpoint-proto,/ws/square");
+		DEFAULTS.put("connections", "1000");
+		DEFAULTS.put("rate", "1000");
+		DEFAULTS.put("warmup", "5");
+		DEFAULTS.put("duration", "30");
+		DEFAULTS.put("max-in-flight", "100");
+		DEFAULTS.put("connect-concurrency", "200");
+	}
+
+	/**
+	 * Interval between two sending rounds
+	 */
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final List<EndpointLoad> endpoints = new ArrayList<>();
+
+	private final EndpointLoad total = new EndpointLoad("total", null, null);
+
+	private final List<LoadConnection> connections = new ArrayList<>();
+
+	private final int nbConnections;
+
+	private final double rate;
+
+	private final long warmupSeconds;
+
+	private final long durationSeconds;
+
+	private final int maxInFlight;
+
+	private final int connectConcurrency;
+
+	/**
+	 * Scheduling state of the sender thread
+	 */
+	private long sendStart;
+	private long scheduled;
+	private int nextConnection;
+
+	LoadGenerator(final Map<String, String> options) {
+		final String url = options.get("url").replaceAll("/+$", "");
+		for (final String path : options.get("endpoints").split(",")) {
+			if (!path.isBlank()) {
+				endpoints.add(new EndpointLoad(path.trim(), URI.create(url + path.trim()), total));
+			}
+		}
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("No endpoint to test");
+		}
+
+		nbConnections = Integer.parseInt(options.get("connections"));
+		rate = Double.parseDouble(options.get("rate"));
+		warmupSeconds = Long.parseLong(options.get("warmup"));
+		durationSeconds = Long.parseLong(options.get("duration"));
+		maxInFlight = Integer.parseInt(options.get("max-in-flight"));
+		connectConcurrency = Integer.parseInt(options.get("connect-concurrency"));
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final Map<String, String> options = new HashMap<>(DEFAULTS);
+		for (final String arg : args) {
+			final int eq = arg.indexOf('=');
+			final String name = arg.startsWith("--") && eq > 2 ? arg.substring(2, eq) : null;
+			if (name == null || !DEFAULTS.containsKey(name)) {
+				System.err.println("Unknown argument: " + arg);
+				System.err.println("Options (--name=value) and defaults: " + DEFAULTS);
+				System.exit(1);
+				return;
+			}
+			options.put(name, arg.substring(eq + 1));
+		}
+
+		new LoadGenerator(options).run(System.out);
+	}
+
+	void run(final PrintStream out) throws Exception {
+		final WebSocketClient client = new WebSocketClient();
+		client.setIdleTimeout(Duration.ofSeconds(warmupSeconds + durationSeconds + 60));
+		client.start();
+
+		final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread thread = new Thread(r, "load-sender");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		try {
+			if (connect(client, out) == 0) {
+				return;
+			}
+
+			out.printf("Sending %.0f msg/s for %ds of warmup and %ds of measurement%n", rate, warmupSeconds,
+					durationSeconds);
+			sendStart = System.nanoTime();
+			sender.scheduleAtFixedRate(this::sendDue, 0, TICK_NANOS, TimeUnit.NANOSECONDS);
+
+			Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+			endpoints.forEach(EndpointLoad::reset);
+			total.reset();
+
+			Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+			final long end = System.nanoTime();
+			final Map<EndpointLoad, LoadStats> results = new LinkedHashMap<>();
+			for (final EndpointLoad endpoint : endpoints) {
+				results.put(endpoint, endpoint.reset());
+			}
+			results.put(total, total.reset());
+			sender.shutdownNow();
+
+			report(out, results, end);
+		} finally {
+			sender.shutdownNow();
+			connections.forEach(LoadConnection::close);
+			client.stop();
+		}
+	}
+
+	/**
+	 * Opens the connections, at most {@code connect-concurrency} at a time
+	 *
+	 * @return The number of opened connections
+	 */
+	private long connect(final WebSocketClient client, final PrintStream out) throws Exception {
+		out.printf("Opening %d connections to %d endpoints%n", nbConnections, endpoints.size());
+		final long start = System.nanoTime();
+		final Semaphore pending = new Semaphore(connectConcurrency);
+		final List<LoadConnection> opening = new ArrayList<>(nbConnections);
+
+		for (int i = 0; i < nbConnections; i++) {
+			final EndpointLoad endpoint = endpoints.get(i % endpoints.size());
+			final LoadConnection connection = new LoadConnection(endpoint);
+			opening.add(connection);
+
+			pending.acquire();
+			try {
+				client.connect(connection, endpoint.uri).whenComplete((session, error) -> {
+					if (error != null) {
+						endpoint.connectFailures.increment();
+					}
+					pending.release();
+				});
+			} catch (IOException e) {
+				endpoint.connectFailures.increment();
+				pending.release();
+			}
+		}
+		pending.acquire(connectConcurrency);
+
+		long failures = 0;
+		for (final EndpointLoad endpoint : endpoints) {
+			failures += endpoint.connectFailures.sum();
+		}
+		connections.addAll(opening);
+		out.printf("Opened %d connections in %d ms (%d failed)%n", nbConnections - failures,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failures);
+		return nbConnections - failures;
+	}
+
+	/**
+	 * Sends the messages scheduled since the last round, each one stamped with the time it was due
+	 */
+	private void sendDue() {
+		final long now = System.nanoTime();
+		final long due = (long) ((now - sendStart) * rate / 1e9);
+		for (; scheduled < due; scheduled++) {
+			final long sendTime = sendStart + (long) (scheduled * 1e9 / rate);
+			connections.get(nextConnection).send(sendTime, maxInFlight);
+			nextConnection = (nextConnection + 1) % connections.size();
+		}
+	}
+
+	private void report(final PrintStream out, final Map<EndpointLoad, LoadStats> results, final long end) {
+		out.println();
+		out.printf("%-26s %7s %10s %10s %10s %9s %9s %9s %9s %9s %7s%n", "Endpoint", "Conns", "Sent", "Replies",
+				"Replies/s", "p50 (us)", "p99 (us)", "p999 (us)", "max (us)", "Skipped", "Errors");
+		results.forEach((endpoint, stats) -> {
+			final long connected = endpoint == total
+					? endpoints.stream().mapToLong(e -> e.connected.sum()).sum()
+					: endpoint.connected.sum();
+			out.printf("%-26s %7d %10d %10d %10.0f %9d %9d %9d %9d %9d %7d%n", endpoint.path, connected,
+					stats.sent.sum(), stats.roundTrips.getCount(), stats.getThroughput(end),
+					stats.roundTrips.getPercentileMicros(50), stats.roundTrips.getPercentileMicros(99),
+					stats.roundTrips.getPercentileMicros(99.9),
+					TimeUnit.NANOSECONDS.toMicros(stats.roundTrips.getMax()), stats.skipped.sum(),
+					stats.errors.sum() + stats.unexpected.sum());
+		});
+	}
+}
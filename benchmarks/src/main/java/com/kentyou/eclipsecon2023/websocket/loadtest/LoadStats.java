@@ -0,0 +1,55 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.loadtest;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.kentyou.eclipsecon2023.websocket.backend.LatencyHistogram;
+
+/**
+ * Counters of a measurement phase, for an endpoint or for the whole run
+ */
+class LoadStats {
+
+	final long startNanos = System.nanoTime();
+
+	final LatencyHistogram roundTrips = new LatencyHistogram();
+
+	/**
+	 * Messages sent
+	 */
+	final LongAdder sent = new LongAdder();
+
+	/**
+	 * Messages not sent because the connection had too many messages waiting for a reply
+	 */
+	final LongAdder skipped = new LongAdder();
+
+	/**
+	 * Send failures and connection errors
+	 */
+	final LongAdder errors = new LongAdder();
+
+	/**
+	 * Replies that didn't match a sent message
+	 */
+	final LongAdder unexpected = new LongAdder();
+
+	/**
+	 * Returns the number of replies per second since the start of the phase
+	 */
+	double getThroughput(final long endNanos) {
+		final long elapsed = endNanos - startNanos;
+		return elapsed <= 0 ? 0 : roundTrips.getCount() * 1e9 / elapsed;
+	}
+}
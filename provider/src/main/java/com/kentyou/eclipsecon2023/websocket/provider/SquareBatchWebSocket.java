@@ -0,0 +1,114 @@
+/*********************************************************************
+* Copyright (c) 2023 Kentyou.
+*
+* This program and the accompanying materials are made
+* available under the terms of the Eclipse Public License 2.0
+* which is available at https://www.eclipse.org/legal/epl-2.0/
+*
+* SPDX-License-Identifier: EPL-2.0
+*
+* Contributors:
+*   Kentyou - initial implementation
+**********************************************************************/
+package com.kentyou.eclipsecon2023.websocket.provider;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.osgi.service.component.annotations.Component;
+
+import jakarta.websocket.OnMessage;
+import jakarta.websocket.Session;
+import jakarta.websocket.server.ServerEndpoint;
+
+/**
+ * Binary variant of {@link SquareWebSocket}, squaring batches of numbers.
+ * <p>
+ * Requests and responses are packed little-endian {@code long} arrays: the response holds the square of each value
+ * of the request, in the same order. Squares that don't fit in a {@code long} are answered with
+ * {@link Long#MIN_VALUE}, which no square can be. Requests whose size isn't a multiple of 8 bytes are answered with
+ * a text error message.
+ * <p>
+ * Large batches are split and squared in parallel on the common fork-join pool.
+ */
+@ServerEndpoint("/ws/square/batch")
+@Component(service = SquareBatchWebSocket.class, immediate = true, property = { "websocket.server=true" })
+public class SquareBatchWebSocket {
+
+    /**
+     * Value returned for squares that overflow
+     */
+    static final long OVERFLOW = Long.MIN_VALUE;
+
+    /**
+     * Largest absolute value whose square fits in a long
+     */
+    private static final long MAX_ROOT = 3037000499L;
+
+    /**
+     * Number of values under which a batch isn't split anymore
+     */
+    private static final int SPLIT_THRESHOLD = 8192;
+
+    @OnMessage
+    public void onMessage(ByteBuffer message, Session session) throws Exception {
+        if (message.remaining() % Long.BYTES != 0) {
+            session.getBasicRemote().sendText("Error: message size must be a multiple of " + Long.BYTES + " bytes");
+            return;
+        }
+
+        final long[] values = new long[message.remaining() / Long.BYTES];
+        message.duplicate().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(values);
+
+        if (values.length > SPLIT_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(new SquareTask(values, 0, values.length));
+        } else {
+            square(values, 0, values.length);
+        }
+
+        final ByteBuffer response = ByteBuffer.allocate(values.length * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        response.asLongBuffer().put(values);
+        session.getBasicRemote().sendBinary(response);
+    }
+
+    /**
+     * Squares the values of the given range in place
+     */
+    static void square(final long[] values, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            final long value = values[i];
+            values[i] = value > MAX_ROOT || value < -MAX_ROOT ? OVERFLOW : value * value;
+        }
+    }
+
+    /**
+     * Squares a range of values, splitting it in halves until it is under the threshold
+     */
+    private static class SquareTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long[] values;
+        private final int from;
+        private final int to;
+
+        SquareTask(long[] values, int from, int to) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                square(values, from, to);
+                return;
+            }
+
+            final int middle = (from + to) >>> 1;
+            invokeAll(new SquareTask(values, from, middle), new SquareTask(values, middle, to));
+        }
+    }
+}
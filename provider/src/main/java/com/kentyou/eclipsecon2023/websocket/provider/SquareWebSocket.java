@@ -38,8 +38,8 @@ public class SquareWebSocket {
     public void onMessage(String message, Session session) throws Exception {
         try {
             long value = Long.parseLong(message);
-            session.getBasicRemote().sendText(String.valueOf(value * value));
-        } catch (NumberFormatException e) {
+            session.getBasicRemote().sendText(String.valueOf(Math.multiplyExact(value, value)));
+        } catch (NumberFormatException | ArithmeticException e) {
             session.getBasicRemote().sendText("Error: " + e);
         }
     }